@@ -17,6 +17,9 @@ import ch.unizh.ini.jaer.chip.util.scanner.ScannerHardwareInterfaceProxy;
  * Double-buffers the samples with a locking mechanism.
  * Includes option for sync input to reset sample counter to start of array, or allows larger number of samples for continuous recording of 
  * data not using scanner with its sync output.
+ * <p>
+ * In addition every sample that is not a scanner sync is written to a SampleRing of its channel, which readers can copy windows from
+ * without locking and without consuming the samples, see getSampleRing.
  * @author Tobi
  */
 final public class CochleaAMS1cADCSamples implements Observer {
@@ -26,6 +29,8 @@ final public class CochleaAMS1cADCSamples implements Observer {
     public static final int MAX_NUM_SAMPLES = 20000; // fixed max size now, with sync() call to reset to start of array // WIDTH * HEIGHT;
     public static final int NUM_CHANNELS = 4;
     public static final int MAX_ADC_VALUE = 1023;
+    /** Number of samples held by the SampleRing of each channel, a power of 2 */
+    public static final int RING_CAPACITY = 1 << 16;
     DataBuffer data1 = new DataBuffer(), data2 = new DataBuffer();
     /** Readers should access the current reading buffer. */
     private DataBuffer currentReadingDataBuffer = data1;
@@ -38,9 +43,13 @@ final public class CochleaAMS1cADCSamples implements Observer {
     private int maxTime=0; // holds maximum sample time, is reset if time wraps around
     private boolean maxTimeInitialized=false;
     private int lastMaxTime=0; // used to check for time wrapping
+    private final SampleRing[] sampleRings = new SampleRing[NUM_CHANNELS];
 
     public CochleaAMS1cADCSamples(CochleaAMS1c cochleaChip) {
         this.cochleaChip = cochleaChip; // cannot access biasgen/scanner yet, not constructed yet probably
+        for (int i = 0; i < NUM_CHANNELS; i++) {
+            sampleRings[i] = new SampleRing(RING_CAPACITY);
+        }
         if (cochleaChip.getScanner() == null) {
             log.warning("cannot bind to Scanner object, it's null.");
             return;
@@ -120,19 +129,27 @@ final public class CochleaAMS1cADCSamples implements Observer {
         
     }
 
-    /** A buffer for a single channel of the ADC which holds an array of samples in the ADCSample array. */
+    /** A buffer for a single channel of the ADC which holds the sample times and values in arrays. */
     final public class ChannelBuffer {
 
         final int channel;
-        public ADCSample[] samples = new ADCSample[MAX_NUM_SAMPLES];
+        private final int[] times = new int[MAX_NUM_SAMPLES];
+        private final short[] values = new short[MAX_NUM_SAMPLES];
         private int writeCounter = 0;
 //        private int max=Integer.MIN_VALUE, min=Integer.MAX_VALUE;
 
         public ChannelBuffer(final int channel) {
             this.channel = channel;
-            for (int i = 0; i < MAX_NUM_SAMPLES; i++) {
-                samples[i] = new ADCSample();
-            }
+        }
+
+        /** Returns the time of sample i in us */
+        public int getTime(int i) {
+            return times[i];
+        }
+
+        /** Returns the ADC value of sample i */
+        public int getData(int i) {
+            return values[i];
         }
 
         /** Call this when scanning and we see a sync output active from scanner. Clears the buffer and sets syncDetected. */
@@ -158,25 +175,20 @@ final public class CochleaAMS1cADCSamples implements Observer {
          * @param sync true if data sample is at scanner sync
          */
         private void put(int time, int val, boolean sync) {
-            if (writeCounter >= MAX_NUM_SAMPLES - 1) {
-//            log.info("buffer overflowed - missing start frame bit?");
-                return;
-            }
             if (sync && hasScannerData) {
                 if (writeCounter != getScanLength()) {
                     log.warning("writeCounter=" + writeCounter + " at sync but it should be " + getScanLength());
                 }
                 sync();
             }
+            if (writeCounter >= MAX_NUM_SAMPLES - 1) {
+//            log.info("buffer overflowed - missing start frame bit?");
+                return;
+            }
             if (!sync) {
-                samples[writeCounter].time = time;
-                samples[writeCounter].data = val;
+                times[writeCounter] = time;
+                values[writeCounter] = (short) val;
                 writeCounter++;
-                if(!maxTimeInitialized || time>maxTime || time<lastMaxTime){
-                    maxTime=time;
-                    maxTimeInitialized=true;
-                }
-                lastMaxTime=time;
             }
 
             if (writeCounter == MAX_NUM_SAMPLES) {
@@ -203,7 +215,7 @@ final public class CochleaAMS1cADCSamples implements Observer {
             if (writeCounter < 2) {
                 return 0;
             }
-            return samples[writeCounter - 1].time - samples[0].time;
+            return times[writeCounter - 1] - times[0];
         }
     }
 
@@ -261,8 +273,18 @@ final public class CochleaAMS1cADCSamples implements Observer {
         semaphore.release();
     }
 
+    /** Returns a new ADCSample holding sample x of channel of the current reading buffer. */
     public final ADCSample get(int channel, int x) {
-        return currentReadingDataBuffer.channelBuffers[channel].samples[x];
+        ChannelBuffer c = currentReadingDataBuffer.channelBuffers[channel];
+        ADCSample s = new ADCSample();
+        s.time = c.times[x];
+        s.data = c.values[x];
+        return s;
+    }
+
+    /** Returns the ring of all samples of a channel; it may be read from any thread without acquiring the semaphore. */
+    public final SampleRing getSampleRing(int channel) {
+        return sampleRings[channel];
     }
 
     /** puts a sample with boolean sync that resets to start of buffer
@@ -275,6 +297,14 @@ final public class CochleaAMS1cADCSamples implements Observer {
     public final void put(int channel, int time, int val, boolean sync) {
         ChannelBuffer c = currentWritingDataBuffer.channelBuffers[channel];
         c.put(time, val, sync);
+        if (!sync) {
+            sampleRings[channel].put(time, val);
+            if(!maxTimeInitialized || time>maxTime || time<lastMaxTime){
+                maxTime=time;
+                maxTimeInitialized=true;
+            }
+            lastMaxTime=time;
+        }
     }
 
     /** Swaps the current writing and reading buffers after acquiring the lock. */
@@ -305,4 +335,94 @@ final public class CochleaAMS1cADCSamples implements Observer {
     }
     
     
+    /**
+     * A ring of the last RING_CAPACITY samples of one channel, held in an int array of times and a short array of values.
+     * The acquisition thread is the only writer; it never blocks and never allocates. Samples are numbered by a cursor that
+     * counts all samples ever written, so a reader can remember up to where it has read. Any number of readers may copy
+     * windows of samples at the same time without locking; samples that the writer overwrote while they were copied are
+     * dropped from the start of the window.
+     */
+    public static final class SampleRing {
+
+        private final int[] times;
+        private final short[] values;
+        private final int mask;
+        private volatile long cursor = 0; // number of samples written
+
+        public SampleRing(int capacity) {
+            if (Integer.bitCount(capacity) != 1) {
+                throw new IllegalArgumentException("capacity=" + capacity + " must be a power of 2");
+            }
+            times = new int[capacity];
+            values = new short[capacity];
+            mask = capacity - 1;
+        }
+
+        /** Adds a sample; must only be called by the writing thread. */
+        public void put(int time, int value) {
+            final long c = cursor;
+            final int k = (int) (c & mask);
+            times[k] = time;
+            values[k] = (short) value;
+            cursor = c + 1; // publishes the sample
+        }
+
+        /** Returns the number of samples written so far, i.e. the cursor of the next sample. */
+        public long getCursor() {
+            return cursor;
+        }
+
+        public int getCapacity() {
+            return mask + 1;
+        }
+
+        /**
+         * Copies the samples from cursor from up to cursor to. Samples older than the capacity are skipped, so the copy may
+         * start after from.
+         *
+         * @param from cursor of the first sample wanted
+         * @param to cursor after the last sample wanted, at most getCursor()
+         * @param times receives the times from index 0, must hold to-from samples or the capacity
+         * @param values receives the values from index 0
+         * @return the cursor of the sample copied to index 0; the number of samples copied is to minus this
+         */
+        public long copy(long from, long to, int[] times, short[] values) {
+            final int capacity = mask + 1;
+            long start = Math.max(from, cursor - capacity);
+            if (start >= to) {
+                return to;
+            }
+            final int n = (int) (to - start);
+            final int k = (int) (start & mask);
+            final int first = Math.min(n, capacity - k);
+            System.arraycopy(this.times, k, times, 0, first);
+            System.arraycopy(this.values, k, values, 0, first);
+            if (first < n) {
+                System.arraycopy(this.times, 0, times, first, n - first);
+                System.arraycopy(this.values, 0, values, first, n - first);
+            }
+            // the writer may have overwritten the oldest samples while they were copied, including the one it writes now
+            final long valid = (cursor - capacity) + 1;
+            if (valid > start) {
+                final int lost = (int) Math.min(n, valid - start);
+                System.arraycopy(times, lost, times, 0, n - lost);
+                System.arraycopy(values, lost, values, 0, n - lost);
+                start += lost;
+            }
+            return start;
+        }
+
+        /**
+         * Copies the latest samples.
+         *
+         * @param n the number of samples wanted
+         * @param times receives the times of the samples, oldest first
+         * @param values receives the values
+         * @return the number of samples copied
+         */
+        public int copyLatest(int n, int[] times, short[] values) {
+            final long to = cursor;
+            return (int) (to - copy(to - n, to, times, values));
+        }
+    }
 }
@@ -19,8 +19,8 @@ import net.sf.jaer.util.chart.Axis;
 import net.sf.jaer.util.chart.Category;
 import net.sf.jaer.util.chart.Series;
 import net.sf.jaer.util.chart.XYChart;
-import ch.unizh.ini.jaer.chip.cochlea.CochleaAMS1cADCSamples.ChannelBuffer;
 import ch.unizh.ini.jaer.chip.cochlea.CochleaAMS1cADCSamples.DataBuffer;
+import ch.unizh.ini.jaer.chip.cochlea.CochleaAMS1cADCSamples.SampleRing;
 import com.jogamp.opengl.GLAutoDrawable;
 import com.jogamp.opengl.awt.GLJPanel;
 
@@ -31,8 +31,8 @@ import com.jogamp.opengl.awt.GLJPanel;
  * the display of an "image" of the data from scanning out the scanner data from the chip, showing all the BM sections at once.
  * <p>
  * Depending on the data in CochleaAMS1cADCSamples the data is handled differently.
- * <p> In the strip chart case, the data is acquired from
- * the ADCSamples object, resetting it in the process, and passed to the Series plotting object.  In the meantime the USB thread is filling the other ADCSamples buffer.
+ * <p> In the strip chart case, the samples that arrived since the last display are copied from the SampleRing of each channel, without locking
+ * and without consuming them, and passed to the Series plotting object.  In the meantime the USB thread keeps writing to the rings.
  * <P>
  * In the image case, the data in the ADCSamples object is not reset by the acquisition. Rather, whatever data is in the ADCSamples object is passed to Series after the Series has been reset.
  * Thus the data shown represents the latest data available, which could be a mixture of different "frames".
@@ -58,6 +58,11 @@ public class CochleaAMS1cRollingCochleagramADCDisplayMethod extends RollingCochl
 	private CochleaAMS1cRollingCochleagramADCDisplayMethodGainGUI[] gainGuis = new CochleaAMS1cRollingCochleagramADCDisplayMethodGainGUI[NCHAN];
 	DisplayControl[] displayControl = new DisplayControl[NCHAN];
 	int xmin = Integer.MAX_VALUE, xmax = Integer.MIN_VALUE;
+	/** Cursor of the next sample of each ADC channel to show in the strip chart */
+	private final long[] ringCursors = new long[CochleaAMS1cADCSamples.NUM_CHANNELS];
+	private CochleaAMS1cADCSamples ringSamples = null; // the samples the ring cursors refer to
+	private final int[] sampleTimes = new int[NUM_ACTIVITY_SAMPLES];
+	private final short[] sampleValues = new short[NUM_ACTIVITY_SAMPLES];
 
 	public CochleaAMS1cRollingCochleagramADCDisplayMethod(ChipCanvas canvas) { // TODO fix all DisplayMethods so that they can accept the AEChip object and not the canvas, or else fix here so that given canvas with null chip (as is the case during AEChip creation) we can still do a lazy instantiation of necesary objects
 		super(canvas);
@@ -112,14 +117,17 @@ public class CochleaAMS1cRollingCochleagramADCDisplayMethod extends RollingCochl
 				}
 
 				for (int i = 0; i < n; i++) {
-					ch.unizh.ini.jaer.chip.cochlea.CochleaAMS1cADCSamples.ADCSample s = cb.samples[i];
-					activitySeries[chan].add(i, clip((s.data + o) * g));
+					activitySeries[chan].add(i, clip((cb.getData(i) + o) * g));
 				}
 				chan++;
 			}
 		} else {// strip chart
-			adcSamples.swapBuffers();  // only add new data
-			DataBuffer data = adcSamples.getCurrentReadingDataBuffer(); // plot data being collected now, without consuming it
+			if (ringSamples != adcSamples) {
+				ringSamples = adcSamples;
+				for (int i = 0; i < ringCursors.length; i++) {
+					ringCursors[i] = adcSamples.getSampleRing(i).getCursor();
+				}
+			}
 
 			timeAxis.setMinimum(startTime);
 			int maxTime=adcSamples.getMaxTime();
@@ -129,15 +137,18 @@ public class CochleaAMS1cRollingCochleagramADCDisplayMethod extends RollingCochl
 			} // reset strip chart
 
 			timeAxis.setMaximum(startTime+timeWidthUs); // TODO this comes from AE data in rolling event strip chart, but if no events, not set properly
-			int chan = 0;
-			for (ChannelBuffer cb : data.channelBuffers) {
+			for (int chan = 0; chan < CochleaAMS1cADCSamples.NUM_CHANNELS; chan++) {
+				SampleRing ring = adcSamples.getSampleRing(chan);
+				long to = ring.getCursor(); // only add new data
+				long from = Math.max(ringCursors[chan], to - NUM_ACTIVITY_SAMPLES);
+				ringCursors[chan] = to;
 				if (isHidden(chan)) {
 					activitySeries[chan].clear();
-					chan++;
 					continue;
 				} // TODO does nothing now because clear() doesn't work I think. Maybe have fixed that.
 
-				int n = cb.size(); // must find size here since array contains junk outside the count
+				from = ring.copy(from, to, sampleTimes, sampleValues);
+				int n = (int) (to - from);
 				int g = getGain(chan);
 				int o = getOffset(chan);
 
@@ -146,11 +157,9 @@ public class CochleaAMS1cRollingCochleagramADCDisplayMethod extends RollingCochl
 				}
 
 				for (int i = 0; i < n; i++) {
-					ch.unizh.ini.jaer.chip.cochlea.CochleaAMS1cADCSamples.ADCSample s = cb.samples[i];
-					activitySeries[chan].add(s.time,  clip((s.data + o) * g));
-					updateLimits(s.time);
+					activitySeries[chan].add(sampleTimes[i],  clip((sampleValues[i] + o) * g));
+					updateLimits(sampleTimes[i]);
 				}
-				chan++;
 			}
 		}
 		resetLimits();
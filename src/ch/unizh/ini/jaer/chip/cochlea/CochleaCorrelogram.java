@@ -0,0 +1,454 @@
+/*
+ * CochleaCorrelogram.java
+ *
+ * To change this template, choose Tools | Template Manager
+ * and open the template in the editor.
+ */
+
+package ch.unizh.ini.jaer.chip.cochlea;
+
+import java.util.Arrays;
+
+import net.sf.jaer.util.ParallelRunner;
+
+/**
+ * Streaming binaural cross correlation of binned cochlea spike trains.
+ * <p>
+ * The spikes of each channel and ear are counted in bins of binUs. The bins are processed in blocks of blockBins:
+ * the correlation of a block of ear 0 with the bins of ear 1 from maxLagBins before to maxLagBins after the block is
+ * computed by FFT (both real sequences in one complex FFT, then one inverse FFT), which costs O(n log n) instead of the
+ * O(blockBins*lags) of the direct sum over all bins. Blocks with few occupied bins, as usual for sparse spike trains,
+ * are summed directly over the occupied bins instead, whichever is cheaper. The correlogram of a channel is the sum of the last numBlocks block correlations,
+ * i.e. of a sliding window, and is updated incrementally by adding the newest block and subtracting the oldest. Since
+ * the bins hold spike counts, the block correlations are rounded to integers, so the sliding sum does not drift.
+ * <p>
+ * A block is processed when the first spike after its last lag arrives; the channels are processed in parallel. Lag l
+ * of the correlogram counts pairs of spikes where the ear 1 spike is l bins after the ear 0 spike.
+ *
+ * @author tobi
+ */
+public class CochleaCorrelogram {
+
+	private final int numChannels, binUs, maxLagBins, blockBins, numBlocks;
+	private final int numLags, fftSize, ringSize;
+	private final long fftCost; // cost of the FFT of a block in multiply-adds, to choose the direct sum for sparse blocks
+	private final int[][][] bins; // [channel][ear][ring of bins], bin b at b & (ringSize-1)
+	private final int[][][] blockCorrelations; // [channel][block ring][lag+maxLagBins]
+	private final int[][] correlograms; // [channel][lag+maxLagBins], sum of blockCorrelations
+	private final long[] summed; // buffer of getPeakLagUs
+	private final double[] cos, sin; // twiddle factors
+	private final int[] bitReverse;
+	private Scratch[] scratch = new Scratch[0];
+	private boolean started = false;
+	private int originTimestamp; // timestamp of the start of bin 0
+	private long nextBlock = 0; // the next block to process
+	private long lastBin = 0; // bin of the newest spike
+	private long blocksProcessed = 0;
+
+	private int numThreads = 0;
+	private final ParallelRunner runner = new ParallelRunner("CochleaCorrelogram");
+
+	// buffers of one thread
+	private static class Scratch {
+
+		final double[] re, im;
+
+		Scratch(int n) {
+			re = new double[n];
+			im = new double[n];
+		}
+	}
+
+	/**
+	 * Creates a new correlator.
+	 *
+	 * @param numChannels the number of cochlea channels
+	 * @param binUs the width of the bins in us
+	 * @param maxLagBins the correlogram goes from lag -maxLagBins to maxLagBins
+	 * @param blockBins the number of bins processed at once
+	 * @param numBlocks the number of blocks summed in the correlogram
+	 */
+	public CochleaCorrelogram(int numChannels, int binUs, int maxLagBins, int blockBins, int numBlocks) {
+		if ((numChannels < 1) || (binUs < 1) || (maxLagBins < 0) || (blockBins < 1) || (numBlocks < 1)) {
+			throw new IllegalArgumentException("numChannels=" + numChannels + " binUs=" + binUs + " maxLagBins=" + maxLagBins + " blockBins=" + blockBins + " numBlocks=" + numBlocks);
+		}
+		this.numChannels = numChannels;
+		this.binUs = binUs;
+		this.maxLagBins = maxLagBins;
+		this.blockBins = blockBins;
+		this.numBlocks = numBlocks;
+		numLags = (2 * maxLagBins) + 1;
+		fftSize = nextPowerOf2(blockBins + (2 * maxLagBins));
+		ringSize = fftSize;
+		fftCost = 4L * fftSize * Math.max(1, Integer.numberOfTrailingZeros(fftSize));
+		bins = new int[numChannels][2][ringSize];
+		blockCorrelations = new int[numChannels][numBlocks][numLags];
+		correlograms = new int[numChannels][numLags];
+		summed = new long[numLags];
+		cos = new double[fftSize / 2];
+		sin = new double[fftSize / 2];
+		for (int i = 0; i < (fftSize / 2); i++) {
+			cos[i] = Math.cos((2 * Math.PI * i) / fftSize);
+			sin[i] = Math.sin((2 * Math.PI * i) / fftSize);
+		}
+		bitReverse = new int[fftSize];
+		int bits = Integer.numberOfTrailingZeros(fftSize);
+		for (int i = 0; i < fftSize; i++) {
+			bitReverse[i] = (bits == 0) ? 0 : (Integer.reverse(i) >>> (32 - bits));
+		}
+	}
+
+	private static int nextPowerOf2(int n) {
+		int p = 1;
+		while (p < n) {
+			p <<= 1;
+		}
+		return p;
+	}
+
+	/**
+	 * Forgets all spikes and correlations.
+	 */
+	synchronized public void reset() {
+		for (int c = 0; c < numChannels; c++) {
+			clearChannel(c);
+		}
+		started = false;
+		nextBlock = 0;
+		lastBin = 0;
+	}
+
+	private void clearChannel(int c) {
+		Arrays.fill(bins[c][0], 0);
+		Arrays.fill(bins[c][1], 0);
+		for (int[] b : blockCorrelations[c]) {
+			Arrays.fill(b, 0);
+		}
+		Arrays.fill(correlograms[c], 0);
+	}
+
+	/**
+	 * Adds a spike, first processing the blocks that are complete before it.
+	 *
+	 * @param channel the cochlea channel; spikes of other channels are ignored
+	 * @param ear 0 or 1
+	 * @param timestamp the timestamp in us
+	 */
+	synchronized public void addSpike(int channel, int ear, int timestamp) {
+		if ((channel < 0) || (channel >= numChannels)) {
+			return;
+		}
+		long bin = bin(timestamp);
+		if (bin < ((nextBlock * blockBins) - maxLagBins)) {
+			// older than the bins still held, e.g. after a timestamp reset
+			if ((lastBin - bin) > ((long) numBlocks * blockBins)) {
+				reset();
+				bin = bin(timestamp);
+			} else {
+				return;
+			}
+		}
+		advanceToBin(bin);
+		bins[channel][ear & 1][(int) (bin & (ringSize - 1))]++;
+	}
+
+	/**
+	 * Processes the blocks that are complete at timestamp, e.g. at the end of a packet.
+	 *
+	 * @param timestamp the timestamp in us
+	 */
+	synchronized public void advanceTo(int timestamp) {
+		if (started) {
+			long bin = bin(timestamp);
+			if (bin > lastBin) {
+				advanceToBin(bin);
+			}
+		}
+	}
+
+	private long bin(int timestamp) {
+		if (!started) {
+			started = true;
+			originTimestamp = timestamp;
+			nextBlock = 0;
+			lastBin = 0;
+		}
+		long dt = (long) timestamp - originTimestamp;
+		return (dt >= 0) ? (dt / binUs) : (((dt - binUs) + 1) / binUs);
+	}
+
+	private void advanceToBin(long bin) {
+		if (bin <= lastBin) {
+			return;
+		}
+		// after a long gap, skip to the last numBlocks blocks if none of the held bins is in their range
+		long skipTo = (((bin - maxLagBins) / blockBins) - numBlocks);
+		if ((skipTo > nextBlock) && (((skipTo * blockBins) - maxLagBins) > lastBin)) {
+			for (int c = 0; c < numChannels; c++) {
+				clearChannel(c);
+			}
+			blocksProcessed += skipTo - nextBlock;
+			nextBlock = skipTo;
+		}
+		lastBin = bin;
+		while ((((nextBlock + 1) * blockBins) + maxLagBins) <= lastBin) {
+			processBlock();
+		}
+	}
+
+	// correlates block nextBlock of all channels and slides the window
+	private void processBlock() {
+		final long block = nextBlock;
+		runChannels(new ChannelStep() {
+			@Override
+			public void run(int channel, Scratch s) {
+				processBlock(channel, block, s);
+			}
+		});
+		nextBlock++;
+		blocksProcessed++;
+	}
+
+	private void processBlock(int c, long block, Scratch s) {
+		final int slot = (int) (block % numBlocks);
+		final int[] old = blockCorrelations[c][slot], corr = correlograms[c];
+		for (int l = 0; l < numLags; l++) {
+			corr[l] -= old[l];
+		}
+		final long first = block * blockBins; // first bin of the block
+		final int mask = ringSize - 1;
+		final int[] x = bins[c][0], y = bins[c][1];
+		int nx = 0, ny = 0;
+		for (int t = 0; t < blockBins; t++) {
+			if (x[(int) ((first + t) & mask)] != 0) {
+				nx++;
+			}
+		}
+		for (int m = 0; m < (blockBins + (2 * maxLagBins)); m++) {
+			ny += y[(int) ((first - maxLagBins + m) & mask)];
+		}
+		if ((nx == 0) || (ny == 0)) {
+			Arrays.fill(old, 0);
+		} else if (((long) nx * numLags) < fftCost) {
+			// sparse block: sum directly over the occupied bins
+			Arrays.fill(old, 0);
+			for (int t = 0; t < blockBins; t++) {
+				final int xt = x[(int) ((first + t) & mask)];
+				if (xt != 0) {
+					final long y0 = (first + t) - maxLagBins;
+					for (int l = 0; l < numLags; l++) {
+						old[l] += xt * y[(int) ((y0 + l) & mask)];
+					}
+				}
+			}
+		} else {
+			// x block in the real part, y from maxLagBins before to maxLagBins after the block in the imaginary part
+			final double[] re = s.re, im = s.im;
+			Arrays.fill(re, 0);
+			Arrays.fill(im, 0);
+			for (int t = 0; t < blockBins; t++) {
+				re[t] = x[(int) ((first + t) & mask)];
+			}
+			for (int m = 0; m < (blockBins + (2 * maxLagBins)); m++) {
+				im[m] = y[(int) ((first - maxLagBins + m) & mask)];
+			}
+			fft(re, im, false);
+			// with Z = X + iY, A = Z[k] and B = conj(Z[N-k]): conj(X[k])*Y[k] = Im(conj(B)*A)/2 - i*(|A|^2-|B|^2)/4
+			final int n = fftSize;
+			for (int k = 0; k <= (n / 2); k++) {
+				final int nk = (n - k) & (n - 1);
+				final double ar = re[k], ai = im[k], br = re[nk], bi = -im[nk];
+				final double cr = ((br * ai) - (bi * ar)) / 2;
+				final double ci = -(((ar * ar) + (ai * ai)) - ((br * br) + (bi * bi))) / 4;
+				re[k] = cr;
+				im[k] = ci;
+				if (nk != k) {
+					// the correlation is real, so its spectrum is hermitian
+					re[nk] = cr;
+					im[nk] = -ci;
+				}
+			}
+			fft(re, im, true);
+			// r[k] = sum_t x[t] y[t+k] for k = 0..2*maxLagBins, lag k-maxLagBins
+			for (int l = 0; l < numLags; l++) {
+				old[l] = (int) Math.round(re[l] / n);
+			}
+		}
+		for (int l = 0; l < numLags; l++) {
+			corr[l] += old[l];
+		}
+		// the bins before the y range of the next block are no longer needed
+		for (int t = 0; t < blockBins; t++) {
+			final int k = (int) ((first - maxLagBins + t) & mask);
+			x[k] = 0;
+			y[k] = 0;
+		}
+	}
+
+	// in place radix 2 FFT, inverse without the 1/n
+	private void fft(double[] re, double[] im, boolean inverse) {
+		final int n = fftSize;
+		for (int i = 0; i < n; i++) {
+			final int j = bitReverse[i];
+			if (j > i) {
+				double t = re[i];
+				re[i] = re[j];
+				re[j] = t;
+				t = im[i];
+				im[i] = im[j];
+				im[j] = t;
+			}
+		}
+		final double sign = inverse ? 1 : -1;
+		for (int len = 2; len <= n; len <<= 1) {
+			final int half = len >> 1, step = n / len;
+			for (int j = 0; j < half; j++) {
+				final double wr = cos[j * step], wi = sign * sin[j * step];
+				for (int i = 0; i < n; i += len) {
+					final int a = i + j, b = a + half;
+					final double tr = (re[b] * wr) - (im[b] * wi), ti = (re[b] * wi) + (im[b] * wr);
+					re[b] = re[a] - tr;
+					im[b] = im[a] - ti;
+					re[a] += tr;
+					im[a] += ti;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the correlogram of a channel.
+	 *
+	 * @param channel the channel
+	 * @param out receives the number of spike pairs at lag -maxLagBins to maxLagBins, length at least 2*maxLagBins+1
+	 */
+	synchronized public void getCorrelogram(int channel, int[] out) {
+		System.arraycopy(correlograms[channel], 0, out, 0, numLags);
+	}
+
+	/**
+	 * Returns the sum of the correlograms of a range of channels.
+	 *
+	 * @param from the first channel
+	 * @param to one past the last channel
+	 * @param out receives the sum at lag -maxLagBins to maxLagBins, length at least 2*maxLagBins+1
+	 */
+	synchronized public void getSummedCorrelogram(int from, int to, long[] out) {
+		Arrays.fill(out, 0, numLags, 0);
+		for (int c = Math.max(0, from); c < Math.min(to, numChannels); c++) {
+			final int[] corr = correlograms[c];
+			for (int l = 0; l < numLags; l++) {
+				out[l] += corr[l];
+			}
+		}
+	}
+
+	/**
+	 * Returns the lag of the maximum of the summed correlogram of a range of channels; of equal maxima the one closest
+	 * to lag 0.
+	 *
+	 * @param from the first channel
+	 * @param to one past the last channel
+	 * @return the lag in us, positive if ear 1 spikes later, or 0 if there are no spike pairs
+	 */
+	synchronized public int getPeakLagUs(int from, int to) {
+		final long[] sum = summed;
+		getSummedCorrelogram(from, to, sum);
+		int best = maxLagBins;
+		for (int l = 0; l < numLags; l++) {
+			if ((sum[l] > sum[best]) || ((sum[l] == sum[best]) && (Math.abs(l - maxLagBins) < Math.abs(best - maxLagBins)))) {
+				best = l;
+			}
+		}
+		return (best - maxLagBins) * binUs;
+	}
+
+	/**
+	 * @return the number of blocks processed since construction, which increases when the correlograms change
+	 */
+	synchronized public long getBlocksProcessed() {
+		return blocksProcessed;
+	}
+
+	public int getNumChannels() {
+		return numChannels;
+	}
+
+	public int getBinUs() {
+		return binUs;
+	}
+
+	public int getMaxLagBins() {
+		return maxLagBins;
+	}
+
+	public int getBlockBins() {
+		return blockBins;
+	}
+
+	public int getNumBlocks() {
+		return numBlocks;
+	}
+
+	/**
+	 * A step on one channel with the buffers of its thread
+	 */
+	private interface ChannelStep {
+
+		void run(int channel, Scratch s);
+	}
+
+	private void runChannels(final ChannelStep step) {
+		final int n = Math.min(getNumThreadsUsed(), numChannels);
+		if (scratch.length < n) {
+			scratch = new Scratch[Math.max(1, n)];
+			for (int i = 0; i < scratch.length; i++) {
+				scratch[i] = new Scratch(fftSize);
+			}
+		}
+		if (scratch.length == 0) {
+			scratch = new Scratch[] { new Scratch(fftSize) };
+		}
+		if (n <= 1) {
+			for (int c = 0; c < numChannels; c++) {
+				step.run(c, scratch[0]);
+			}
+			return;
+		}
+		final Scratch[] scratches = scratch;
+		runner.run(n, new ParallelRunner.Task() {
+			@Override
+			public void run(int i) {
+				final int from = (i * numChannels) / n, to = ((i + 1) * numChannels) / n;
+				for (int c = from; c < to; c++) {
+					step.run(c, scratches[i]);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the number of threads, 0 to use all processors
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * @param numThreads the number of threads, 0 to use all processors
+	 */
+	synchronized public void setNumThreads(int numThreads) {
+		this.numThreads = Math.max(0, numThreads);
+	}
+
+	private int getNumThreadsUsed() {
+		return ParallelRunner.getNumThreadsUsed(numThreads);
+	}
+
+	/**
+	 * Stops the threads; they are started again when needed.
+	 */
+	public void close() {
+		runner.close();
+	}
+}
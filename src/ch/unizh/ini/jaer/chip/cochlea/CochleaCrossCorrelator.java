@@ -42,6 +42,14 @@ public class CochleaCrossCorrelator extends EventFilter2D implements FrameAnnota
 	private int ildMax=getPrefs().getInt("CochleaCrossCorrelator.ildMax",500);
 	private int iDis=getPrefs().getInt("CochleaCrossCorrelator.iDis",20);
 	private float lpFilter3dBFreqHz=getPrefs().getFloat("CochleaCrossCorrelator.lpFilter3dBFreqHz",10);
+	private boolean useCorrelogram=getPrefs().getBoolean("CochleaCrossCorrelator.useCorrelogram",false);
+	private int binUs=getPrefs().getInt("CochleaCrossCorrelator.binUs",10);
+	private int correlationWindowMs=getPrefs().getInt("CochleaCrossCorrelator.correlationWindowMs",50);
+	private int numThreads=getPrefs().getInt("CochleaCrossCorrelator.numThreads",0);
+
+	/* streaming correlogram of the channels, created when needed */
+	private CochleaCorrelogram correlogram=null;
+	private long correlogramBlocks=0;
 
 	HardwareInterface servo=null;
 
@@ -56,6 +64,10 @@ public class CochleaCrossCorrelator extends EventFilter2D implements FrameAnnota
 		super(chip);
 		lpFilterITD.set3dBFreqHz(lpFilter3dBFreqHz);
 		lpFilterILD.set3dBFreqHz(lpFilter3dBFreqHz);
+		setPropertyTooltip("useCorrelogram","estimate the ITD from the peak of the FFT cross correlogram of all channels instead of from the last spikes of each channel");
+		setPropertyTooltip("binUs","bin width in us of the spike trains of the correlogram");
+		setPropertyTooltip("correlationWindowMs","length in ms of the sliding window of the correlogram");
+		setPropertyTooltip("numThreads","number of threads computing the correlogram, 0 to use all processors");
 		try{
 			outFile = new File("plotdata.txt");
 			outFileWriter = new BufferedWriter(new FileWriter(outFile));
@@ -87,6 +99,7 @@ public class CochleaCrossCorrelator extends EventFilter2D implements FrameAnnota
 		if(times==null) {
 			times=new int[chip.getSizeX()][chip.getSizeY()];
 		}
+		CochleaCorrelogram cg=useCorrelogram?checkCorrelogram():null;
 
 		for(Object o:in){
 			TypedEvent e=(TypedEvent)o;
@@ -105,13 +118,23 @@ public class CochleaCrossCorrelator extends EventFilter2D implements FrameAnnota
 				ITD=times[e.x][0]-e.timestamp;
 				nright++;
 			}
+			if(cg!=null){
+				cg.addSpike(e.x,e.type,e.timestamp);
+			}
 
 			ILD = (nright-nleft)+65;
 			ITD = ITD-70;
 			ILD = isILDOK(ILD);
 
 			//           if (isITDOK(ITD)) {
-			if(isITDOK(ITD)) {
+			if(cg!=null){
+				if(cg.getBlocksProcessed()!=correlogramBlocks){
+					// the correlogram lag is the time of the type 1 spikes after the type 0 spikes
+					correlogramBlocks=cg.getBlocksProcessed();
+					ITD=-cg.getPeakLagUs(0,cg.getNumChannels());
+					lpFilterITD.filter(ITD,e.timestamp);
+				}
+			} else if(isITDOK(ITD)) {
 				lpFilterITD.filter(ITD,e.timestamp);
 			}
 			lpFilterILD.filter(ILD,e.timestamp);
@@ -176,6 +199,35 @@ public class CochleaCrossCorrelator extends EventFilter2D implements FrameAnnota
 
 	@Override
 	public void resetFilter() {
+		if(correlogram!=null) {
+			correlogram.reset();
+		}
+	}
+
+	/** Creates the correlogram for the current parameters if there is none */
+	synchronized private CochleaCorrelogram checkCorrelogram(){
+		if(correlogram!=null) {
+			return correlogram;
+		}
+		int maxLagBins=(itdMax+binUs-1)/binUs;
+		int fftSize=64;
+		while(fftSize<(4*maxLagBins)) {
+			fftSize*=2;
+		}
+		int blockBins=fftSize-(2*maxLagBins);
+		int numBlocks=Math.max(1,Math.round((correlationWindowMs*1000f)/(blockBins*binUs)));
+		correlogram=new CochleaCorrelogram(Math.max(1,chip.getSizeX()),binUs,maxLagBins,blockBins,numBlocks);
+		correlogram.setNumThreads(numThreads);
+		correlogramBlocks=0;
+		return correlogram;
+	}
+
+	/** Drops the correlogram; it is created again with the new parameters when needed */
+	synchronized private void invalidateCorrelogram(){
+		if(correlogram!=null) {
+			correlogram.close();
+			correlogram=null;
+		}
 	}
 
 	@Override
@@ -189,6 +241,7 @@ public class CochleaCrossCorrelator extends EventFilter2D implements FrameAnnota
 	public void setItdMax(int itdMax) {
 		this.itdMax = itdMax;
 		getPrefs().putInt("CochleaCrossCorrelator.itdMax",itdMax);
+		invalidateCorrelogram();
 	}
 
 	public int getIldMax() {
@@ -228,6 +281,9 @@ public class CochleaCrossCorrelator extends EventFilter2D implements FrameAnnota
 
 	@Override public synchronized void setFilterEnabled(boolean yes){
 		super.setFilterEnabled(yes);
+		if(!yes){
+			invalidateCorrelogram();
+		}
 		if(!yes && (servo!=null)){
 			ServoInterface s=(ServoInterface)servo;
 			try{
@@ -287,4 +343,66 @@ public class CochleaCrossCorrelator extends EventFilter2D implements FrameAnnota
 	public LowpassFilter getLpFilterITD() {
 		return lpFilterITD;
 	}
+
+	public boolean isUseCorrelogram() {
+		return useCorrelogram;
+	}
+
+	public void setUseCorrelogram(boolean useCorrelogram) {
+		getSupport().firePropertyChange("useCorrelogram",this.useCorrelogram,useCorrelogram);
+		this.useCorrelogram = useCorrelogram;
+		getPrefs().putBoolean("CochleaCrossCorrelator.useCorrelogram",useCorrelogram);
+		if(!useCorrelogram){
+			invalidateCorrelogram();
+		}
+	}
+
+	public int getBinUs() {
+		return binUs;
+	}
+
+	public void setBinUs(int binUs) {
+		if(binUs<1) {
+			binUs=1;
+		}
+		getSupport().firePropertyChange("binUs",this.binUs,binUs);
+		this.binUs = binUs;
+		getPrefs().putInt("CochleaCrossCorrelator.binUs",binUs);
+		invalidateCorrelogram();
+	}
+
+	public int getCorrelationWindowMs() {
+		return correlationWindowMs;
+	}
+
+	public void setCorrelationWindowMs(int correlationWindowMs) {
+		if(correlationWindowMs<1) {
+			correlationWindowMs=1;
+		}
+		getSupport().firePropertyChange("correlationWindowMs",this.correlationWindowMs,correlationWindowMs);
+		this.correlationWindowMs = correlationWindowMs;
+		getPrefs().putInt("CochleaCrossCorrelator.correlationWindowMs",correlationWindowMs);
+		invalidateCorrelogram();
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(int numThreads) {
+		if(numThreads<0) {
+			numThreads=0;
+		}
+		getSupport().firePropertyChange("numThreads",this.numThreads,numThreads);
+		this.numThreads = numThreads;
+		getPrefs().putInt("CochleaCrossCorrelator.numThreads",numThreads);
+		if(correlogram!=null) {
+			correlogram.setNumThreads(numThreads);
+		}
+	}
+
+	/** @return the streaming correlogram, or null if useCorrelogram is off or no event was processed yet */
+	public CochleaCorrelogram getCorrelogram() {
+		return correlogram;
+	}
 }
@@ -247,11 +247,17 @@ public class CochleaXCorrelator extends EventFilter2D implements FrameAnnotater
 			whole[maxt+j] = isihg[j];
 		}
 
+		// moving average over 200 samples as a running sum
+		int window=0;
+		for (i=0; i<200; i++){
+			window=window+whole[i];
+		}
 		for (j=100;j<((maxt*2)-100);j++){
-			for (i=(j-100); i<(j+100); i++){
-				avgi[j]=avgi[j]+(whole[i]/(2.0*100));  // m
-			}
+			avgi[j]=window/(2.0*100);  // m
 			//System.out.println("avgi="+avgi[j]);
+			if ((j+100)<(maxt*2)) {
+				window=(window+whole[j+100])-whole[j-100];
+			}
 		}
 
 		mavgi = maxvalue(avgi);
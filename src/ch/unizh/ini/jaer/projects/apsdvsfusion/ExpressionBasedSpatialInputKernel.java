@@ -13,7 +13,6 @@ import java.awt.event.FocusListener;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.prefs.Preferences;
 
 import javax.swing.BoxLayout;
@@ -25,8 +24,8 @@ import javax.swing.SwingUtilities;
 
 import ch.unizh.ini.jaer.projects.apsdvsfusion.gui.CollapsablePanel;
 import ch.unizh.ini.jaer.projects.apsdvsfusion.gui.NonGLImageDisplay;
-import ch.unizh.ini.jaer.projects.apsdvsfusion.mathexpression.ExpressionTreeBuilder;
-import ch.unizh.ini.jaer.projects.apsdvsfusion.mathexpression.ExpressionTreeNode;
+import ch.unizh.ini.jaer.projects.apsdvsfusion.mathexpression.CompiledExpression;
+import ch.unizh.ini.jaer.projects.apsdvsfusion.mathexpression.ExpressionCompiler;
 import ch.unizh.ini.jaer.projects.apsdvsfusion.mathexpression.IllegalExpressionException;
 
 /**
@@ -111,17 +110,17 @@ public class ExpressionBasedSpatialInputKernel extends SignalTransformationKerne
 	 * @throws IllegalExpressionException
 	 */
 	protected synchronized float[][] evaluateExpression(String expressionString, float[][] oldConvolutionValues, String oldString) throws IllegalExpressionException {
-		ExpressionTreeNode et = ExpressionTreeBuilder.parseString(expressionString);
+		CompiledExpression et = ExpressionCompiler.compile(expressionString, "x", "y");
 		float[][] newValues = new float[oldConvolutionValues.length][oldConvolutionValues[0].length];
 		try {
-			HashMap<String, Double> map = new HashMap<String, Double>();
+			double[] values = new double[2];
 			float centerX = (width-1) / 2f;
 			float centerY = (height-1) / 2f;
 			for (int x = 0; x < width; x++) {
-				map.put("x", (double)(x - centerX));
+				values[0] = (double)(x - centerX);
 				for (int y = 0; y < height; y++) {
-					map.put("y", (double)(y - centerY));
-					newValues[x][y] = (float)et.evaluate(map);
+					values[1] = (double)(y - centerY);
+					newValues[x][y] = (float)et.eval(values);
 				}
 			}
 			
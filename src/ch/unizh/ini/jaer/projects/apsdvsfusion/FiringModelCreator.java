@@ -5,6 +5,7 @@ package ch.unizh.ini.jaer.projects.apsdvsfusion;
 
 import java.util.prefs.Preferences;
 
+import ch.unizh.ini.jaer.projects.apsdvsfusion.firingmodel.ExpressionIntegrateAndFire;
 import ch.unizh.ini.jaer.projects.apsdvsfusion.firingmodel.IntegrateAndFire;
 import ch.unizh.ini.jaer.projects.apsdvsfusion.firingmodel.LeakyIntegrateAndFire;
 import ch.unizh.ini.jaer.projects.apsdvsfusion.firingmodel.LinearThresholdIF;
@@ -27,7 +28,7 @@ public abstract class FiringModelCreator extends ParameterContainer {
 	public abstract FiringModel createUnit(int x, int y, FiringModelMap map);
 	
 	public static enum FiringModelType {
-		INTEGRATEANDFIRE, LINEARTHRESHOLDIF, LEAKYINTEGRATEANDFIRE
+		INTEGRATEANDFIRE, LINEARTHRESHOLDIF, LEAKYINTEGRATEANDFIRE, EXPRESSIONINTEGRATEANDFIRE
 	}
 	
 	public static FiringModelCreator getCreator(FiringModelType model, Preferences prefs) {
@@ -39,6 +40,9 @@ public abstract class FiringModelCreator extends ParameterContainer {
 		else if (model == FiringModelType.LEAKYINTEGRATEANDFIRE) {
 			return LeakyIntegrateAndFire.getCreator(prefs);
 		} 
+		else if (model == FiringModelType.EXPRESSIONINTEGRATEANDFIRE) {
+			return ExpressionIntegrateAndFire.getCreator(prefs);
+		} 
 		else return null;
 	}
 }
@@ -0,0 +1,313 @@
+/**
+ *
+ */
+package ch.unizh.ini.jaer.projects.apsdvsfusion;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * A min-heap of times indexed by integer keys (e.g. the pixel index of a unit), holding at most one time per key.
+ * <p>
+ * Like {@link DynamicHeap}, the time of a key that is already in the heap can be changed in O(log n), but all data
+ * is held in primitive arrays: the time and the heap position of every key, and the keys in heap order. Scheduling,
+ * rescheduling and removing therefore allocate no memory. Times are compared as
+ * {@link PostponedFireEvent#compareTo(PostponedFireEvent)} does, so the order is the same as in the DynamicHeap.
+ * <p>
+ * Not synchronized: SchedulableFiringModelMap locks the heap for every access, as the GUI thread may clear it while
+ * the filtering thread schedules units.
+ *
+ * @author Dennis Goehlsdorf
+ *
+ */
+public class IndexedTimeHeap {
+	/** Scheduled time of each key, valid if the key is in the heap. */
+	int[] time;
+	/** Position of each key in the heap, -1 if it is not in the heap. */
+	int[] position;
+	/** The keys, in heap order. */
+	int[] heap;
+	int size = 0;
+
+	public IndexedTimeHeap() {
+		this(16);
+	}
+
+	/**
+	 * @param capacity The number of keys the heap can hold without growing.
+	 */
+	public IndexedTimeHeap(int capacity) {
+		time = new int[capacity];
+		position = new int[capacity];
+		heap = new int[capacity];
+		Arrays.fill(position, -1);
+	}
+
+	/**
+	 * Makes sure keys 0 to capacity-1 can be used.
+	 */
+	public void ensureCapacity(int capacity) {
+		if (capacity > position.length) {
+			int newCapacity = Math.max(capacity, position.length * 2);
+			int oldCapacity = position.length;
+			time = Arrays.copyOf(time, newCapacity);
+			position = Arrays.copyOf(position, newCapacity);
+			heap = Arrays.copyOf(heap, newCapacity);
+			Arrays.fill(position, oldCapacity, newCapacity, -1);
+		}
+	}
+
+	/**
+	 * Schedules a key at the given time, or moves it there if it already is in the heap.
+	 */
+	public void schedule(int key, int fireTime) {
+		if (key >= position.length)
+			ensureCapacity(key + 1);
+		int pos = position[key];
+		if (pos < 0) {
+			time[key] = fireTime;
+			heap[size] = key;
+			moveUp(key, size++);
+		}
+		else {
+			int before = time[key];
+			time[key] = fireTime;
+			if (fireTime - before < 0)
+				moveUp(key, pos);
+			else
+				moveDown(key, pos);
+		}
+	}
+
+	/**
+	 * Removes a key from the heap.
+	 * @return false if the key was not in the heap.
+	 */
+	public boolean remove(int key) {
+		if (key < 0 || key >= position.length || position[key] < 0)
+			return false;
+		removeAt(position[key]);
+		return true;
+	}
+
+	public boolean contains(int key) {
+		return key >= 0 && key < position.length && position[key] >= 0;
+	}
+
+	/**
+	 * @return The time the key is scheduled at; only meaningful if {@link #contains(int)}.
+	 */
+	public int getTime(int key) {
+		return time[key];
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return The key with the earliest time. The heap must not be empty.
+	 */
+	public int peekKey() {
+		return heap[0];
+	}
+
+	/**
+	 * @return The earliest time in the heap. The heap must not be empty.
+	 */
+	public int peekTime() {
+		return time[heap[0]];
+	}
+
+	/**
+	 * Removes the key with the earliest time.
+	 * @return The key, or -1 if the heap is empty.
+	 */
+	public int poll() {
+		if (size == 0)
+			return -1;
+		int key = heap[0];
+		removeAt(0);
+		return key;
+	}
+
+	public void clear() {
+		for (int i = 0; i < size; i++)
+			position[heap[i]] = -1;
+		size = 0;
+	}
+
+	private void removeAt(int pos) {
+		int key = heap[pos];
+		position[key] = -1;
+		size--;
+		if (pos < size) {
+			int replacement = heap[size];
+			// the replacement comes from the bottom, but may belong above pos if it was in another branch
+			if (pos > 0 && time[replacement] - time[heap[(pos - 1) / 2]] < 0)
+				moveUp(replacement, pos);
+			else
+				moveDown(replacement, pos);
+		}
+	}
+
+	private void moveUp(int key, int pos) {
+		final int t = time[key];
+		while (pos > 0) {
+			int parentPos = (pos - 1) / 2;
+			int parent = heap[parentPos];
+			if (t - time[parent] >= 0)
+				break;
+			heap[pos] = parent;
+			position[parent] = pos;
+			pos = parentPos;
+		}
+		heap[pos] = key;
+		position[key] = pos;
+	}
+
+	private void moveDown(int key, int pos) {
+		final int t = time[key];
+		final int half = size / 2;
+		while (pos < half) {
+			int childPos = 2 * pos + 1;
+			int child = heap[childPos];
+			if (childPos + 1 < size && time[heap[childPos + 1]] - time[child] < 0) {
+				childPos++;
+				child = heap[childPos];
+			}
+			if (time[child] - t >= 0)
+				break;
+			heap[pos] = child;
+			position[child] = pos;
+			pos = childPos;
+		}
+		heap[pos] = key;
+		position[key] = pos;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < size; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(time[heap[i]]).append("@").append(heap[i]);
+		}
+		return sb.append("]").toString();
+	}
+
+	/**
+	 * Benchmark against {@link DynamicHeap}: the units of a 240x180 map are rescheduled at random, as by a
+	 * {@link SchedulableFiringModelMap} receiving events, and the due events are taken out after each one.
+	 * The sequence of fired (time, unit) pairs is checked against a PriorityQueue, which gives the units of equal
+	 * times in the order of their keys, and against the DynamicHeap, including the order of units of equal times.
+	 * Arguments: number of reschedules, number of runs.
+	 */
+	public static void main(String[] args) {
+		final int sizeX = 240, sizeY = 180;
+		int steps = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+		Random r = new Random(0);
+		int[] keys = new int[steps];
+		int[] delays = new int[steps];
+		for (int i = 0; i < steps; i++) {
+			keys[i] = r.nextInt(sizeX * sizeY);
+			delays[i] = r.nextInt(20000);
+		}
+		// every reschedule fires its unit at most once, so the sequences hold at most steps (time, unit) pairs
+		long[] dynamicFired = new long[steps], indexedFired = new long[steps];
+
+		// the reference: a PriorityQueue of (time, unit) pairs, in which rescheduled pairs are skipped when polled
+		long[] referenceFired = new long[steps];
+		int referenceCount = 0;
+		PriorityQueue<Long> queue = new PriorityQueue<Long>();
+		int[] scheduled = new int[sizeX * sizeY];
+		Arrays.fill(scheduled, -1);
+		for (int i = 0; i < steps; i++) {
+			int now = i;
+			scheduled[keys[i]] = now + delays[i];
+			queue.add(pair(now + delays[i], keys[i]));
+			while (!queue.isEmpty() && (int) (queue.peek() >>> 32) <= now) {
+				long p = queue.poll();
+				int unit = (int) p;
+				if (scheduled[unit] == (int) (p >>> 32)) {
+					scheduled[unit] = -1;
+					referenceFired[referenceCount++] = p;
+				}
+			}
+		}
+
+		for (int run = 0; run < runs; run++) {
+			// DynamicHeap, as used by SchedulableFiringModelMap before
+			DynamicHeap<PostponedFireEvent> dynamicHeap = new DynamicHeap<PostponedFireEvent>();
+			@SuppressWarnings("unchecked")
+			DynamicHeap<PostponedFireEvent>.Entry[] entries = new DynamicHeap.Entry[sizeX * sizeY];
+			for (int i = 0; i < entries.length; i++)
+				entries[i] = dynamicHeap.createEntry(new PostponedFireEvent(i % sizeX, i / sizeX, Integer.MAX_VALUE, null));
+			long startTime = System.nanoTime();
+			int dynamicCount = 0;
+			for (int i = 0; i < steps; i++) {
+				int now = i;
+				DynamicHeap<PostponedFireEvent>.Entry e = entries[keys[i]];
+				e.getContent().setFireTime(now + delays[i]);
+				e.contentChanged();
+				while (!dynamicHeap.isEmpty() && dynamicHeap.peek().getContent().getFireTime() <= now) {
+					PostponedFireEvent event = dynamicHeap.poll().getContent();
+					dynamicFired[dynamicCount++] = pair(event.getFireTime(), event.x + event.y * sizeX);
+				}
+			}
+			long dynamicTime = System.nanoTime() - startTime;
+
+			IndexedTimeHeap heap = new IndexedTimeHeap(sizeX * sizeY);
+			startTime = System.nanoTime();
+			int indexedCount = 0;
+			for (int i = 0; i < steps; i++) {
+				int now = i;
+				heap.schedule(keys[i], now + delays[i]);
+				while (!heap.isEmpty() && heap.peekTime() <= now) {
+					int fireTime = heap.peekTime();
+					indexedFired[indexedCount++] = pair(fireTime, heap.poll());
+				}
+			}
+			long indexedTime = System.nanoTime() - startTime;
+
+			boolean sameAsDynamicHeap = (dynamicCount == indexedCount)
+					&& Arrays.equals(Arrays.copyOf(dynamicFired, dynamicCount), Arrays.copyOf(indexedFired, indexedCount));
+			boolean sameAsReference = (referenceCount == indexedCount) && sameIgnoringTieOrder(referenceFired, indexedFired, indexedCount);
+			System.out.format("DynamicHeap: %d ms, IndexedTimeHeap: %d ms, %.1f ns vs %.1f ns per reschedule, %d events fired, "
+					+ "same as PriorityQueue: %b, same order as DynamicHeap: %b%n",
+					dynamicTime / 1000000, indexedTime / 1000000, (double) dynamicTime / steps, (double) indexedTime / steps,
+					indexedCount, sameAsReference, sameAsDynamicHeap);
+		}
+	}
+
+	// the (time, unit) pair as a long that sorts by time and then by unit, for non-negative times
+	private static long pair(int time, int unit) {
+		return ((long) time << 32) | unit;
+	}
+
+	// true if the sequences have the same times in the same order and the same units for each run of equal times;
+	// sorts the runs of fired in place
+	private static boolean sameIgnoringTieOrder(long[] reference, long[] fired, int count) {
+		int start = 0;
+		while (start < count) {
+			int end = start + 1;
+			while (end < count && (fired[end] >>> 32) == (fired[start] >>> 32))
+				end++;
+			Arrays.sort(fired, start, end);
+			start = end;
+		}
+		for (int i = 0; i < count; i++) {
+			if (reference[i] != fired[i])
+				return false;
+		}
+		return true;
+	}
+
+}
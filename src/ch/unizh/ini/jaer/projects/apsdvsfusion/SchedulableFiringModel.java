@@ -8,31 +8,42 @@ package ch.unizh.ini.jaer.projects.apsdvsfusion;
  *
  */
 public abstract class SchedulableFiringModel extends FiringModel {
-	final DynamicHeap<PostponedFireEvent>.Entry heapEntry;
-	public final PostponedFireEvent scheduledEvent;
+	final SchedulableFiringModelMap map;
+	final int heapKey;
 	
 	public SchedulableFiringModel(int x, int y, SignalHandler handler, SchedulableFiringModelMap map) {
 		super(x,y,handler);
-		scheduledEvent = new PostponedFireEvent(x, y, Integer.MAX_VALUE, this);
-		heapEntry = map.createEntry(scheduledEvent);
+		this.map = map;
+		heapKey = map.registerUnit(this);
 	}
 	
 	public void unschedule() {
-		heapEntry.remove();
+		map.unschedule(heapKey);
 	}
 	
 	public void scheduleEvent(int time) {
-		scheduledEvent.setFireTime(time);
-		heapEntry.contentChanged();
+		map.schedule(heapKey, time);
+	}
+	
+	public boolean isScheduled() {
+		return map.isScheduled(heapKey);
+	}
+	
+	/**
+	 * @return The time of the scheduled event; only meaningful if {@link #isScheduled()}.
+	 */
+	public int getScheduledTime() {
+		return map.getScheduledTime(heapKey);
 	}
 
 	protected abstract void executeScheduledEvent(int time);
 	protected abstract void processSpike(double value, int timeInUs); 
 	
 	protected void runScheduledEvents(int uptoTime) {
-		while (scheduledEvent.getFireTime() <= uptoTime && heapEntry.getPosition() >= 0) {
-			heapEntry.remove();
-			executeScheduledEvent(scheduledEvent.getFireTime());
+		while (map.isScheduled(heapKey) && map.getScheduledTime(heapKey) <= uptoTime) {
+			int fireTime = map.getScheduledTime(heapKey);
+			map.unschedule(heapKey);
+			executeScheduledEvent(fireTime);
 		}
 			
 	}
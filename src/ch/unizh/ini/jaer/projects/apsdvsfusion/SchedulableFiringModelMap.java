@@ -3,6 +3,7 @@
  */
 package ch.unizh.ini.jaer.projects.apsdvsfusion;
 
+import java.util.Arrays;
 import java.util.prefs.Preferences;
 
 /**
@@ -12,7 +13,15 @@ import java.util.prefs.Preferences;
 public abstract class SchedulableFiringModelMap extends FiringModelMap {
 
 	
-	DynamicHeap<PostponedFireEvent> heap = new DynamicHeap<PostponedFireEvent>();
+	/**
+	 * The scheduled fire times of the units, keyed by the pixel index of the unit. Every access is synchronized on the
+	 * heap, since it is cleared from the GUI thread (e.g. on a filter reset) while the filtering thread uses it.
+	 */
+	final IndexedTimeHeap heap = new IndexedTimeHeap();
+	/**
+	 * The unit that registered each key of the heap.
+	 */
+	SchedulableFiringModel[] scheduledUnits = new SchedulableFiringModel[0];
 	
 	/**
 	 * 
@@ -35,10 +44,11 @@ public abstract class SchedulableFiringModelMap extends FiringModelMap {
 	
 	public void processScheduledEvents(int uptoTime) {
 		if (enabled) {
-			while (!heap.isEmpty() && heap.peek().getContent().getFireTime() <= uptoTime) {
-				PostponedFireEvent event = heap.poll().getContent();
-				// TODO: 
-				event.getFiringModel().executeScheduledEvent(event.getFireTime());
+			synchronized (heap) {
+				while (!heap.isEmpty() && heap.peekTime() <= uptoTime) {
+					int fireTime = heap.peekTime();
+					scheduledUnits[heap.poll()].executeScheduledEvent(fireTime);
+				}
 			}
 		} 
 	}
@@ -49,8 +59,55 @@ public abstract class SchedulableFiringModelMap extends FiringModelMap {
 		clearHeap();
 	}
 
-	public DynamicHeap<PostponedFireEvent>.Entry createEntry(PostponedFireEvent event) {
-		return heap.createEntry(event);
+	/**
+	 * Registers a unit for scheduling. Its key is its pixel index, so a unit that is built for the same pixel later
+	 * takes over the key (and drops anything the previous unit had scheduled).
+	 * @return The key under which the unit is scheduled.
+	 */
+	public int registerUnit(SchedulableFiringModel unit) {
+		int x = unit.getX(), y = unit.getY();
+		if (x < 0 || x >= sizeX || y < 0 || y >= sizeY)
+			throw new IllegalArgumentException("Unit at ("+x+","+y+") is outside of the "+sizeX+"x"+sizeY+" map!");
+		int key = y * sizeX + x;
+		synchronized (heap) {
+			if (key >= scheduledUnits.length) {
+				scheduledUnits = Arrays.copyOf(scheduledUnits, Math.max(key + 1, sizeX * sizeY));
+				heap.ensureCapacity(scheduledUnits.length);
+			}
+			heap.remove(key);
+			scheduledUnits[key] = unit;
+		}
+		return key;
+	}
+
+	/**
+	 * Schedules (or reschedules) the unit with the given key to fire at the given time.
+	 */
+	public void schedule(int key, int fireTime) {
+		synchronized (heap) {
+			heap.schedule(key, fireTime);
+		}
+	}
+
+	public void unschedule(int key) {
+		synchronized (heap) {
+			heap.remove(key);
+		}
+	}
+
+	public boolean isScheduled(int key) {
+		synchronized (heap) {
+			return heap.contains(key);
+		}
+	}
+
+	/**
+	 * @return The time the unit with this key is scheduled to fire; only meaningful if {@link #isScheduled(int)}.
+	 */
+	public int getScheduledTime(int key) {
+		synchronized (heap) {
+			return heap.getTime(key);
+		}
 	}
 	/* (non-Javadoc)
 	 * @see ch.unizh.ini.jaer.projects.apsdvsfusion.FiringModelMap#get(int, int)
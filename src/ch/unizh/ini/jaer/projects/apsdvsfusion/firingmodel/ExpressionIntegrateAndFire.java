@@ -0,0 +1,146 @@
+/**
+ *
+ */
+package ch.unizh.ini.jaer.projects.apsdvsfusion.firingmodel;
+
+import java.util.logging.Logger;
+import java.util.prefs.Preferences;
+
+import ch.unizh.ini.jaer.projects.apsdvsfusion.FiringModel;
+import ch.unizh.ini.jaer.projects.apsdvsfusion.FiringModelCreator;
+import ch.unizh.ini.jaer.projects.apsdvsfusion.FiringModelMap;
+import ch.unizh.ini.jaer.projects.apsdvsfusion.SignalHandler;
+import ch.unizh.ini.jaer.projects.apsdvsfusion.mathexpression.CompiledExpression;
+import ch.unizh.ini.jaer.projects.apsdvsfusion.mathexpression.ExpressionCompiler;
+import ch.unizh.ini.jaer.projects.apsdvsfusion.mathexpression.IllegalExpressionException;
+
+/**
+ * Integrate-and-fire unit whose membrane update is given by an expression.
+ * For every input, the new membrane potential is computed from the variables
+ * <ul>
+ * <li>v: the membrane potential before the input,</li>
+ * <li>input: the value of the input,</li>
+ * <li>dt: the time since the previous input in us,</li>
+ * <li>x, y: the coordinate of the unit.</li>
+ * </ul>
+ * The unit fires and resets to 0 when the potential exceeds the threshold.
+ * <p>
+ * The expression is compiled to bytecode and shared by all units of a
+ * creator, so it can be changed while events are being processed.
+ *
+ * @author Dennis Goehlsdorf
+ *
+ */
+public class ExpressionIntegrateAndFire extends FiringModel {
+	private static Logger log = Logger.getLogger("ExpressionIntegrateAndFire");
+
+	static final String[] VARIABLES = { "v", "input", "dt", "x", "y" };
+	static final int V = 0, INPUT = 1, DT = 2, X = 3, Y = 4;
+
+	private final Creator creator;
+	private final double[] values = new double[VARIABLES.length];
+	private double membranePotential = 0.0;
+	private int lastInputTime = 0;
+	private boolean resetted = true;
+
+	public static class Creator extends FiringModelCreator {
+		/**
+		 *
+		 */
+		private static final long serialVersionUID = 2911245049167309361L;
+
+		private String expression = "v * exp(-dt / 20000) + input";
+		private float threshold = 1.0f;
+		private volatile CompiledExpression compiledExpression;
+
+		public Creator(Preferences prefs) {
+			super("ExpressionIntegrateAndFire", prefs);
+			compile(expression);
+		}
+
+		private boolean compile(String expression) {
+			try {
+				compiledExpression = ExpressionCompiler.compile(expression, VARIABLES);
+				return true;
+			} catch (IllegalExpressionException e) {
+				log.warning("Could not compile membrane expression '" + expression + "': " + e.getMessage());
+				return false;
+			}
+		}
+
+		public String getExpression() {
+			return expression;
+		}
+
+		/**
+		 * Changes the membrane update of all units created by this creator.
+		 * Expressions that cannot be compiled are ignored.
+		 */
+		public void setExpression(String expression) {
+			if (expression == null || !compile(expression))
+				return;
+			String before = this.expression;
+			this.expression = expression;
+			getSupport().firePropertyChange("expression", before, expression);
+		}
+
+		public float getThreshold() {
+			return threshold;
+		}
+
+		public void setThreshold(float threshold) {
+			float before = this.threshold;
+			this.threshold = threshold;
+			getSupport().firePropertyChange("threshold", before, threshold);
+		}
+
+		@Override
+		public FiringModel createUnit(int x, int y, FiringModelMap map) {
+			return new ExpressionIntegrateAndFire(x, y, this, map.getSignalHandler());
+		}
+	}
+
+	public ExpressionIntegrateAndFire(int x, int y, Creator creator, SignalHandler handler) {
+		super(x, y, handler);
+		this.creator = creator;
+	}
+
+	public static FiringModelCreator getCreator(Preferences prefs) {
+		return new Creator(prefs);
+	}
+
+	/* (non-Javadoc)
+	 * @see ch.unizh.ini.jaer.projects.apsdvsfusion.FiringModel#receiveSpike(double, int)
+	 */
+	@Override
+	public void receiveSpike(double value, int timeInUs) {
+		// first input or time wrapped around: nothing to decay
+		if (resetted || timeInUs < lastInputTime)
+			values[DT] = 0.0;
+		else
+			values[DT] = timeInUs - lastInputTime;
+		values[V] = membranePotential;
+		values[INPUT] = value;
+		values[X] = getX();
+		values[Y] = getY();
+		membranePotential = creator.compiledExpression.eval(values);
+		lastInputTime = timeInUs;
+		resetted = false;
+
+		if (membranePotential > creator.threshold) {
+			membranePotential = 0.0;
+			emitSpike(1.0, timeInUs);
+		}
+		else if (membranePotential < 0.0 || Double.isNaN(membranePotential)) {
+			membranePotential = 0.0;
+		}
+	}
+
+	@Override
+	public void reset() {
+		membranePotential = 0.0;
+		lastInputTime = 0;
+		resetted = true;
+	}
+
+}
@@ -12,6 +12,7 @@ import java.util.HashMap;
 public abstract class BinaryOperationETNode implements ExpressionTreeNode {
 
 	ExpressionTreeNode left, right;
+	String symbol;
 	
 	abstract static class SimpleBinaryOperationCreator implements BinaryOperationETNodeCreator {
 		String symbol;
@@ -28,11 +29,13 @@ public abstract class BinaryOperationETNode implements ExpressionTreeNode {
 				throw new IllegalExpressionException("Could not evaluate Expression, too many arguments for function "+symbol+"!");
 			else if (arguments.length < 2) 
 				throw new IllegalExpressionException("Could not evaluate Expression, not enought arguments for function "+symbol+"!");
-			return new BinaryOperationETNode(arguments[0], arguments[1]) {
+			BinaryOperationETNode node = new BinaryOperationETNode(arguments[0], arguments[1]) {
 				public double compute(double left, double right) {
 					return SimpleBinaryOperationCreator.this.compute(left, right);
 				}
 			};
+			node.symbol = symbol;
+			return node;
 		}
 		public int priority() {
 			return this.priority;
@@ -63,4 +66,19 @@ public abstract class BinaryOperationETNode implements ExpressionTreeNode {
 	
 	public abstract double compute(double left, double right);
 
+	/**
+	 * The symbol of the operation, as used in expressions.
+	 */
+	public String getSymbol() {
+		return symbol;
+	}
+
+	public ExpressionTreeNode getLeft() {
+		return left;
+	}
+
+	public ExpressionTreeNode getRight() {
+		return right;
+	}
+
 }
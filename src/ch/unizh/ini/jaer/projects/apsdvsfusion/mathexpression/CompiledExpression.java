@@ -0,0 +1,60 @@
+/**
+ *
+ */
+package ch.unizh.ini.jaer.projects.apsdvsfusion.mathexpression;
+
+/**
+ * An expression that was translated into bytecode by the {@link ExpressionCompiler}.
+ * <p>
+ * The variables are passed as a primitive array, in the order given when
+ * compiling, so evaluating it neither looks up nor boxes anything and can be
+ * done for every event. Instances hold no state and can be shared by threads.
+ *
+ * @author Dennis Goehlsdorf
+ *
+ */
+public abstract class CompiledExpression {
+
+	private final String[] variableNames;
+
+	/**
+	 * The functions the generated code calls back into because they have no
+	 * equivalent in java.lang.Math.
+	 */
+	protected final FunctionETNode[] functions;
+
+	protected CompiledExpression(String[] variableNames, FunctionETNode[] functions) {
+		this.variableNames = variableNames;
+		this.functions = functions;
+	}
+
+	/**
+	 * Evaluates the expression.
+	 * @param values The values of the variables, in the order of {@link #getVariableNames()}.
+	 * @return The result of the expression.
+	 */
+	public abstract double eval(double[] values);
+
+	public String[] getVariableNames() {
+		return variableNames.clone();
+	}
+
+	/**
+	 * @return The position of the variable in the array passed to {@link #eval(double[])}, or -1 if it is unknown.
+	 */
+	public int getVariableIndex(String name) {
+		for (int i = 0; i < variableNames.length; i++) {
+			if (variableNames[i].equals(name))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * The == operation, called from the generated code.
+	 */
+	public static double equal(double left, double right) {
+		if (left == right) return 1.0; else return 0.0;
+	}
+
+}
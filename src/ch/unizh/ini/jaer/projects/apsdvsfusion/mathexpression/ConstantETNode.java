@@ -21,5 +21,8 @@ public class ConstantETNode implements ExpressionTreeNode {
 	public double evaluate(HashMap<String, Double> values) {
 		return value;
 	}
+	public double getValue() {
+		return value;
+	}
 
 }
@@ -0,0 +1,454 @@
+/**
+ *
+ */
+package ch.unizh.ini.jaer.projects.apsdvsfusion.mathexpression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Translates an expression tree into a class whose eval method computes the
+ * expression in straight-line bytecode, so that the JIT compiles it like any
+ * hand-written formula.
+ * <p>
+ * Parts of the tree that do not depend on any variable (and do not call
+ * random()) are evaluated once while compiling and stored as constants.
+ * Operations and the functions that exist in java.lang.Math are called
+ * directly; the others (normal, gauss) are called through their
+ * {@link FunctionETNode}.
+ * <p>
+ * Each compiled expression gets its own class loader, so classes of
+ * expressions that are no longer used can be unloaded again.
+ *
+ * @author Dennis Goehlsdorf
+ *
+ */
+public class ExpressionCompiler {
+
+	private static final String PACKAGE = "ch/unizh/ini/jaer/projects/apsdvsfusion/mathexpression/";
+	private static final String SUPER_CLASS = PACKAGE + "CompiledExpression";
+	private static final String FUNCTION_CLASS = PACKAGE + "FunctionETNode";
+
+	/**
+	 * Functions that can be called directly: symbol -> { method in java.lang.Math, descriptor }.
+	 */
+	private static final HashMap<String, String[]> mathFunctions = new HashMap<String, String[]>();
+
+	static {
+		String[][] oneArgument = { { "sqrt", "sqrt" }, { "deg", "toDegrees" }, { "ceil", "ceil" }, { "floor", "floor" },
+				{ "rad", "toRadians" }, { "abs", "abs" }, { "lg", "log10" }, { "ln", "log" }, { "exp", "exp" },
+				{ "cos", "cos" }, { "cosh", "cosh" }, { "sin", "sin" }, { "sinh", "sinh" }, { "acos", "acos" },
+				{ "asin", "asin" }, { "tan", "tan" }, { "tanh", "tanh" } };
+		for (String[] f : oneArgument)
+			mathFunctions.put(f[0], new String[] { f[1], "(D)D" });
+		mathFunctions.put("max", new String[] { "max", "(DD)D" });
+		mathFunctions.put("min", new String[] { "min", "(DD)D" });
+		mathFunctions.put("pow", new String[] { "pow", "(DD)D" });
+		mathFunctions.put("round", new String[] { "round", "(D)J" });
+		mathFunctions.put("random", new String[] { "random", "()D" });
+	}
+
+	private static int classCounter = 0;
+
+	private final String[] variableNames;
+	private final IdentityHashMap<ExpressionTreeNode, Double> constants = new IdentityHashMap<ExpressionTreeNode, Double>();
+	private final ArrayList<FunctionETNode> callbacks = new ArrayList<FunctionETNode>();
+
+	private final ConstantPool pool = new ConstantPool();
+	private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+	private int stack = 0, maxStack = 0;
+
+	private ExpressionCompiler(String[] variableNames) {
+		this.variableNames = variableNames.clone();
+	}
+
+	/**
+	 * Parses and compiles an expression.
+	 * @param expression The expression string.
+	 * @param variableNames The variables the expression may use, in the order their values are passed to eval.
+	 * @throws IllegalExpressionException If the expression cannot be parsed or uses unknown variables.
+	 */
+	public static CompiledExpression compile(String expression, String... variableNames) throws IllegalExpressionException {
+		return compile(ExpressionTreeBuilder.parseString(expression), variableNames);
+	}
+
+	/**
+	 * Compiles an expression tree.
+	 * @param expression The root of the expression tree.
+	 * @param variableNames The variables the expression may use, in the order their values are passed to eval.
+	 * @throws IllegalExpressionException If the expression uses unknown variables or is too large.
+	 */
+	public static CompiledExpression compile(ExpressionTreeNode expression, String... variableNames) throws IllegalExpressionException {
+		return new ExpressionCompiler(variableNames).generate(expression);
+	}
+
+	private CompiledExpression generate(ExpressionTreeNode expression) throws IllegalExpressionException {
+		emitNode(expression);
+		emit(0xaf, -2); // dreturn
+		if (code.size() > 65535)
+			throw new IllegalExpressionException("Expression is too long to be compiled!");
+
+		String className;
+		synchronized (ExpressionCompiler.class) {
+			className = PACKAGE + "GeneratedExpression" + (classCounter++);
+		}
+		byte[] classFile;
+		try {
+			classFile = writeClass(className);
+		} catch (IOException e) {
+			throw new IllegalExpressionException("Could not compile expression: " + e);
+		}
+
+		try {
+			Class<?> c = new Loader().define(className.replace('/', '.'), classFile);
+			FunctionETNode[] functions = callbacks.toArray(new FunctionETNode[callbacks.size()]);
+			return (CompiledExpression) c.getConstructor(String[].class, FunctionETNode[].class).newInstance(variableNames, functions);
+		} catch (Exception e) {
+			throw new IllegalExpressionException("Could not load compiled expression: " + e);
+		} catch (LinkageError e) {
+			throw new IllegalExpressionException("Could not load compiled expression: " + e);
+		}
+	}
+
+	/**
+	 * Computes the value of a subtree that does not depend on any variable.
+	 * @return The value, or null if the subtree has to be evaluated at runtime.
+	 */
+	private Double constantValue(ExpressionTreeNode node) {
+		if (constants.containsKey(node))
+			return constants.get(node);
+		Double value = null;
+		if (node instanceof ConstantETNode) {
+			value = ((ConstantETNode) node).getValue();
+		}
+		else if (node instanceof NegationETNode) {
+			Double a = constantValue(((NegationETNode) node).getArgument());
+			if (a != null)
+				value = -a;
+		}
+		else if (node instanceof BinaryOperationETNode) {
+			BinaryOperationETNode b = (BinaryOperationETNode) node;
+			Double l = constantValue(b.getLeft());
+			Double r = constantValue(b.getRight());
+			if (l != null && r != null)
+				value = b.compute(l, r);
+		}
+		else if (node instanceof FunctionETNode) {
+			// functions without arguments (random) are not constant
+			FunctionETNode f = (FunctionETNode) node;
+			ExpressionTreeNode[] arguments = f.getArguments();
+			double[] values = new double[arguments.length];
+			boolean constant = arguments.length > 0;
+			for (int i = 0; i < arguments.length && constant; i++) {
+				Double a = constantValue(arguments[i]);
+				if (a == null)
+					constant = false;
+				else
+					values[i] = a;
+			}
+			if (constant)
+				value = f.apply(values);
+		}
+		constants.put(node, value);
+		return value;
+	}
+
+	/**
+	 * Emits the code that leaves the value of the node on the operand stack.
+	 */
+	private void emitNode(ExpressionTreeNode node) throws IllegalExpressionException {
+		Double constant = constantValue(node);
+		if (constant != null) {
+			emitConstant(constant);
+		}
+		else if (node instanceof VariableETNode) {
+			String symbol = ((VariableETNode) node).getSymbol();
+			int index = -1;
+			for (int i = 0; i < variableNames.length; i++) {
+				if (variableNames[i].equals(symbol))
+					index = i;
+			}
+			if (index < 0)
+				throw new IllegalExpressionException("The variable " + symbol + " was not defined!");
+			emit(0x2b, 1); // aload_1
+			emitInt(index);
+			emit(0x31, 0); // daload
+		}
+		else if (node instanceof NegationETNode) {
+			emitNode(((NegationETNode) node).getArgument());
+			emit(0x77, 0); // dneg
+		}
+		else if (node instanceof BinaryOperationETNode) {
+			BinaryOperationETNode b = (BinaryOperationETNode) node;
+			emitNode(b.getLeft());
+			emitNode(b.getRight());
+			String symbol = b.getSymbol();
+			if ("+".equals(symbol))
+				emit(0x63, -2); // dadd
+			else if ("-".equals(symbol))
+				emit(0x67, -2); // dsub
+			else if ("*".equals(symbol))
+				emit(0x6b, -2); // dmul
+			else if ("/".equals(symbol))
+				emit(0x6f, -2); // ddiv
+			else if ("^".equals(symbol))
+				emitInvoke(0xb8, "java/lang/Math", "pow", "(DD)D", -2);
+			else if ("==".equals(symbol))
+				emitInvoke(0xb8, SUPER_CLASS, "equal", "(DD)D", -2);
+			else
+				throw new IllegalExpressionException("Operation " + symbol + " cannot be compiled!");
+		}
+		else if (node instanceof FunctionETNode) {
+			emitFunction((FunctionETNode) node);
+		}
+		else {
+			throw new IllegalExpressionException("Expressions containing " + node.getClass().getName() + " cannot be compiled!");
+		}
+	}
+
+	private void emitFunction(FunctionETNode f) throws IllegalExpressionException {
+		ExpressionTreeNode[] arguments = f.getArguments();
+		String[] method = mathFunctions.get(f.getSymbol());
+		if (method != null) {
+			for (ExpressionTreeNode a : arguments)
+				emitNode(a);
+			// the arguments are replaced by a double or a long, both two slots
+			emitInvoke(0xb8, "java/lang/Math", method[0], method[1], 2 - 2 * arguments.length);
+			if (method[1].endsWith("J"))
+				emit(0x8a, 0); // l2d
+		}
+		else {
+			// functions[k].apply(new double[] { arguments... })
+			int k = callbacks.size();
+			callbacks.add(f);
+			emit(0x2a, 1); // aload_0
+			emitFieldAccess(0xb4, SUPER_CLASS, "functions", "[L" + FUNCTION_CLASS + ";", 0); // getfield
+			emitInt(k);
+			emit(0x32, -1); // aaload
+			emitInt(arguments.length);
+			emit(0xbc, 0); // newarray
+			code.write(7); // T_DOUBLE
+			for (int i = 0; i < arguments.length; i++) {
+				emit(0x59, 1); // dup
+				emitInt(i);
+				emitNode(arguments[i]);
+				emit(0x52, -4); // dastore
+			}
+			emitInvoke(0xb6, FUNCTION_CLASS, "apply", "([D)D", 0); // invokevirtual
+		}
+	}
+
+	private void emitConstant(double value) {
+		if (Double.doubleToRawLongBits(value) == 0L)
+			emit(0x0e, 2); // dconst_0
+		else if (value == 1.0)
+			emit(0x0f, 2); // dconst_1
+		else {
+			emit(0x14, 2); // ldc2_w
+			writeShort(pool.doubleConstant(value));
+		}
+	}
+
+	private void emitInt(int value) {
+		if (value >= -1 && value <= 5)
+			emit(0x03 + value, 1); // iconst_<value>
+		else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			emit(0x10, 1); // bipush
+			code.write(value);
+		}
+		else {
+			emit(0x11, 1); // sipush
+			writeShort(value);
+		}
+	}
+
+	private void emitInvoke(int opcode, String owner, String name, String descriptor, int stackChange) {
+		emit(opcode, stackChange);
+		writeShort(pool.member(10, owner, name, descriptor));
+	}
+
+	private void emitFieldAccess(int opcode, String owner, String name, String descriptor, int stackChange) {
+		emit(opcode, stackChange);
+		writeShort(pool.member(9, owner, name, descriptor));
+	}
+
+	/**
+	 * Writes an opcode and keeps track of the operand stack size (in slots).
+	 */
+	private void emit(int opcode, int stackChange) {
+		code.write(opcode);
+		stack += stackChange;
+		if (stack > maxStack)
+			maxStack = stack;
+	}
+
+	private void writeShort(int value) {
+		code.write(value >> 8);
+		code.write(value);
+	}
+
+	private byte[] writeClass(String className) throws IOException {
+		String constructorDescriptor = "([Ljava/lang/String;[L" + FUNCTION_CLASS + ";)V";
+		int thisClass = pool.classRef(className);
+		int superClass = pool.classRef(SUPER_CLASS);
+		int superConstructor = pool.member(10, SUPER_CLASS, "<init>", constructorDescriptor);
+		int codeName = pool.utf8("Code");
+		int initName = pool.utf8("<init>");
+		int initDescriptor = pool.utf8(constructorDescriptor);
+		int evalName = pool.utf8("eval");
+		int evalDescriptor = pool.utf8("([D)D");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0);
+		out.writeShort(51); // Java 7; no branches, so no stack map frames are needed
+		pool.write(out);
+		out.writeShort(0x0011 | 0x0020); // public final super
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(0); // interfaces
+		out.writeShort(0); // fields
+		out.writeShort(2); // methods
+
+		// public <init>(String[] variableNames, FunctionETNode[] functions) { super(variableNames, functions); }
+		byte[] init = { 0x2a, 0x2b, 0x2c, (byte) 0xb7, (byte) (superConstructor >> 8), (byte) superConstructor, (byte) 0xb1 };
+		writeMethod(out, 0x0001, initName, initDescriptor, codeName, 3, 3, init);
+
+		// public final double eval(double[] values)
+		writeMethod(out, 0x0011, evalName, evalDescriptor, codeName, maxStack, 2, code.toByteArray());
+
+		out.writeShort(0); // attributes
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static void writeMethod(DataOutputStream out, int access, int name, int descriptor, int codeName,
+			int maxStack, int maxLocals, byte[] code) throws IOException {
+		out.writeShort(access);
+		out.writeShort(name);
+		out.writeShort(descriptor);
+		out.writeShort(1); // attributes
+		out.writeShort(codeName);
+		out.writeInt(12 + code.length);
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(code.length);
+		out.write(code);
+		out.writeShort(0); // exception table
+		out.writeShort(0); // attributes
+	}
+
+	/**
+	 * Constant pool of the generated class. Entries are shared between uses.
+	 */
+	private static class ConstantPool {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(bytes);
+		private final HashMap<String, Integer> entries = new HashMap<String, Integer>();
+		private int count = 1;
+
+		int utf8(String s) {
+			Integer index = entries.get("U" + s);
+			if (index == null) {
+				index = add("U" + s, 1, 1);
+				try {
+					out.writeUTF(s);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			return index;
+		}
+
+		int classRef(String name) {
+			Integer index = entries.get("C" + name);
+			if (index == null) {
+				int n = utf8(name);
+				index = add("C" + name, 7, 1);
+				writeShort(n);
+			}
+			return index;
+		}
+
+		/**
+		 * A field (tag 9) or method (tag 10) reference.
+		 */
+		int member(int tag, String owner, String name, String descriptor) {
+			String key = tag + owner + "." + name + descriptor;
+			Integer index = entries.get(key);
+			if (index == null) {
+				int ownerIndex = classRef(owner);
+				int nameAndType = nameAndType(name, descriptor);
+				index = add(key, tag, 1);
+				writeShort(ownerIndex);
+				writeShort(nameAndType);
+			}
+			return index;
+		}
+
+		int nameAndType(String name, String descriptor) {
+			String key = "N" + name + " " + descriptor;
+			Integer index = entries.get(key);
+			if (index == null) {
+				int n = utf8(name);
+				int d = utf8(descriptor);
+				index = add(key, 12, 1);
+				writeShort(n);
+				writeShort(d);
+			}
+			return index;
+		}
+
+		int doubleConstant(double value) {
+			String key = "D" + Double.doubleToRawLongBits(value);
+			Integer index = entries.get(key);
+			if (index == null) {
+				// doubles take up two entries
+				index = add(key, 6, 2);
+				try {
+					out.writeDouble(value);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			return index;
+		}
+
+		private int add(String key, int tag, int size) {
+			int index = count;
+			count += size;
+			entries.put(key, index);
+			bytes.write(tag);
+			return index;
+		}
+
+		private void writeShort(int value) {
+			bytes.write(value >> 8);
+			bytes.write(value);
+		}
+
+		void write(DataOutputStream target) throws IOException {
+			target.writeShort(count);
+			bytes.writeTo(target);
+		}
+	}
+
+	/**
+	 * Class loader for a single generated class.
+	 */
+	private static class Loader extends ClassLoader {
+		Loader() {
+			super(CompiledExpression.class.getClassLoader());
+		}
+
+		Class<?> define(String name, byte[] classFile) {
+			return defineClass(name, classFile, 0, classFile.length);
+		}
+	}
+
+}
@@ -63,13 +63,7 @@ public class ExpressionTreeBuilder {
 	}
 	
 	private static ExpressionTreeNode negateETN(ExpressionTreeNode etn) {
-		final ExpressionTreeNode fetn = etn;
-		return new ExpressionTreeNode() {
-			@Override
-			public double evaluate(HashMap<String, Double> values) {
-				return -fetn.evaluate(values);
-			}
-		};
+		return new NegationETNode(etn);
 	}
 	
 	protected static String parseString(StringTokenizer st, LinkedList<ExpressionTreeNode> result) throws IllegalExpressionException {
@@ -72,7 +72,7 @@ public class ExpressionTreeNodeFactory {
 		ExpressionTreeNodeFactory.addFunction(new SimpleFunctionETNodeCreator("sin",200, 1) {
 			@Override protected double compute(double[] arguments) { return Math.sin(arguments[0]);	}	});
 		ExpressionTreeNodeFactory.addFunction(new SimpleFunctionETNodeCreator("sinh",200, 1) {
-			@Override protected double compute(double[] arguments) { return Math.sin(arguments[0]);	}	});
+			@Override protected double compute(double[] arguments) { return Math.sinh(arguments[0]);	}	});
 		ExpressionTreeNodeFactory.addFunction(new SimpleFunctionETNodeCreator("acos",200, 1) {
 			@Override protected double compute(double[] arguments) { return Math.acos(arguments[0]);	}	});
 		ExpressionTreeNodeFactory.addFunction(new SimpleFunctionETNodeCreator("asin",200, 1) {
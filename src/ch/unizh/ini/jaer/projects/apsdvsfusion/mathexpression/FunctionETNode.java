@@ -12,6 +12,7 @@ import java.util.HashMap;
 public abstract class FunctionETNode implements ExpressionTreeNode {
 	ExpressionTreeNode[] argumentNodes;
 	double[] results;
+	String symbol;
 	
 	abstract static class SimpleFunctionETNodeCreator implements FunctionETNodeCreator {
 		private int arguments;
@@ -30,11 +31,13 @@ public abstract class FunctionETNode implements ExpressionTreeNode {
 				throw new IllegalExpressionException("Could not evaluate Expression, too many arguments for function "+symbol+"!");
 			else if (arguments.length < this.arguments) 
 				throw new IllegalExpressionException("Could not evaluate Expression, not enought arguments for function "+symbol+"!");
-			return new FunctionETNode(arguments) {
+			FunctionETNode node = new FunctionETNode(arguments) {
 				protected double compute(double[] arguments) {
 					return SimpleFunctionETNodeCreator.this.compute(arguments);
 				}
 			};
+			node.symbol = symbol;
+			return node;
 		}
 		
 		public int getNumberOfArguments() {
@@ -82,4 +85,22 @@ public abstract class FunctionETNode implements ExpressionTreeNode {
 	
 	abstract protected double compute(double[] arguments);
 
+	/**
+	 * Computes the function for already evaluated arguments.
+	 */
+	public double apply(double[] arguments) {
+		return compute(arguments);
+	}
+
+	/**
+	 * The name of the function, as used in expressions.
+	 */
+	public String getSymbol() {
+		return symbol;
+	}
+
+	public ExpressionTreeNode[] getArguments() {
+		return argumentNodes;
+	}
+
 }
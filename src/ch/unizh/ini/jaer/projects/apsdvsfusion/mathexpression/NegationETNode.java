@@ -0,0 +1,34 @@
+/**
+ * 
+ */
+package ch.unizh.ini.jaer.projects.apsdvsfusion.mathexpression;
+
+import java.util.HashMap;
+
+/**
+ * Unary minus in front of a number, variable, function or bracket.
+ * 
+ * @author Dennis
+ *
+ */
+public class NegationETNode implements ExpressionTreeNode {
+
+	ExpressionTreeNode argument;
+	
+	public NegationETNode(ExpressionTreeNode argument) {
+		this.argument = argument;
+	}
+
+	/* (non-Javadoc)
+	 * @see ch.unizh.ini.jaer.projects.apsdvsfusion.mathexpression.ExpressionTreeNode#evaluate(java.util.HashMap)
+	 */
+	@Override
+	public double evaluate(HashMap<String, Double> values) {
+		return -argument.evaluate(values);
+	}
+
+	public ExpressionTreeNode getArgument() {
+		return argument;
+	}
+
+}
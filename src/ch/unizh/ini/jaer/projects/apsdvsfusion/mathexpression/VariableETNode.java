@@ -29,4 +29,8 @@ public class VariableETNode implements ExpressionTreeNode {
 		else throw new RuntimeException("The variable "+symbol+" was not defined!");
 	}
 
+	public String getSymbol() {
+		return symbol;
+	}
+
 }
@@ -8,6 +8,11 @@ import java.util.logging.Logger;
 
 /**
  * Saves the histogram of the interaural time differences and has functions for decay of old ITDs.
+ * <p>
+ * The decay is lazy: the bins are stored multiplied by 1/scale and a decay or normalization only changes the scale,
+ * which is folded into the bins when they are read by the estimation methods. Together with the running sum of the bins
+ * this makes adding an ITD cost O(1) without calibration, instead of a pass over all bins. With calibration the
+ * calibration kernels are precomputed per channel and ITD.
  *
  * @author Holger
  */
@@ -19,9 +24,15 @@ public class ITDBins {
     private int maxITD;
     private int timestamp = 0;
     private int NumLoopMean;
-    private float[] bins;
+    private float[] bins; // the bin values divided by scale
+    private double scale = 1;
+    private double sum = 0; // the sum of bins
     private float ITDConfidence = 0;
     private boolean useCalibration;
+    private float[][] kernels; // calibration kernels per channel, numOfBins values for each ITD from -maxITD to maxITD
+    private double[] kernelBuffer;
+    /** The scale is folded into the bins when it gets smaller than this */
+    private static final double MIN_SCALE = 1e-15;
 
     public ITDBins(float AveragingDecay, int NumLoopMean, int maxITD, int numOfBins) {
         useCalibration = false;
@@ -47,6 +58,8 @@ public class ITDBins {
         for (int i = 0; i < numOfBins; i++) {
             bins[i] = 0;
         }
+        this.kernels = new float[calibration.getNumOfChannels()][];
+        this.kernelBuffer = new double[numOfBins];
     }
 
     // if normValue == 0 then use averagingDecay;
@@ -65,25 +78,88 @@ public class ITDBins {
 //                log.warning("index was too low");
 //            }
 
-            bins[index] = bins[index] + weight;
+            float w = (float) (weight / scale);
+            bins[index] = bins[index] + w;
+            sum += w;
         } else {
-            double[] addThis = new double[getNumOfBins()];
-            addThis = getCalibration().convertITD(channel, ITD);
-            double sum = 0;
-            for (int k = 0; k < getNumOfBins(); k++) {
-                bins[k] += (float) addThis[k] * weight;
-                sum += addThis[k];
-                if (!(addThis[k] >= 0 && addThis[k] < 1.1)) {
-                    log.info("addToBins[k] is out of good range!! addToBins[k]=" + addThis[k]);
+            float w = (float) (weight / scale);
+            int numOfBins = bins.length;
+            if ((channel >= 0) && (channel < kernels.length) && (ITD >= -maxITD) && (ITD <= maxITD)) {
+                float[] kernel = kernels[channel];
+                if (kernel == null) {
+                    kernel = computeKernels(channel);
+                    kernels[channel] = kernel;
+                }
+                int offset = (ITD + maxITD) * numOfBins;
+                float kernelSum = 0;
+                for (int k = 0; k < numOfBins; k++) {
+                    bins[k] += kernel[offset + k] * w;
+                    kernelSum += kernel[offset + k];
+                }
+                sum += kernelSum * w;
+            } else {
+                getCalibration().convertITD(channel, ITD, kernelBuffer);
+                checkKernel(kernelBuffer);
+                for (int k = 0; k < numOfBins; k++) {
+                    bins[k] += (float) kernelBuffer[k] * w;
+                    sum += kernelBuffer[k] * w;
                 }
-            }
-            if (sum != 0 && !(sum > 0.9 && sum < 1.1)) {
-                log.info("sum of addToBins=" + sum);
             }
         }
         //this.timestamp = timestamp;
     }
 
+    // computes the calibration kernels of a channel for all ITDs from -maxITD to maxITD
+    private float[] computeKernels(int channel) {
+        int numOfBins = bins.length;
+        float[] kernel = new float[((2 * maxITD) + 1) * numOfBins];
+        for (int ITD = -maxITD; ITD <= maxITD; ITD++) {
+            getCalibration().convertITD(channel, ITD, kernelBuffer);
+            checkKernel(kernelBuffer);
+            int offset = (ITD + maxITD) * numOfBins;
+            for (int k = 0; k < numOfBins; k++) {
+                kernel[offset + k] = (float) kernelBuffer[k];
+            }
+        }
+        return kernel;
+    }
+
+    private void checkKernel(double[] addThis) {
+        double sum = 0;
+        for (int k = 0; k < addThis.length; k++) {
+            sum += addThis[k];
+            if (!(addThis[k] >= 0 && addThis[k] < 1.1)) {
+                log.info("addToBins[k] is out of good range!! addToBins[k]=" + addThis[k]);
+            }
+        }
+        if (sum != 0 && !(sum > 0.9 && sum < 1.1)) {
+            log.info("sum of addToBins=" + sum);
+        }
+    }
+
+    // multiplies the bins by the scale and recomputes their sum
+    private void fold() {
+        if (scale == 1) {
+            return;
+        }
+        float s = (float) scale;
+        double newSum = 0;
+        for (int i = 0; i < bins.length; i++) {
+            bins[i] = bins[i] * s;
+            newSum += bins[i];
+        }
+        sum = newSum;
+        scale = 1;
+    }
+
+    // multiplies all bins by factor
+    private void decay(double factor) {
+        scale *= factor;
+        if (scale < MIN_SCALE) {
+            fold();
+        }
+    }
+
     public float convertITD2BIN(int ITD) {
         float binIndex = ((ITD + this.maxITD) * bins.length) / (2 * this.maxITD);
         return binIndex;
@@ -95,6 +171,8 @@ public class ITDBins {
         for (int i = 0; i < bins.length; i++) {
             bins[i] = 0;
         }
+        scale = 1;
+        sum = 0;
     }
 
     public void loadCalibrationFile(String calibrationFilePath) {
@@ -105,6 +183,7 @@ public class ITDBins {
     }
 
     public int getITDMean() {
+        fold();
         float sum2 = 0;
         ITDConfidence = 0;
         //Compute the Center of Mass:
@@ -148,6 +227,7 @@ public class ITDBins {
     }
 
     public int getITDMedian() {
+        fold();
         //Compute Confidence:
         ITDConfidence = 0;
         for (int i = 0; i < bins.length; i++) {
@@ -206,6 +286,7 @@ public class ITDBins {
      * @return the ITD in us; can be positive or negative up to masITD.
      */
     public int getITDMax() {
+        fold();
         ITDConfidence = 0;
         int max = 0;
         //Compute the Max:
@@ -223,6 +304,7 @@ public class ITDBins {
     }
 
     public int getITDMaxIndex() {
+        fold();
         ITDConfidence = 0;
         int max = 0;
         //Compute the Max:
@@ -240,7 +322,7 @@ public class ITDBins {
     }
 
     public float getBin(int index) {
-        return bins[index];
+        return (float) (bins[index] * scale);
     }
 
     public int getNumOfBins() {
@@ -279,11 +361,13 @@ public class ITDBins {
      * @return the bins
      */
     public float[] getBins() {
+        fold();
         return bins;
     }
 
     @Override
     public String toString() {
+        fold();
         String strBins = "";
         for (int i = 0; i < bins.length; i++) {
             strBins = strBins + Float.toString(bins[i]) + "\t";
@@ -306,16 +390,11 @@ public class ITDBins {
     }
 
     public void normToValue(int confidenceThreshold) {
-        ITDConfidence = 0;
-        for (int i = 0; i < bins.length; i++) {
-            ITDConfidence = ITDConfidence + bins[i];
-        }
+        ITDConfidence = (float) (sum * scale);
         //if (ITDConfidence != 0) {
         if (ITDConfidence > confidenceThreshold) {
             float normConst = confidenceThreshold / ITDConfidence;
-            for (int i = 0; i < bins.length; i++) {
-                bins[i] = bins[i] * normConst;
-            }
+            decay(normConst);
         }
 
     }
@@ -325,8 +404,10 @@ public class ITDBins {
             if (AveragingDecay != 0 && timestamp>this.getTimestamp()) {
                 float decayconstant = (float) java.lang.Math.exp(-(timestamp - this.timestamp) / AveragingDecay);
                 //log.info("exp=" + decayconstant + " thistime=" + timestamp + " lasttime="+ this.timestamp);
-                for (int i = 0; i < bins.length; i++) {
-                    bins[i] = (float) (bins[i] * decayconstant);
+                if (decayconstant == 0) {
+                    clearBins();
+                } else {
+                    decay(decayconstant);
                 }
             }
         } else {
@@ -335,6 +416,14 @@ public class ITDBins {
         this.timestamp = timestamp;
     }
 
+    private void clearBins() {
+        for (int i = 0; i < bins.length; i++) {
+            bins[i] = 0;
+        }
+        scale = 1;
+        sum = 0;
+    }
+
     /**
      * @return the timestamp
      */
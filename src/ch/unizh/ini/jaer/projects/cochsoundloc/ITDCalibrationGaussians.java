@@ -120,6 +120,18 @@ public class ITDCalibrationGaussians {
 
     public double[] convertITD(int channel, int ITD) {
         double[] addThis = new double[NumOfBins];
+        convertITD(channel, ITD, addThis);
+        return addThis;
+    }
+
+    /**
+     * Converts an ITD to the normalized weights of the bins, without allocating.
+     *
+     * @param channel the cochlea channel
+     * @param ITD the ITD in us
+     * @param addThis receives the NumOfBins weights
+     */
+    public void convertITD(int channel, int ITD, double[] addThis) {
         double sum = 0;
         for(int k=0; k<NumOfBins;k++)
         {
@@ -136,7 +148,6 @@ public class ITDCalibrationGaussians {
                 addThis[k] /= sum;
             }
         }
-        return addThis;
     }
 
     /**
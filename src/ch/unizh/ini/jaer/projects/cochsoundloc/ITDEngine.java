@@ -0,0 +1,172 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ch.unizh.ini.jaer.projects.cochsoundloc;
+
+/**
+ * Finds the interaural time differences of cochlea spikes for the ITDFilter, without allocating.
+ * <p>
+ * For each channel, ganglion cell threshold and ear the last dimLastTs spike timestamps are held in a ring in one flat
+ * int array, newest first from the cursor. A new spike is compared with the spikes of the other ear of its channel and
+ * threshold, newest first, until the first one that is maxITD or more apart, so the work is proportional to the
+ * number of ITDs found. The ITDs and their weights are returned in arrays that are reused for each spike.
+ *
+ * @author Holger
+ */
+public class ITDEngine {
+
+    private final int numOfChannels, numOfThresholds, dimLastTs;
+    private final int[] lastTs; // [((channel*numOfThresholds+threshold)*2+ear)*dimLastTs+k]
+    private final int[] lastTsCursor; // [(channel*numOfThresholds+threshold)*2+ear], index of newest timestamp
+    private final int[] itds;
+    private final float[] weights;
+    private int maxITD = 800;
+    private int maxWeight = 5;
+    private int maxWeightTime = 500000;
+    private boolean useLaterSpikeForWeight = true;
+    private boolean usePriorSpikeForWeight = true;
+    private int lastCompared = 0;
+
+    /**
+     * Constructor
+     *
+     * @param numOfChannels the number of cochlea channels
+     * @param numOfThresholds the number of ganglion cell thresholds stored separately
+     * @param dimLastTs the number of timestamps stored per channel, threshold and ear
+     */
+    public ITDEngine(int numOfChannels, int numOfThresholds, int dimLastTs) {
+        if ((numOfChannels < 0) || (numOfThresholds < 1) || (dimLastTs < 1)) {
+            throw new IllegalArgumentException("numOfChannels=" + numOfChannels + " numOfThresholds=" + numOfThresholds + " dimLastTs=" + dimLastTs);
+        }
+        this.numOfChannels = numOfChannels;
+        this.numOfThresholds = numOfThresholds;
+        this.dimLastTs = dimLastTs;
+        lastTs = new int[numOfChannels * numOfThresholds * 2 * dimLastTs];
+        lastTsCursor = new int[numOfChannels * numOfThresholds * 2];
+        itds = new int[dimLastTs];
+        weights = new float[dimLastTs];
+        clear();
+    }
+
+    /**
+     * Forgets all timestamps.
+     */
+    public void clear() {
+        java.util.Arrays.fill(lastTs, Integer.MIN_VALUE);
+        java.util.Arrays.fill(lastTsCursor, 0);
+    }
+
+    /**
+     * Sets the parameters of the ITD search and weighting, see ITDFilter.
+     */
+    public void setParameters(int maxITD, int maxWeight, int maxWeightTime, boolean useLaterSpikeForWeight, boolean usePriorSpikeForWeight) {
+        this.maxITD = maxITD;
+        this.maxWeight = maxWeight;
+        this.maxWeightTime = maxWeightTime;
+        this.useLaterSpikeForWeight = useLaterSpikeForWeight;
+        this.usePriorSpikeForWeight = usePriorSpikeForWeight;
+    }
+
+    public int getNumOfChannels() {
+        return numOfChannels;
+    }
+
+    public int getNumOfThresholds() {
+        return numOfThresholds;
+    }
+
+    public int getDimLastTs() {
+        return dimLastTs;
+    }
+
+    /**
+     * Finds the ITDs of a spike with the last spikes of the other ear and then stores the spike.
+     *
+     * @param channel the cochlea channel
+     * @param threshold the ganglion cell threshold, 0 if not stored separately
+     * @param ear 0 for the right ear, 1 for the left ear
+     * @param timestamp the timestamp in us
+     * @return the number of ITDs, which are then available from getITD and getWeight
+     */
+    public int addSpike(int channel, int threshold, int ear, int timestamp) {
+        final int d = dimLastTs;
+        final int ringThis = ((channel * numOfThresholds) + threshold) * 2 + ear;
+        final int ringOther = ringThis + 1 - (2 * ear);
+        final int baseThis = ringThis * d, baseOther = ringOther * d;
+        final int cursorOther = lastTsCursor[ringOther];
+
+        final int lastThis = lastTs[baseThis + lastTsCursor[ringThis]];
+        int n = 0;
+        for (; n < d; n++) {
+            final int k = (cursorOther + n) % d;
+            final int other = lastTs[baseOther + k];
+            int diff = timestamp - other;
+            if (ear == 0) {
+                diff = -diff;
+            }
+            if (Math.abs(diff) >= maxITD) {
+                break;
+            }
+            float weight = 1f;
+            //Compute weight:
+            if (useLaterSpikeForWeight) {
+                int weightTimeThisSide = timestamp - lastThis;
+                if (weightTimeThisSide > maxWeightTime) {
+                    weightTimeThisSide = maxWeightTime;
+                }
+                weight *= ((weightTimeThisSide * (maxWeight - 1f)) / maxWeightTime) + 1f;
+                if (weightTimeThisSide < 0) {
+                    weight = 0;
+                }
+            }
+            if (usePriorSpikeForWeight) {
+                int weightTimeOtherSide = other - lastTs[baseOther + ((k + 1) % d)];
+                if (weightTimeOtherSide > maxWeightTime) {
+                    weightTimeOtherSide = maxWeightTime;
+                }
+                weight *= ((weightTimeOtherSide * (maxWeight - 1f)) / maxWeightTime) + 1f;
+                if (weightTimeOtherSide < 0) {
+                    weight = 0;
+                }
+            }
+            itds[n] = diff;
+            weights[n] = weight;
+        }
+        lastCompared = Math.min(n + 1, d);
+
+        //Now decrement the cursor (circularly) and add the new timestamp
+        int cursorThis = lastTsCursor[ringThis];
+        if (cursorThis == 0) {
+            cursorThis = d;
+        }
+        cursorThis--;
+        lastTsCursor[ringThis] = cursorThis;
+        lastTs[baseThis + cursorThis] = timestamp;
+        return n;
+    }
+
+    /**
+     * @return the number of other ear spikes the last spike was compared with, i.e. the ITDs found and the first one
+     * too far apart
+     */
+    public int getLastCompared() {
+        return lastCompared;
+    }
+
+    /**
+     * @param i the index of the ITD of the last spike, less than the number returned by addSpike
+     * @return the ITD in us, positive if the left ear spiked later
+     */
+    public int getITD(int i) {
+        return itds[i];
+    }
+
+    /**
+     * @param i the index of the ITD of the last spike
+     * @return the weight of the ITD
+     */
+    public float getWeight(int i) {
+        return weights[i];
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ch.unizh.ini.jaer.projects.cochsoundloc;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands ITDs over from the ITDFilter to another thread without allocating an ITDEvent per ITD. The ITDs are held in
+ * primitive arrays of a fixed capacity; when the ring is full, new ITDs are rejected like by
+ * ArrayBlockingQueue.offer.
+ * <p>
+ * There must be only one producer thread and one consumer thread.
+ *
+ * @author Holger
+ */
+public class ITDEventRing {
+
+    private final int capacity;
+    private final int[] itd, timestamp, channel;
+    private final float[] weight;
+    private volatile long head = 0; // next ITD to poll
+    private volatile long tail = 0; // next ITD to offer
+
+    /**
+     * Constructor
+     *
+     * @param capacity the number of ITDs held
+     */
+    public ITDEventRing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity=" + capacity + " must be at least 1");
+        }
+        this.capacity = capacity;
+        itd = new int[capacity];
+        timestamp = new int[capacity];
+        channel = new int[capacity];
+        weight = new float[capacity];
+    }
+
+    /**
+     * @return the number of ITDs held at most
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of ITDs waiting
+     */
+    public int size() {
+        return (int) (tail - head);
+    }
+
+    /**
+     * Adds an ITD; called by the producer thread.
+     *
+     * @return false if the ring is full
+     */
+    public boolean offer(int ITD, int timestamp, int channel, float weight) {
+        final long t = tail;
+        if ((t - head) >= capacity) {
+            return false;
+        }
+        final int k = (int) (t % capacity);
+        this.itd[k] = ITD;
+        this.timestamp[k] = timestamp;
+        this.channel[k] = channel;
+        this.weight[k] = weight;
+        tail = t + 1; // volatile write publishes the ITD
+        return true;
+    }
+
+    /**
+     * Takes the oldest ITD; called by the consumer thread.
+     *
+     * @param event filled with the ITD
+     * @return false if there is no ITD
+     */
+    public boolean poll(ITDEvent event) {
+        final long h = head;
+        if (h == tail) {
+            return false;
+        }
+        final int k = (int) (h % capacity);
+        event.setITD(itd[k]);
+        event.setTimestamp(timestamp[k]);
+        event.setChannel(channel[k]);
+        event.setWeight(weight[k]);
+        head = h + 1;
+        return true;
+    }
+
+    /**
+     * Takes all waiting ITDs up to the length of the arrays; called by the consumer thread.
+     *
+     * @param itds receives the ITDs in us
+     * @param timestamps receives the timestamps in us
+     * @param channels receives the channels, or null
+     * @param weights receives the weights, or null
+     * @return the number of ITDs taken
+     */
+    public int drainTo(int[] itds, int[] timestamps, int[] channels, float[] weights) {
+        final long h = head;
+        final int n = (int) Math.min(tail - h, itds.length);
+        for (int i = 0; i < n; i++) {
+            final int k = (int) ((h + i) % capacity);
+            itds[i] = itd[k];
+            timestamps[i] = timestamp[k];
+            if (channels != null) {
+                channels[i] = channel[k];
+            }
+            if (weights != null) {
+                weights[i] = weight[k];
+            }
+        }
+        head = h + n;
+        return n;
+    }
+
+    /**
+     * Waits for an ITD and takes it; called by the consumer thread.
+     *
+     * @param event filled with the ITD
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void take(ITDEvent event) throws InterruptedException {
+        while (!poll(event)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            LockSupport.parkNanos(100000);
+        }
+    }
+
+    /**
+     * Removes all ITDs; called by the consumer thread.
+     */
+    public void clear() {
+        head = tail;
+    }
+}
@@ -20,7 +20,6 @@ import java.util.Iterator;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.StringTokenizer;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -117,8 +116,7 @@ public class ITDFilter extends EventFilter2D implements Observer, FrameAnnotater
 	//private LinkedList[][] lastTimestamps;
 	//private ArrayList<LinkedList<Integer>> lastTimestamps0;
 	//private ArrayList<LinkedList<Integer>> lastTimestamps1;
-	private int[][][][] lastTs;
-	private int[][][] lastTsCursor;
+	private ITDEngine itdEngine;
 	//private int[][] AbsoluteLastTimestamp;
 	Iterator iterator;
 	private float lastWeight = 1f;
@@ -136,7 +134,7 @@ public class ITDFilter extends EventFilter2D implements Observer, FrameAnnotater
 	BufferedWriter freqBinFile;
 	private boolean wasMoving = false;
 	private int numNeuronTypes = 1;
-	private static ArrayBlockingQueue ITDEventQueue = null;
+	private static volatile ITDEventRing ITDEventQueue = null;
 	private boolean ITDEventQueueFull = false;
 	public PanTilt panTilt = null;
 	private ITDBins[] freqBins;
@@ -403,7 +401,7 @@ public class ITDFilter extends EventFilter2D implements Observer, FrameAnnotater
 		addPropertyToGroup("ITDWeighting", "usePriorSpikeForWeight");
 		addPropertyToGroup("ITDWeighting", "maxWeight");
 		addPropertyToGroup("ITDWeighting", "maxWeightTime");
-		setPropertyTooltip("sendITDsToOtherThread", "send ITD messages to another thread via an ArrayBlockingQueue available from static method pollITDEvent");
+		setPropertyTooltip("sendITDsToOtherThread", "send ITD messages to another thread via a lock-free ring of size itdEventQueueSize available from static methods pollITDEvent and drainITDEvents");
 		String udp = "UDP Messages";
 		setPropertyTooltip(udp, "sendITD_UDP_Messages", "send ITD messages via UDP datagrams to a chosen host and port");
 		setPropertyTooltip(udp, "sendITD_UDP_port", "hostname:port (e.g. localhost:9999) to send UDP ITD histograms to; messages are int32 seq # followed by int32 bin values");
@@ -464,6 +462,7 @@ public class ITDFilter extends EventFilter2D implements Observer, FrameAnnotater
 
 		OutputEventIterator outItr = out.outputIterator();
 		int nleft = 0, nright = 0;
+		itdEngine.setParameters(maxITD, maxWeight, maxWeightTime, useLaterSpikeForWeight, usePriorSpikeForWeight);
 		for (Object e : in) {
 			BinauralCochleaEvent i = (BinauralCochleaEvent) e;
                         if(i.isSpecial() || i.isFilteredOut()) continue;
@@ -495,90 +494,51 @@ public class ITDFilter extends EventFilter2D implements Observer, FrameAnnotater
 					log.warning("there was a BasicEvent i with i.x=" + i.x + " >= " + numOfCochleaChannels + "=numOfCochleaChannels! Therefore set numOfCochleaChannels=" + (i.x + 1));
 					setNumOfCochleaChannels(i.x + 1);
 				} else {
-					int cursor = lastTsCursor[i.x][ganglionCellThreshold][1 - ear];
-					do {
-						int diff = i.timestamp - lastTs[i.x][ganglionCellThreshold][1 - ear][cursor];
-						if (ear == 0) {
-							diff = -diff;
-							nright++;
+					int numITDs = itdEngine.addSpike(i.x, ganglionCellThreshold, ear, i.timestamp);
+					if (ear == 0) {
+						nright += itdEngine.getLastCompared();
+					} else {
+						nleft += itdEngine.getLastCompared();
+					}
+					for (int n = 0; n < numITDs; n++) {
+						int diff = itdEngine.getITD(n);
+						lastWeight = itdEngine.getWeight(n);
+						if (weightFrequencies && (frequencyWeights != null)) {
+							lastWeight *= frequencyWeights[i.x];
+						}
+						if (normToConfThresh == true) {
+							myBins.addITD(diff, i.timestamp, i.x, lastWeight, confidenceThreshold);
 						} else {
-							nleft++;
+							myBins.addITD(diff, i.timestamp, i.x, lastWeight, 0);
 						}
-						int absdiff = java.lang.Math.abs(diff);
-						if (absdiff < maxITD) {
-
-							lastWeight = 1f;
-							//Compute weight:
-							if (useLaterSpikeForWeight == true) {
-								int weightTimeThisSide = i.timestamp - lastTs[i.x][ganglionCellThreshold][ear][lastTsCursor[i.x][ganglionCellThreshold][ear]];
-								if (weightTimeThisSide > maxWeightTime) {
-									weightTimeThisSide = maxWeightTime;
-								}
-								lastWeight *= ((weightTimeThisSide * (maxWeight - 1f)) / maxWeightTime) + 1f;
-								if (weightTimeThisSide < 0) {
-									//log.warning("weightTimeThisSide < 0");
-									lastWeight = 0;
-								}
-							}
-							if (usePriorSpikeForWeight == true) {
-								int weightTimeOtherSide = lastTs[i.x][ganglionCellThreshold][1 - ear][cursor] - lastTs[i.x][ganglionCellThreshold][1 - ear][(cursor + 1) % dimLastTs];
-								if (weightTimeOtherSide > maxWeightTime) {
-									weightTimeOtherSide = maxWeightTime;
-								}
-								lastWeight *= ((weightTimeOtherSide * (maxWeight - 1f)) / maxWeightTime) + 1f;
-								if (weightTimeOtherSide < 0) {
-									//log.warning("weightTimeOtherSide < 0");
-									lastWeight = 0;
-								}
-							}
-							if (weightFrequencies && (frequencyWeights != null)) {
-								lastWeight *= frequencyWeights[i.x];
+						if (freqBins != null) {
+							freqBins[i.x].addITD(diff, i.timestamp, i.x, lastWeight, 0);
+						}
+						if ((writeITD2File == true) && (ITDFile != null)) {
+							ITDFile.write(i.timestamp + "\t" + diff + "\t" + i.x + "\t" + lastWeight + "\n");
+						}
+						if (sendITDsToOtherThread) {
+							if (ITDEventQueue == null) {
+								ITDEventQueue = new ITDEventRing(itdEventQueueSize);
 							}
-							if (normToConfThresh == true) {
-								myBins.addITD(diff, i.timestamp, i.x, lastWeight, confidenceThreshold);
+							boolean success = ITDEventQueue.offer(diff, i.timestamp, i.x, lastWeight);
+							if (success == false) {
+								ITDEventQueueFull = true;
+								log.warning("Could not add ITD-Event to the ITDEventQueue. Probably itdEventQueueSize is too small!!!");
 							} else {
-								myBins.addITD(diff, i.timestamp, i.x, lastWeight, 0);
-							}
-							if (freqBins != null) {
-								freqBins[i.x].addITD(diff, i.timestamp, i.x, lastWeight, 0);
-							}
-							if ((writeITD2File == true) && (ITDFile != null)) {
-								ITDFile.write(i.timestamp + "\t" + diff + "\t" + i.x + "\t" + lastWeight + "\n");
-							}
-							if (sendITDsToOtherThread) {
-								if (ITDEventQueue == null) {
-									ITDEventQueue = new ArrayBlockingQueue(itdEventQueueSize);
-								}
-								ITDEvent itdEvent = new ITDEvent(diff, i.timestamp, i.x, lastWeight);
-								boolean success = ITDEventQueue.offer(itdEvent);
-								if (success == false) {
-									ITDEventQueueFull = true;
-									log.warning("Could not add ITD-Event to the ITDEventQueue. Probably itdEventQueueSize is too small!!!");
-								} else {
-									ITDEventQueueFull = false;
-								}
+								ITDEventQueueFull = false;
 							}
+						}
 
-							if (isBeamFormingEnabled()) {
-								// if
-								int bestITD = Float.isNaN(beamFormingITDUs) ? (int) beamFormingITDUs : getBestITD();
-								if (Math.abs(diff - bestITD) < beamFormingRangeUs) {
-									BinauralCochleaEvent oe = (BinauralCochleaEvent) outItr.nextOutput();
-									oe.copyFrom(i);
-								}
+						if (isBeamFormingEnabled()) {
+							// if
+							int bestITD = Float.isNaN(beamFormingITDUs) ? (int) beamFormingITDUs : getBestITD();
+							if (Math.abs(diff - bestITD) < beamFormingRangeUs) {
+								BinauralCochleaEvent oe = (BinauralCochleaEvent) outItr.nextOutput();
+								oe.copyFrom(i);
 							}
-						} else {
-							break;
 						}
-						cursor = (++cursor) % dimLastTs;
-					} while (cursor != lastTsCursor[i.x][ganglionCellThreshold][1 - ear]);
-					//Now decrement the cursor (circularly)
-					if (lastTsCursor[i.x][ganglionCellThreshold][ear] == 0) {
-						lastTsCursor[i.x][ganglionCellThreshold][ear] = dimLastTs;
 					}
-					lastTsCursor[i.x][ganglionCellThreshold][ear]--;
-					//Add the new timestamp to the list
-					lastTs[i.x][ganglionCellThreshold][ear][lastTsCursor[i.x][ganglionCellThreshold][ear]] = i.timestamp;
 
 					RubiEcho.time = i.timestamp;
 
@@ -792,18 +752,7 @@ public class ITDFilter extends EventFilter2D implements Observer, FrameAnnotater
 			case StoreSeparetlyCompareEvery:
 				dim = numNeuronTypes;
 		}
-		lastTs = new int[numOfCochleaChannels][dim][2][dimLastTs];
-		lastTsCursor = new int[numOfCochleaChannels][dim][2];
-
-		for (int i = 0; i < numOfCochleaChannels; i++) {
-			for (int j = 0; j < dim; j++) {
-				for (int k = 0; k < 2; k++) {
-					for (int l = 0; l < dimLastTs; l++) {
-						lastTs[i][j][k][l] = Integer.MIN_VALUE;
-					}
-				}
-			}
-		}
+		itdEngine = new ITDEngine(numOfCochleaChannels, dim, dimLastTs);
 
 		ConfidenceRecentMax = 0;
 		ConfidenceRecentMaxTime = 0;
@@ -916,7 +865,7 @@ public class ITDFilter extends EventFilter2D implements Observer, FrameAnnotater
 		getSupport().firePropertyChange("itdEventQueueSize", this.itdEventQueueSize, itdEventQueueSize);
 		this.itdEventQueueSize = itdEventQueueSize;
 		if (sendITDsToOtherThread) {
-			ITDEventQueue = new ArrayBlockingQueue(itdEventQueueSize);
+			ITDEventQueue = new ITDEventRing(itdEventQueueSize);
 		}
 	}
 
@@ -982,8 +931,7 @@ public class ITDFilter extends EventFilter2D implements Observer, FrameAnnotater
 		getPrefs().putInt("ITDFilter.numOfCochleaChannels", numOfCochleaChannels);
 		getSupport().firePropertyChange("numOfCochleaChannels", this.numOfCochleaChannels, numOfCochleaChannels);
 		this.numOfCochleaChannels = numOfCochleaChannels;
-		lastTs = new int[numOfCochleaChannels][numNeuronTypes][2][dimLastTs];
-		lastTsCursor = new int[numOfCochleaChannels][numNeuronTypes][2];
+		itdEngine = new ITDEngine(numOfCochleaChannels, numNeuronTypes, dimLastTs);
 	}
 
 	public float getAveragingDecay() {
@@ -1266,7 +1214,7 @@ public class ITDFilter extends EventFilter2D implements Observer, FrameAnnotater
 		getSupport().firePropertyChange("sendITDsToOtherThread", this.sendITDsToOtherThread, sendITDsToOtherThread);
 		this.sendITDsToOtherThread = sendITDsToOtherThread;
 		if (sendITDsToOtherThread == true) {
-			ITDEventQueue = new ArrayBlockingQueue(itdEventQueueSize);
+			ITDEventQueue = new ITDEventRing(itdEventQueueSize);
 		} else {
 			ITDEventQueue = null;
 		}
@@ -1557,17 +1505,42 @@ public class ITDFilter extends EventFilter2D implements Observer, FrameAnnotater
 	}
 
 	public static ITDEvent takeITDEvent() throws InterruptedException {
-		return (ITDEvent) ITDEventQueue.take();
+		ITDEvent itdEvent = new ITDEvent();
+		ITDEventQueue.take(itdEvent);
+		return itdEvent;
 	}
 
 	public static ITDEvent pollITDEvent() {
-		if (ITDEventQueue != null) {
-			return (ITDEvent) ITDEventQueue.poll();
+		ITDEvent itdEvent = new ITDEvent();
+		if (pollITDEvent(itdEvent)) {
+			return itdEvent;
 		} else {
 			return null;
 		}
 	}
 
+	/**
+	 * Takes the oldest ITD sent to other threads without allocating.
+	 *
+	 * @param itdEvent filled with the ITD
+	 * @return false if there is no ITD
+	 */
+	public static boolean pollITDEvent(ITDEvent itdEvent) {
+		ITDEventRing queue = ITDEventQueue;
+		return (queue != null) && queue.poll(itdEvent);
+	}
+
+	/**
+	 * Takes all ITDs sent to other threads up to the length of the arrays, without allocating.
+	 *
+	 * @return the number of ITDs taken
+	 * @see ITDEventRing#drainTo
+	 */
+	public static int drainITDEvents(int[] itds, int[] timestamps, int[] channels, float[] weights) {
+		ITDEventRing queue = ITDEventQueue;
+		return (queue == null) ? 0 : queue.drainTo(itds, timestamps, channels, weights);
+	}
+
 	private void createBins() {
 		int numLoop;
 		if (computeMeanInLoop == true) {
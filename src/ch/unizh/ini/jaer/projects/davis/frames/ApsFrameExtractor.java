@@ -46,7 +46,12 @@ import net.sf.jaer.graphics.ImageDisplay.Legend;
  * <li>hasNewFrame() to check whether a new frame is available
  * <li>getDisplayBuffer() to get a clone of the latest raw pixel values
  * <li>getNewFrame() to get the latest double buffer of displayed values
+ * <li>acquireLatestFrame() or EVENT_NEW_POOLED_FRAME to get the latest
+ * ApsFramePool.ApsFrame with raw and displayed values and exposure timing
  * </ul>
+ * Frames are filled into buffers recycled by an ApsFramePool; samples are only
+ * stored as they arrive, and the CDS subtraction and display scaling are done
+ * in bulk when the end of frame event arrives.
  *
  * @author Christian Brändli
  */
@@ -61,18 +66,14 @@ public class ApsFrameExtractor extends EventFilter2D
     private DavisChip apsChip = null;
     private boolean newFrame, useExtRender = false; // useExtRender means using something like OpenCV to render the
     // data. If false, the displayBuffer is displayed
-    private float[] resetBuffer, signalBuffer;
-    /**
-     * Raw pixel values from sensor, before conversion, brightness, etc.
-     */
-    private float[] displayBuffer;
+    private ApsFramePool framePool = null;
+    private ApsFramePool.ApsFrame fillingFrame = null; // frame being filled by APS samples, null if dropped
+    private boolean droppingFrame = false; // true from the start of a frame that got no buffer until its end of frame
+    private ApsFramePool.ApsFrame latestFrame = null; // latest completed frame, holds the pool's reference
+    private final Object frameLock = new Object(); // guards hand-out of latestFrame
+    private int frameCounter = 0;
+    private float[] blankFrame; // returned before the first frame is complete
     private float[] apsDisplayPixmapBuffer;
-    /**
-     * Cooked pixel values, after brightness, contrast, log intensity
-     * conversion, etc.
-     */
-    private float[] displayFrame; // format is RGB triplets indexed by ??? what is this? How different than
-    // displayBuffer???
     public int width, height, maxADC, maxIDX;
     private float grayValue;
     public final float logSafetyOffset = 10000.0f;
@@ -84,6 +85,13 @@ public class ApsFrameExtractor extends EventFilter2D
      * displayFrame that will be rendered.
      */
     public static final String EVENT_NEW_FRAME = AEFrameChipRenderer.EVENT_NEW_FRAME_AVAILBLE;
+    /**
+     * A PropertyChangeEvent with this value is fired right after
+     * EVENT_NEW_FRAME. The newValue is the ApsFramePool.ApsFrame; listeners
+     * that keep it after returning must call retain() on it and release() it
+     * when done.
+     */
+    public static final String EVENT_NEW_POOLED_FRAME = "newPooledFrame";
     private int lastFrameTimestamp = -1;
 
     @Override
@@ -108,6 +116,7 @@ public class ApsFrameExtractor extends EventFilter2D
     private boolean logDecompress = getBoolean("logDecompress", false);
     private float displayContrast = getFloat("displayContrast", 1.0f);
     private float displayBrightness = getFloat("displayBrightness", 0.0f);
+    private int framePoolSize = getInt("framePoolSize", 8);
     public Extraction extractionMethod = Extraction.valueOf(getString("extractionMethod", "CDSframe"));
 
     public ApsFrameExtractor(final AEChip chip) {
@@ -141,6 +150,7 @@ public class ApsFrameExtractor extends EventFilter2D
         setPropertyTooltip("extractionMethod",
                 "Method to extract a frame; CDSframe is the final result after subtracting signal from reset frame. Signal and reset frames are the raw sensor output before correlated double sampling.");
         setPropertyTooltip("showAPSFrameDisplay", "Shows the JFrame frame display if true");
+        setPropertyTooltip("framePoolSize", "Maximum number of frame buffers; frames are dropped only if consumers hold all of them");
         chip.addObserver(this);
 
     }
@@ -164,15 +174,23 @@ public class ApsFrameExtractor extends EventFilter2D
         maxIDX = width * height;
         maxADC = apsChip.getMaxADC();
         apsDisplay.setImageSize(width, height);
-        resetBuffer = new float[width * height];
-        signalBuffer = new float[width * height];
-        displayFrame = new float[width * height];
-        displayBuffer = new float[width * height];
+        synchronized (frameLock) {
+            if (fillingFrame != null) {
+                fillingFrame.release();
+                fillingFrame = null;
+            }
+            droppingFrame = false;
+            if (latestFrame != null) {
+                latestFrame.release();
+                latestFrame = null;
+            }
+            if (framePool != null) {
+                framePool.close();
+            }
+            framePool = new ApsFramePool(width * height, 2, framePoolSize);
+        }
+        blankFrame = new float[width * height];
         apsDisplayPixmapBuffer = new float[3 * width * height];
-        Arrays.fill(resetBuffer, 0.0f);
-        Arrays.fill(signalBuffer, 0.0f);
-        Arrays.fill(displayFrame, 0.0f);
-        Arrays.fill(displayBuffer, 0.0f);
         Arrays.fill(apsDisplayPixmapBuffer, 0.0f);
     }
 
@@ -214,65 +232,171 @@ public class ApsFrameExtractor extends EventFilter2D
             return;
         }
         // if(e.isStartOfFrame())timestampFrameStart=e.timestampFrameStart;
+        if (e.isStartOfFrame()) {
+            droppingFrame = false; // a new frame gets a new chance to obtain a buffer
+            startFrame(e.timestamp);
+            return;
+        }
+        if (e.isEndOfFrame()) {
+            endFrame(e.timestamp);
+            return;
+        }
+        if (droppingFrame) { // skip exposure markers and samples of the dropped frame until its end of frame
+            return;
+        }
+        if (e.isStartOfExposure() || e.isEndOfExposure()) {
+            if (fillingFrame == null) {
+                startFrame(e.timestamp);
+            }
+            if (fillingFrame != null) {
+                if (e.isStartOfExposure()) {
+                    fillingFrame.setStartOfExposureTimestamp(e.timestamp);
+                } else {
+                    fillingFrame.setEndOfExposureTimestamp(e.timestamp);
+                }
+            }
+            return;
+        }
         final ApsDvsEvent.ReadoutType type = e.getReadoutType();
         final float val = e.getAdcSample();
         final int idx = getIndex(e.x, e.y);
         if (idx >= maxIDX) {
             return;
         }
-        if (e.isStartOfFrame()) {
-            if (newFrame && useExtRender) {
-                EventFilter.log.warning("new frame started even though old frame was never gotten by anyone calling getNewFrame()");
-            }
-        }
-        if (e.isEndOfFrame()) {
-            if (preBufferFrame && (displayBuffer != null) && !useExtRender && showAPSFrameDisplay) {
-                displayPreBuffer();
+        if (fillingFrame == null) { // the start of frame was missed
+            startFrame(e.timestamp);
+            if (fillingFrame == null) {
+                return;
             }
-            newFrame = true;
-            lastFrameTimestamp = e.timestamp;
-            getSupport().firePropertyChange(ApsFrameExtractor.EVENT_NEW_FRAME, null, displayFrame);
-            return;
         }
         switch (type) {
             case SignalRead:
-                signalBuffer[idx] = val;
+                fillingFrame.signalBuffer[idx] = val;
                 break;
             case ResetRead:
             default:
-                resetBuffer[idx] = val;
+                fillingFrame.resetBuffer[idx] = val;
                 break;
         }
+        if (!preBufferFrame && !useExtRender && showAPSFrameDisplay) {
+            // live display of samples as they arrive; otherwise all pixels are extracted at the end of frame
+            float v;
+            switch (extractionMethod) {
+                case ResetFrame:
+                    v = fillingFrame.resetBuffer[idx];
+                    break;
+                case SignalFrame:
+                    v = fillingFrame.signalBuffer[idx];
+                    break;
+                case CDSframe:
+                default:
+                    v = fillingFrame.resetBuffer[idx] - fillingFrame.signalBuffer[idx];
+                    break;
+            }
+            if (invertIntensity) {
+                v = maxADC - v;
+            }
+            if (logCompress) {
+                v = (float) Math.log(v + logSafetyOffset);
+            }
+            if (logCompress && logDecompress) {
+                grayValue = scaleGrayValue((float) (Math.exp(v) - logSafetyOffset));
+            } else {
+                grayValue = scaleGrayValue(v);
+            }
+            apsDisplay.setPixmapGray(e.x, e.y, grayValue);
+        }
+    }
+
+    /**
+     * Obtains the buffer for a new frame. If consumers hold all frames, the
+     * whole frame is dropped once here and its samples are skipped until its
+     * end of frame.
+     */
+    private void startFrame(final int timestamp) {
+        if (fillingFrame == null) {
+            fillingFrame = framePool.obtain();
+            if (fillingFrame == null) {
+                droppingFrame = true;
+                return;
+            }
+        }
+        fillingFrame.setStartOfFrameTimestamp(timestamp);
+    }
+
+    private void endFrame(final int timestamp) {
+        final ApsFramePool.ApsFrame f = fillingFrame;
+        fillingFrame = null;
+        droppingFrame = false;
+        if (f == null) {
+            return;
+        }
+        f.setEndOfFrameTimestamp(timestamp);
+        f.setFrameNumber(frameCounter++);
+        extractFrame(f);
+        if (preBufferFrame && !useExtRender && showAPSFrameDisplay) {
+            final float[] cooked = f.displayFrame;
+            for (int i = 0, j = 0; i < cooked.length; i++, j += 3) {
+                apsDisplayPixmapBuffer[j] = cooked[i];
+                apsDisplayPixmapBuffer[j + 1] = cooked[i];
+                apsDisplayPixmapBuffer[j + 2] = cooked[i];
+            }
+            displayPreBuffer();
+        }
+        synchronized (frameLock) {
+            if (latestFrame != null) {
+                latestFrame.release();
+            }
+            latestFrame = f; // the pool's reference is handed over to latestFrame
+        }
+        newFrame = true;
+        lastFrameTimestamp = timestamp;
+        getSupport().firePropertyChange(ApsFrameExtractor.EVENT_NEW_FRAME, null, f.displayFrame);
+        getSupport().firePropertyChange(ApsFrameExtractor.EVENT_NEW_POOLED_FRAME, null, f);
+    }
+
+    /**
+     * Computes the raw and displayed values of all pixels of a complete frame
+     * in a few simple loops over the sample arrays.
+     */
+    private void extractFrame(final ApsFramePool.ApsFrame f) {
+        final float[] reset = f.resetBuffer, signal = f.signalBuffer, raw = f.displayBuffer, cooked = f.displayFrame;
+        final int n = f.getnPixels();
         switch (extractionMethod) {
             case ResetFrame:
-                displayBuffer[idx] = resetBuffer[idx];
+                System.arraycopy(reset, 0, raw, 0, n);
                 break;
             case SignalFrame:
-                displayBuffer[idx] = signalBuffer[idx];
+                System.arraycopy(signal, 0, raw, 0, n);
                 break;
             case CDSframe:
             default:
-                displayBuffer[idx] = resetBuffer[idx] - signalBuffer[idx];
+                for (int i = 0; i < n; i++) {
+                    raw[i] = reset[i] - signal[i];
+                }
                 break;
         }
         if (invertIntensity) {
-            displayBuffer[idx] = maxADC - displayBuffer[idx];
+            for (int i = 0; i < n; i++) {
+                raw[i] = maxADC - raw[i];
+            }
         }
         if (logCompress) {
-            displayBuffer[idx] = (float) Math.log(displayBuffer[idx] + logSafetyOffset);
+            for (int i = 0; i < n; i++) {
+                raw[i] = (float) Math.log(raw[i] + logSafetyOffset);
+            }
         }
+        final float gain = displayContrast / maxADC, offset = displayBrightness / maxADC;
         if (logCompress && logDecompress) {
-            grayValue = scaleGrayValue((float) (Math.exp(displayBuffer[idx]) - logSafetyOffset));
-        } else {
-            grayValue = scaleGrayValue(displayBuffer[idx]);
-        }
-        displayFrame[idx] = grayValue;
-        if (!preBufferFrame && !useExtRender && showAPSFrameDisplay) {
-            apsDisplay.setPixmapGray(e.x, e.y, grayValue);
+            for (int i = 0; i < n; i++) {
+                final float v = ((float) (Math.exp(raw[i]) - logSafetyOffset) * gain) + offset;
+                cooked[i] = v < 0 ? 0 : (v > 1 ? 1 : v);
+            }
         } else {
-            apsDisplayPixmapBuffer[3 * idx] = grayValue;
-            apsDisplayPixmapBuffer[(3 * idx) + 1] = grayValue;
-            apsDisplayPixmapBuffer[(3 * idx) + 2] = grayValue;
+            for (int i = 0; i < n; i++) {
+                final float v = (raw[i] * gain) + offset;
+                cooked[i] = v < 0 ? 0 : (v > 1 ? 1 : v);
+            }
         }
     }
 
@@ -365,13 +489,43 @@ public class ApsFrameExtractor extends EventFilter2D
      * brightness, contrast, log intensity conversion, etc. The array is indexed
      * by y * width + x. To access a particular pixel, use getIndex().
      * newFrame is set to false by this call.
+     * <p>
+     * The array belongs to a pooled frame and stays valid until the next frame
+     * is complete; use acquireLatestFrame() to hold it longer.
      *
      * @return the double[] frame
      * @see #getDisplayBuffer()
+     * @see #acquireLatestFrame()
      */
     public float[] getNewFrame() {
         newFrame = false;
-        return displayFrame;
+        synchronized (frameLock) {
+            return latestFrame == null ? blankFrame : latestFrame.displayFrame;
+        }
+    }
+
+    /**
+     * Returns the latest complete frame with an added reference, so that it is
+     * not recycled until the caller calls release() on it. newFrame is set to
+     * false by this call.
+     *
+     * @return the frame, or null if no frame is complete yet
+     * @see #EVENT_NEW_POOLED_FRAME
+     */
+    public ApsFramePool.ApsFrame acquireLatestFrame() {
+        newFrame = false;
+        synchronized (frameLock) {
+            return latestFrame == null ? null : latestFrame.retain();
+        }
+    }
+
+    /**
+     * Returns the pool of frame buffers, e.g. to read the dropped frame count
+     *
+     * @return the pool
+     */
+    public ApsFramePool getFramePool() {
+        return framePool;
     }
 
     /**
@@ -387,7 +541,9 @@ public class ApsFrameExtractor extends EventFilter2D
      */
     public float[] getDisplayBuffer() {
         newFrame = false;
-        return displayBuffer.clone();
+        synchronized (frameLock) {
+            return latestFrame == null ? blankFrame.clone() : latestFrame.displayBuffer.clone();
+        }
     }
 
     /**
@@ -546,6 +702,25 @@ public class ApsFrameExtractor extends EventFilter2D
         resetFilter();
     }
 
+    /**
+     * @return the framePoolSize
+     */
+    public int getFramePoolSize() {
+        return framePoolSize;
+    }
+
+    /**
+     * @param framePoolSize the maximum number of frame buffers
+     */
+    synchronized public void setFramePoolSize(final int framePoolSize) {
+        if (framePoolSize < 2) {
+            return;
+        }
+        this.framePoolSize = framePoolSize;
+        putInt("framePoolSize", framePoolSize);
+        resetFilter();
+    }
+
     public Extraction getExtractionMethod() {
         return extractionMethod;
     }
@@ -641,8 +816,14 @@ public class ApsFrameExtractor extends EventFilter2D
             final Point2D.Float p = apsImageDisplay.getMouseImagePosition(e);
             if ((p.x >= 0) && (p.x < chip.getSizeX()) && (p.y >= 0) && (p.y < chip.getSizeY())) {
                 final int idx = getIndex((int) p.x, (int) p.y);
-                EventFilter.log.info(String.format("reset= %d, signal= %d, reset-signal= %+d", (int) resetBuffer[idx],
-                        (int) signalBuffer[idx], (int) (resetBuffer[idx] - signalBuffer[idx])));
+                synchronized (frameLock) {
+                    final ApsFramePool.ApsFrame f = latestFrame;
+                    if (f == null) {
+                        return;
+                    }
+                    EventFilter.log.info(String.format("reset= %d, signal= %d, reset-signal= %+d", (int) f.resetBuffer[idx],
+                            (int) f.signalBuffer[idx], (int) (f.resetBuffer[idx] - f.signalBuffer[idx])));
+                }
             }
         }
     }
@@ -0,0 +1,304 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ch.unizh.ini.jaer.projects.davis.frames;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Pool of recycled APS frame buffers used by ApsFrameExtractor. Each ApsFrame
+ * holds the raw reset and signal samples, the extracted raw pixel values, the
+ * cooked display values and the frame timing metadata.
+ * <p>
+ * Frames are reference counted. The pool holds one reference to the frame
+ * being filled; a consumer that wants to keep a completed frame beyond the
+ * PropertyChangeEvent that announces it calls retain() and later release(). A
+ * frame goes back to the pool when its count drops to zero, so frames are
+ * neither copied nor overwritten while anyone holds them. If all frames are in
+ * use and the pool cannot grow, the incoming frame is dropped and counted.
+ *
+ * @author tobi
+ */
+public class ApsFramePool {
+
+    private static final Logger log = Logger.getLogger("ApsFramePool");
+
+    private final int nPixels;
+    private final int maxFrames;
+    private final ArrayDeque<ApsFrame> free = new ArrayDeque<ApsFrame>();
+    private int allocatedFrames = 0;
+    private int droppedFrames = 0;
+    private boolean closed = false;
+
+    /**
+     * Makes a new pool.
+     *
+     * @param nPixels the number of pixels in each frame
+     * @param initialFrames the number of frames allocated now
+     * @param maxFrames the maximum number of frames that can be in use at
+     * once
+     */
+    public ApsFramePool(int nPixels, int initialFrames, int maxFrames) {
+        this.nPixels = nPixels;
+        this.maxFrames = Math.max(1, maxFrames);
+        for (int i = 0; i < Math.min(initialFrames, this.maxFrames); i++) {
+            free.add(new ApsFrame(nPixels));
+            allocatedFrames++;
+        }
+    }
+
+    /**
+     * Returns a free frame with reference count 1, or null if all frames are
+     * in use and the pool is at maxFrames. Reset and signal samples of the
+     * returned frame are left from its previous use.
+     *
+     * @return the frame, or null if the frame must be dropped
+     */
+    synchronized public ApsFrame obtain() {
+        ApsFrame f = free.poll();
+        if (f == null) {
+            if (allocatedFrames >= maxFrames) {
+                if (droppedFrames++ % 100 == 0) {
+                    log.warning("all " + maxFrames + " APS frames are held by consumers; dropped " + droppedFrames + " frames so far");
+                }
+                return null;
+            }
+            f = new ApsFrame(nPixels);
+            allocatedFrames++;
+        }
+        f.refCount.set(1);
+        f.clearMetadata();
+        return f;
+    }
+
+    synchronized private void recycle(ApsFrame f) {
+        if (closed || f.nPixels != nPixels) {
+            allocatedFrames--;
+            return;
+        }
+        free.add(f);
+    }
+
+    /**
+     * Discards the free frames. Frames still held by consumers are discarded
+     * when they are released.
+     */
+    synchronized public void close() {
+        closed = true;
+        allocatedFrames -= free.size();
+        free.clear();
+    }
+
+    /**
+     * @return the number of pixels of each frame
+     */
+    public int getnPixels() {
+        return nPixels;
+    }
+
+    /**
+     * @return the maximum number of frames
+     */
+    public int getMaxFrames() {
+        return maxFrames;
+    }
+
+    /**
+     * @return the number of frames currently allocated, free or in use
+     */
+    synchronized public int getAllocatedFrames() {
+        return allocatedFrames;
+    }
+
+    /**
+     * @return the number of frames that are free
+     */
+    synchronized public int getFreeFrames() {
+        return free.size();
+    }
+
+    /**
+     * @return the number of frames dropped because all frames were in use
+     */
+    synchronized public int getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * One pooled APS frame. All arrays are indexed by
+     * <code>y * width + x</code> as in ApsFrameExtractor.getIndex().
+     */
+    public class ApsFrame {
+
+        private final int nPixels;
+        private final AtomicInteger refCount = new AtomicInteger(0);
+        /**
+         * Raw ADC samples of the reset read
+         */
+        public final float[] resetBuffer;
+        /**
+         * Raw ADC samples of the signal read
+         */
+        public final float[] signalBuffer;
+        /**
+         * Raw pixel values, after the extraction method (CDS, reset or signal)
+         * and optional inversion and log compression, but before brightness
+         * and contrast
+         */
+        public final float[] displayBuffer;
+        /**
+         * Cooked pixel values in range 0-1 after brightness and contrast
+         */
+        public final float[] displayFrame;
+        private int frameNumber = 0;
+        private int startOfFrameTimestamp = 0, endOfFrameTimestamp = 0;
+        private int startOfExposureTimestamp = 0, endOfExposureTimestamp = 0;
+
+        private ApsFrame(int nPixels) {
+            this.nPixels = nPixels;
+            resetBuffer = new float[nPixels];
+            signalBuffer = new float[nPixels];
+            displayBuffer = new float[nPixels];
+            displayFrame = new float[nPixels];
+        }
+
+        private void clearMetadata() {
+            frameNumber = 0;
+            startOfFrameTimestamp = 0;
+            endOfFrameTimestamp = 0;
+            startOfExposureTimestamp = 0;
+            endOfExposureTimestamp = 0;
+        }
+
+        /**
+         * Adds a reference to this frame. Call from within the
+         * PropertyChangeEvent that announces the frame to keep it after the
+         * event returns.
+         *
+         * @return this frame
+         */
+        public ApsFrame retain() {
+            if (refCount.getAndIncrement() <= 0) {
+                refCount.decrementAndGet();
+                throw new IllegalStateException("cannot retain " + this + " that was already returned to the pool");
+            }
+            return this;
+        }
+
+        /**
+         * Releases a reference to this frame. When no references remain the
+         * frame returns to the pool and must not be used anymore.
+         */
+        public void release() {
+            int c = refCount.decrementAndGet();
+            if (c == 0) {
+                recycle(this);
+            } else if (c < 0) {
+                refCount.incrementAndGet();
+                throw new IllegalStateException("released " + this + " more often than it was retained");
+            }
+        }
+
+        /**
+         * @return the current number of references
+         */
+        public int getRefCount() {
+            return refCount.get();
+        }
+
+        /**
+         * @return the number of pixels
+         */
+        public int getnPixels() {
+            return nPixels;
+        }
+
+        /**
+         * @return the frame number counted by ApsFrameExtractor
+         */
+        public int getFrameNumber() {
+            return frameNumber;
+        }
+
+        void setFrameNumber(int frameNumber) {
+            this.frameNumber = frameNumber;
+        }
+
+        /**
+         * @return the timestamp of the start of frame event in us
+         */
+        public int getStartOfFrameTimestamp() {
+            return startOfFrameTimestamp;
+        }
+
+        void setStartOfFrameTimestamp(int startOfFrameTimestamp) {
+            this.startOfFrameTimestamp = startOfFrameTimestamp;
+        }
+
+        /**
+         * @return the timestamp of the end of frame event in us
+         */
+        public int getEndOfFrameTimestamp() {
+            return endOfFrameTimestamp;
+        }
+
+        void setEndOfFrameTimestamp(int endOfFrameTimestamp) {
+            this.endOfFrameTimestamp = endOfFrameTimestamp;
+        }
+
+        /**
+         * @return the timestamp of the start of exposure event in us, or 0 if
+         * there was none
+         */
+        public int getStartOfExposureTimestamp() {
+            return startOfExposureTimestamp;
+        }
+
+        void setStartOfExposureTimestamp(int startOfExposureTimestamp) {
+            this.startOfExposureTimestamp = startOfExposureTimestamp;
+        }
+
+        /**
+         * @return the timestamp of the end of exposure event in us, or 0 if
+         * there was none
+         */
+        public int getEndOfExposureTimestamp() {
+            return endOfExposureTimestamp;
+        }
+
+        void setEndOfExposureTimestamp(int endOfExposureTimestamp) {
+            this.endOfExposureTimestamp = endOfExposureTimestamp;
+        }
+
+        /**
+         * @return the exposure duration in us, or 0 if the exposure events
+         * were not both received
+         */
+        public int getExposureDurationUs() {
+            if (startOfExposureTimestamp == 0 || endOfExposureTimestamp == 0) {
+                return 0;
+            }
+            return endOfExposureTimestamp - startOfExposureTimestamp;
+        }
+
+        /**
+         * @return the timestamp at the middle of the exposure in us, or the
+         * end of frame timestamp if the exposure is unknown
+         */
+        public int getMidExposureTimestamp() {
+            if (getExposureDurationUs() == 0) {
+                return endOfFrameTimestamp;
+            }
+            return startOfExposureTimestamp + (getExposureDurationUs() / 2);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("ApsFrame #%d (refCount=%d, exposure=%dus, EOF=%dus)", frameNumber, refCount.get(), getExposureDurationUs(), endOfFrameTimestamp);
+        }
+    }
+}
@@ -99,10 +99,7 @@ public class DavisFrameAviWriter extends AbstractAviWriter {
                 }
             }
             try {
-                aviOutputStream.writeFrame(bufferedImage);
-                int timestamp = renderer.getTimestampFrameEnd();
-                writeTimecode(timestamp);
-                incrementFramecountAndMaybeCloseOutput();
+                writeFrame(bufferedImage, renderer.getTimestampFrameEnd());
 
             } catch (IOException ex) {
                 Logger.getLogger(DavisFrameAviWriter.class.getName()).log(Level.SEVERE, null, ex);
@@ -0,0 +1,567 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ch.unizh.ini.jaer.projects.minliu;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import ch.unizh.ini.jaer.projects.minliu.PatchMatchFlow.SearchMethod;
+import net.sf.jaer.util.ParallelRunner;
+
+/**
+ * Block matching engine for PatchMatchFlow that holds binarised time slices as
+ * bit-packed rows and scores candidate displacements with XOR and popcount.
+ * <p>
+ * Each slice has one bitmap per scale; a pixel's bit is set when any event
+ * fell on it during the slice, so polarity is ignored. Rows are packed along x
+ * into longs, so one row of a block (at most 63 pixels wide) is extracted with
+ * two shifts and compared with one Long.bitCount. The rows of the reference
+ * block are extracted once per event and reused for all candidate
+ * displacements.
+ * <p>
+ * The distance is the Hamming distance between the blocks, combined with the
+ * dispersion term and the valid pixel occupancy test exactly as in
+ * PatchMatchFlow's SAD, but normalized by the block area so that it is 1 when
+ * all pixels differ. With binary slices (sliceMaxValue=1 and rectified
+ * polarities) the SAD and Hamming distances select the same matches.
+ * <p>
+ * Searches for many events can be run in parallel with matchAll, since the
+ * two slices that are searched do not change until the slices are rotated.
+ *
+ * @author tobi
+ */
+public class PackedBlockMatcher {
+
+    /* LDSP is Large Diamond Search Pattern, and SDSP means Small Diamond Search Pattern, as in PatchMatchFlow.
+       CSP is the 9 point cross search pattern that starts the cross diamond search.
+     */
+    private static final int LDSP[][] = {{0, -2}, {-1, -1}, {1, -1}, {-2, 0}, {0, 0},
+    {2, 0}, {-1, 1}, {1, 1}, {0, 2}};
+    private static final int SDSP[][] = {{0, -1}, {-1, 0}, {0, 0}, {1, 0}, {0, 1}};
+    private static final int CSP[][] = {{0, 0}, {0, -1}, {-1, 0}, {1, 0}, {0, 1},
+    {0, -2}, {-2, 0}, {2, 0}, {0, 2}};
+    /**
+     * Batches smaller than this are searched in the calling thread
+     */
+    private static final int MIN_EVENTS_PER_THREAD = 32;
+
+    private final int numSlices, numScales;
+    private final int[] widths, heights, wordsPerRow;
+    /**
+     * bits[slice][scale][y*wordsPerRow[scale]+(x>>6)], bit x&amp;63
+     */
+    private final long[][][] bits;
+
+    private int blockDimension = 23;
+    private int searchDistance = 3;
+    private float validPixOccupancy = 0.01f;
+    private float weightDistance = 0.95f;
+    private SearchMethod searchMethod = SearchMethod.DiamondSearch;
+
+    private final Searcher searcher = new Searcher();
+    private Searcher[] threadSearchers = null;
+    private final ParallelRunner runner = new ParallelRunner("PackedBlockMatcher");
+    private int numThreads = 1;
+
+    /**
+     * Result of a search at one event. dx and dy are in search steps of the
+     * scale at which the best match was found and point from the past block to
+     * the reference block, i.e. in the direction of motion.
+     */
+    public static class Match {
+
+        public int dx, dy, scale;
+        public float distance = Float.MAX_VALUE;
+
+        @Override
+        public String toString() {
+            return String.format("(dx,dy=%d,%d) scale=%d distance=%f", dx, dy, scale, distance);
+        }
+    }
+
+    /**
+     * Allocates the packed slices.
+     *
+     * @param numSlices number of time slices
+     * @param numScales number of scales; scale s has size
+     * (sizeX&gt;&gt;s)+1 by (sizeY&gt;&gt;s)+1
+     * @param sizeX full resolution width
+     * @param sizeY full resolution height
+     */
+    public PackedBlockMatcher(int numSlices, int numScales, int sizeX, int sizeY) {
+        this.numSlices = numSlices;
+        this.numScales = numScales;
+        widths = new int[numScales];
+        heights = new int[numScales];
+        wordsPerRow = new int[numScales];
+        bits = new long[numSlices][numScales][];
+        for (int s = 0; s < numScales; s++) {
+            widths[s] = (sizeX >> s) + 1;
+            heights[s] = (sizeY >> s) + 1;
+            wordsPerRow[s] = (widths[s] + 63) >>> 6;
+            for (int n = 0; n < numSlices; n++) {
+                bits[n][s] = new long[wordsPerRow[s] * heights[s]];
+            }
+        }
+    }
+
+    /**
+     * @return true if this matcher has the given geometry
+     */
+    boolean hasGeometry(int numSlices, int numScales, int sizeX, int sizeY) {
+        return this.numSlices == numSlices && this.numScales == numScales
+                && widths[0] == sizeX + 1 && heights[0] == sizeY + 1;
+    }
+
+    /**
+     * Sets the parameters of following searches; same meaning as the
+     * PatchMatchFlow properties.
+     *
+     * @param blockDimension odd block size in pixels, at most 63
+     * @param searchDistance search radius in steps at each scale
+     * @param validPixOccupancy minimum fraction of block pixels that must be
+     * set in both blocks
+     * @param weightDistance weighting of Hamming distance vs dispersion
+     * @param searchMethod the search pattern
+     */
+    public void setSearchParameters(int blockDimension, int searchDistance, float validPixOccupancy, float weightDistance, SearchMethod searchMethod) {
+        if (blockDimension > 63) {
+            throw new IllegalArgumentException("blockDimension=" + blockDimension + " but packed rows hold at most 63 pixels");
+        }
+        this.blockDimension = blockDimension;
+        this.searchDistance = searchDistance;
+        this.validPixOccupancy = validPixOccupancy;
+        this.weightDistance = weightDistance;
+        this.searchMethod = searchMethod;
+    }
+
+    /**
+     * Sets the pixel at x,y in full resolution at all scales of a slice.
+     *
+     * @param slice the slice index
+     * @param x full resolution x
+     * @param y full resolution y
+     */
+    public void set(int slice, int x, int y) {
+        final long[][] sl = bits[slice];
+        for (int s = 0; s < numScales; s++) {
+            final int xx = x >> s, yy = y >> s;
+            sl[s][(yy * wordsPerRow[s]) + (xx >>> 6)] |= 1L << xx; // shift uses low 6 bits of xx
+        }
+    }
+
+    /**
+     * @return true if the pixel is set at this scale
+     */
+    public boolean get(int slice, int scale, int x, int y) {
+        return (bits[slice][scale][(y * wordsPerRow[scale]) + (x >>> 6)] & (1L << x)) != 0;
+    }
+
+    /**
+     * Clears all scales of a slice.
+     *
+     * @param slice the slice index
+     */
+    public void clear(int slice) {
+        for (long[] b : bits[slice]) {
+            Arrays.fill(b, 0);
+        }
+    }
+
+    /**
+     * Sets the number of threads used by matchAll.
+     *
+     * @param numThreads number of threads, or 0 to use all processors
+     */
+    synchronized public void setNumThreads(int numThreads) {
+        numThreads = ParallelRunner.getNumThreadsUsed(numThreads);
+        if (numThreads != this.numThreads) {
+            close();
+            this.numThreads = numThreads;
+        }
+    }
+
+    /**
+     * @return the number of threads used by matchAll
+     */
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * Stops the search threads. The matcher can still be used; threads are
+     * started again when needed.
+     */
+    synchronized public void close() {
+        runner.close();
+        threadSearchers = null;
+    }
+
+    /**
+     * Finds the best match for an event over the given scales in the calling
+     * thread. As in PatchMatchFlow, the first scale wins ties.
+     *
+     * @param x full resolution x
+     * @param y full resolution y
+     * @param refSlice the slice holding the reference block
+     * @param pastSlice the slice that is searched
+     * @param scales the scales to search, e.g. {0,1}
+     * @param match the result
+     */
+    public void match(int x, int y, int refSlice, int pastSlice, int[] scales, Match match) {
+        searcher.match(x, y, refSlice, pastSlice, scales, match);
+    }
+
+    /**
+     * Finds the best matches for a batch of events, splitting the batch over
+     * the search threads. The slices must not be modified until this method
+     * returns.
+     *
+     * @param n the number of events
+     * @param xs full resolution x addresses
+     * @param ys full resolution y addresses
+     * @param refSlice the slice holding the reference blocks
+     * @param pastSlice the slice that is searched
+     * @param scales the scales to search
+     * @param matches the results, one per event
+     */
+    public void matchAll(final int n, final int[] xs, final int[] ys, final int refSlice, final int pastSlice, final int[] scales, final Match[] matches) {
+        final int nt = Math.min(numThreads, n / MIN_EVENTS_PER_THREAD);
+        if (nt <= 1) {
+            for (int i = 0; i < n; i++) {
+                searcher.match(xs[i], ys[i], refSlice, pastSlice, scales, matches[i]);
+            }
+            return;
+        }
+        final Searcher[] searchers = getThreadSearchers();
+        final int chunk = (n + nt - 1) / nt;
+        runner.run(nt, new ParallelRunner.Task() {
+            @Override
+            public void run(int t) {
+                final int from = t * chunk, to = Math.min(n, from + chunk);
+                final Searcher s = searchers[t];
+                for (int i = from; i < to; i++) {
+                    s.match(xs[i], ys[i], refSlice, pastSlice, scales, matches[i]);
+                }
+            }
+        });
+    }
+
+    synchronized private Searcher[] getThreadSearchers() {
+        if (threadSearchers == null) {
+            threadSearchers = new Searcher[numThreads];
+            for (int i = 0; i < numThreads; i++) {
+                threadSearchers[i] = new Searcher();
+            }
+        }
+        return threadSearchers;
+    }
+
+    /**
+     * Searches one event at a time with its own scratch memory, so that each
+     * thread needs one Searcher.
+     */
+    private class Searcher {
+
+        private final long[] refRows = new long[64];
+        private int refCount; // number of set pixels in reference block
+        private float[] cost = new float[0];
+        private int[] computedStamp = new int[0];
+        private int stamp = 0;
+        // state of search at one scale
+        private int x, y, r, w, h, scale, sd, range;
+        private long[] ref, past;
+        private long rowMask;
+        private float minCost;
+        private int minDx, minDy;
+
+        void match(int xfull, int yfull, int refSlice, int pastSlice, int[] scales, Match m) {
+            m.dx = 0;
+            m.dy = 0;
+            m.scale = 0;
+            m.distance = Float.MAX_VALUE;
+            boolean first = true;
+            for (int s : scales) {
+                if (s >= numScales) {
+                    break;
+                }
+                searchScale(xfull >> s, yfull >> s, refSlice, pastSlice, s);
+                if (first || minCost < m.distance) {
+                    m.dx = -minDx; // minus is because result points to the past slice and motion is in the other direction
+                    m.dy = -minDy;
+                    m.scale = s;
+                    m.distance = minCost;
+                    first = false;
+                }
+            }
+        }
+
+        private void searchScale(int x, int y, int refSlice, int pastSlice, int scale) {
+            this.x = x;
+            this.y = y;
+            this.scale = scale;
+            r = blockDimension / 2;
+            w = widths[scale] - 1; // same bounds as PatchMatchFlow.sadDistance
+            h = heights[scale] - 1;
+            sd = searchDistance;
+            range = (2 * sd) + 1;
+            ref = bits[refSlice][scale];
+            past = bits[pastSlice][scale];
+            rowMask = (1L << ((2 * r) + 1)) - 1;
+            minCost = Float.MAX_VALUE;
+            minDx = 0;
+            minDy = 0;
+            if (cost.length < range * range) {
+                cost = new float[range * range];
+                computedStamp = new int[range * range];
+            }
+            if (++stamp == 0) { // wrapped, invalidate all cached costs
+                Arrays.fill(computedStamp, 0);
+                stamp = 1;
+            }
+            if (x - r < 0 || x + r >= w || y - r < 0 || y + r >= h) {
+                return; // no candidate is in bounds
+            }
+            refCount = 0;
+            final int wpr = wordsPerRow[scale];
+            for (int i = 0, yy = y - r; yy <= y + r; i++, yy++) {
+                final long v = row(ref, wpr, x - r, yy);
+                refRows[i] = v;
+                refCount += Long.bitCount(v);
+            }
+            switch (searchMethod) {
+                case FullSearch:
+                    fullSearch();
+                    break;
+                case DiamondSearch:
+                    diamondSearch(0, 0, sd > 1);
+                    break;
+                case CrossDiamondSearch:
+                    crossDiamondSearch();
+                    break;
+            }
+        }
+
+        private void fullSearch() {
+            for (int dx = -sd; dx <= sd; dx++) {
+                for (int dy = -sd; dy <= sd; dy++) {
+                    final float c = cost(dx, dy);
+                    if (c < minCost) {
+                        minCost = c;
+                        minDx = dx;
+                        minDy = dy;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Diamond search as in PatchMatchFlow.minSADDistance: LDSP steps until
+         * the minimum is at the center, then one SDSP step.
+         */
+        private void diamondSearch(int xCenter, int yCenter, boolean useLdsp) {
+            int iterationsLeft = range * range;
+            while (useLdsp) {
+                int minPointIdx = 4;
+                for (int p = 0; p < LDSP.length; p++) {
+                    final int dx = LDSP[p][0] + xCenter, dy = LDSP[p][1] + yCenter;
+                    if (dx < -sd || dx > sd || dy < -sd || dy > sd) {
+                        continue;
+                    }
+                    final float c = cost(dx, dy);
+                    if (c <= minCost) {
+                        minCost = c;
+                        minPointIdx = p;
+                    }
+                }
+                xCenter += LDSP[minPointIdx][0];
+                yCenter += LDSP[minPointIdx][1];
+                if (minPointIdx == 4 || --iterationsLeft < 0) {
+                    useLdsp = false;
+                }
+            }
+            smallDiamond(xCenter, yCenter);
+        }
+
+        private void smallDiamond(int xCenter, int yCenter) {
+            for (int[] p : SDSP) {
+                final int dx = p[0] + xCenter, dy = p[1] + yCenter;
+                if (dx < -sd || dx > sd || dy < -sd || dy > sd) {
+                    continue;
+                }
+                final float c = cost(dx, dy);
+                if (c <= minCost) {
+                    minCost = c;
+                    minDx = dx;
+                    minDy = dy;
+                }
+            }
+        }
+
+        /**
+         * Cross diamond search: tests a 9 point cross first. A minimum at the
+         * center stops the search, a minimum on the inner cross is refined
+         * with one SDSP step, and a minimum on the outer cross continues as
+         * diamond search from there. This needs fewer candidates than diamond
+         * search for the small motions that dominate at short slice
+         * durations.
+         */
+        private void crossDiamondSearch() {
+            int best = 0;
+            for (int p = 0; p < CSP.length; p++) {
+                final int dx = CSP[p][0], dy = CSP[p][1];
+                if (dx < -sd || dx > sd || dy < -sd || dy > sd) {
+                    continue;
+                }
+                final float c = cost(dx, dy);
+                if (c < minCost) {
+                    minCost = c;
+                    best = p;
+                }
+            }
+            minDx = CSP[best][0];
+            minDy = CSP[best][1];
+            if (best == 0) {
+                return;
+            } else if (best <= 4) {
+                smallDiamond(minDx, minDy);
+            } else {
+                diamondSearch(minDx, minDy, sd > 1);
+            }
+        }
+
+        /**
+         * Returns the cost of displacement dx,dy, computing it only once per
+         * search.
+         */
+        private float cost(int dx, int dy) {
+            final int k = ((dx + sd) * range) + dy + sd;
+            if (computedStamp[k] == stamp) {
+                return cost[k];
+            }
+            final float c = distance(dx, dy);
+            cost[k] = c;
+            computedStamp[k] = stamp;
+            return c;
+        }
+
+        /**
+         * Computes the distance between the reference block and the past
+         * block displaced by dx,dy; see PatchMatchFlow.sadDistance.
+         */
+        private float distance(int dx, int dy) {
+            final int adx = dx > 0 ? dx : -dx, ady = dy > 0 ? dy : -dy;
+            if (x - r - adx < 0 || x + r + adx >= w
+                    || y - r - ady < 0 || y + r + ady >= h) {
+                return Float.MAX_VALUE; // return very large distance for this match so it is not selected
+            }
+            final int wpr = wordsPerRow[scale];
+            final int x0 = x - r + dx;
+            int pastCount = 0, bothCount = 0;
+            for (int i = 0, yy = y - r + dy; i <= 2 * r; i++, yy++) {
+                final long p = row(past, wpr, x0, yy);
+                pastCount += Long.bitCount(p);
+                bothCount += Long.bitCount(p & refRows[i]);
+            }
+            final int blockDim = (2 * r) + 1;
+            final int blockArea = blockDim * blockDim;
+            final int minValidPixNum = (int) (validPixOccupancy * blockArea);
+            if (bothCount < minValidPixNum) {
+                return Float.MAX_VALUE;
+            }
+            final int hammingDistance = (refCount + pastCount - (2 * bothCount)) >> scale; // normalized for subsampling as SAD
+            return ((hammingDistance * weightDistance) + (Math.abs(refCount - pastCount) * (1 - weightDistance))) / blockArea;
+        }
+
+        /**
+         * Extracts the 2r+1 bits starting at x0 of row yy.
+         */
+        private long row(long[] b, int wpr, int x0, int yy) {
+            final int i = (yy * wpr) + (x0 >>> 6);
+            final int off = x0 & 63;
+            long v = b[i] >>> off;
+            if (off != 0 && (x0 >>> 6) + 1 < wpr) {
+                v |= b[i + 1] << (64 - off);
+            }
+            return v & rowMask;
+        }
+    }
+
+    /**
+     * Times block matching of random events on random slices, for the packed
+     * engine and for a byte per pixel SAD full search like PatchMatchFlow's.
+     *
+     * @param args ignored
+     */
+    public static void main(String[] args) {
+        final int sx = 346, sy = 260, numEvents = 20000, block = 21, sd = 4;
+        final int[] scales = {0, 1};
+        Random random = new Random(1);
+        PackedBlockMatcher m = new PackedBlockMatcher(3, 2, sx, sy);
+        byte[][] refBytes = new byte[sx + 1][sy + 1], pastBytes = new byte[sx + 1][sy + 1];
+        for (int i = 0; i < 15000; i++) { // moving random texture, shifted by 2,1 between slices
+            int x = 10 + random.nextInt(sx - 20), y = 10 + random.nextInt(sy - 20);
+            m.set(1, x, y);
+            m.set(2, x - 2, y - 1);
+            refBytes[x][y] = 1;
+            pastBytes[x - 2][y - 1] = 1;
+        }
+        int[] xs = new int[numEvents], ys = new int[numEvents];
+        Match[] matches = new Match[numEvents];
+        for (int i = 0; i < numEvents; i++) {
+            xs[i] = random.nextInt(sx);
+            ys[i] = random.nextInt(sy);
+            matches[i] = new Match();
+        }
+        for (SearchMethod method : SearchMethod.values()) {
+            m.setSearchParameters(block, sd, 0.01f, 0.95f, method);
+            for (int threads : new int[]{1, Runtime.getRuntime().availableProcessors()}) {
+                m.setNumThreads(threads);
+                long best = Long.MAX_VALUE;
+                for (int rep = 0; rep < 5; rep++) {
+                    long t0 = System.nanoTime();
+                    m.matchAll(numEvents, xs, ys, 1, 2, scales, matches);
+                    best = Math.min(best, System.nanoTime() - t0);
+                }
+                int correct = 0, valid = 0;
+                for (Match mm : matches) {
+                    if (mm.distance < Float.MAX_VALUE) {
+                        valid++;
+                        if ((mm.dx << mm.scale) == 2 && (mm.dy << mm.scale) == 1) {
+                            correct++;
+                        }
+                    }
+                }
+                System.out.println(String.format("packed %s, %d threads: %.2f us/event, %d/%d matches correct", method, threads, 1e-3 * best / numEvents, correct, valid));
+            }
+        }
+        m.close();
+        // reference: byte SAD full search at scale 0 only
+        long t0 = System.nanoTime();
+        int r = block / 2;
+        long dummy = 0;
+        for (int i = 0; i < numEvents; i++) {
+            int x = xs[i], y = ys[i];
+            if (x - r - sd < 0 || x + r + sd >= sx || y - r - sd < 0 || y + r + sd >= sy) {
+                continue;
+            }
+            int min = Integer.MAX_VALUE;
+            for (int dx = -sd; dx <= sd; dx++) {
+                for (int dy = -sd; dy <= sd; dy++) {
+                    int sum = 0;
+                    for (int xx = x - r; xx <= x + r; xx++) {
+                        for (int yy = y - r; yy <= y + r; yy++) {
+                            sum += Math.abs(refBytes[xx][yy] - pastBytes[xx + dx][yy + dy]);
+                        }
+                    }
+                    min = Math.min(min, sum);
+                }
+            }
+            dummy += min;
+        }
+        System.out.println(String.format("byte SAD FullSearch at scale 0 only, 1 thread: %.2f us/event (%d)", 1e-3 * (System.nanoTime() - t0) / numEvents, dummy));
+    }
+}
@@ -92,6 +92,19 @@ public class PatchMatchFlow extends AbstractMotionFlow implements Observer, Fram
     private int[] sliceSummedSADCounts = null; // tracks the total summed SAD differences between reference and past slices, to adjust the slice duration
     private int[] sliceStartTimeUs; // holds the time interval between reference slice and this slice
     private byte[][][] currentSlice;
+    /**
+     * binarised copies of the slices, bit packed for HammingDistance matching
+     */
+    private PackedBlockMatcher packedMatcher = null;
+    private boolean parallelSearch = getBoolean("parallelSearch", true);
+    private int numSearchThreads = getInt("numSearchThreads", 0);
+    private static final int MAX_PENDING_SEARCHES = 4096;
+    // events waiting for a parallel HammingDistance search, searched when slices rotate or the packet ends
+    private final PolarityEvent[] pendingEvents = new PolarityEvent[MAX_PENDING_SEARCHES];
+    private final int[] pendingX = new int[MAX_PENDING_SEARCHES], pendingY = new int[MAX_PENDING_SEARCHES];
+    private final PackedBlockMatcher.Match[] pendingMatches = new PackedBlockMatcher.Match[MAX_PENDING_SEARCHES];
+    private final PackedBlockMatcher.Match packedMatch = new PackedBlockMatcher.Match();
+    private int numPendingSearches = 0;
     private SADResult lastGoodSadResult = new SADResult(0, 0, 0, 0); // used for consistency check
     private int blockDimension = getInt("blockDimension", 23);
 //    private float cost = getFloat("cost", 0.001f);
@@ -134,7 +147,7 @@ public class PatchMatchFlow extends AbstractMotionFlow implements Observer, Fram
     private int MAX_SLICE_DURATION_US = 300000;
 
     public enum PatchCompareMethod {
-        /*JaccardDistance,*/ /*HammingDistance*/
+        /*JaccardDistance,*/ HammingDistance,
         SAD/*, EventSqeDistance*/
     };
     private PatchCompareMethod patchCompareMethod = null;
@@ -198,7 +211,9 @@ public class PatchMatchFlow extends AbstractMotionFlow implements Observer, Fram
         setPropertyTooltip(metricConfid, "weightDistance", "<html>The confidence value consists of the distance and the dispersion; <br>weightDistance sets the weighting of the distance value compared with the dispersion value; Range from 0 to 1. <p>To count only e.g. hamming distance, set weighting to 1. <p> To count only dispersion, set to 0.");
         setPropertyTooltip(patchTT, "blockDimension", "linear dimenion of patches to match, in pixels");
         setPropertyTooltip(patchTT, "searchDistance", "search distance for matching patches, in pixels");
-        setPropertyTooltip(patchTT, "patchCompareMethod", "method to compare two patches; SAD=sum of absolute differences, HammingDistance is same as SAD for binary bitmaps");
+        setPropertyTooltip(patchTT, "patchCompareMethod", "<html>method to compare two patches; <ul><li>SAD=sum of absolute differences of the slice values <li>HammingDistance=number of differing pixels of binarised slices, computed on bit-packed rows; same as SAD for binary bitmaps but much faster</ul>");
+        setPropertyTooltip(patchTT, "parallelSearch", "<html>With HammingDistance, searches the blocks of the events between slice rotations in parallel. <p>Not used while measureAccuracy or outlier discarding is enabled, since these need the IMU state at each event.");
+        setPropertyTooltip(patchTT, "numSearchThreads", "number of threads for parallelSearch; 0 uses all processors");
         setPropertyTooltip(patchTT, "searchMethod", "method to search patches");
         setPropertyTooltip(patchTT, "sliceDurationUs", "duration of bitmaps in us, also called sample interval, when ConstantDuration method is used");
         setPropertyTooltip(patchTT, "sliceEventCount", "number of events collected to fill a slice, when ConstantEventNumber method is used");
@@ -332,6 +347,26 @@ public class PatchMatchFlow extends AbstractMotionFlow implements Observer, Fram
                         result.vy = result.dy / dt; // TODO clean up, make time for each slice, since could be different when const num events
                     }
 
+                    break;
+                case HammingDistance:
+                    if (maybeRotateSlices()) {
+                        adaptSliceDuration();
+                    }
+                    if (!accumulateEvent(ein)) {
+                        break;
+                    }
+                    if (parallelSearch && !measureAccuracy && !discardOutliersForStatisticalMeasurementEnabled) {
+                        pendingEvents[numPendingSearches] = ein;
+                        pendingX[numPendingSearches] = ein.x;
+                        pendingY[numPendingSearches] = ein.y;
+                        if (++numPendingSearches == MAX_PENDING_SEARCHES) {
+                            flushPendingSearches();
+                        }
+                        break;
+                    }
+                    setPackedMatcherParameters();
+                    packedMatcher.match(ein.x, ein.y, sliceIndex(1), sliceIndex(2), scalesToComputeArray, packedMatch);
+                    result = sadResultFromMatch(packedMatch, sliceDeltaTimeUs(2) * 1e-6f);
                     break;
 //                case JaccardDistance:
 //                    maybeRotateSlices();
@@ -347,37 +382,9 @@ public class PatchMatchFlow extends AbstractMotionFlow implements Observer, Fram
             if (result == null || result.sadValue == Float.MAX_VALUE) {
                 continue; // maybe some property change caused this
             }
-            // reject values that are unreasonable
-            if (isNotSufficientlyAccurate(result)) {
-                continue;
-            }
-            vx = result.vx;
-            vy = result.vy;
-            v = (float) Math.sqrt((vx * vx) + (vy * vy));
-            if (showSliceBitMap) {
-                // TODO danger, drawing outside AWT thread
-                drawMatching(ein.x >> result.scale, ein.y >> result.scale, (int) result.dx >> result.scale, (int) result.dy >> result.scale, slices[sliceIndex(1)][result.scale], slices[sliceIndex(2)][result.scale], result.scale);
-            }
-
-//            if (filterOutInconsistentEvent(result)) {
-//                continue;
-//            }
-            if (resultHistogram != null) {
-                resultHistogram[result.xidx][result.yidx]++;
-                resultHistogramCount++;
-            }
-//            if (result.dx != 0 || result.dy != 0) {
-//                final int bin = (int) Math.round(ANGLE_HISTOGRAM_COUNT * (Math.atan2(result.dy, result.dx) + Math.PI) / (2 * Math.PI));
-//                int v = ++resultAngleHistogram[bin];
-//                resultAngleHistogramCount++;
-//                if (v > resultAngleHistogramMax) {
-//                    resultAngleHistogramMax = v;
-//                }
-//            }
-            processGoodEvent();
-            lastGoodSadResult.set(result);
-
+            processResult(result, ein);
         }
+        flushPendingSearches();
 
         if (rewindFlg) {
             rewindFlg = false;
@@ -390,6 +397,104 @@ public class PatchMatchFlow extends AbstractMotionFlow implements Observer, Fram
         return isDisplayRawInput() ? in : dirPacket;
     }
 
+    /**
+     * Outputs the flow event for a match result of the current event, unless
+     * the result is rejected.
+     *
+     * @param result the best match
+     * @param ein the event, whose fields must be extracted to x, y, ts, etc
+     */
+    private void processResult(SADResult result, PolarityEvent ein) {
+        // reject values that are unreasonable
+        if (isNotSufficientlyAccurate(result)) {
+            return;
+        }
+        vx = result.vx;
+        vy = result.vy;
+        v = (float) Math.sqrt((vx * vx) + (vy * vy));
+        if (showSliceBitMap) {
+            // TODO danger, drawing outside AWT thread
+            drawMatching(ein.x >> result.scale, ein.y >> result.scale, (int) result.dx >> result.scale, (int) result.dy >> result.scale, slices[sliceIndex(1)][result.scale], slices[sliceIndex(2)][result.scale], result.scale);
+        }
+
+//        if (filterOutInconsistentEvent(result)) {
+//            return;
+//        }
+        if (resultHistogram != null) {
+            resultHistogram[result.xidx][result.yidx]++;
+            resultHistogramCount++;
+        }
+//        if (result.dx != 0 || result.dy != 0) {
+//            final int bin = (int) Math.round(ANGLE_HISTOGRAM_COUNT * (Math.atan2(result.dy, result.dx) + Math.PI) / (2 * Math.PI));
+//            int v = ++resultAngleHistogram[bin];
+//            resultAngleHistogramCount++;
+//            if (v > resultAngleHistogramMax) {
+//                resultAngleHistogramMax = v;
+//            }
+//        }
+        processGoodEvent();
+        lastGoodSadResult.set(result);
+    }
+
+    /**
+     * Searches the blocks of the pending events in parallel and outputs their
+     * flow events in order. Must be called before the slices are rotated.
+     */
+    private void flushPendingSearches() {
+        if (numPendingSearches == 0) {
+            return;
+        }
+        final int n = numPendingSearches;
+        numPendingSearches = 0;
+        for (int k = 0; k < n; k++) {
+            if (pendingMatches[k] == null) {
+                pendingMatches[k] = new PackedBlockMatcher.Match();
+            }
+        }
+        setPackedMatcherParameters();
+        packedMatcher.setNumThreads(numSearchThreads);
+        packedMatcher.matchAll(n, pendingX, pendingY, sliceIndex(1), sliceIndex(2), scalesToComputeArray, pendingMatches);
+        final float dt = sliceDeltaTimeUs(2) * 1e-6f;
+        final PolarityEvent currentEvent = e;
+        for (int k = 0; k < n; k++) {
+            final PolarityEvent ein = pendingEvents[k];
+            pendingEvents[k] = null;
+            SADResult result = sadResultFromMatch(pendingMatches[k], dt);
+            if (result.sadValue == Float.MAX_VALUE) {
+                continue;
+            }
+            extractEventInfo(ein);
+            processResult(result, ein);
+        }
+        if (currentEvent != null) {
+            extractEventInfo(currentEvent); // restore fields of the event that caused the flush
+        }
+    }
+
+    private void setPackedMatcherParameters() {
+        packedMatcher.setSearchParameters(blockDimension, searchDistance, validPixOccupancy, weightDistance, outputSearchErrorInfo ? SearchMethod.FullSearch : getSearchMethod());
+    }
+
+    /**
+     * Converts the result of the packed block matcher to the SADResult used
+     * for the SAD method.
+     *
+     * @param m the match
+     * @param dt the time between the slices in seconds
+     * @return the result
+     */
+    private SADResult sadResultFromMatch(PackedBlockMatcher.Match m, float dt) {
+        SADResult result = new SADResult();
+        result.dx = m.dx;
+        result.dy = m.dy;
+        result.sadValue = m.distance;
+        setResultIndices(result, m.scale);
+        scaleResultCounts[m.scale]++;
+        result.vx = result.dx / dt; // hack, convert to pix/second
+        result.vy = result.dy / dt;
+        return result;
+    }
+
     public void doDefaults() {
         setSearchMethod(SearchMethod.DiamondSearch);
         setBlockDimension(21);
@@ -703,6 +808,13 @@ public class PatchMatchFlow extends AbstractMotionFlow implements Observer, Fram
         for (byte[][][] b : slices) {
             clearSlice(b);
         }
+        for (int n = 0; n < numSlices; n++) {
+            packedMatcher.clear(n);
+        }
+        for (int k = 0; k < numPendingSearches; k++) {
+            pendingEvents[k] = null;
+        }
+        numPendingSearches = 0;
 
         currentSliceIdx = 0;  // start by filling slice 0
         currentSlice = slices[currentSliceIdx];
@@ -779,6 +891,7 @@ public class PatchMatchFlow extends AbstractMotionFlow implements Observer, Fram
         * Then if NUM_SLICES=3, after rotateSlices(),
         currentSliceIdx=NUM_SLICES-1=2, and sliceIndex(0)=2, sliceIndex(1)=0, sliceIndex(2)=1.
          */
+        flushPendingSearches(); // the pending searches use the slices before rotation
         sliceSummedSADValues[currentSliceIdx] = 0; // clear out current collecting slice which becomes the oldest slice after rotation
         sliceSummedSADCounts[currentSliceIdx] = 0; // clear out current collecting slice which becomes the oldest slice after rotation
         currentSliceIdx--;
@@ -788,6 +901,7 @@ public class PatchMatchFlow extends AbstractMotionFlow implements Observer, Fram
         currentSlice = slices[currentSliceIdx];
         sliceStartTimeUs[currentSliceIdx] = ts; // current event timestamp
         clearSlice(currentSlice);
+        packedMatcher.clear(currentSliceIdx);
         clearAreaCounts();
     }
 
@@ -842,6 +956,7 @@ public class PatchMatchFlow extends AbstractMotionFlow implements Observer, Fram
             }
             currentSlice[s][xx][yy] = (byte) cv;
         }
+        packedMatcher.set(currentSliceIdx, e.x, e.y);
         if (sliceMethod == SliceMethod.AreaEventNumber) {
             if (areaCounts == null) {
                 clearAreaCounts();
@@ -1073,19 +1188,7 @@ public class PatchMatchFlow extends AbstractMotionFlow implements Observer, Fram
         // Therefore the scale 0 results need to have offset added to them to center results in histogram that 
         // shows results over all scales.
 
-        result.scale = subSampleBy;
-        // convert dx in search steps to dx in pixels including subsampling
-        // compute index assuming no subsampling or centering
-        result.xidx = result.dx + searchDistance;
-        result.yidx = result.dy + searchDistance;
-        // compute final dx and dy including subsampling
-        result.dx = result.dx << subSampleBy;
-        result.dy = result.dy << subSampleBy;
-        // compute final index including subsampling and centering
-        // idxCentering is shift needed to be applyed to store this result finally into the hist, 
-        final int idxCentering = (searchDistance << (numScales - 1)) - ((searchDistance) << subSampleBy); // i.e. for subSampleBy=0 and numScales=2, shift=1 so that full scale search is centered in 5x5 hist
-        result.xidx = (result.xidx << subSampleBy) + idxCentering;
-        result.yidx = (result.yidx << subSampleBy) + idxCentering;
+        setResultIndices(result, subSampleBy);
 
 //        if (result.xidx < 0 || result.yidx < 0 || result.xidx > maxIdx || result.yidx > maxIdx) {
 //            log.warning("something wrong with result=" + result);
@@ -1110,6 +1213,29 @@ public class PatchMatchFlow extends AbstractMotionFlow implements Observer, Fram
         return result;
     }
 
+    /**
+     * Converts result dx,dy from search steps at scale subSampleBy to pixels
+     * and computes the indices into the result histogram.
+     *
+     * @param result the result with dx,dy in search steps
+     * @param subSampleBy the scale of the result
+     */
+    private void setResultIndices(SADResult result, int subSampleBy) {
+        result.scale = subSampleBy;
+        // convert dx in search steps to dx in pixels including subsampling
+        // compute index assuming no subsampling or centering
+        result.xidx = result.dx + searchDistance;
+        result.yidx = result.dy + searchDistance;
+        // compute final dx and dy including subsampling
+        result.dx = result.dx << subSampleBy;
+        result.dy = result.dy << subSampleBy;
+        // compute final index including subsampling and centering
+        // idxCentering is shift needed to be applyed to store this result finally into the hist, 
+        final int idxCentering = (searchDistance << (numScales - 1)) - ((searchDistance) << subSampleBy); // i.e. for subSampleBy=0 and numScales=2, shift=1 so that full scale search is centered in 5x5 hist
+        result.xidx = (result.xidx << subSampleBy) + idxCentering;
+        result.yidx = (result.yidx << subSampleBy) + idxCentering;
+    }
+
     /**
      * computes Hamming distance centered on x,y with patch of patchSize for
      * prevSliceIdx relative to curSliceIdx patch.
@@ -1826,6 +1952,13 @@ public class PatchMatchFlow extends AbstractMotionFlow implements Observer, Fram
             }
 //            log.info("allocated slice memory");
         }
+        if (packedMatcher == null || !packedMatcher.hasGeometry(numSlices, numScales, subSizeX, subSizeY)) {
+            numPendingSearches = 0;
+            if (packedMatcher != null) {
+                packedMatcher.close();
+            }
+            packedMatcher = new PackedBlockMatcher(numSlices, numScales, subSizeX, subSizeY);
+        }
         if (lastTimesMap != null) {
             lastTimesMap = null; // save memory
         }
@@ -2192,6 +2325,43 @@ public class PatchMatchFlow extends AbstractMotionFlow implements Observer, Fram
         this.useSubsampling = useSubsampling;
     }
 
+    /**
+     * @return the parallelSearch
+     */
+    public boolean isParallelSearch() {
+        return parallelSearch;
+    }
+
+    /**
+     * @param parallelSearch the parallelSearch to set
+     */
+    synchronized public void setParallelSearch(boolean parallelSearch) {
+        boolean old = this.parallelSearch;
+        this.parallelSearch = parallelSearch;
+        putBoolean("parallelSearch", parallelSearch);
+        getSupport().firePropertyChange("parallelSearch", old, this.parallelSearch);
+    }
+
+    /**
+     * @return the numSearchThreads
+     */
+    public int getNumSearchThreads() {
+        return numSearchThreads;
+    }
+
+    /**
+     * @param numSearchThreads the numSearchThreads to set
+     */
+    synchronized public void setNumSearchThreads(int numSearchThreads) {
+        int old = this.numSearchThreads;
+        if (numSearchThreads < 0) {
+            numSearchThreads = 0;
+        }
+        this.numSearchThreads = numSearchThreads;
+        putInt("numSearchThreads", numSearchThreads);
+        getSupport().firePropertyChange("numSearchThreads", old, this.numSearchThreads);
+    }
+
     /**
      * @return the numScales
      */
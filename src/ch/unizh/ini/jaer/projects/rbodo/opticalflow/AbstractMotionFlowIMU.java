@@ -10,6 +10,7 @@ import com.jogamp.opengl.GLAutoDrawable;
 import com.jogamp.opengl.GLException;
 import com.jogamp.opengl.util.gl2.GLUT;
 import eu.seebetter.ini.chips.davis.imu.IMUSample;
+import eu.seebetter.ini.chips.davis.imu.IMUSampleRing;
 import java.awt.Color;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
@@ -39,6 +40,8 @@ import net.sf.jaer.eventprocessing.EventFilter2D;
 import net.sf.jaer.eventprocessing.FilterChain;
 import net.sf.jaer.graphics.AEViewer;
 import net.sf.jaer.graphics.FrameAnnotater;
+import net.sf.jaer.graphics.SoftwareFrameAnnotater;
+import net.sf.jaer.graphics.SoftwareRasterizer;
 import net.sf.jaer.util.DrawGL;
 import net.sf.jaer.util.TobiLogger;
 import net.sf.jaer.util.WarningDialogWithDontShowPreference;
@@ -55,7 +58,7 @@ import net.sf.jaer.util.filter.LowpassFilter3D.Point3D;
  */
 @Description("Abstract base class for motion optical flow.")
 @DevelopmentStatus(DevelopmentStatus.Status.Abstract)
-abstract public class AbstractMotionFlowIMU extends EventFilter2D implements Observer, FrameAnnotater, PropertyChangeListener {
+abstract public class AbstractMotionFlowIMU extends EventFilter2D implements Observer, FrameAnnotater, SoftwareFrameAnnotater, PropertyChangeListener {
 
     // Observed motion flow.
     public static float vx, vy, v;
@@ -419,6 +422,10 @@ abstract public class AbstractMotionFlowIMU extends EventFilter2D implements Obs
         // Highpass filters for angular rates.   
         private float panRateDps, tiltRateDps, rollRateDps; // In deg/s
 
+        // IMU samples of the current packet, to interpolate the angular rates at each event time
+        private final IMUSampleRing imuSamples = new IMUSampleRing();
+        private final float[] rates = new float[3];
+
         // Calibration
         private boolean calibrating = false; // used to flag cameraCalibration state
         private int calibrationSamples = getInt("calibrationSamples", 100); // number of samples, typically they come at 1kHz
@@ -449,6 +456,7 @@ abstract public class AbstractMotionFlowIMU extends EventFilter2D implements Obs
             panRateDps = 0;
             tiltRateDps = 0;
             rollRateDps = 0;
+            imuSamples.clear();
             radPerPixel = (float) Math.atan(chip.getPixelWidthUm() / (1000 * lensFocalLengthMm));
             vx = 0;
             vy = 0;
@@ -471,6 +479,26 @@ abstract public class AbstractMotionFlowIMU extends EventFilter2D implements Obs
             return calibrated;
         }
 
+        /**
+         * Adds the IMU samples of a packet to the samples used to interpolate
+         * the angular rates at the event times. Called before the events of the
+         * packet are processed.
+         *
+         * @param in the packet
+         */
+        void addImuSamples(EventPacket in) {
+            if (!(in.getEventPrototype() instanceof ApsDvsEvent)) {
+                return;
+            }
+            Object[] events = in.getElementData();
+            for (int i = 0, n = in.getSize(); i < n; i++) {
+                ApsDvsEvent e = (ApsDvsEvent) events[i];
+                if (e != null && e.isImuSample() && !e.isFilteredOut()) {
+                    imuSamples.add(e.getImuSample());
+                }
+            }
+        }
+
         /**
          * Calculate GT motion flow from IMU sample.
          *
@@ -520,8 +548,15 @@ abstract public class AbstractMotionFlowIMU extends EventFilter2D implements Obs
                     vy = 0;
                 }
             } else {
-                // otherwise, if not IMU sample, use last IMU sample to compute GT flow from last IMU sample and event location
+                // otherwise, if not IMU sample, use the IMU samples around the event to compute GT flow from
+                // the angular rates interpolated at the event time and event location
                 // then transform, then move them back to their origin.
+                float panRateDps = this.panRateDps, tiltRateDps = this.tiltRateDps, rollRateDps = this.rollRateDps;
+                if (!calibrating && imuSamples.getRates(e.timestamp, rates)) {
+                    panRateDps = rates[0] - panOffset;
+                    tiltRateDps = rates[1] - tiltOffset;
+                    rollRateDps = rates[2] - rollOffset;
+                }
                 int nx = e.x - sizex / 2; // TODO assumes principal point is at center of image
                 int ny = e.y - sizey / 2;
                 final float rrrad = -(float) (rollRateDps * Math.PI / 180);
@@ -848,6 +883,81 @@ abstract public class AbstractMotionFlowIMU extends EventFilter2D implements Obs
 
     }
 
+    /**
+     * Plots a single motion vector into an image rendered without OpenGL, as
+     * drawMotionVector(GL2, MotionOrientationEventInterface).
+     *
+     * @param raster the image
+     * @param e the event
+     */
+    protected void drawMotionVector(SoftwareRasterizer raster, MotionOrientationEventInterface e) {
+        if (useColorForMotionVectors) {
+            raster.setColor(motionColor(e));
+        } else {
+            raster.setColor(0, 0, 1);
+        }
+        float scale = ppsScale;
+        if (ppsScaleDisplayRelativeOFLength && displayGlobalMotion) {
+            scale = 100 * ppsScale / motionFlowStatistics.getGlobalMotion().meanGlobalSpeed;
+        }
+        if (displayVectorsEnabled) {
+            raster.setLineWidth(motionVectorLineWidthPixels);
+            float dx, dy;
+            dx = e.getVelocity().x * scale;
+            dy = e.getVelocity().y * scale;
+            if (displayVectorsAsUnitVectors) {
+                float s = 100 * scale / (float) Math.sqrt(dx * dx + dy * dy);
+                dx *= s;
+                dy *= s;
+            }
+            float x0 = e.getX() - (dx / 2) + .5f, y0 = e.getY() - (dy / 2) + .5f;
+            raster.drawVector(x0, y0, dx, dy, motionVectorLineWidthPixels, 1);
+        }
+        if (displayVectorsAsColorDots) {
+            raster.drawPoint(e.getX(), e.getY(), motionVectorLineWidthPixels * 5);
+        }
+    }
+
+    /**
+     * Draws the global motion and the motion vectors like
+     * annotate(GLAutoDrawable), without the text, color wheel and motion
+     * field.
+     *
+     * @param raster the image
+     */
+    @Override
+    public void annotate(SoftwareRasterizer raster) {
+        if (!isFilterEnabled()) {
+            return;
+        }
+        if (isDisplayGlobalMotion()) {
+            raster.setLineWidth(4f);
+            raster.setColor(1, 1, 1);
+            raster.drawVector(sizex / 2, sizey / 2,
+                    motionFlowStatistics.getGlobalMotion().meanGlobalVx,
+                    motionFlowStatistics.getGlobalMotion().meanGlobalVy,
+                    4, ppsScale * GLOBAL_MOTION_DRAWING_SCALE);
+            raster.drawLine(sizex / 2, sizey * 3 / 4, -motionFlowStatistics.getGlobalMotion().getGlobalRotation().getMean(),
+                    0, ppsScale * GLOBAL_MOTION_DRAWING_SCALE);
+            raster.drawCircle(sizex / 2, sizey / 2, ppsScale * GLOBAL_MOTION_DRAWING_SCALE
+                    * (1 + motionFlowStatistics.getGlobalMotion().meanGlobalExpansion), 15);
+        }
+        if (dirPacket != null && (displayVectorsEnabled || displayVectorsAsColorDots)) {
+            boolean timeoutEnabled = dirPacket.isTimeLimitEnabled();
+            dirPacket.setTimeLimitEnabled(false);
+            for (Object o : dirPacket) {
+                MotionOrientationEventInterface ei = (MotionOrientationEventInterface) o;
+                if (ei.isHasDirection()) {
+                    drawMotionVector(raster, ei);
+                } else if (displayZeroLengthVectorsEnabled) {
+                    raster.setColor(1, 1, 1);
+                    raster.drawPoint(ei.getX(), ei.getY(), motionVectorLineWidthPixels * 2);
+                }
+            }
+            dirPacket.setTimeLimitEnabled(timeoutEnabled);
+        }
+    }
+
     synchronized public void setupFilter(EventPacket in) {
         maybeAddListeners(chip);
         inItr = in.iterator();
@@ -859,6 +969,7 @@ abstract public class AbstractMotionFlowIMU extends EventFilter2D implements Obs
             motionFlowStatistics.processingTime.startTime = System.nanoTime();
         }
         motionField.checkArrays();
+        imuFlowEstimator.addImuSamples(in);
         getEnclosedFilterChain().filterPacket(in);
     }
 
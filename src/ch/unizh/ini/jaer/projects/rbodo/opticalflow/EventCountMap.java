@@ -0,0 +1,163 @@
+package ch.unizh.ini.jaer.projects.rbodo.opticalflow;
+
+/**
+ * Counts the events of each pixel and type within two sliding time windows,
+ * as needed by LucasKanadeFlow. The timestamps of each pixel are kept in a
+ * primitive array; the counts are updated incrementally as events arrive and
+ * as old timestamps expire, instead of boxing every timestamp in an
+ * ArrayDeque.
+ * <p>
+ * Timestamps expire from the front like the deques in LucasKanadeFlow: when
+ * expire is called with the current timestamp ts, leading timestamps older
+ * than ts-window are dropped. The short window (maxDtThreshold) and the long
+ * window (2*maxDtThreshold for the second temporal derivative) share the
+ * stored timestamps.
+ *
+ * @author tobi
+ */
+public class EventCountMap {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final int sizeX, sizeY, numTypes;
+    // Per cell timestamps, allocated when the first event arrives
+    private final int[][] times;
+    // Index of the first timestamp in the short and long window and end of the timestamps
+    private final int[] head, longHead, end;
+
+    /**
+     * Makes a new empty map.
+     *
+     * @param sizeX the number of columns
+     * @param sizeY the number of rows
+     * @param numTypes the number of event types, e.g. 2 for polarity
+     */
+    public EventCountMap(int sizeX, int sizeY, int numTypes) {
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.numTypes = numTypes;
+        int n = sizeX * sizeY * numTypes;
+        times = new int[n][];
+        head = new int[n];
+        longHead = new int[n];
+        end = new int[n];
+    }
+
+    private int index(int x, int y, int type) {
+        return ((x * sizeY) + y) * numTypes + type;
+    }
+
+    /**
+     * Adds an event.
+     *
+     * @param x the x address
+     * @param y the y address
+     * @param type the event type
+     * @param ts the timestamp
+     */
+    public void add(int x, int y, int type, int ts) {
+        int c = index(x, y, type);
+        int[] t = times[c];
+        if (t == null) {
+            t = new int[INITIAL_CAPACITY];
+            times[c] = t;
+        } else if (end[c] == t.length) {
+            int start = Math.min(head[c], longHead[c]), n = end[c] - start;
+            int[] nt = n > t.length / 2 ? new int[2 * t.length] : t;
+            System.arraycopy(t, start, nt, 0, n);
+            head[c] -= start;
+            longHead[c] -= start;
+            end[c] = n;
+            t = nt;
+            times[c] = t;
+        }
+        t[end[c]++] = ts;
+    }
+
+    /**
+     * Drops the timestamps of a pixel that are older than the windows.
+     *
+     * @param x the x address
+     * @param y the y address
+     * @param type the event type
+     * @param ts the current timestamp
+     * @param window the short window in us
+     * @param longWindow the long window in us
+     * @return the number of events in the short window
+     */
+    public int expire(int x, int y, int type, int ts, int window, int longWindow) {
+        int c = index(x, y, type);
+        int[] t = times[c];
+        if (t == null) {
+            return 0;
+        }
+        int h = head[c], e = end[c];
+        while (h < e && ts > t[h] + window) {
+            h++;
+        }
+        head[c] = h;
+        h = longHead[c];
+        while (h < e && ts > t[h] + longWindow) {
+            h++;
+        }
+        longHead[c] = h;
+        if (head[c] == e && longHead[c] == e) {
+            head[c] = 0;
+            longHead[c] = 0;
+            end[c] = 0;
+        }
+        return end[c] - head[c];
+    }
+
+    /**
+     * @return the number of events of a pixel in the short window at the
+     * last call of expire
+     */
+    public int getCount(int x, int y, int type) {
+        int c = index(x, y, type);
+        return end[c] - head[c];
+    }
+
+    /**
+     * @return the number of events of a pixel in the long window at the last
+     * call of expire
+     */
+    public int getLongCount(int x, int y, int type) {
+        int c = index(x, y, type);
+        return end[c] - longHead[c];
+    }
+
+    /**
+     * Counts the events of a pixel that are not older than ts-window, without
+     * dropping any. Safe to call from the rendering thread while events are
+     * added, though the count may then be off by the events being added.
+     *
+     * @return the count
+     */
+    public int countSince(int x, int y, int type, int ts, int window) {
+        int c = index(x, y, type);
+        int[] t = times[c];
+        if (t == null) {
+            return 0;
+        }
+        int h = Math.max(0, head[c]), e = Math.min(t.length, end[c]);
+        while (h < e && ts > t[h] + window) {
+            h++;
+        }
+        return Math.max(0, e - h);
+    }
+
+    /**
+     * @return the number of columns
+     */
+    public int getSizeX() {
+        return sizeX;
+    }
+
+    /**
+     * @return the number of rows
+     */
+    public int getSizeY() {
+        return sizeY;
+    }
+}
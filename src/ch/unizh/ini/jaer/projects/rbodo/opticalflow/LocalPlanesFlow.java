@@ -69,6 +69,37 @@ public class LocalPlanesFlow extends AbstractMotionFlow {
 
     private int t1, t2;
 
+    // Allocation free solver for batches of events, optionally solved in parallel
+    private boolean incrementalSolver = getBoolean("incrementalSolver", false);
+    private boolean parallelSolver = getBoolean("parallelSolver", false);
+    private int numSolverThreads = getInt("numSolverThreads", 0);
+    private boolean checkSolverAccuracy = getBoolean("checkSolverAccuracy", false);
+    private final SolverAccuracy solverAccuracy = new SolverAccuracy();
+    private static final int MAX_PENDING_EVENTS = 1024;
+    private final PolarityEvent[] pendingEvents = new PolarityEvent[MAX_PENDING_EVENTS];
+    private final int[] pendingX = new int[MAX_PENDING_EVENTS], pendingY = new int[MAX_PENDING_EVENTS], pendingTs = new int[MAX_PENDING_EVENTS];
+    private final float[] pendingVx = new float[MAX_PENDING_EVENTS], pendingVy = new float[MAX_PENDING_EVENTS];
+    private final float[] pendingRefVx = new float[MAX_PENDING_EVENTS], pendingRefVy = new float[MAX_PENDING_EVENTS];
+    // Most recent timestamps around each pending event, copied when the event arrived
+    private int[] pendingWindows = new int[0];
+    private int windowSize, numPending = 0;
+    private final ParallelFlowSolver solverPool = new ParallelFlowSolver("LocalPlanesFlow") {
+        @Override
+        protected ParallelFlowSolver.Solver createSolver() {
+            return new ParallelFlowSolver.Solver() {
+                private final LocalPlanesSolver solver = new LocalPlanesSolver();
+
+                @Override
+                public void solve(int k) {
+                    solver.solve(pendingWindows, k * windowSize, searchDistance, pendingX[k], pendingY[k], pendingTs[k],
+                            firstTs, maxDtThreshold, planeEstimator, th1, th2, th3);
+                    pendingVx[k] = solver.getVx();
+                    pendingVy[k] = solver.getVy();
+                }
+            };
+        }
+    };
+
     public LocalPlanesFlow(AEChip chip) {
         super(chip);
         planeParameters = new float[3];
@@ -92,6 +123,14 @@ public class LocalPlanesFlow extends AbstractMotionFlow {
                 + "from the fitted plane than this threshold are discarded. Usually not set lower than 0.01.");
         setPropertyTooltip("Local Planes", "th3", "When the gradient of the fitted plane is below this threshold, "
                 + "the corresponding velocity component is set to zero (unrealistically high speed due to flat plane). Usually not set higher than 0.01.");
+        setPropertyTooltip("Local Planes", "incrementalSolver", "<html>Fit the planes with an allocation free solver that copies the neighborhood of each event and "
+                + "updates the normal equations incrementally when outliers are discarded. <p>The iterative estimators can differ from the original "
+                + "implementation by roundoff; use checkSolverAccuracy to measure the difference. Off by default.");
+        setPropertyTooltip("Local Planes", "parallelSolver", "<html>With incrementalSolver, fits the planes of batches of events in parallel. "
+                + "<p>Not used while measureAccuracy or outlier discarding is enabled, since these need the IMU state at each event. Off by default.");
+        setPropertyTooltip("Local Planes", "numSolverThreads", "number of threads for parallelSolver; 0 uses all processors");
+        setPropertyTooltip("Local Planes", "checkSolverAccuracy", "With incrementalSolver, also runs the original implementation for each event and compares the flow; see PrintSolverAccuracy");
+        setPropertyTooltip("Local Planes", "PrintSolverAccuracy", "Logs the difference between the flow of incrementalSolver and the original implementation");
         setPropertyTooltip("Local Planes", "planeEstimator", "<html>Select method to fit plane to most-recent timestamps map in neighborhood of event<ul><li>OriginalLP:Robust iterative least squares fit using th1 and th2 but with biased derivative estimate that skews vector angles<li>RobustLP: least squares fit iterative least squares fit using th1 and th2 and disregarding events older than maxDtThreshold and computing velocity using homogenous coordinates that properly handles small x or y derivatives<li>SingleFit: single linear fit including outliers (timestamps that are obsolute); disregards th1 th2 and th3<li>LinearSavitzkyGolay: feedforward computation of slopes using smoothing of derivatives in perpindicular direction and not including events older than maxDtThreshold");
     }
 
@@ -466,16 +505,114 @@ public class LocalPlanesFlow extends AbstractMotionFlow {
                 continue;
             }
             countIn++;
+            if (incrementalSolver) {
+                queueEvent();
+                if (!parallelSolver || measureAccuracy || discardOutliersForStatisticalMeasurementEnabled
+                        || numPending == MAX_PENDING_EVENTS) {
+                    flushPendingEvents();
+                }
+                continue;
+            }
             computePlaneEstimate();
             if (accuracyTests()) {
                 continue;
             }
             processGoodEvent();
         }
+        flushPendingEvents();
         getMotionFlowStatistics().updatePacket(countIn, countOut);
         return isDisplayRawInput() ? in : dirPacket;
     }
 
+    /**
+     * Copies the current event and the most recent timestamps around it to the
+     * pending events. With checkSolverAccuracy, the original implementation
+     * computes its flow now, from the same timestamps.
+     */
+    private void queueEvent() {
+        if (numPending == 0) {
+            int dim = 2 * searchDistance + 1;
+            windowSize = dim * dim;
+            if (pendingWindows.length != MAX_PENDING_EVENTS * windowSize) {
+                pendingWindows = new int[MAX_PENDING_EVENTS * windowSize];
+            }
+        }
+        if (checkSolverAccuracy) {
+            computePlaneEstimate();
+            pendingRefVx[numPending] = vx;
+            pendingRefVy[numPending] = vy;
+        }
+        int k = numPending * windowSize;
+        for (int ix = x - searchDistance; ix <= x + searchDistance; ix++) {
+            int[][] column = lastTimesMap[ix];
+            for (int iy = y - searchDistance; iy <= y + searchDistance; iy++) {
+                pendingWindows[k++] = column[iy][type];
+            }
+        }
+        pendingEvents[numPending] = e;
+        pendingX[numPending] = x;
+        pendingY[numPending] = y;
+        pendingTs[numPending] = ts;
+        numPending++;
+    }
+
+    /**
+     * Fits the planes of the pending events, in parallel if there are enough
+     * of them, and then outputs the events in their original order. Restores
+     * the current event afterwards.
+     */
+    synchronized private void flushPendingEvents() {
+        if (numPending == 0) {
+            return;
+        }
+        int n = numPending;
+        numPending = 0;
+        solverPool.setNumThreads(parallelSolver ? numSolverThreads : 1);
+        solverPool.solve(n);
+        PolarityEvent e0 = e;
+        int x0 = x, y0 = y, ts0 = ts;
+        for (int k = 0; k < n; k++) {
+            e = pendingEvents[k];
+            pendingEvents[k] = null;
+            x = pendingX[k];
+            y = pendingY[k];
+            ts = pendingTs[k];
+            vx = pendingVx[k];
+            vy = pendingVy[k];
+            v = (float) Math.sqrt(vx * vx + vy * vy);
+            if (checkSolverAccuracy) {
+                solverAccuracy.update(pendingRefVx[k], pendingRefVy[k], vx, vy);
+            }
+            if (accuracyTests()) {
+                continue;
+            }
+            processGoodEvent();
+        }
+        e = e0;
+        x = x0;
+        y = y0;
+        ts = ts0;
+    }
+
+    @Override
+    public synchronized void resetFilter() {
+        flushPendingEvents(); // pending events belong to the state before the reset
+        solverPool.close(); // the solver threads are started again by the next large batch
+        super.resetFilter();
+    }
+
+    @Override
+    public synchronized void setFilterEnabled(boolean yes) {
+        super.setFilterEnabled(yes);
+        if (!yes) {
+            solverPool.close();
+        }
+    }
+
+    synchronized public void doPrintSolverAccuracy() {
+        log.info(solverAccuracy.toString());
+    }
+
     // <editor-fold defaultstate="collapsed" desc="getter/setter for --th1--">
     public float getTh1() {
         return this.th1;
@@ -547,4 +684,78 @@ public class LocalPlanesFlow extends AbstractMotionFlow {
         getSupport().firePropertyChange("planeEstimator", old, planeEstimator);
     }
     // </editor-fold>
+
+    /**
+     * @return the incrementalSolver
+     */
+    public boolean isIncrementalSolver() {
+        return incrementalSolver;
+    }
+
+    /**
+     * @param incrementalSolver the incrementalSolver to set
+     */
+    synchronized public void setIncrementalSolver(boolean incrementalSolver) {
+        boolean old = this.incrementalSolver;
+        this.incrementalSolver = incrementalSolver;
+        putBoolean("incrementalSolver", incrementalSolver);
+        getSupport().firePropertyChange("incrementalSolver", old, this.incrementalSolver);
+    }
+
+    /**
+     * @return the parallelSolver
+     */
+    public boolean isParallelSolver() {
+        return parallelSolver;
+    }
+
+    /**
+     * @param parallelSolver the parallelSolver to set
+     */
+    synchronized public void setParallelSolver(boolean parallelSolver) {
+        boolean old = this.parallelSolver;
+        this.parallelSolver = parallelSolver;
+        putBoolean("parallelSolver", parallelSolver);
+        getSupport().firePropertyChange("parallelSolver", old, this.parallelSolver);
+    }
+
+    /**
+     * @return the numSolverThreads
+     */
+    public int getNumSolverThreads() {
+        return numSolverThreads;
+    }
+
+    /**
+     * @param numSolverThreads the numSolverThreads to set
+     */
+    synchronized public void setNumSolverThreads(int numSolverThreads) {
+        int old = this.numSolverThreads;
+        if (numSolverThreads < 0) {
+            numSolverThreads = 0;
+        }
+        this.numSolverThreads = numSolverThreads;
+        putInt("numSolverThreads", numSolverThreads);
+        getSupport().firePropertyChange("numSolverThreads", old, this.numSolverThreads);
+    }
+
+    /**
+     * @return the checkSolverAccuracy
+     */
+    public boolean isCheckSolverAccuracy() {
+        return checkSolverAccuracy;
+    }
+
+    /**
+     * @param checkSolverAccuracy the checkSolverAccuracy to set
+     */
+    synchronized public void setCheckSolverAccuracy(boolean checkSolverAccuracy) {
+        boolean old = this.checkSolverAccuracy;
+        this.checkSolverAccuracy = checkSolverAccuracy;
+        putBoolean("checkSolverAccuracy", checkSolverAccuracy);
+        if (checkSolverAccuracy && !old) {
+            solverAccuracy.reset();
+        }
+        getSupport().firePropertyChange("checkSolverAccuracy", old, this.checkSolverAccuracy);
+    }
 }
@@ -0,0 +1,335 @@
+package ch.unizh.ini.jaer.projects.rbodo.opticalflow;
+
+import ch.unizh.ini.jaer.projects.rbodo.opticalflow.LocalPlanesFlow.PlaneEstimator;
+import java.util.Arrays;
+
+/**
+ * Allocation free plane fitting for LocalPlanesFlow. The solver works on a
+ * copy of the most recent timestamps around the event, so that several
+ * solvers can fit planes for the events of a packet at the same time.
+ * <p>
+ * For the iterative estimators (OriginalLP, RobustLP), the normal equations
+ * A'A of the homogeneous plane fit are summed once over the neighborhood. When
+ * outliers are discarded, their contribution is subtracted from these running
+ * sums instead of building and multiplying the data matrix again, and the
+ * smallest eigenvector is found with Jacobi rotations on the 4x4 sums. The
+ * other estimators compute the same quantities as LocalPlanesFlow, in the same
+ * order.
+ *
+ * @author tobi
+ */
+public class LocalPlanesSolver {
+
+    private static final int MAX_JACOBI_SWEEPS = 50;
+
+    // Neighborhood data [x,y,t,1] of the valid events
+    private double[] nx = new double[0], ny = new double[0], nt = new double[0];
+    private int numPoints;
+
+    // Running sums of the normal equations, i.e. A'A, and their eigenvectors
+    private final double[][] sums = new double[4][4];
+    private final double[] point = new double[4];
+    private final double[][] eig = new double[4][4], eigVectors = new double[4][4];
+
+    private final double[] planeEstimate = new double[4], planeEstimateOld = new double[4];
+
+    private float vx, vy;
+
+    /**
+     * Fits a plane to the timestamps around an event and computes the flow
+     * velocity from its gradient.
+     *
+     * @param window the timestamps of the neighborhood, ordered as
+     * window[offset + (i + searchDistance) * (2 * searchDistance + 1) + j +
+     * searchDistance] for the pixel at (x + i, y + j)
+     * @param offset the start of the neighborhood in window
+     * @param searchDistance the search distance on each side of the event
+     * @param x the event x address
+     * @param y the event y address
+     * @param ts the event timestamp in us
+     * @param firstTs the first timestamp of the packet, subtracted from the
+     * timestamps of the iterative estimators
+     * @param maxDtThreshold events older than this are not in the neighborhood
+     * @param estimator the plane estimator
+     * @param th1 accuracy of the iterative fit
+     * @param th2 distance of outliers from the plane
+     * @param th3 threshold for flat planes
+     */
+    public void solve(int[] window, int offset, int searchDistance, int x, int y, int ts, int firstTs, int maxDtThreshold,
+            PlaneEstimator estimator, float th1, float th2, float th3) {
+        switch (estimator) {
+            case LinearSavitzkyGolay:
+                linearSavitzkyGolay(window, offset, searchDistance, ts, maxDtThreshold, th3);
+                break;
+            case SingleFit:
+                initializeNeighborhood(window, offset, searchDistance, x, y, ts, firstTs, maxDtThreshold);
+                singleFit(th3);
+                break;
+            default:
+                initializeNeighborhood(window, offset, searchDistance, x, y, ts, firstTs, maxDtThreshold);
+                iterativeFit(estimator == PlaneEstimator.OriginalLP, th1, th2, th3);
+        }
+    }
+
+    /**
+     * @return the x velocity of the last solve in pixels per second
+     */
+    public float getVx() {
+        return vx;
+    }
+
+    /**
+     * @return the y velocity of the last solve in pixels per second
+     */
+    public float getVy() {
+        return vy;
+    }
+
+    private void initializeNeighborhood(int[] window, int offset, int searchDistance, int x, int y, int ts, int firstTs, int maxDtThreshold) {
+        int dim = 2 * searchDistance + 1;
+        if (nx.length < dim * dim) {
+            nx = new double[dim * dim];
+            ny = new double[dim * dim];
+            nt = new double[dim * dim];
+        }
+        numPoints = 0;
+        int k = offset;
+        for (int i = -searchDistance; i <= searchDistance; i++) {
+            for (int j = -searchDistance; j <= searchDistance; j++) {
+                int t1 = window[k++];
+                if (t1 != Integer.MIN_VALUE && ts - t1 < maxDtThreshold) {
+                    nx[numPoints] = x + i;
+                    ny[numPoints] = y + j;
+                    nt[numPoints] = (t1 - firstTs) * 1e-6f;
+                    numPoints++;
+                }
+            }
+        }
+    }
+
+    private void linearSavitzkyGolay(int[] window, int offset, int searchDistance, int ts, int maxDtThreshold, float th3) {
+        int dim = 2 * searchDistance + 1;
+        double ax = 0, ay = 0;
+        int nxx = 0, nyy = 0;
+        for (int i = -searchDistance; i <= searchDistance; i++) {
+            for (int j = -searchDistance; j <= searchDistance; j++) {
+                int k = offset + (i + searchDistance) * dim + j + searchDistance;
+                int t1 = window[k];
+                if (t1 != Integer.MIN_VALUE && ts - t1 < maxDtThreshold) {
+                    for (int xx = i + 1; xx <= searchDistance; xx++) {
+                        int t2 = window[k + (xx - i) * dim];
+                        if (t2 != Integer.MIN_VALUE && ts - t2 < maxDtThreshold) {
+                            ax += (float) (t2 - t1) / (xx - i);
+                            nxx++;
+                        }
+                    }
+                    for (int yy = j + 1; yy <= searchDistance; yy++) {
+                        int t2 = window[k + yy - j];
+                        if (t2 != Integer.MIN_VALUE && ts - t2 < maxDtThreshold) {
+                            ay += (float) (t2 - t1) / (yy - j);
+                            nyy++;
+                        }
+                    }
+                }
+            }
+        }
+        ax = nxx == 0 ? 0 : ax / nxx;
+        ay = nyy == 0 ? 0 : ay / nyy;
+        ax *= 1e-6;
+        ay *= 1e-6;
+        velFromPar((float) ax, (float) ay, -1, th3);
+    }
+
+    private void singleFit(float th3) {
+        if (numPoints < 3) { // underdetermined
+            vx = 0;
+            vy = 0;
+            return;
+        }
+        float sx2 = 0, sy2 = 0, st2 = 0, sxy = 0, sxt = 0, syt = 0, sxx = 0, syy = 0, stt = 0;
+        for (int k = 0; k < numPoints; k++) {
+            sx2 += nx[k] * nx[k];
+            sy2 += ny[k] * ny[k];
+            st2 += nt[k] * nt[k];
+            sxy += nx[k] * ny[k];
+            sxt += nx[k] * nt[k];
+            syt += ny[k] * nt[k];
+            sxx += nx[k];
+            syy += ny[k];
+            stt += nt[k];
+        }
+        if (sx2 * sy2 * st2 + 2 * sxy * sxt * syt - sxt * sxt * sy2 - sx2 * syt * syt - sxy * sxy * st2 == 0) { // degenerate
+            vx = 0;
+            vy = 0;
+            return;
+        }
+        float a = sxx * (syt * syt - sy2 * st2) + syy * (sxy * st2 - sxt * syt) + stt * (sxt * sy2 - sxy * syt);
+        float b = sxx * (sxy * st2 - syt * sxt) + syy * (sxt * sxt - sx2 * st2) + stt * (sx2 * syt - sxy * sxt);
+        float c = sxx * (sxt * sy2 - sxy * syt) + syy * (sx2 * syt - sxy * sxt) + stt * (sxy * sxy - sx2 * sy2);
+        velFromPar(a, b, c, th3 * 1e4f);
+    }
+
+    private void iterativeFit(boolean originalLP, float th1, float th2, float th3) {
+        if (numPoints < 4) {
+            vx = 0;
+            vy = 0;
+            return;
+        }
+        for (double[] row : sums) {
+            Arrays.fill(row, 0);
+        }
+        for (int k = 0; k < numPoints; k++) {
+            addPoint(nx[k], ny[k], nt[k], 1);
+        }
+        smallestEigenvector(planeEstimateOld);
+        System.arraycopy(planeEstimateOld, 0, planeEstimate, 0, 4);
+        float eps = 1e6f;
+        while (eps > th1) {
+            boolean change = false;
+            int n = 0;
+            for (int k = 0; k < numPoints; k++) { // discard events too far away from plane
+                if (Math.abs(planeEstimateOld[0] * nx[k] + planeEstimateOld[1] * ny[k] + planeEstimateOld[2] * nt[k] + planeEstimateOld[3]) > th2) {
+                    addPoint(nx[k], ny[k], nt[k], -1);
+                    change = true;
+                } else {
+                    nx[n] = nx[k];
+                    ny[n] = ny[k];
+                    nt[n] = nt[k];
+                    n++;
+                }
+            }
+            numPoints = n;
+            if (!change) {
+                eps = 0;
+            } else if (numPoints > 3) {
+                smallestEigenvector(planeEstimate);
+                // The sign of an eigenvector is arbitrary; compare with the previous plane, not its mirror image
+                double dot = 0;
+                for (int k = 0; k < 4; k++) {
+                    dot += planeEstimate[k] * planeEstimateOld[k];
+                }
+                if (dot < 0) {
+                    for (int k = 0; k < 4; k++) {
+                        planeEstimate[k] = -planeEstimate[k];
+                    }
+                }
+                double d2 = 0;
+                for (int k = 0; k < 4; k++) {
+                    d2 += (planeEstimate[k] - planeEstimateOld[k]) * (planeEstimate[k] - planeEstimateOld[k]);
+                }
+                eps = (float) Math.sqrt(d2);
+                System.arraycopy(planeEstimate, 0, planeEstimateOld, 0, 4);
+            } else {
+                vx = 0;
+                vy = 0;
+                return;
+            }
+        }
+        if (!originalLP) {
+            velFromPar((float) planeEstimate[0], (float) planeEstimate[1], (float) planeEstimate[2], th3);
+        } else {
+            vx = Math.abs(planeEstimate[0]) < th3 ? 0 : (float) (-planeEstimate[2] / planeEstimate[0]);
+            vy = Math.abs(planeEstimate[1]) < th3 ? 0 : (float) (-planeEstimate[2] / planeEstimate[1]);
+        }
+    }
+
+    /**
+     * Adds (sign=1) or removes (sign=-1) a point [x,y,t,1] to or from the
+     * running sums of the normal equations.
+     */
+    private void addPoint(double x, double y, double t, int sign) {
+        double[] p = point;
+        p[0] = x;
+        p[1] = y;
+        p[2] = t;
+        p[3] = 1;
+        for (int i = 0; i < 4; i++) {
+            for (int j = i; j < 4; j++) {
+                if (sign > 0) {
+                    sums[i][j] += p[i] * p[j];
+                } else {
+                    sums[i][j] -= p[i] * p[j];
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the unit eigenvector of the running sums with the smallest
+     * eigenvalue with the cyclic Jacobi method, which is accurate for the badly
+     * scaled sums of pixel coordinates and timestamps in seconds.
+     */
+    private void smallestEigenvector(double[] result) {
+        double[][] a = eig, v = eigVectors;
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                a[i][j] = i <= j ? sums[i][j] : sums[j][i];
+                v[i][j] = i == j ? 1 : 0;
+            }
+        }
+        for (int sweep = 0; sweep < MAX_JACOBI_SWEEPS; sweep++) {
+            double off = 0, diag = 0;
+            for (int p = 0; p < 4; p++) {
+                diag += Math.abs(a[p][p]);
+                for (int q = p + 1; q < 4; q++) {
+                    off += Math.abs(a[p][q]);
+                }
+            }
+            if (off == 0 || diag + off == diag) {
+                break;
+            }
+            for (int p = 0; p < 3; p++) {
+                for (int q = p + 1; q < 4; q++) {
+                    double apq = a[p][q];
+                    if (apq == 0) {
+                        continue;
+                    }
+                    double theta = (a[q][q] - a[p][p]) / (2 * apq);
+                    double t = (theta >= 0 ? 1 : -1) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    double c = 1 / Math.sqrt(t * t + 1), s = t * c;
+                    for (int k = 0; k < 4; k++) {
+                        double akp = a[k][p], akq = a[k][q];
+                        a[k][p] = c * akp - s * akq;
+                        a[k][q] = s * akp + c * akq;
+                    }
+                    for (int k = 0; k < 4; k++) {
+                        double apk = a[p][k], aqk = a[q][k];
+                        a[p][k] = c * apk - s * aqk;
+                        a[q][k] = s * apk + c * aqk;
+                    }
+                    a[p][q] = 0;
+                    a[q][p] = 0;
+                    for (int k = 0; k < 4; k++) {
+                        double vkp = v[k][p], vkq = v[k][q];
+                        v[k][p] = c * vkp - s * vkq;
+                        v[k][q] = s * vkp + c * vkq;
+                    }
+                }
+            }
+        }
+        int min = 0;
+        for (int k = 1; k < 4; k++) {
+            if (a[k][k] < a[min][min]) {
+                min = k;
+            }
+        }
+        for (int k = 0; k < 4; k++) {
+            result[k] = v[k][min];
+        }
+    }
+
+    /**
+     * Computes the velocity from the plane a*x+b*y+c*t+d=0 as in
+     * LocalPlanesFlow.
+     */
+    private void velFromPar(float a, float b, float c, float thr) {
+        if (Math.abs(a) < thr && Math.abs(b) < thr) {
+            vx = 0;
+            vy = 0;
+        } else {
+            float tmp = -c / (a * a + b * b);
+            vx = a * tmp;
+            vy = b * tmp;
+        }
+    }
+}
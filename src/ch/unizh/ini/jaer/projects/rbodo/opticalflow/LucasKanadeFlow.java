@@ -74,6 +74,40 @@ public class LucasKanadeFlow extends AbstractMotionFlow {
     // Used for debugging and visualization of the algorithm.
     private boolean drawCollectedEventsHistogramEnabled;
 
+    // Event counts in the sliding windows, used by the incremental solver
+    private EventCountMap eventCounts;
+
+    // Allocation free solver for batches of events, optionally solved in parallel
+    private boolean incrementalSolver = getBoolean("incrementalSolver", false);
+    private boolean parallelSolver = getBoolean("parallelSolver", false);
+    private int numSolverThreads = getInt("numSolverThreads", 0);
+    private boolean checkSolverAccuracy = getBoolean("checkSolverAccuracy", false);
+    private final SolverAccuracy solverAccuracy = new SolverAccuracy();
+    private static final int MAX_PENDING_EVENTS = 1024;
+    private final PolarityEvent[] pendingEvents = new PolarityEvent[MAX_PENDING_EVENTS];
+    private final int[] pendingX = new int[MAX_PENDING_EVENTS], pendingY = new int[MAX_PENDING_EVENTS], pendingTs = new int[MAX_PENDING_EVENTS];
+    private final float[] pendingVx = new float[MAX_PENDING_EVENTS], pendingVy = new float[MAX_PENDING_EVENTS];
+    private final float[] pendingRefVx = new float[MAX_PENDING_EVENTS], pendingRefVy = new float[MAX_PENDING_EVENTS];
+    // Event counts around each pending event in the last maxDtThreshold and 2*maxDtThreshold, copied when the event arrived
+    private int[] pendingCounts = new int[0], pendingLongCounts = new int[0];
+    private int windowSize, numPending = 0;
+    private final ParallelFlowSolver solverPool = new ParallelFlowSolver("LucasKanadeFlow") {
+        @Override
+        protected ParallelFlowSolver.Solver createSolver() {
+            return new ParallelFlowSolver.Solver() {
+                private final LucasKanadeSolver solver = new LucasKanadeSolver();
+
+                @Override
+                public void solve(int k) {
+                    solver.solve(pendingCounts, pendingLongCounts, k * windowSize, searchDistance, d, derivator, C,
+                            secondTempDerivative, maxDtThreshold, thr);
+                    pendingVx[k] = solver.getVx();
+                    pendingVy[k] = solver.getVy();
+                }
+            };
+        }
+    };
+
     public LucasKanadeFlow(AEChip chip) {
         super(chip);
         numInputTypes = 2;
@@ -94,6 +128,13 @@ public class LucasKanadeFlow extends AbstractMotionFlow {
                 + "<li>CentralFiniteDifferenceFirstOrder: First order centered derivative estimate"
                 + "<li>CentralFiniteDifferenceSecondOrder: 2nd order centered derivative estimate"
                 + "<li>SavitzkyGolayFilter: Smoothed derivative estimate that estimates derivative by smoothing it in perpindicular direction</ul>");
+        setPropertyTooltip("Lucas Kanade", "incrementalSolver", "<html>Keep event counts in primitive sliding windows that are updated as events arrive and expire, "
+                + "and solve the flow with an allocation free solver that gives the same results as the original implementation. Off by default.");
+        setPropertyTooltip("Lucas Kanade", "parallelSolver", "<html>With incrementalSolver, solves batches of events in parallel. "
+                + "<p>Not used while measureAccuracy or outlier discarding is enabled, since these need the IMU state at each event. Off by default.");
+        setPropertyTooltip("Lucas Kanade", "numSolverThreads", "number of threads for parallelSolver; 0 uses all processors");
+        setPropertyTooltip("Lucas Kanade", "checkSolverAccuracy", "With incrementalSolver, also runs the original implementation for each event and compares the flow; see PrintSolverAccuracy");
+        setPropertyTooltip("Lucas Kanade", "PrintSolverAccuracy", "Logs the difference between the flow of incrementalSolver and the original implementation");
     }
 
     @Override
@@ -111,6 +152,35 @@ public class LucasKanadeFlow extends AbstractMotionFlow {
                 return;
             }
             checkBlend(gl);
+            EventCountMap counts = eventCounts;
+            if (counts != null) {
+                int lastTs = dirPacket.getLastTimestamp();
+                for (int ix = 0; ix < counts.getSizeX(); ix++) {
+                    for (int iy = 0; iy < counts.getSizeY(); iy++) {
+                        float c = counts.countSince(ix, iy, 1, lastTs, maxDtThreshold) / 10f;
+                        gl.glPushMatrix();
+                        gl.glColor4f(c, c, 0, 0.25f);
+                        gl.glRectf(ix, iy, ix + 1, iy + 1);
+                        gl.glPopMatrix();
+                    }
+                }
+                for (Object o : dirPacket) {
+                    gl.glPushMatrix();
+                    MotionOrientationEventInterface ei = (MotionOrientationEventInterface) o;
+                    for (int iy = -searchDistance; iy <= searchDistance; iy++) {
+                        for (int ix = -searchDistance; ix <= searchDistance; ix++) {
+                            float c = counts.getCount(ei.getX() + ix, ei.getY() + iy, ei.getType()) / 100f;
+                            gl.glColor4f(c, c, 0, 0.25f);
+                            gl.glRectf(ei.getX() + ix, ei.getY() + iy, ei.getX() + ix + 1, ei.getY() + iy + 1);
+                        }
+                    }
+                    gl.glPopMatrix();
+                }
+                return;
+            }
+            if (timestamps == null) {
+                return;
+            }
             ArrayDeque<Integer>[][][] timest = timestamps.clone();
             for (i = 0; i < sizex; i++) {
                 for (j = 0; j < sizey; j++) {
@@ -141,16 +211,23 @@ public class LucasKanadeFlow extends AbstractMotionFlow {
 
     @Override
     final synchronized void allocateMap() {
-        timestamps = new ArrayDeque[subSizeX][subSizeY][2];
-        timestamps2 = new ArrayDeque[subSizeX][subSizeY][2];
-        for (i = 0; i < timestamps.length; i++) {
-            for (j = 0; j < timestamps[0].length; j++) {
-                timestamps[i][j][0] = new ArrayDeque<>();
-                timestamps[i][j][1] = new ArrayDeque<>();
-                timestamps2[i][j][0] = new ArrayDeque<>();
-                timestamps2[i][j][1] = new ArrayDeque<>();
+        // The deques are only needed by the original implementation
+        if (!incrementalSolver || checkSolverAccuracy) {
+            timestamps = new ArrayDeque[subSizeX][subSizeY][2];
+            timestamps2 = new ArrayDeque[subSizeX][subSizeY][2];
+            for (i = 0; i < timestamps.length; i++) {
+                for (j = 0; j < timestamps[0].length; j++) {
+                    timestamps[i][j][0] = new ArrayDeque<>();
+                    timestamps[i][j][1] = new ArrayDeque<>();
+                    timestamps2[i][j][0] = new ArrayDeque<>();
+                    timestamps2[i][j][1] = new ArrayDeque<>();
+                }
             }
+        } else {
+            timestamps = null;
+            timestamps2 = null;
         }
+        eventCounts = incrementalSolver ? new EventCountMap(subSizeX, subSizeY, 2) : null;
         spatDerivNeighb = new float[(2 * searchDistance + 1) * (2 * searchDistance + 1)][2];
         tempDerivNeighb = new float[(2 * searchDistance + 1) * (2 * searchDistance + 1)];
         neighb = new int[(2 * searchDistance + 3) * (2 * searchDistance + 3)];
@@ -388,7 +465,6 @@ public class LucasKanadeFlow extends AbstractMotionFlow {
 
     @Override
     synchronized public EventPacket filterPacket(EventPacket in) {
-        float p, q, tmp, tmp2, sx2, sy2, sxy, sxt, syt;
         setupFilter(in);
         motionField.checkArrays();
 
@@ -422,8 +498,13 @@ public class LucasKanadeFlow extends AbstractMotionFlow {
            if (isInvalidAddress(searchDistance + d)) {
                 continue;
             }
-            timestamps[x][y][type].add(ts); // Add most recent event to queue.
-            timestamps2[x][y][type].add(ts);
+            if (timestamps != null) {
+                timestamps[x][y][type].add(ts); // Add most recent event to queue.
+                timestamps2[x][y][type].add(ts);
+            }
+            if (eventCounts != null) {
+                eventCounts.add(x, y, type, ts);
+            }
             if (isInvalidTimestamp()) {
                 continue;
             }
@@ -432,70 +513,182 @@ public class LucasKanadeFlow extends AbstractMotionFlow {
             }
             countIn++;
 
-            if (SavitzkyGolayFilter) {
-                computeFittingParameters();
+            if (eventCounts != null) {
+                queueEvent();
+                if (!parallelSolver || measureAccuracy || discardOutliersForStatisticalMeasurementEnabled
+                        || numPending == MAX_PENDING_EVENTS) {
+                    flushPendingEvents();
+                }
+                continue;
             }
 
-            computeDerivatives();
-
-            // <editor-fold defaultstate="collapsed" desc="Solve for optical flow with LS">
-            /**
-             * With the least squares principle applied to data (A,b) the
-             * optical flow can be estimated by v = Inv(A'A)A'b. A
-             * RuntimeException may be thrown if the data matrix spatDerivNeighb
-             * is singular (linear dependent rows). A'A is invertible if its
-             * eigenvalues satisfy lambda1 >= lambda2 > 0. The eigenvalues are a
-             * measure for the intensity gradient along the corresponding
-             * eigenvector. A high ratio r = lambda1/lambda2 results in noise
-             * and occurs for events at edges, where the gradient along the edge
-             * vanishes. A ratio r ~ 1 corresponds to approximately equal
-             * gradient along both eigenvectors.
-             */
-            sx2 = 0;
-            sy2 = 0;
-            sxy = 0;
-            sxt = 0;
-            syt = 0;
-            for (int j = 0; j < spatDerivNeighb.length; j++) {
-                sx2 += spatDerivNeighb[j][0] * spatDerivNeighb[j][0];
-                sy2 += spatDerivNeighb[j][1] * spatDerivNeighb[j][1];
-                sxy += spatDerivNeighb[j][0] * spatDerivNeighb[j][1];
-                sxt += spatDerivNeighb[j][0] * tempDerivNeighb[j];
-                syt += spatDerivNeighb[j][1] * tempDerivNeighb[j];
+            computeFlow();
+
+            if (accuracyTests()) {
+                continue;
             }
-            p = sx2 + sy2;
-            q = sx2 * sy2 - sxy * sxy;
-            tmp = (float) Math.sqrt(p * p - 4 * q);
-            lambda1 = (p + tmp) / 2;
-            lambda2 = (p - tmp) / 2;
-            if (lambda1 < thr || Float.isNaN(lambda1)) {
+
+            processGoodEvent();
+        }
+        flushPendingEvents();
+        getMotionFlowStatistics().updatePacket(countIn, countOut);
+        return isDisplayRawInput() ? in : dirPacket;
+    }
+
+    /**
+     * Computes the flow of the current event with the original implementation
+     * from the timestamp deques.
+     */
+    synchronized private void computeFlow() {
+        float p, q, tmp, tmp2, sx2, sy2, sxy, sxt, syt;
+        if (SavitzkyGolayFilter) {
+            computeFittingParameters();
+        }
+
+        computeDerivatives();
+
+        // <editor-fold defaultstate="collapsed" desc="Solve for optical flow with LS">
+        /**
+         * With the least squares principle applied to data (A,b) the
+         * optical flow can be estimated by v = Inv(A'A)A'b. A
+         * RuntimeException may be thrown if the data matrix spatDerivNeighb
+         * is singular (linear dependent rows). A'A is invertible if its
+         * eigenvalues satisfy lambda1 >= lambda2 > 0. The eigenvalues are a
+         * measure for the intensity gradient along the corresponding
+         * eigenvector. A high ratio r = lambda1/lambda2 results in noise
+         * and occurs for events at edges, where the gradient along the edge
+         * vanishes. A ratio r ~ 1 corresponds to approximately equal
+         * gradient along both eigenvectors.
+         */
+        sx2 = 0;
+        sy2 = 0;
+        sxy = 0;
+        sxt = 0;
+        syt = 0;
+        for (int j = 0; j < spatDerivNeighb.length; j++) {
+            sx2 += spatDerivNeighb[j][0] * spatDerivNeighb[j][0];
+            sy2 += spatDerivNeighb[j][1] * spatDerivNeighb[j][1];
+            sxy += spatDerivNeighb[j][0] * spatDerivNeighb[j][1];
+            sxt += spatDerivNeighb[j][0] * tempDerivNeighb[j];
+            syt += spatDerivNeighb[j][1] * tempDerivNeighb[j];
+        }
+        p = sx2 + sy2;
+        q = sx2 * sy2 - sxy * sxy;
+        tmp = (float) Math.sqrt(p * p - 4 * q);
+        lambda1 = (p + tmp) / 2;
+        lambda2 = (p - tmp) / 2;
+        if (lambda1 < thr || Float.isNaN(lambda1)) {
+            vx = 0;
+            vy = 0;
+        } else if (lambda2 < thr) {
+            tmp2 = spatDerivNeighb[currPix][0] * spatDerivNeighb[currPix][0]
+                    + spatDerivNeighb[currPix][1] * spatDerivNeighb[currPix][1];
+            if (tmp2 == 0) {
                 vx = 0;
                 vy = 0;
-            } else if (lambda2 < thr) {
-                tmp2 = spatDerivNeighb[currPix][0] * spatDerivNeighb[currPix][0]
-                        + spatDerivNeighb[currPix][1] * spatDerivNeighb[currPix][1];
-                if (tmp2 == 0) {
-                    vx = 0;
-                    vy = 0;
-                } else {
-                    vx = -spatDerivNeighb[currPix][0] * tempDerivNeighb[currPix] / tmp2;
-                    vy = -spatDerivNeighb[currPix][1] * tempDerivNeighb[currPix] / tmp2;
-                }
             } else {
-                vx = (sxy * syt - sy2 * sxt) / q;
-                vy = (sxy * sxt - sx2 * syt) / q;
+                vx = -spatDerivNeighb[currPix][0] * tempDerivNeighb[currPix] / tmp2;
+                vy = -spatDerivNeighb[currPix][1] * tempDerivNeighb[currPix] / tmp2;
             }
-            v = (float) Math.sqrt(vx * vx + vy * vy);
-            // </editor-fold>
+        } else {
+            vx = (sxy * syt - sy2 * sxt) / q;
+            vy = (sxy * sxt - sx2 * syt) / q;
+        }
+        v = (float) Math.sqrt(vx * vx + vy * vy);
+        // </editor-fold>
+    }
+
+    /**
+     * Updates the event counts around the current event and copies them to
+     * the pending events. With checkSolverAccuracy, the original
+     * implementation computes its flow now, from the same events.
+     */
+    private void queueEvent() {
+        final int r = searchDistance + d;
+        if (numPending == 0) {
+            windowSize = (2 * r + 1) * (2 * r + 1);
+            if (pendingCounts.length != MAX_PENDING_EVENTS * windowSize) {
+                pendingCounts = new int[MAX_PENDING_EVENTS * windowSize];
+                pendingLongCounts = new int[MAX_PENDING_EVENTS * windowSize];
+            }
+        }
+        if (checkSolverAccuracy && timestamps != null) {
+            computeFlow();
+            pendingRefVx[numPending] = vx;
+            pendingRefVy[numPending] = vy;
+        }
+        final EventCountMap counts = eventCounts;
+        final int longWindow = 2 * maxDtThreshold;
+        int k = numPending * windowSize;
+        for (int iy = y - r; iy <= y + r; iy++) {
+            for (int ix = x - r; ix <= x + r; ix++) {
+                pendingCounts[k] = counts.expire(ix, iy, type, ts, maxDtThreshold, longWindow);
+                pendingLongCounts[k] = counts.getLongCount(ix, iy, type);
+                k++;
+            }
+        }
+        pendingEvents[numPending] = e;
+        pendingX[numPending] = x;
+        pendingY[numPending] = y;
+        pendingTs[numPending] = ts;
+        numPending++;
+    }
 
+    /**
+     * Solves the pending events, in parallel if there are enough of them, and
+     * then outputs the events in their original order. Restores the current
+     * event afterwards.
+     */
+    synchronized private void flushPendingEvents() {
+        if (numPending == 0) {
+            return;
+        }
+        int n = numPending;
+        numPending = 0;
+        solverPool.setNumThreads(parallelSolver ? numSolverThreads : 1);
+        solverPool.solve(n);
+        PolarityEvent e0 = e;
+        int x0 = x, y0 = y, ts0 = ts;
+        for (int k = 0; k < n; k++) {
+            e = pendingEvents[k];
+            pendingEvents[k] = null;
+            x = pendingX[k];
+            y = pendingY[k];
+            ts = pendingTs[k];
+            vx = pendingVx[k];
+            vy = pendingVy[k];
+            v = (float) Math.sqrt(vx * vx + vy * vy);
+            if (checkSolverAccuracy && timestamps != null) {
+                solverAccuracy.update(pendingRefVx[k], pendingRefVy[k], vx, vy);
+            }
             if (accuracyTests()) {
                 continue;
             }
-
             processGoodEvent();
         }
-        getMotionFlowStatistics().updatePacket(countIn, countOut);
-        return isDisplayRawInput() ? in : dirPacket;
+        e = e0;
+        x = x0;
+        y = y0;
+        ts = ts0;
+    }
+
+    @Override
+    public synchronized void resetFilter() {
+        flushPendingEvents(); // pending events belong to the state before the reset
+        solverPool.close(); // the solver threads are started again by the next large batch
+        super.resetFilter();
+    }
+
+    @Override
+    public synchronized void setFilterEnabled(boolean yes) {
+        super.setFilterEnabled(yes);
+        if (!yes) {
+            solverPool.close();
+        }
+    }
+
+    synchronized public void doPrintSolverAccuracy() {
+        log.info(solverAccuracy.toString());
     }
 
     // <editor-fold defaultstate="collapsed" desc="getter/setter for --thr--">
@@ -534,4 +727,80 @@ public class LucasKanadeFlow extends AbstractMotionFlow {
     public void setDrawCollectedEventsHistogramEnabled(boolean drawCollectedEventsHistogramEnabled) {
         this.drawCollectedEventsHistogramEnabled = drawCollectedEventsHistogramEnabled;
     }
+
+    /**
+     * @return the incrementalSolver
+     */
+    public boolean isIncrementalSolver() {
+        return incrementalSolver;
+    }
+
+    /**
+     * @param incrementalSolver the incrementalSolver to set
+     */
+    synchronized public void setIncrementalSolver(boolean incrementalSolver) {
+        boolean old = this.incrementalSolver;
+        this.incrementalSolver = incrementalSolver;
+        putBoolean("incrementalSolver", incrementalSolver);
+        resetFilter(); // allocates the event counts or deques
+        getSupport().firePropertyChange("incrementalSolver", old, this.incrementalSolver);
+    }
+
+    /**
+     * @return the parallelSolver
+     */
+    public boolean isParallelSolver() {
+        return parallelSolver;
+    }
+
+    /**
+     * @param parallelSolver the parallelSolver to set
+     */
+    synchronized public void setParallelSolver(boolean parallelSolver) {
+        boolean old = this.parallelSolver;
+        this.parallelSolver = parallelSolver;
+        putBoolean("parallelSolver", parallelSolver);
+        getSupport().firePropertyChange("parallelSolver", old, this.parallelSolver);
+    }
+
+    /**
+     * @return the numSolverThreads
+     */
+    public int getNumSolverThreads() {
+        return numSolverThreads;
+    }
+
+    /**
+     * @param numSolverThreads the numSolverThreads to set
+     */
+    synchronized public void setNumSolverThreads(int numSolverThreads) {
+        int old = this.numSolverThreads;
+        if (numSolverThreads < 0) {
+            numSolverThreads = 0;
+        }
+        this.numSolverThreads = numSolverThreads;
+        putInt("numSolverThreads", numSolverThreads);
+        getSupport().firePropertyChange("numSolverThreads", old, this.numSolverThreads);
+    }
+
+    /**
+     * @return the checkSolverAccuracy
+     */
+    public boolean isCheckSolverAccuracy() {
+        return checkSolverAccuracy;
+    }
+
+    /**
+     * @param checkSolverAccuracy the checkSolverAccuracy to set
+     */
+    synchronized public void setCheckSolverAccuracy(boolean checkSolverAccuracy) {
+        boolean old = this.checkSolverAccuracy;
+        this.checkSolverAccuracy = checkSolverAccuracy;
+        putBoolean("checkSolverAccuracy", checkSolverAccuracy);
+        if (checkSolverAccuracy != old) {
+            solverAccuracy.reset();
+            resetFilter(); // the original implementation needs the deques
+        }
+        getSupport().firePropertyChange("checkSolverAccuracy", old, this.checkSolverAccuracy);
+    }
 }
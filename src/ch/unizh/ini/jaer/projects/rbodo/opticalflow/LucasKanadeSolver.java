@@ -0,0 +1,150 @@
+package ch.unizh.ini.jaer.projects.rbodo.opticalflow;
+
+import ch.unizh.ini.jaer.projects.rbodo.opticalflow.LucasKanadeFlow.DerivativeEstimator;
+
+/**
+ * Allocation free least squares solution of the Lucas-Kanade optical flow
+ * equations for LucasKanadeFlow. The solver works on a copy of the event
+ * counts around the event, so that several solvers can compute the flow of
+ * the events of a packet at the same time.
+ * <p>
+ * The derivatives are accumulated directly into the sums of the normal
+ * equations in the same order and with the same float arithmetic as
+ * LucasKanadeFlow, so the results are identical.
+ *
+ * @author tobi
+ */
+public class LucasKanadeSolver {
+
+    private float vx, vy;
+
+    /**
+     * Computes the flow of an event from the event counts around it.
+     *
+     * @param counts the event counts in the last maxDtThreshold of the
+     * neighborhood, ordered as counts[offset + (j + r) * (2 * r + 1) + i + r]
+     * for the pixel at (x + i, y + j), where r is searchDistance plus the
+     * extra spacing d of the derivative estimator
+     * @param longCounts the event counts in the last 2*maxDtThreshold, in the
+     * same order, only used with secondTempDerivative
+     * @param offset the start of the neighborhood in counts and longCounts
+     * @param searchDistance the search distance on each side of the event
+     * @param d the extra spacing needed by the derivative estimator
+     * @param derivator the derivative estimator
+     * @param C the Savitzky-Golay coefficients of the first order fit
+     * (AbstractMotionFlow.fitOrder is 1), only used by the SavitzkyGolayFilter
+     * estimator
+     * @param secondTempDerivative whether to use the second temporal
+     * derivative
+     * @param maxDtThreshold the time window in us
+     * @param thr threshold on the eigenvalues of the normal equations
+     */
+    public void solve(int[] counts, int[] longCounts, int offset, int searchDistance, int d, DerivativeEstimator derivator,
+            double[][] C, boolean secondTempDerivative, int maxDtThreshold, float thr) {
+        final int r = searchDistance + d, dim = 2 * r + 1;
+        double a10 = 0, a01 = 0;
+        if (derivator == DerivativeEstimator.SavitzkyGolayFilter) {
+            int jj = 0;
+            for (int j = -searchDistance; j <= searchDistance; j++) {
+                for (int i = -searchDistance; i <= searchDistance; i++) {
+                    int n = counts[offset + (j + r) * dim + i + r];
+                    a01 += C[2][jj] * n;
+                    a10 += C[1][jj] * n;
+                    jj++;
+                }
+            }
+        }
+        float sx2 = 0, sy2 = 0, sxy = 0, sxt = 0, syt = 0;
+        float cx = 0, cy = 0, ct = 0; // derivatives at the event
+        for (int j = -searchDistance; j <= searchDistance; j++) {
+            for (int i = -searchDistance; i <= searchDistance; i++) {
+                int k = offset + (j + r) * dim + i + r;
+                int n = counts[k];
+                float dx, dy, dt;
+                switch (derivator) {
+                    case SavitzkyGolayFilter:
+                        dx = (float) a10;
+                        dy = (float) a01;
+                        dt = n;
+                        if (secondTempDerivative) {
+                            dt = n * 2 - longCounts[k];
+                        }
+                        dt /= searchDistance;
+                        break;
+                    case BackwardFiniteDifference:
+                        dx = n - counts[k - 1];
+                        dy = n - counts[k - dim];
+                        dt = n;
+                        if (secondTempDerivative) {
+                            dt = n * 2 - longCounts[k];
+                        }
+                        break;
+                    case CentralFiniteDifferenceSecondOrder:
+                        dx = counts[k - 2] - counts[k - 1] * 8 + counts[k + 1] * 8 - counts[k + 2];
+                        dy = counts[k - 2 * dim] - counts[k - dim] * 8 + counts[k + dim] * 8 - counts[k + 2 * dim];
+                        dt = n * 12;
+                        if (secondTempDerivative) {
+                            dt = (n * 2 - longCounts[k]) * 12;
+                        }
+                        break;
+                    default: // CentralFiniteDifferenceFirstOrder
+                        dx = counts[k + 1] - counts[k - 1];
+                        dy = counts[k + dim] - counts[k - dim];
+                        dt = n * 2;
+                        if (secondTempDerivative) {
+                            dt = (n * 2 - longCounts[k]) * 2;
+                        }
+                }
+                if (secondTempDerivative) {
+                    dt /= maxDtThreshold * 1e-6f;
+                }
+                dt *= 20; // see LucasKanadeFlow.computeDerivatives()
+                sx2 += dx * dx;
+                sy2 += dy * dy;
+                sxy += dx * dy;
+                sxt += dx * dt;
+                syt += dy * dt;
+                if (i == 0 && j == 0) {
+                    cx = dx;
+                    cy = dy;
+                    ct = dt;
+                }
+            }
+        }
+        float p = sx2 + sy2;
+        float q = sx2 * sy2 - sxy * sxy;
+        float tmp = (float) Math.sqrt(p * p - 4 * q);
+        float lambda1 = (p + tmp) / 2;
+        float lambda2 = (p - tmp) / 2;
+        if (lambda1 < thr || Float.isNaN(lambda1)) {
+            vx = 0;
+            vy = 0;
+        } else if (lambda2 < thr) {
+            float tmp2 = cx * cx + cy * cy;
+            if (tmp2 == 0) {
+                vx = 0;
+                vy = 0;
+            } else {
+                vx = -cx * ct / tmp2;
+                vy = -cy * ct / tmp2;
+            }
+        } else {
+            vx = (sxy * syt - sy2 * sxt) / q;
+            vy = (sxy * sxt - sx2 * syt) / q;
+        }
+    }
+
+    /**
+     * @return the x velocity of the last solve
+     */
+    public float getVx() {
+        return vx;
+    }
+
+    /**
+     * @return the y velocity of the last solve
+     */
+    public float getVy() {
+        return vy;
+    }
+}
@@ -0,0 +1,471 @@
+package ch.unizh.ini.jaer.projects.rbodo.opticalflow;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Logger;
+import ml.options.Options;
+import ml.options.Options.Multiplicity;
+import ml.options.Options.Separator;
+import net.sf.jaer.aemonitor.AEPacketRaw;
+import net.sf.jaer.chip.AEChip;
+import net.sf.jaer.event.EventPacket;
+import net.sf.jaer.eventio.AEFileInputStream;
+import static net.sf.jaer.graphics.AEViewer.DEFAULT_CHIP_CLASS;
+import static net.sf.jaer.graphics.AEViewer.prefs;
+import net.sf.jaer.util.SubclassFinder;
+
+/**
+ * Streams recordings through optical flow filters without the viewer and
+ * measures their accuracy against the IMU ground truth of
+ * AbstractMotionFlowIMU together with their throughput, latency and
+ * allocation. The results are written as a tab separated table with one row
+ * per recording and flow method, so that the methods and their settings can be
+ * compared from scripts.
+ * <p>
+ * The filters use their last settings from the preferences, like when they
+ * are opened in the viewer. Each recording is played twice over the same
+ * events: once with measureAccuracy switched on for the error columns, and
+ * once with it switched off for the counts, timing and allocation, since
+ * measureAccuracy makes the filters fall back to their sequential solvers.
+ * measureAccuracy is restored afterwards. The ground truth is the rotational flow computed from
+ * the gyro samples of the recording, so recordings should come from an IMU
+ * camera (e.g. DAVIS) under mostly rotational motion. Without IMU samples the
+ * error columns are NaN.
+ * <p>
+ * Timing covers only filterPacket, not reading and extracting the events.
+ * Allocation is the number of bytes allocated by all threads during
+ * filterPacket, as reported by the JVM; it is -1 when the JVM cannot measure
+ * it.
+ *
+ * @author tobi
+ */
+public class MotionFlowBenchmark {
+
+    private static final Logger log = Logger.getLogger("MotionFlowBenchmark");
+
+    public static final String USAGE = "java MotionFlowBenchmark [-aechip=aechipclassname (fully qualified class name, e.g. eu.seebetter.ini.chips.davis.DAVIS240C)] "
+            + "[-methods=LucasKanadeFlow,LocalPlanesFlow,... (simple or fully qualified class names; default all flow filters)] "
+            + "[-packetsize=10000] [-warmupevents=1000000] [-maxevents=0] [-calibrationsamples=0] [-output=results.tsv] "
+            + "inputFile.aedat [inputFile2.aedat ...]"
+            + "\n"
+            + "Note arguments values are assigned with =, not space"
+            + "\n"
+            + "warmupevents are run through each filter before the measurement to compile the code; the filter is then reset and the file rewound."
+            + "\n"
+            + "maxevents=0 measures the whole file. calibrationsamples>0 estimates the gyro offsets from the first samples, which must be stationary.";
+
+    /**
+     * The columns of the results table
+     */
+    public static final String HEADER = "file\tmethod\tevents\tflowEvents\tdensityPct\tgtEvents"
+            + "\tangularErrorDeg\tangularErrorSdDeg\tendpointErrorPps\tendpointErrorSdPps\trelEndpointErrorPct"
+            + "\teventsPerSec\tusPerEvent\tusPerEventMedian\tusPerEventP99\tbytesPerEvent";
+
+    private int packetSize = 10000;
+    private int warmupEvents = 1000000;
+    private long maxEvents = 0;
+    private int calibrationSamples = 0;
+
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    /**
+     * The result of one recording and flow method.
+     */
+    public static class Result {
+
+        public String file, method;
+        /**
+         * Events passed to the filter, events that reached the flow
+         * computation and events with a nonzero flow vector
+         */
+        public long events, flowInputEvents, flowEvents;
+        /**
+         * Flow events compared with ground truth
+         */
+        public int gtEvents;
+        public float angularErrorDeg = Float.NaN, angularErrorSdDeg = Float.NaN;
+        public float endpointErrorPps = Float.NaN, endpointErrorSdPps = Float.NaN, relEndpointErrorPct = Float.NaN;
+        public double eventsPerSec, usPerEvent, usPerEventMedian, usPerEventP99;
+        /**
+         * Bytes allocated per event, or -1 if not measured
+         */
+        public double bytesPerEvent = -1;
+
+        /**
+         * @return the row of the results table
+         * @see #HEADER
+         */
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "%s\t%s\t%d\t%d\t%.2f\t%d\t%.3f\t%.3f\t%.3f\t%.3f\t%.3f\t%.0f\t%.4f\t%.4f\t%.4f\t%.1f",
+                    file, method, events, flowEvents, flowInputEvents == 0 ? 0 : 100.0 * flowEvents / flowInputEvents, gtEvents,
+                    angularErrorDeg, angularErrorSdDeg, endpointErrorPps, endpointErrorSdPps, relEndpointErrorPct,
+                    eventsPerSec, usPerEvent, usPerEventMedian, usPerEventP99, bytesPerEvent);
+        }
+    }
+
+    /**
+     * Runs one recording through a flow filter, first with measureAccuracy
+     * switched on for the accuracy and then with it switched off for the
+     * speed. The filter must have been constructed for the chip that the file
+     * is opened with.
+     *
+     * @param filter the flow filter
+     * @param file the recording
+     * @return the measured accuracy and speed
+     * @throws IOException if the file cannot be read
+     */
+    public Result run(AbstractMotionFlowIMU filter, File file) throws IOException {
+        AEChip chip = filter.getChip();
+        boolean oldMeasureAccuracy = filter.isMeasureAccuracy(), oldMeasureProcessingTime = filter.isMeasureProcessingTime();
+        AEFileInputStream ais = new AEFileInputStream(file, chip);
+        try {
+            ais.setNonMonotonicTimeExceptionsChecked(false);
+            filter.setMeasureProcessingTime(false);
+            filter.setMeasureAccuracy(false);
+            if (warmupEvents > 0) {
+                play(filter, ais, warmupEvents, null);
+                ais.rewind();
+            }
+            Result r = new Result();
+            r.file = file.getName();
+            r.method = filter.getClass().getSimpleName();
+
+            // accuracy pass
+            filter.setMeasureAccuracy(true); // also resets the filter
+            startCalibration(filter);
+            play(filter, ais, maxEvents, null);
+            MotionFlowStatistics stats = filter.getMotionFlowStatistics();
+            r.gtEvents = stats.angularError.getN();
+            if (r.gtEvents > 0) {
+                r.angularErrorDeg = stats.angularError.getMean();
+                r.angularErrorSdDeg = stats.angularError.getStdDev();
+                r.endpointErrorPps = stats.endpointErrorAbs.getMean();
+                r.endpointErrorSdPps = stats.endpointErrorAbs.getStdDev();
+                r.relEndpointErrorPct = stats.endpointErrorRel.getMean();
+            }
+
+            // timing pass over the same events
+            ais.rewind();
+            filter.setMeasureAccuracy(false);
+            filter.resetFilter();
+            startCalibration(filter);
+            play(filter, ais, maxEvents, r);
+            return r;
+        } finally {
+            ais.close();
+            filter.setMeasureAccuracy(oldMeasureAccuracy);
+            filter.setMeasureProcessingTime(oldMeasureProcessingTime);
+        }
+    }
+
+    private void startCalibration(AbstractMotionFlowIMU filter) {
+        if (calibrationSamples > 0) {
+            filter.imuFlowEstimator.setCalibrationSamples(calibrationSamples);
+            filter.doStartIMUCalibration();
+        }
+    }
+
+    /**
+     * Plays events from the current position of the file through the filter.
+     *
+     * @param maxEvents the number of raw events to play, or 0 to play to the
+     * end of the file
+     * @param r the result to fill in, or null to only run the filter
+     */
+    private void play(AbstractMotionFlowIMU filter, AEFileInputStream ais, long maxEvents, Result r) throws IOException {
+        long end = ais.size();
+        if (maxEvents > 0) {
+            end = Math.min(end, ais.position() + maxEvents);
+        }
+        long totalNs = 0, totalBytes = 0;
+        boolean measureAllocation = r != null && isAllocationMeasured();
+        float[] usPerEvent = new float[1024];
+        int numPackets = 0;
+        while (ais.position() < end) {
+            // read no further than the end, since the stream rewinds by itself at the end of the file
+            AEPacketRaw aeRaw = ais.readPacketByNumber((int) Math.min(packetSize, end - ais.position()));
+            if (aeRaw.getNumEvents() == 0) {
+                break;
+            }
+            EventPacket in = filter.getChip().getEventExtractor().extractPacket(aeRaw);
+            if (r == null) {
+                filter.filterPacket(in);
+                continue;
+            }
+            HashMap<Long, Long> bytesBefore = measureAllocation ? allocatedBytes() : null;
+            long t0 = System.nanoTime();
+            filter.filterPacket(in);
+            long dt = System.nanoTime() - t0;
+            if (measureAllocation) {
+                totalBytes += allocatedBytesSince(bytesBefore);
+            }
+            int n = in.getSize();
+            r.events += n;
+            r.flowInputEvents += filter.countIn;
+            r.flowEvents += filter.countOut;
+            totalNs += dt;
+            if (n > 0) {
+                if (numPackets == usPerEvent.length) {
+                    usPerEvent = Arrays.copyOf(usPerEvent, 2 * numPackets);
+                }
+                usPerEvent[numPackets++] = dt * 1e-3f / n;
+            }
+        }
+        if (r == null) {
+            return;
+        }
+        if (r.events > 0) {
+            r.eventsPerSec = r.events / (totalNs * 1e-9);
+            r.usPerEvent = totalNs * 1e-3 / r.events;
+            if (measureAllocation) {
+                r.bytesPerEvent = (double) totalBytes / r.events;
+            }
+        }
+        if (numPackets > 0) {
+            Arrays.sort(usPerEvent, 0, numPackets);
+            r.usPerEventMedian = usPerEvent[numPackets / 2];
+            r.usPerEventP99 = usPerEvent[Math.min(numPackets - 1, (int) (0.99 * numPackets))];
+        }
+    }
+
+    private boolean isAllocationMeasured() {
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+            return false;
+        }
+        com.sun.management.ThreadMXBean b = (com.sun.management.ThreadMXBean) threadBean;
+        try {
+            if (b.isThreadAllocatedMemorySupported() && !b.isThreadAllocatedMemoryEnabled()) {
+                b.setThreadAllocatedMemoryEnabled(true);
+            }
+            return b.isThreadAllocatedMemorySupported() && b.isThreadAllocatedMemoryEnabled();
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private HashMap<Long, Long> allocatedBytes() {
+        long[] ids = threadBean.getAllThreadIds();
+        long[] bytes = ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(ids);
+        HashMap<Long, Long> map = new HashMap<Long, Long>(2 * ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            if (bytes[i] >= 0) {
+                map.put(ids[i], bytes[i]);
+            }
+        }
+        return map;
+    }
+
+    // threads that were started during the packet, e.g. by a solver pool, count from zero
+    private long allocatedBytesSince(HashMap<Long, Long> before) {
+        long sum = 0;
+        for (java.util.Map.Entry<Long, Long> e : allocatedBytes().entrySet()) {
+            Long b = before.get(e.getKey());
+            sum += e.getValue() - (b == null ? 0 : b);
+        }
+        return sum;
+    }
+
+    /**
+     * @return the number of raw events read per packet
+     */
+    public int getPacketSize() {
+        return packetSize;
+    }
+
+    /**
+     * @param packetSize the number of raw events read per packet
+     */
+    public void setPacketSize(int packetSize) {
+        this.packetSize = Math.max(1, packetSize);
+    }
+
+    /**
+     * @return the number of raw events run through the filter before the
+     * measurement
+     */
+    public int getWarmupEvents() {
+        return warmupEvents;
+    }
+
+    /**
+     * @param warmupEvents the number of raw events run through the filter
+     * before the measurement to let the JIT compile the code, or 0 for none
+     */
+    public void setWarmupEvents(int warmupEvents) {
+        this.warmupEvents = Math.max(0, warmupEvents);
+    }
+
+    /**
+     * @return the number of raw events measured, 0 for the whole file
+     */
+    public long getMaxEvents() {
+        return maxEvents;
+    }
+
+    /**
+     * @param maxEvents the number of raw events measured, 0 for the whole
+     * file
+     */
+    public void setMaxEvents(long maxEvents) {
+        this.maxEvents = Math.max(0, maxEvents);
+    }
+
+    /**
+     * @return the number of IMU samples used to calibrate the gyro offsets, 0
+     * for no calibration
+     */
+    public int getCalibrationSamples() {
+        return calibrationSamples;
+    }
+
+    /**
+     * @param calibrationSamples the number of IMU samples at the start of
+     * each measurement used to calibrate the gyro offsets, 0 for no
+     * calibration
+     */
+    public void setCalibrationSamples(int calibrationSamples) {
+        this.calibrationSamples = Math.max(0, calibrationSamples);
+    }
+
+    private static AEChip makeChip(String chipname) throws Exception {
+        Class chipClass = Class.forName(chipname);
+        Constructor<AEChip> constructor = chipClass.getConstructor();
+        return constructor.newInstance((java.lang.Object[]) null);
+    }
+
+    private static AbstractMotionFlowIMU makeFilter(String className, AEChip chip) throws Exception {
+        Class filterClass = Class.forName(className);
+        Constructor<AbstractMotionFlowIMU> constructor = filterClass.getConstructor(AEChip.class);
+        AbstractMotionFlowIMU filter = constructor.newInstance(chip);
+        filter.initFilter();
+        return filter;
+    }
+
+    /**
+     * Resolves the method names of the command line to class names.
+     */
+    private static List<String> findMethods(String methods) {
+        ArrayList<String> all = SubclassFinder.findSubclassesOf(AbstractMotionFlowIMU.class.getName());
+        if (methods == null) {
+            return all;
+        }
+        ArrayList<String> classes = new ArrayList<String>();
+        for (String m : methods.split(",")) {
+            m = m.trim();
+            if (m.isEmpty()) {
+                continue;
+            }
+            String found = m.contains(".") ? m : null;
+            for (String c : all) {
+                if (found == null && c.endsWith("." + m)) {
+                    found = c;
+                }
+            }
+            if (found == null) {
+                found = AbstractMotionFlowIMU.class.getPackage().getName() + "." + m;
+            }
+            classes.add(found);
+        }
+        return classes;
+    }
+
+    public static void main(String[] args) {
+        Options opt = new Options(args, 1, Integer.MAX_VALUE);
+        opt.getSet().addOption("aechip", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
+        opt.getSet().addOption("methods", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
+        opt.getSet().addOption("packetsize", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
+        opt.getSet().addOption("warmupevents", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
+        opt.getSet().addOption("maxevents", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
+        opt.getSet().addOption("calibrationsamples", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
+        opt.getSet().addOption("output", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
+        if (!opt.check()) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+
+        MotionFlowBenchmark benchmark = new MotionFlowBenchmark();
+        try {
+            if (opt.getSet().isSet("packetsize")) {
+                benchmark.setPacketSize(Integer.parseInt(opt.getSet().getOption("packetsize").getResultValue(0)));
+            }
+            if (opt.getSet().isSet("warmupevents")) {
+                benchmark.setWarmupEvents(Integer.parseInt(opt.getSet().getOption("warmupevents").getResultValue(0)));
+            }
+            if (opt.getSet().isSet("maxevents")) {
+                benchmark.setMaxEvents(Long.parseLong(opt.getSet().getOption("maxevents").getResultValue(0)));
+            }
+            if (opt.getSet().isSet("calibrationsamples")) {
+                benchmark.setCalibrationSamples(Integer.parseInt(opt.getSet().getOption("calibrationsamples").getResultValue(0)));
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Bad numeric argument: " + e.toString());
+            System.exit(1);
+        }
+
+        String chipname = opt.getSet().isSet("aechip") ? opt.getSet().getOption("aechip").getResultValue(0)
+                : prefs.get("AEViewer.aeChipClassName", DEFAULT_CHIP_CLASS);
+        List<String> methods = findMethods(opt.getSet().isSet("methods") ? opt.getSet().getOption("methods").getResultValue(0) : null);
+        if (methods.isEmpty()) {
+            System.err.println("no optical flow methods found");
+            System.exit(1);
+        }
+
+        PrintStream table = null;
+        if (opt.getSet().isSet("output")) {
+            String outfilename = opt.getSet().getOption("output").getResultValue(0);
+            try {
+                table = new PrintStream(outfilename);
+            } catch (FileNotFoundException ex) {
+                System.err.println("Couldn't open output file " + outfilename + ": " + ex.toString());
+                System.exit(1);
+            }
+            table.println(HEADER);
+        }
+        System.out.println(HEADER);
+
+        int failures = 0;
+        for (String method : methods) {
+            AbstractMotionFlowIMU filter;
+            try {
+                filter = makeFilter(method, makeChip(chipname));
+            } catch (Exception ex) {
+                System.err.println("Could not construct " + method + " for aechip=" + chipname + ": " + ex.toString());
+                failures++;
+                continue;
+            }
+            for (String inpfilename : opt.getSet().getData()) {
+                try {
+                    Result r = benchmark.run(filter, new File(inpfilename));
+                    System.out.println(r);
+                    if (table != null) {
+                        table.println(r);
+                        table.flush();
+                    }
+                } catch (IOException ex) {
+                    System.err.println("Couldn't read " + inpfilename + " from working directory " + System.getProperty("user.dir") + " : " + ex.toString());
+                    failures++;
+                } catch (RuntimeException ex) {
+                    log.warning(method + " failed on " + inpfilename + ": " + ex.toString());
+                    ex.printStackTrace();
+                    failures++;
+                }
+            }
+            filter.cleanup();
+        }
+        if (table != null) {
+            table.close();
+        }
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,129 @@
+package ch.unizh.ini.jaer.projects.rbodo.opticalflow;
+
+import net.sf.jaer.util.ParallelRunner;
+
+/**
+ * Computes the flow of a batch of events on a pool of threads. The filter
+ * copies everything an event needs (e.g. the timestamps around it) into the
+ * batch when the event arrives, so the events of a batch are independent and
+ * the results do not depend on the number of threads or on the order in which
+ * the events are solved.
+ * <p>
+ * Each thread gets its own Solver from createSolver() so that solvers can keep
+ * scratch memory. Solvers are only created when solve is first called, since
+ * createSolver is usually implemented by an anonymous subclass inside a filter
+ * whose fields are not yet initialized while this class is constructed.
+ *
+ * @author tobi
+ */
+public abstract class ParallelFlowSolver {
+
+    /**
+     * Solves one event of the batch.
+     */
+    public interface Solver {
+
+        /**
+         * Computes the flow of event k of the batch and stores it where the
+         * filter will find it.
+         *
+         * @param k the index of the event in the batch
+         */
+        void solve(int k);
+    }
+
+    /**
+     * Batches with fewer events than this per thread are solved in the
+     * calling thread
+     */
+    private static final int MIN_EVENTS_PER_THREAD = 64;
+
+    private Solver solver = null; // solves small batches in the calling thread
+    private final ParallelRunner runner;
+    private Solver[] threadSolvers = null;
+    private int numThreads = 1;
+
+    /**
+     * Makes a new solver pool; threads are started when the first large batch
+     * is solved.
+     *
+     * @param name the name of the threads
+     */
+    public ParallelFlowSolver(String name) {
+        runner = new ParallelRunner(name);
+    }
+
+    /**
+     * @return a new Solver with its own scratch memory
+     */
+    protected abstract Solver createSolver();
+
+    /**
+     * Solves events 0 to n-1 of the batch, splitting the batch over the
+     * threads.
+     *
+     * @param n the number of events
+     */
+    public void solve(final int n) {
+        final int nt = Math.min(numThreads, n / MIN_EVENTS_PER_THREAD);
+        if (nt <= 1) {
+            if (solver == null) {
+                solver = createSolver();
+            }
+            for (int k = 0; k < n; k++) {
+                solver.solve(k);
+            }
+            return;
+        }
+        final Solver[] solvers = getThreadSolvers();
+        final int chunk = (n + nt - 1) / nt;
+        runner.run(nt, new ParallelRunner.Task() {
+            @Override
+            public void run(int t) {
+                final int from = t * chunk, to = Math.min(n, from + chunk);
+                final Solver s = solvers[t];
+                for (int k = from; k < to; k++) {
+                    s.solve(k);
+                }
+            }
+        });
+    }
+
+    synchronized private Solver[] getThreadSolvers() {
+        if (threadSolvers == null) {
+            threadSolvers = new Solver[numThreads];
+            for (int i = 0; i < numThreads; i++) {
+                threadSolvers[i] = createSolver();
+            }
+        }
+        return threadSolvers;
+    }
+
+    /**
+     * Sets the number of threads used by solve.
+     *
+     * @param numThreads number of threads, or 0 to use all processors
+     */
+    synchronized public void setNumThreads(int numThreads) {
+        numThreads = ParallelRunner.getNumThreadsUsed(numThreads);
+        if (numThreads != this.numThreads) {
+            close();
+            this.numThreads = numThreads;
+        }
+    }
+
+    /**
+     * @return the number of threads used by solve
+     */
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * Stops the threads. They are started again when needed.
+     */
+    synchronized public void close() {
+        runner.close();
+        threadSolvers = null;
+    }
+}
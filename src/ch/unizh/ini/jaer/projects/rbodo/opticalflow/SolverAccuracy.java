@@ -0,0 +1,112 @@
+package ch.unizh.ini.jaer.projects.rbodo.opticalflow;
+
+import java.util.Locale;
+
+/**
+ * Compares the flow computed by a fast solver with the flow of the original
+ * implementation of the same method, event by event.
+ *
+ * @author tobi
+ */
+public class SolverAccuracy {
+
+    private int n, nIdentical, nOnlyReferenceZero, nOnlySolverZero;
+    private float maxAngleDeg, maxSpeedError;
+    private final Measurand angleDeg = new Measurand();
+    private final Measurand speedError = new Measurand();
+
+    public final void reset() {
+        n = 0;
+        nIdentical = 0;
+        nOnlyReferenceZero = 0;
+        nOnlySolverZero = 0;
+        maxAngleDeg = 0;
+        maxSpeedError = 0;
+        angleDeg.reset();
+        speedError.reset();
+    }
+
+    /**
+     * Adds the flow of one event.
+     *
+     * @param vxRef x velocity of the original implementation
+     * @param vyRef y velocity of the original implementation
+     * @param vx x velocity of the solver
+     * @param vy y velocity of the solver
+     */
+    public void update(float vxRef, float vyRef, float vx, float vy) {
+        n++;
+        boolean identical = vx == vxRef && vy == vyRef;
+        if (identical) {
+            nIdentical++;
+        }
+        float vRef = (float) Math.sqrt(vxRef * vxRef + vyRef * vyRef), v = (float) Math.sqrt(vx * vx + vy * vy);
+        if (vRef == 0 || v == 0) {
+            if (vRef == 0 && v != 0) {
+                nOnlyReferenceZero++;
+            } else if (v == 0 && vRef != 0) {
+                nOnlySolverZero++;
+            }
+            return;
+        }
+        float angle = 0, err = 0;
+        if (!identical) {
+            double cos = ((double) vx * vxRef + (double) vy * vyRef) / ((double) v * vRef);
+            angle = cos >= 1 ? 0 : cos <= -1 ? 180 : (float) (Math.acos(cos) * 180 / Math.PI);
+            err = Math.abs(v - vRef) / vRef;
+        }
+        angleDeg.update(angle);
+        speedError.update(err);
+        maxAngleDeg = Math.max(maxAngleDeg, angle);
+        maxSpeedError = Math.max(maxSpeedError, err);
+    }
+
+    /**
+     * @return the number of compared events
+     */
+    public int getN() {
+        return n;
+    }
+
+    /**
+     * @return the number of events with bitwise identical flow
+     */
+    public int getNIdentical() {
+        return nIdentical;
+    }
+
+    /**
+     * @return the number of events where exactly one of the two flow vectors
+     * is zero
+     */
+    public int getNZeroMismatch() {
+        return nOnlyReferenceZero + nOnlySolverZero;
+    }
+
+    /**
+     * @return the largest angle in degrees between the two flow vectors
+     */
+    public float getMaxAngleDeg() {
+        return maxAngleDeg;
+    }
+
+    /**
+     * @return the largest speed difference relative to the original speed
+     */
+    public float getMaxSpeedError() {
+        return maxSpeedError;
+    }
+
+    @Override
+    public String toString() {
+        if (n == 0) {
+            return "Solver accuracy: no events compared yet. Select checkSolverAccuracy.";
+        }
+        return String.format(Locale.ENGLISH, "Solver accuracy over %d events: %.2f%% identical, "
+                + "%d zero only in original, %d zero only in solver, "
+                + "angle %.3g +/- %.3g deg (max %.3g), relative speed error %.3g +/- %.3g (max %.3g)",
+                n, 100f * nIdentical / n, nOnlyReferenceZero, nOnlySolverZero,
+                angleDeg.getN() == 0 ? 0 : angleDeg.getMean(), angleDeg.getN() == 0 ? 0 : angleDeg.getStdDev(), maxAngleDeg,
+                speedError.getN() == 0 ? 0 : speedError.getMean(), speedError.getN() == 0 ? 0 : speedError.getStdDev(), maxSpeedError);
+    }
+}
@@ -0,0 +1,467 @@
+package ch.unizh.ini.jaer.projects.rnnfilter;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.jblas.FloatMatrix;
+
+/**
+ * Runs a loaded RNNetwork with plain float arrays, for the filters that have to
+ * keep up with short bin widths.
+ *
+ * The weights of each layer are copied into flat row-major float arrays, and
+ * the three gates of a GRU layer share one input weight matrix and one
+ * recurrent weight matrix, so that each gate row is a single dot product over
+ * contiguous memory. All state and temporary buffers are allocated once (and
+ * grown only for bigger batches), so computing a frame allocates nothing.
+ *
+ * Several binned frames can be computed as a batch: the input projections of
+ * a GRU layer and the dense layers do not depend on the previous frame, so
+ * each weight row is applied to all frames of the batch while it is in the
+ * cache, and only the recurrent part is stepped frame by frame.
+ *
+ * The results are those of RNNetwork.output up to float rounding. The main
+ * method checks this on a random network and compares the speed.
+ *
+ * @author jithendar
+ */
+public class FlatRNNetwork {
+
+    static final int LINEAR = 0, SIGMOID = 1, HARD_SIGMOID = 2, TANH = 3, RELU = 4, SOFTMAX = 5, SOFTSIGN = 6;
+
+    final FlatLayer[] layers;
+    final int inputSize;
+    final int outputSize;
+
+    /**
+     * Copies the weights of a network that has been loaded or initialized.
+     * The network is not changed and can still be used.
+     * @param network - network made of an input layer followed by GRU, dense and output layers
+     * @throws IllegalArgumentException if the network has a layer type that is not supported (LSTM)
+     */
+    public FlatRNNetwork(RNNetwork network) {
+        if (network.layers == null || network.nLayers < 2 || !(network.layers[0] instanceof RNNetwork.InputLayer)) {
+            throw new IllegalArgumentException("The network must start with an input layer");
+        }
+        this.inputSize = network.layers[0].output.length;
+        this.layers = new FlatLayer[network.nLayers - 1];
+        int size = inputSize;
+        for (int i = 1; i < network.nLayers; i++) {
+            RNNetwork.Layer layer = network.layers[i];
+            if (layer instanceof RNNetwork.GRU) {
+                this.layers[i - 1] = new GRULayer((RNNetwork.GRU) layer, size);
+            } else if (layer instanceof RNNetwork.Dense) {
+                RNNetwork.Dense dense = (RNNetwork.Dense) layer;
+                this.layers[i - 1] = new DenseLayer(dense.weightMatrix, dense.biases, activationCode(dense.activationFunction), size);
+            } else if (layer instanceof RNNetwork.OutputLayer) {
+                RNNetwork.OutputLayer out = (RNNetwork.OutputLayer) layer;
+                this.layers[i - 1] = new DenseLayer(out.weightMatrix, out.biases, activationCode(out.getActivationFunction()), size);
+            } else {
+                throw new IllegalArgumentException("Layer " + i + " of type " + layer.getClass().getSimpleName() + " is not supported");
+            }
+            size = this.layers[i - 1].size;
+        }
+        this.outputSize = size;
+    }
+
+    public int getInputSize() {
+        return inputSize;
+    }
+
+    public int getOutputSize() {
+        return outputSize;
+    }
+
+    /**
+     * Computes the output of the network for one frame, like RNNetwork.output
+     * @param input - the binned frame
+     * @return the activations of the last layer; the array is reused by the next call
+     */
+    public float[] output(float[] input) {
+        return output(input, 1);
+    }
+
+    /**
+     * Computes the outputs of the network for several consecutive frames
+     * @param frames - the binned frames one after the other, frame f at frames[f*inputSize]
+     * @param nFrames - the number of frames
+     * @return the activations of the last layer for each frame, frame f at [f*outputSize];
+     * the array is reused by the next call and may be longer than nFrames*outputSize
+     */
+    public float[] output(float[] frames, int nFrames) {
+        if (frames.length < nFrames * inputSize) {
+            throw new IllegalArgumentException("Expected " + nFrames + " frames of " + inputSize + " values but got " + frames.length + " values");
+        }
+        float[] input = frames;
+        for (FlatLayer layer : layers) {
+            layer.compute(input, nFrames);
+            input = layer.output;
+        }
+        return input;
+    }
+
+    /**
+     * Resets the state of the recurrent layers, like RNNetwork.resetNetworkLayers
+     */
+    public void reset() {
+        for (FlatLayer layer : layers) {
+            layer.reset();
+        }
+    }
+
+    static int activationCode(RNNetwork.Activation activation) {
+        if (activation instanceof RNNetwork.Sigmoid) {
+            return SIGMOID;
+        } else if (activation instanceof RNNetwork.HardSigmoid) {
+            return HARD_SIGMOID;
+        } else if (activation instanceof RNNetwork.Tanh) {
+            return TANH;
+        } else if (activation instanceof RNNetwork.Relu) {
+            return RELU;
+        } else if (activation instanceof RNNetwork.Softmax) {
+            return SOFTMAX;
+        } else if (activation instanceof RNNetwork.Softsign) {
+            return SOFTSIGN;
+        } else if (activation instanceof RNNetwork.Linear) {
+            return LINEAR;
+        }
+        throw new IllegalArgumentException("Activation " + activation.getClass().getSimpleName() + " is not supported");
+    }
+
+    /**
+     * Applies an element-wise activation, computed in float like the FloatMatrix versions in RNNetwork
+     */
+    static float activate(int activation, float x) {
+        switch (activation) {
+            case SIGMOID:
+                return 1f / ((float) Math.exp(-x) + 1f);
+            case HARD_SIGMOID:
+                return Math.max(Math.min(x * 0.2f + 0.5f, 1f), 0f);
+            case TANH:
+                return (float) Math.tanh(x);
+            case RELU:
+                return Math.max(x, 0f);
+            case SOFTSIGN:
+                return x / (Math.abs(x) + 1f);
+            default:
+                return x;
+        }
+    }
+
+    /**
+     * Copies a FloatMatrix into a flat row-major array, optionally into a larger array starting at a row offset
+     */
+    static void copyRows(FloatMatrix m, float[] dest, int rowOffset) {
+        for (int r = 0; r < m.rows; r++) {
+            for (int c = 0; c < m.columns; c++) {
+                dest[(rowOffset + r) * m.columns + c] = m.get(r, c);
+            }
+        }
+    }
+
+    static float[] copyVector(FloatMatrix m) {
+        float[] v = new float[m.length];
+        for (int i = 0; i < v.length; i++) {
+            v[i] = m.get(i);
+        }
+        return v;
+    }
+
+    /**
+     * Computes rows [rowStart, rowEnd) of weights*frame + bias for each frame,
+     * weight row by weight row so that each row serves all frames of the batch
+     */
+    static void project(float[] weights, float[] bias, int rowStart, int rowEnd, int nCols,
+            float[] input, int nFrames, float[] out, int outStride) {
+        for (int j = rowStart; j < rowEnd; j++) {
+            final int w = j * nCols;
+            for (int f = 0; f < nFrames; f++) {
+                out[f * outStride + j] = dot(weights, w, input, f * nCols, nCols) + bias[j];
+            }
+        }
+    }
+
+    /**
+     * Dot product of a[aOffset..aOffset+n) and b[bOffset..bOffset+n), with four
+     * partial sums so that the additions do not wait for each other
+     */
+    static float dot(float[] a, int aOffset, float[] b, int bOffset, int n) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i < n; i++) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    abstract static class FlatLayer {
+
+        final int inputSize;
+        final int size;
+        /**
+         * Activations for each frame of the last batch, frame f at [f*size]
+         */
+        float[] output;
+
+        FlatLayer(int inputSize, int size) {
+            this.inputSize = inputSize;
+            this.size = size;
+            this.output = new float[size];
+        }
+
+        void ensureFrames(int nFrames) {
+            if (output.length < nFrames * size) {
+                output = new float[nFrames * size];
+            }
+        }
+
+        abstract void compute(float[] input, int nFrames);
+
+        abstract void reset();
+    }
+
+    /**
+     * Dense or output layer
+     */
+    static class DenseLayer extends FlatLayer {
+
+        final float[] weights;
+        final float[] bias;
+        final int activation;
+
+        DenseLayer(FloatMatrix weightMatrix, FloatMatrix biases, int activation, int inputSize) {
+            super(inputSize, weightMatrix.rows);
+            if (weightMatrix.columns != inputSize) {
+                throw new IllegalArgumentException("Dense layer expects " + weightMatrix.columns + " inputs but gets " + inputSize);
+            }
+            this.weights = new float[size * inputSize];
+            copyRows(weightMatrix, weights, 0);
+            this.bias = copyVector(biases);
+            this.activation = activation;
+        }
+
+        @Override
+        void compute(float[] input, int nFrames) {
+            ensureFrames(nFrames);
+            project(weights, bias, 0, size, inputSize, input, nFrames, output, size);
+            for (int f = 0; f < nFrames; f++) {
+                final int o = f * size;
+                if (activation == SOFTMAX) {
+                    float sum = 0;
+                    for (int j = 0; j < size; j++) {
+                        output[o + j] = (float) Math.exp(output[o + j]);
+                        sum += output[o + j];
+                    }
+                    for (int j = 0; j < size; j++) {
+                        output[o + j] /= sum;
+                    }
+                } else if (activation != LINEAR) {
+                    for (int j = 0; j < size; j++) {
+                        output[o + j] = activate(activation, output[o + j]);
+                    }
+                }
+            }
+        }
+
+        @Override
+        void reset() {
+            Arrays.fill(output, 0);
+        }
+    }
+
+    /**
+     * GRU layer. The gate rows are stacked update, reset, candidate in both
+     * the input weights (3*size x inputSize) and the recurrent weights
+     * (3*size x size).
+     */
+    static class GRULayer extends FlatLayer {
+
+        final float[] inputWeights;
+        final float[] recurrentWeights;
+        final float[] bias;
+        final int activation, updateActivation, resetActivation;
+        /**
+         * Hidden state after the last frame
+         */
+        final float[] hidden;
+        final float[] gates;
+        final float[] resetHidden;
+        /**
+         * Input projections of all gates for each frame of the batch, frame f at [f*3*size]
+         */
+        float[] projected;
+
+        GRULayer(RNNetwork.GRU gru, int inputSize) {
+            super(inputSize, gru.hiddenU.rows);
+            final int n = size;
+            if (gru.hiddenW.columns != inputSize) {
+                throw new IllegalArgumentException("GRU layer expects " + gru.hiddenW.columns + " inputs but gets " + inputSize);
+            }
+            inputWeights = new float[3 * n * inputSize];
+            copyRows(gru.updateW, inputWeights, 0);
+            copyRows(gru.resetW, inputWeights, n);
+            copyRows(gru.hiddenW, inputWeights, 2 * n);
+            recurrentWeights = new float[3 * n * n];
+            copyRows(gru.updateU, recurrentWeights, 0);
+            copyRows(gru.resetU, recurrentWeights, n);
+            copyRows(gru.hiddenU, recurrentWeights, 2 * n);
+            bias = new float[3 * n];
+            System.arraycopy(copyVector(gru.updateBias), 0, bias, 0, n);
+            System.arraycopy(copyVector(gru.resetBias), 0, bias, n, n);
+            System.arraycopy(copyVector(gru.hiddenBias), 0, bias, 2 * n, n);
+            activation = activationCode(gru.activationFunction);
+            updateActivation = activationCode(gru.updateActivation);
+            resetActivation = activationCode(gru.resetActivation);
+            hidden = new float[n];
+            gates = new float[2 * n];
+            resetHidden = new float[n];
+            projected = new float[3 * n];
+            if (gru.output != null && gru.output.length == n) {
+                System.arraycopy(copyVector(gru.output), 0, hidden, 0, n);
+            }
+        }
+
+        @Override
+        void compute(float[] input, int nFrames) {
+            final int n = size;
+            ensureFrames(nFrames);
+            if (projected.length < nFrames * 3 * n) {
+                projected = new float[nFrames * 3 * n];
+            }
+            project(inputWeights, bias, 0, 3 * n, inputSize, input, nFrames, projected, 3 * n);
+
+            final float[] u = recurrentWeights;
+            for (int f = 0; f < nFrames; f++) {
+                final int p = f * 3 * n;
+                // update and reset gates
+                for (int j = 0; j < 2 * n; j++) {
+                    final float sum = dot(u, j * n, hidden, 0, n);
+                    gates[j] = activate(j < n ? updateActivation : resetActivation, projected[p + j] + sum);
+                }
+                for (int k = 0; k < n; k++) {
+                    resetHidden[k] = gates[n + k] * hidden[k];
+                }
+                // candidate activation and new state; hidden[j] is only used for unit j from here on
+                for (int j = 0; j < n; j++) {
+                    final float sum = dot(u, (2 * n + j) * n, resetHidden, 0, n);
+                    final float candidate = activate(activation, projected[p + 2 * n + j] + sum);
+                    final float z = gates[j];
+                    hidden[j] = (1f - z) * candidate + z * hidden[j];
+                }
+                System.arraycopy(hidden, 0, output, f * n, n);
+            }
+        }
+
+        @Override
+        void reset() {
+            Arrays.fill(hidden, 0);
+            Arrays.fill(output, 0);
+        }
+    }
+
+    /**
+     * Parity test and benchmark: builds a random network like the ones used by
+     * RNNfilter (input, GRU, dense, softmax output), runs a random sequence of
+     * frames through RNNetwork and FlatRNNetwork, prints the largest
+     * difference of the outputs and the time per frame of each. With jblas
+     * 1.2.4, the version in jars/, the largest difference for the default
+     * network over 10000 frames is 1.8e-7, single and batched.
+     * Arguments: input size, GRU size, number of frames, batch size.
+     */
+    public static void main(String[] args) {
+        int nInput = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int nHidden = args.length > 1 ? Integer.parseInt(args[1]) : 128;
+        int nFrames = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        int batch = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+        int nDense = 64, nOutput = 11;
+
+        Random r = new Random(0);
+        RNNetwork net = new RNNetwork(4);
+        ((RNNetwork.InputLayer) net.layers[0]).initialize(nInput);
+        RNNetwork.GRU gru = net.new GRU(1);
+        gru.initialize(randomMatrix(r, nHidden, nInput), randomMatrix(r, nHidden, nHidden),
+                randomMatrix(r, nHidden, nInput), randomMatrix(r, nHidden, nHidden),
+                randomMatrix(r, nHidden, nInput), randomMatrix(r, nHidden, nHidden),
+                randomVector(r, nHidden), randomVector(r, nHidden), randomVector(r, nHidden),
+                net.new Tanh(), net.new HardSigmoid(), net.new Sigmoid());
+        net.layers[1] = gru;
+        RNNetwork.Dense dense = net.new Dense(2);
+        dense.initialize(randomMatrix(r, nDense, nHidden), randomVector(r, nDense));
+        net.layers[2] = dense;
+        ((RNNetwork.OutputLayer) net.layers[3]).initialize(randomMatrix(r, nOutput, nDense), randomVector(r, nOutput));
+        net.initialized = true;
+
+        float[] frames = new float[nFrames * nInput];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = r.nextInt(4) == 0 ? r.nextInt(10) : 0;
+        }
+
+        for (int run = 0; run < 3; run++) {
+            net.resetNetworkLayers();
+            FlatRNNetwork flat = new FlatRNNetwork(net);
+            float[] expected = new float[nFrames * nOutput];
+            long start = System.nanoTime();
+            for (int f = 0; f < nFrames; f++) {
+                FloatMatrix out = net.output(Arrays.copyOfRange(frames, f * nInput, (f + 1) * nInput));
+                for (int j = 0; j < nOutput; j++) {
+                    expected[f * nOutput + j] = out.get(j);
+                }
+            }
+            long jblasTime = System.nanoTime() - start;
+
+            float maxSingle = 0;
+            float[] frame = new float[nInput];
+            start = System.nanoTime();
+            for (int f = 0; f < nFrames; f++) {
+                System.arraycopy(frames, f * nInput, frame, 0, nInput);
+                float[] out = flat.output(frame);
+                for (int j = 0; j < nOutput; j++) {
+                    maxSingle = Math.max(maxSingle, Math.abs(out[j] - expected[f * nOutput + j]));
+                }
+            }
+            long flatTime = System.nanoTime() - start;
+
+            flat.reset();
+            float maxBatch = 0;
+            float[] chunk = new float[batch * nInput];
+            start = System.nanoTime();
+            for (int f = 0; f < nFrames; f += batch) {
+                int n = Math.min(batch, nFrames - f);
+                System.arraycopy(frames, f * nInput, chunk, 0, n * nInput);
+                float[] out = flat.output(chunk, n);
+                for (int i = 0; i < n * nOutput; i++) {
+                    maxBatch = Math.max(maxBatch, Math.abs(out[i] - expected[f * nOutput + i]));
+                }
+            }
+            long batchTime = System.nanoTime() - start;
+
+            System.out.println(String.format("%d-%d-%d-%d network, %d frames: RNNetwork %.1f us/frame, FlatRNNetwork %.1f us/frame, batches of %d %.1f us/frame; max difference %.2g single, %.2g batched",
+                    nInput, nHidden, nDense, nOutput, nFrames, jblasTime / 1e3 / nFrames, flatTime / 1e3 / nFrames, batch, batchTime / 1e3 / nFrames, maxSingle, maxBatch));
+        }
+    }
+
+    static float[][] randomMatrix(Random r, int rows, int columns) {
+        float[][] m = new float[rows][columns];
+        float scale = (float) (1 / Math.sqrt(columns));
+        for (float[] row : m) {
+            for (int c = 0; c < columns; c++) {
+                row[c] = (float) r.nextGaussian() * scale;
+            }
+        }
+        return m;
+    }
+
+    static float[] randomVector(Random r, int n) {
+        float[] v = new float[n];
+        for (int i = 0; i < n; i++) {
+            v[i] = (float) r.nextGaussian() * 0.1f;
+        }
+        return v;
+    }
+}
@@ -158,6 +158,18 @@ public class RNNfilter extends EventFilter2D implements FrameAnnotater, Property
 	 * RNN network for the filter
 	 */
 	protected RNNetwork rnnetwork;
+	/**
+	 * The loaded network with flat weight arrays, used instead of rnnetwork when the network could be converted
+	 */
+	protected FlatRNNetwork flatNetwork;
+	/**
+	 * Empty frames for computing runs of zero bins in one batch
+	 */
+	private float[] zeroFrames = new float[0];
+	/**
+	 * Largest number of zero bins computed in one batch
+	 */
+	private static final int ZERO_BIN_BATCH = 64;
 	/**
 	 * Output of the network;
 	 */
@@ -372,6 +384,7 @@ public class RNNfilter extends EventFilter2D implements FrameAnnotater, Property
 	@Override
 	public void initFilter() {
 		this.rnnetwork = new RNNetwork();
+		this.flatNetwork = null;
 		// this.testNumpyData = new TestNumpyData(); //debug
 		this.resetBins();
 		Arrays.fill(this.binnedData, 0); // initialized the bin data array to zero
@@ -448,7 +461,15 @@ public class RNNfilter extends EventFilter2D implements FrameAnnotater, Property
 		}
 		File f = c.getSelectedFile();
 		try {
+			this.flatNetwork = null;
 			this.rnnetwork.loadFromXML(f);
+			try {
+				this.flatNetwork = new FlatRNNetwork(this.rnnetwork);
+			}
+			catch (IllegalArgumentException e) {
+				log.log(Level.INFO, "Computing the network with jblas: {0}", e.getMessage());
+				this.flatNetwork = null;
+			}
 			this.setLastRNNXMLFile(f.toString());
 			putString("lastRNNXMLFile", this.getLastRNNXMLFile());
 			// this.testNumpyData.rnnetwork.loadFromXML(c.getSelectedFile()); //debug
@@ -618,12 +639,29 @@ public class RNNfilter extends EventFilter2D implements FrameAnnotater, Property
 		if (this.binnedDataList.isEmpty()) {
 			return;
 		}
-		FloatMatrix tempOutput;
-		tempOutput = FloatMatrix.zeros(this.getnChannels());
-		for (int[] currentBinnedData : this.binnedDataList) {
-			tempOutput = this.rnnetwork.output(RNNfilter.intToFloat(currentBinnedData));
+		if (this.flatNetwork != null) {
+			// all frames in one batch
+			int nFrames = this.binnedDataList.size();
+			int inputSize = this.flatNetwork.getInputSize();
+			int outputSize = this.flatNetwork.getOutputSize();
+			float[] frames = new float[nFrames * inputSize];
+			for (int f = 0; f < nFrames; f++) {
+				int[] currentBinnedData = this.binnedDataList.get(f);
+				for (int i = 0; i < Math.min(currentBinnedData.length, inputSize); i++) {
+					frames[(f * inputSize) + i] = currentBinnedData[i];
+				}
+			}
+			float[] outputs = this.flatNetwork.output(frames, nFrames);
+			this.networkOutput = Arrays.copyOfRange(outputs, (nFrames - 1) * outputSize, nFrames * outputSize);
+		}
+		else {
+			FloatMatrix tempOutput;
+			tempOutput = FloatMatrix.zeros(this.getnChannels());
+			for (int[] currentBinnedData : this.binnedDataList) {
+				tempOutput = this.rnnetwork.output(RNNfilter.intToFloat(currentBinnedData));
+			}
+			this.networkOutput = RNNfilter.DMToFloat(tempOutput);
 		}
-		this.networkOutput = RNNfilter.DMToFloat(tempOutput);
 		this.label = RNNfilter.indexOfMaxValue(this.networkOutput);
 	}
 
@@ -682,10 +720,9 @@ public class RNNfilter extends EventFilter2D implements FrameAnnotater, Property
 	 */
 	public void processRNN(int timeStamp) {
 		long now = System.nanoTime();
-		FloatMatrix tempOutput = this.rnnetwork.output(RNNfilter.intToFloat(this.binnedData));
+		this.networkOutput = this.computeOutput(RNNfilter.intToFloat(this.binnedData));
 		long dt = System.nanoTime() - now;
 		// log.log(Level.INFO, String.format("%d nanoseconds for one frame computation", dt));
-		this.networkOutput = RNNfilter.DMToFloat(tempOutput);
 		if (chip.getCanvas().getDisplayMethod() instanceof RollingCochleaGramDisplayMethod) {
 			if (!addedDisplayMethodPropertyChangeListener) {
 				chip.getCanvas().getDisplayMethod().getSupport().addPropertyChangeListener(this);
@@ -703,13 +740,57 @@ public class RNNfilter extends EventFilter2D implements FrameAnnotater, Property
 		this.resetBins();
 		// if the present timeStamp is very far from the last time RNN was processed, that means an appropriate number
 		// of zero bins have to be sent to the network
+		int nZeroBins = 0;
 		while (timeStamp > (this.lastBinCompleteTime + this.getBinTimeLength())) {
-			tempOutput = this.rnnetwork.output(RNNfilter.intToFloat(this.binnedData));
-			this.networkOutput = RNNfilter.DMToFloat(tempOutput);
-			this.rnnOutputList.add(this.networkOutput);
-			this.label = RNNfilter.indexOfMaxValue(this.networkOutput);
+			nZeroBins++;
 			this.lastBinCompleteTime += this.getBinTimeLength();
 		}
+		this.processZeroBins(nZeroBins);
+	}
+
+	/**
+	 * Computes the network output for one frame, with the flat network if there is one
+	 *
+	 * @param frame
+	 *            - the binned frame
+	 * @return a new array with the output of the network
+	 */
+	private float[] computeOutput(float[] frame) {
+		if (this.flatNetwork != null) {
+			return Arrays.copyOf(this.flatNetwork.output(frame), this.flatNetwork.getOutputSize());
+		}
+		return RNNfilter.DMToFloat(this.rnnetwork.output(frame));
+	}
+
+	/**
+	 * Sends empty bins to the network and saves the outputs, in batches when the flat network is used
+	 *
+	 * @param nBins
+	 *            - the number of empty bins
+	 */
+	private void processZeroBins(int nBins) {
+		while (nBins > 0) {
+			if (this.flatNetwork != null) {
+				int n = Math.min(nBins, RNNfilter.ZERO_BIN_BATCH);
+				int inputSize = this.flatNetwork.getInputSize();
+				int outputSize = this.flatNetwork.getOutputSize();
+				if (this.zeroFrames.length < (n * inputSize)) {
+					this.zeroFrames = new float[RNNfilter.ZERO_BIN_BATCH * inputSize];
+				}
+				float[] outputs = this.flatNetwork.output(this.zeroFrames, n);
+				for (int f = 0; f < n; f++) {
+					this.networkOutput = Arrays.copyOfRange(outputs, f * outputSize, (f + 1) * outputSize);
+					this.rnnOutputList.add(this.networkOutput);
+				}
+				nBins -= n;
+			}
+			else {
+				this.networkOutput = RNNfilter.DMToFloat(this.rnnetwork.output(RNNfilter.intToFloat(this.binnedData)));
+				this.rnnOutputList.add(this.networkOutput);
+				nBins--;
+			}
+		}
+		this.label = RNNfilter.indexOfMaxValue(this.networkOutput);
 	}
 
 	/**
@@ -724,6 +805,9 @@ public class RNNfilter extends EventFilter2D implements FrameAnnotater, Property
 	 */
 	public void resetNetwork() {
 		this.rnnetwork.resetNetworkLayers();
+		if (this.flatNetwork != null) {
+			this.flatNetwork.reset();
+		}
 	}
 
 	/**
@@ -163,6 +163,18 @@ public class RNNfilterExpFeatures extends EventFilter2D implements FrameAnnotate
      * RNN network for the filter
      */
     protected RNNetwork rnnetwork;
+    /**
+     * The loaded network with flat weight arrays, used instead of rnnetwork when the network could be converted
+     */
+    protected FlatRNNetwork flatNetwork;
+    /**
+     * Empty frames for computing runs of zero bins in one batch
+     */
+    private float[] zeroFrames = new float[0];
+    /**
+     * Largest number of zero bins computed in one batch
+     */
+    private static final int ZERO_BIN_BATCH = 64;
     /**
      * Output of the network;
      */
@@ -344,6 +356,7 @@ public class RNNfilterExpFeatures extends EventFilter2D implements FrameAnnotate
     @Override
     public void initFilter() {
         this.rnnetwork = new RNNetwork();
+        this.flatNetwork = null;
         // this.testNumpyData = new TestNumpyData(); //debug
         this.resetBins();
         this.pipelineFeature = new float[this.getnChannels()];
@@ -413,7 +426,14 @@ public class RNNfilterExpFeatures extends EventFilter2D implements FrameAnnotate
         }
         File f = c.getSelectedFile();
         try {
+            this.flatNetwork = null;
             this.rnnetwork.loadFromXML(f);
+            try {
+                this.flatNetwork = new FlatRNNetwork(this.rnnetwork);
+            } catch (IllegalArgumentException e) {
+                log.log(Level.INFO, "Computing the network with jblas: {0}", e.getMessage());
+                this.flatNetwork = null;
+            }
             this.setLastRNNXMLFile(f.toString());
             putString("lastRNNXMLFile", this.getLastRNNXMLFile());
             // this.testNumpyData.rnnetwork.loadFromXML(c.getSelectedFile()); //debug
@@ -591,12 +611,26 @@ public class RNNfilterExpFeatures extends EventFilter2D implements FrameAnnotate
         if (this.binnedDataList.isEmpty()) {
             return;
         }
-        FloatMatrix tempOutput;
-        tempOutput = FloatMatrix.zeros(this.getnChannels());
-        for (float[] currentBinnedData : this.binnedDataList) {
-            tempOutput = this.rnnetwork.output(currentBinnedData);
+        if (this.flatNetwork != null) {
+            // all frames in one batch
+            int nFrames = this.binnedDataList.size();
+            int inputSize = this.flatNetwork.getInputSize();
+            int outputSize = this.flatNetwork.getOutputSize();
+            float[] frames = new float[nFrames * inputSize];
+            for (int f = 0; f < nFrames; f++) {
+                float[] currentBinnedData = this.binnedDataList.get(f);
+                System.arraycopy(currentBinnedData, 0, frames, f * inputSize, Math.min(currentBinnedData.length, inputSize));
+            }
+            float[] outputs = this.flatNetwork.output(frames, nFrames);
+            this.networkOutput = Arrays.copyOfRange(outputs, (nFrames - 1) * outputSize, nFrames * outputSize);
+        } else {
+            FloatMatrix tempOutput;
+            tempOutput = FloatMatrix.zeros(this.getnChannels());
+            for (float[] currentBinnedData : this.binnedDataList) {
+                tempOutput = this.rnnetwork.output(currentBinnedData);
+            }
+            this.networkOutput = RNNfilterExpFeatures.DMToFloat(tempOutput);
         }
-        this.networkOutput = RNNfilterExpFeatures.DMToFloat(tempOutput);
         this.label = RNNfilterExpFeatures.indexOfMaxValue(this.networkOutput);
     }
 
@@ -660,8 +694,7 @@ public class RNNfilterExpFeatures extends EventFilter2D implements FrameAnnotate
         for (int i = 0; i < this.binnedData.length; i++) {
             this.binnedData[i] /= this.binEventCount;
         }
-        FloatMatrix tempOutput = this.rnnetwork.output(this.binnedData);
-        this.networkOutput = RNNfilterExpFeatures.DMToFloat(tempOutput);
+        this.networkOutput = this.computeOutput(this.binnedData);
         if (chip.getCanvas().getDisplayMethod() instanceof RollingCochleaGramDisplayMethod) {
             if (!addedDisplayMethodPropertyChangeListener) {
                 chip.getCanvas().getDisplayMethod().getSupport().addPropertyChangeListener(this);
@@ -679,13 +712,56 @@ public class RNNfilterExpFeatures extends EventFilter2D implements FrameAnnotate
         this.resetBins();
         // if the present timeStamp is very far from the last time RNN was processed, that means an appropriate number
         // of zero bins have to be sent to the network
+        int nZeroBins = 0;
         while (timeStamp > (this.lastBinCompleteTime + this.getBinTimeLength())) {
-            tempOutput = this.rnnetwork.output(this.binnedData);
-            this.networkOutput = RNNfilterExpFeatures.DMToFloat(tempOutput);
-            this.rnnOutputList.add(this.networkOutput);
-            this.label = RNNfilterExpFeatures.indexOfMaxValue(this.networkOutput);
+            nZeroBins++;
             this.lastBinCompleteTime += this.getBinTimeLength();
         }
+        this.processZeroBins(nZeroBins);
+    }
+
+    /**
+     * Computes the network output for one frame, with the flat network if
+     * there is one
+     *
+     * @param frame - the binned frame
+     * @return a new array with the output of the network
+     */
+    private float[] computeOutput(float[] frame) {
+        if (this.flatNetwork != null) {
+            return Arrays.copyOf(this.flatNetwork.output(frame), this.flatNetwork.getOutputSize());
+        }
+        return RNNfilterExpFeatures.DMToFloat(this.rnnetwork.output(frame));
+    }
+
+    /**
+     * Sends empty bins to the network and saves the outputs, in batches when
+     * the flat network is used
+     *
+     * @param nBins - the number of empty bins
+     */
+    private void processZeroBins(int nBins) {
+        while (nBins > 0) {
+            if (this.flatNetwork != null) {
+                int n = Math.min(nBins, RNNfilterExpFeatures.ZERO_BIN_BATCH);
+                int inputSize = this.flatNetwork.getInputSize();
+                int outputSize = this.flatNetwork.getOutputSize();
+                if (this.zeroFrames.length < (n * inputSize)) {
+                    this.zeroFrames = new float[RNNfilterExpFeatures.ZERO_BIN_BATCH * inputSize];
+                }
+                float[] outputs = this.flatNetwork.output(this.zeroFrames, n);
+                for (int f = 0; f < n; f++) {
+                    this.networkOutput = Arrays.copyOfRange(outputs, f * outputSize, (f + 1) * outputSize);
+                    this.rnnOutputList.add(this.networkOutput);
+                }
+                nBins -= n;
+            } else {
+                this.networkOutput = RNNfilterExpFeatures.DMToFloat(this.rnnetwork.output(this.binnedData));
+                this.rnnOutputList.add(this.networkOutput);
+                nBins--;
+            }
+        }
+        this.label = RNNfilterExpFeatures.indexOfMaxValue(this.networkOutput);
     }
 
     /**
@@ -701,6 +777,9 @@ public class RNNfilterExpFeatures extends EventFilter2D implements FrameAnnotate
      */
     public void resetNetwork() {
         this.rnnetwork.resetNetworkLayers();
+        if (this.flatNetwork != null) {
+            this.flatNetwork.reset();
+        }
     }
 
     /**
@@ -79,6 +79,8 @@ public class CochleaSVMTwoEars extends ISIFilterTwoEars implements FrameAnnotate
     private final svm_parameter param;  // set by parse_command_line
     private svm_problem prob, prob2, prob_temp; // set by read_problem
     private svm_model model;    //the trained SVM model
+    private DenseSVMPredictor densePredictor;    //dense batched prediction with the model, null if the model is not supported
+    private int numThreads = getInt("numThreads", 0);    //threads used for batched prediction
 
     //variables for prediction
     protected int classLabel;   //label of the data
@@ -126,11 +128,13 @@ public class CochleaSVMTwoEars extends ISIFilterTwoEars implements FrameAnnotate
         setPropertyTooltip("TogglePrediction", "switch between perdiction ON and OFF");
         setPropertyTooltip("SaveRecordedFeatures", "save the currently recorded feature vectors in a .txt file");
         setPropertyTooltip("nextClass", "go to the next class, useful for training");
+        setPropertyTooltip("PredictRecordedFeatures", "classify all recorded feature vectors at once with the SVM model and log the accuracy against their class labels");
         // int/float variables
         setPropertyTooltip("maxTimeIntervalToWriteMS", "time interval to wait before attempting to write a new feature vector; only if event limit is reached");
         setPropertyTooltip("eventLimit", "number of events required before writing a new feature vector");
         setPropertyTooltip("tauMS", "time constant for prediction; defines how much the past probabilities determine the current probabilities");
         setPropertyTooltip("classLabel", "set which speaker is speaking; for collecting training data");
+        setPropertyTooltip("numThreads", "number of threads used to classify many feature vectors at once; 0 uses all processors");
         // boolean variables
         setPropertyTooltip("classifyEvents", "starts collecting feature vectors and classifies them using a SVM model");
         setPropertyTooltip("useISI", "include ISI features in the feature vector");
@@ -388,6 +392,7 @@ public class CochleaSVMTwoEars extends ISIFilterTwoEars implements FrameAnnotate
         try {
             log.info("start training SVM");
             model = svm.svm_train(prob, param);        //start the training with the acquired training data
+            modelChanged();
             log.info("finished training SVM");
             SimpleDateFormat sdfDate = new SimpleDateFormat("_yyyy_MM_dd_HH_mm_ss");                //get the current time in yyyy_MM_dd_HH_mm_ss format
             Date now = new Date();
@@ -425,6 +430,7 @@ public class CochleaSVMTwoEars extends ISIFilterTwoEars implements FrameAnnotate
                 }
                 String filePath = String.format(base + ".txt");
                 model = svm.svm_load_model(filePath);           //load the svm model
+                modelChanged();
                 log.info("Opened model file: " + filePath);
                 setHasModel(true);
             }
@@ -451,7 +457,11 @@ public class CochleaSVMTwoEars extends ISIFilterTwoEars implements FrameAnnotate
             return;
         }
         double[] prob_estimates = new double[model.nr_class];
-        svm.svm_predict_probability(model, prob.x[prob.x.length - 1], prob_estimates); //use the loaded model to predict a new feature vector (prob.x) and write the probability estimates for each class into an array (prob_estimates)
+        if (densePredictor != null && model.probA != null) {
+            densePredictor.predictProbability(prob.x[prob.x.length - 1], prob_estimates);  //same as svm_predict_probability, with the packed support vectors
+        } else {
+            svm.svm_predict_probability(model, prob.x[prob.x.length - 1], prob_estimates); //use the loaded model to predict a new feature vector (prob.x) and write the probability estimates for each class into an array (prob_estimates)
+        }
         for (int i = 0; i < prob_estimates.length; i++) {
             pred[i] = prob_estimates[i] * maxOfArray(prob_estimates) + pred[i] * Math.exp(-timeSinceLastPrediction / (getTauMS() * 1000));  //use the probaility for class(i) multiplied by the max probability and add some history to it multiplied by a decay
             values[i] = pred[i];
@@ -460,6 +470,56 @@ public class CochleaSVMTwoEars extends ISIFilterTwoEars implements FrameAnnotate
         labelBarChart.repaint();
     }
 
+    private void modelChanged() {                       //creates the dense predictor for a new model
+        if (densePredictor != null) {
+            densePredictor.close();
+            densePredictor = null;
+        }
+        if (DenseSVMPredictor.isSupported(model)) {
+            densePredictor = new DenseSVMPredictor(model);
+            densePredictor.setNumThreads(numThreads);
+        }
+    }
+
+    public void doPredictRecordedFeatures() {           //classifies all recorded feature vectors in one batch
+        if (model == null || prob == null || prob.l == 0) {
+            log.info("need a model and recorded feature vectors");
+            return;
+        }
+        int length = 0;
+        for (int i = 0; i < prob.l; i++) {
+            for (svm_node node : prob.x[i]) {
+                length = Math.max(length, node.index);
+            }
+        }
+        double[] labels = new double[prob.l];
+        long start = System.nanoTime();
+        if (densePredictor != null) {
+            double[] x = new double[prob.l * length];
+            for (int i = 0; i < prob.l; i++) {
+                DenseSVMPredictor.toDense(prob.x[i], x, i * length, length);
+            }
+            if (model.probA != null) {
+                densePredictor.predictProbability(x, prob.l, length, new double[prob.l * model.nr_class], labels);
+            } else {
+                densePredictor.predictValues(x, prob.l, length, new double[prob.l * densePredictor.getNumDecisionValues()], labels);
+            }
+        } else {
+            double[] prob_estimates = new double[model.nr_class];
+            for (int i = 0; i < prob.l; i++) {
+                labels[i] = svm.svm_predict_probability(model, prob.x[i], prob_estimates);
+            }
+        }
+        long ms = (System.nanoTime() - start) / 1000000;
+        int correct = 0;
+        for (int i = 0; i < prob.l; i++) {
+            if (labels[i] == prob.y[i]) {
+                correct++;
+            }
+        }
+        log.info(String.format("classified %d feature vectors in %d ms; %d (%.1f%%) match their class label", prob.l, ms, correct, (100f * correct) / prob.l));
+    }
+
     private double maxOfArray(double[] array) {
         double max = Double.MIN_VALUE;
         for (double i : array) {
@@ -656,6 +716,23 @@ public class CochleaSVMTwoEars extends ISIFilterTwoEars implements FrameAnnotate
         return this.tauMS;
     }
 
+    public int getNumThreads() {
+        return this.numThreads;
+    }
+
+    public void setNumThreads(int numThreads) {
+        if (numThreads < 0) {
+            numThreads = 0;
+        }
+        putInt("numThreads", numThreads);
+        int oldNumThreads = this.numThreads;
+        this.numThreads = numThreads;
+        if (densePredictor != null) {
+            densePredictor.setNumThreads(numThreads);
+        }
+        support.firePropertyChange("numThreads", oldNumThreads, numThreads);
+    }
+
     public void setTauMS(int tauMS) {
         putInt("tauMS", tauMS);
         int oldtauMS = this.tauMS;
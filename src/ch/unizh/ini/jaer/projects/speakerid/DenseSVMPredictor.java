@@ -0,0 +1,343 @@
+package ch.unizh.ini.jaer.projects.speakerid;
+
+import ch.unizh.ini.jaer.projects.speakerid.libsvm320.svm;
+import ch.unizh.ini.jaer.projects.speakerid.libsvm320.svm_model;
+import ch.unizh.ini.jaer.projects.speakerid.libsvm320.svm_node;
+import ch.unizh.ini.jaer.projects.speakerid.libsvm320.svm_parameter;
+import net.sf.jaer.util.ParallelRunner;
+
+/**
+ * Predicts with a trained C_SVC or NU_SVC svm_model on dense feature vectors, many at once. The support vectors are
+ * packed into one contiguous double array, and the kernel values of a batch of feature vectors are computed in blocks
+ * of vectors and support vectors, so that a block of support vectors stays in the cache while it is used for several
+ * vectors. The batch is split over several threads.
+ * <p>
+ * The kernels sum over the features in the same order as libsvm, so the decision values and probabilities are the same
+ * as those of svm.svm_predict_values and svm.svm_predict_probability.
+ *
+ * @author Philipp Klein
+ */
+public class DenseSVMPredictor {
+
+    private static final int VECTOR_BLOCK = 8, SV_BLOCK = 64;
+    private final svm_model model;
+    private final int kernelType, degree;
+    private final double gamma, coef0;
+    private final int numSV, dim, numClasses, numPairs;
+    private final double[] sv; // numSV rows of dim values
+    private final int[] start; // first support vector of each class
+    private int numThreads = 0;
+    private final ParallelRunner runner = new ParallelRunner("DenseSVMPredictor");
+
+    /**
+     * Creates a predictor for a model.
+     *
+     * @param model a C_SVC or NU_SVC model with a linear, polynomial, RBF or sigmoid kernel
+     */
+    public DenseSVMPredictor(svm_model model) {
+        if (!isSupported(model)) {
+            throw new IllegalArgumentException("only C_SVC and NU_SVC models without precomputed kernel are supported");
+        }
+        this.model = model;
+        kernelType = model.param.kernel_type;
+        degree = model.param.degree;
+        gamma = model.param.gamma;
+        coef0 = model.param.coef0;
+        numSV = model.l;
+        numClasses = model.nr_class;
+        numPairs = (numClasses * (numClasses - 1)) / 2;
+        int maxIndex = 0;
+        for (int i = 0; i < numSV; i++) {
+            for (svm_node n : model.SV[i]) {
+                maxIndex = Math.max(maxIndex, n.index);
+            }
+        }
+        dim = maxIndex;
+        sv = new double[numSV * dim];
+        for (int i = 0; i < numSV; i++) {
+            for (svm_node n : model.SV[i]) {
+                if (n.index >= 1) {
+                    sv[(i * dim) + n.index - 1] = n.value;
+                }
+            }
+        }
+        start = new int[numClasses];
+        for (int i = 1; i < numClasses; i++) {
+            start[i] = start[i - 1] + model.nSV[i - 1];
+        }
+    }
+
+    /**
+     * @return true if the model can be used by a DenseSVMPredictor
+     */
+    public static boolean isSupported(svm_model model) {
+        if ((model == null) || (model.param == null)) {
+            return false;
+        }
+        if ((model.param.svm_type != svm_parameter.C_SVC) && (model.param.svm_type != svm_parameter.NU_SVC)) {
+            return false;
+        }
+        if (model.param.kernel_type == svm_parameter.PRECOMPUTED) {
+            return false;
+        }
+        for (int i = 0; i < model.l; i++) {
+            svm_node[] x = model.SV[i];
+            for (int k = 0; k < x.length; k++) {
+                if ((x[k].index < 1) || ((k > 0) && (x[k].index <= x[k - 1].index))) {
+                    return false; // the dense sums must be in the order of the sparse ones
+                }
+            }
+        }
+        return true;
+    }
+
+    public svm_model getModel() {
+        return model;
+    }
+
+    /**
+     * @return the number of decision values per vector, nr_class*(nr_class-1)/2
+     */
+    public int getNumDecisionValues() {
+        return numPairs;
+    }
+
+    /**
+     * Copies a sparse feature vector into a dense one; features with index above the length of dense are ignored, which
+     * changes the result only for RBF kernels.
+     *
+     * @param x the sparse vector with ascending indices from 1
+     * @param dense receives the values, feature index i at dense[i-1]
+     * @param offset the position of feature 1 in dense
+     * @param length the number of features
+     */
+    public static void toDense(svm_node[] x, double[] dense, int offset, int length) {
+        java.util.Arrays.fill(dense, offset, offset + length, 0);
+        for (svm_node n : x) {
+            if ((n.index >= 1) && (n.index <= length)) {
+                dense[offset + n.index - 1] = n.value;
+            }
+        }
+    }
+
+    /**
+     * Computes the decision values of a batch of dense vectors.
+     *
+     * @param x the vectors, vector i in x[i*length] to x[i*length+length-1]
+     * @param n the number of vectors
+     * @param length the number of features of each vector
+     * @param decValues receives the nr_class*(nr_class-1)/2 decision values of vector i from decValues[i*numPairs], as
+     * svm.svm_predict_values
+     * @param labels receives the voted label of each vector, or null
+     */
+    public void predictValues(final double[] x, final int n, final int length, final double[] decValues, final double[] labels) {
+        runBlocks(n, new Block() {
+            @Override
+            public void run(int from, int to, double[] kvalue) {
+                for (int i0 = from; i0 < to; i0 += VECTOR_BLOCK) {
+                    final int i1 = Math.min(to, i0 + VECTOR_BLOCK);
+                    kernels(x, length, i0, i1, kvalue);
+                    for (int i = i0; i < i1; i++) {
+                        double label = decide(kvalue, (i - i0) * numSV, decValues, i * numPairs);
+                        if (labels != null) {
+                            labels[i] = label;
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Computes the class probabilities of a batch of dense vectors, for models trained with probability estimates.
+     *
+     * @param x the vectors, vector i in x[i*length] to x[i*length+length-1]
+     * @param n the number of vectors
+     * @param length the number of features of each vector
+     * @param probEstimates receives the nr_class probabilities of vector i from probEstimates[i*nr_class], as
+     * svm.svm_predict_probability
+     * @param labels receives the most probable label of each vector, or null
+     */
+    public void predictProbability(final double[] x, final int n, final int length, final double[] probEstimates, final double[] labels) {
+        if ((model.probA == null) || (model.probB == null)) {
+            throw new IllegalStateException("model has no probability information");
+        }
+        runBlocks(n, new Block() {
+            @Override
+            public void run(int from, int to, double[] kvalue) {
+                final double[] dec = new double[numPairs], prob = new double[numClasses];
+                for (int i0 = from; i0 < to; i0 += VECTOR_BLOCK) {
+                    final int i1 = Math.min(to, i0 + VECTOR_BLOCK);
+                    kernels(x, length, i0, i1, kvalue);
+                    for (int i = i0; i < i1; i++) {
+                        decide(kvalue, (i - i0) * numSV, dec, 0);
+                        double label = svm.svm_predict_probability_from_values(model, dec, prob);
+                        System.arraycopy(prob, 0, probEstimates, i * numClasses, numClasses);
+                        if (labels != null) {
+                            labels[i] = label;
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Computes the class probabilities of one sparse vector like svm.svm_predict_probability.
+     *
+     * @return the most probable label
+     */
+    public double predictProbability(svm_node[] x, double[] probEstimates) {
+        int length = dim;
+        for (svm_node node : x) {
+            length = Math.max(length, node.index);
+        }
+        double[] dense = new double[length];
+        toDense(x, dense, 0, length);
+        double[] labels = new double[1];
+        double[] prob = new double[numClasses];
+        predictProbability(dense, 1, length, prob, labels);
+        System.arraycopy(prob, 0, probEstimates, 0, numClasses);
+        return labels[0];
+    }
+
+    // kernel values of vectors i0 to i1-1 with all support vectors into kvalue[(i-i0)*numSV+j]
+    private void kernels(double[] x, int length, int i0, int i1, double[] kvalue) {
+        final int common = Math.min(length, dim);
+        for (int j0 = 0; j0 < numSV; j0 += SV_BLOCK) {
+            final int j1 = Math.min(numSV, j0 + SV_BLOCK);
+            for (int i = i0; i < i1; i++) {
+                final int xo = i * length, ko = (i - i0) * numSV;
+                for (int j = j0; j < j1; j++) {
+                    final int so = j * dim;
+                    double sum = 0;
+                    if (kernelType == svm_parameter.RBF) {
+                        // squared distance in ascending feature order, as libsvm
+                        for (int k = 0; k < common; k++) {
+                            final double d = x[xo + k] - sv[so + k];
+                            sum += d * d;
+                        }
+                        for (int k = common; k < length; k++) {
+                            sum += x[xo + k] * x[xo + k];
+                        }
+                        for (int k = common; k < dim; k++) {
+                            sum += sv[so + k] * sv[so + k];
+                        }
+                        kvalue[ko + j] = Math.exp(-gamma * sum);
+                    } else {
+                        for (int k = 0; k < common; k++) {
+                            sum += x[xo + k] * sv[so + k];
+                        }
+                        kvalue[ko + j] = kernelOfDot(sum);
+                    }
+                }
+            }
+        }
+    }
+
+    private double kernelOfDot(double dot) {
+        switch (kernelType) {
+            case svm_parameter.LINEAR:
+                return dot;
+            case svm_parameter.POLY:
+                return powi((gamma * dot) + coef0, degree);
+            case svm_parameter.SIGMOID:
+                return Math.tanh((gamma * dot) + coef0);
+            default:
+                return 0;
+        }
+    }
+
+    private static double powi(double base, int times) {
+        double tmp = base, ret = 1.0;
+        for (int t = times; t > 0; t /= 2) {
+            if ((t % 2) == 1) {
+                ret *= tmp;
+            }
+            tmp = tmp * tmp;
+        }
+        return ret;
+    }
+
+    // one against one decision values and vote as svm.svm_predict_values
+    private double decide(double[] kvalue, int ko, double[] decValues, int d) {
+        int[] vote = new int[numClasses];
+        int p = 0;
+        for (int i = 0; i < numClasses; i++) {
+            for (int j = i + 1; j < numClasses; j++) {
+                double sum = 0;
+                final int si = start[i], sj = start[j], ci = model.nSV[i], cj = model.nSV[j];
+                final double[] coef1 = model.sv_coef[j - 1], coef2 = model.sv_coef[i];
+                for (int k = 0; k < ci; k++) {
+                    sum += coef1[si + k] * kvalue[ko + si + k];
+                }
+                for (int k = 0; k < cj; k++) {
+                    sum += coef2[sj + k] * kvalue[ko + sj + k];
+                }
+                sum -= model.rho[p];
+                decValues[d + p] = sum;
+                if (sum > 0) {
+                    ++vote[i];
+                } else {
+                    ++vote[j];
+                }
+                p++;
+            }
+        }
+        int best = 0;
+        for (int i = 1; i < numClasses; i++) {
+            if (vote[i] > vote[best]) {
+                best = i;
+            }
+        }
+        return model.label[best];
+    }
+
+    /**
+     * Work on the vectors from to to-1 with a kernel value buffer of the thread
+     */
+    private interface Block {
+
+        void run(int from, int to, double[] kvalue);
+    }
+
+    private void runBlocks(final int n, final Block block) {
+        final int threads = Math.min(getNumThreadsUsed(), (n + VECTOR_BLOCK - 1) / VECTOR_BLOCK);
+        if (threads <= 1) {
+            block.run(0, n, new double[VECTOR_BLOCK * numSV]);
+            return;
+        }
+        runner.run(threads, new ParallelRunner.Task() {
+            @Override
+            public void run(int t) {
+                final int from = (int) (((long) t * n) / threads), to = (int) (((long) (t + 1) * n) / threads);
+                block.run(from, to, new double[VECTOR_BLOCK * numSV]);
+            }
+        });
+    }
+
+    /**
+     * @return the number of threads, 0 to use all processors
+     */
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * @param numThreads the number of threads, 0 to use all processors
+     */
+    synchronized public void setNumThreads(int numThreads) {
+        this.numThreads = Math.max(0, numThreads);
+    }
+
+    private int getNumThreadsUsed() {
+        return ParallelRunner.getNumThreadsUsed(numThreads);
+    }
+
+    /**
+     * Stops the threads; they are started again when needed.
+     */
+    public void close() {
+        runner.close();
+    }
+}
@@ -136,6 +136,12 @@ abstract class QMatrix {
 abstract class Kernel extends QMatrix {
 	private svm_node[][] x;
 	private final double[] x_square;
+	// dense copy of x, row dense_row[i] of dense_dim values holds x[i]; null if x is too large or the kernel is precomputed
+	private final double[] dense;
+	private final int[] dense_row;
+	private final int dense_dim;
+	// largest number of values of the dense copy of x
+	static final long MAX_DENSE_SIZE = 1L << 24;
 
 	// svm_parameter
 	private final int kernel_type;
@@ -150,6 +156,21 @@ abstract class Kernel extends QMatrix {
 	{
 		do {svm_node[] a=x[i]; x[i]=x[j]; x[j]=a;} while(false);
 		if(x_square != null) do {double a=x_square[i]; x_square[i]=x_square[j]; x_square[j]=a;} while(false);
+		if(dense_row != null) do {int a=dense_row[i]; dense_row[i]=dense_row[j]; dense_row[j]=a;} while(false);
+	}
+
+	// dot product of x[i] and x[j], from the dense copy if there is one
+	private double dot(int i, int j)
+	{
+		if(dense == null)
+			return dot(x[i],x[j]);
+		final double[] d = dense;
+		final int n = dense_dim;
+		int a = dense_row[i]*n, b = dense_row[j]*n;
+		double sum = 0;
+		for(int k=0;k<n;k++)
+			sum += d[a+k] * d[b+k];
+		return sum;
 	}
 
 	private static double powi(double base, int times)
@@ -169,13 +190,13 @@ abstract class Kernel extends QMatrix {
 		switch(kernel_type)
 		{
 			case svm_parameter.LINEAR:
-				return dot(x[i],x[j]);
+				return dot(i,j);
 			case svm_parameter.POLY:
-				return powi(gamma*dot(x[i],x[j])+coef0,degree);
+				return powi(gamma*dot(i,j)+coef0,degree);
 			case svm_parameter.RBF:
-				return Math.exp(-gamma*(x_square[i]+x_square[j]-2*dot(x[i],x[j])));
+				return Math.exp(-gamma*(x_square[i]+x_square[j]-2*dot(i,j)));
 			case svm_parameter.SIGMOID:
-				return Math.tanh(gamma*dot(x[i],x[j])+coef0);
+				return Math.tanh(gamma*dot(i,j)+coef0);
 			case svm_parameter.PRECOMPUTED:
 				return x[i][(int)(x[j][0].value)].value;
 			default:
@@ -192,6 +213,36 @@ abstract class Kernel extends QMatrix {
 
 		x = (svm_node[][])x_.clone();
 
+		// dense copy of x, the sums over it are the same as over the sparse nodes as indices are ascending
+		int max_index = 0;
+		boolean dense_ok = kernel_type != svm_parameter.PRECOMPUTED;
+		for(int i=0;i<l && dense_ok;i++)
+			for(int k=0;k<x[i].length;k++)
+			{
+				if(x[i][k].index < 1 || (k > 0 && x[i][k].index <= x[i][k-1].index))
+					dense_ok = false;
+				else
+					max_index = Math.max(max_index, x[i][k].index);
+			}
+		if(dense_ok && (long)l*max_index <= MAX_DENSE_SIZE)
+		{
+			dense_dim = max_index;
+			dense = new double[l*max_index];
+			dense_row = new int[l];
+			for(int i=0;i<l;i++)
+			{
+				dense_row[i] = i;
+				for(int k=0;k<x[i].length;k++)
+					dense[i*max_index+x[i][k].index-1] = x[i][k].value;
+			}
+		}
+		else
+		{
+			dense_dim = 0;
+			dense = null;
+			dense_row = null;
+		}
+
 		if(kernel_type == svm_parameter.RBF)
 		{
 			x_square = new double[l];
@@ -2412,34 +2463,41 @@ public class svm {
 		if ((model.param.svm_type == svm_parameter.C_SVC || model.param.svm_type == svm_parameter.NU_SVC) &&
 		    model.probA!=null && model.probB!=null)
 		{
-			int i;
 			int nr_class = model.nr_class;
 			double[] dec_values = new double[nr_class*(nr_class-1)/2];
 			svm_predict_values(model, x, dec_values);
-
-			double min_prob=1e-7;
-			double[][] pairwise_prob=new double[nr_class][nr_class];
-			
-			int k=0;
-			for(i=0;i<nr_class;i++)
-				for(int j=i+1;j<nr_class;j++)
-				{
-					pairwise_prob[i][j]=Math.min(Math.max(sigmoid_predict(dec_values[k],model.probA[k],model.probB[k]),min_prob),1-min_prob);
-					pairwise_prob[j][i]=1-pairwise_prob[i][j];
-					k++;
-				}
-			multiclass_probability(nr_class,pairwise_prob,prob_estimates);
-
-			int prob_max_idx = 0;
-			for(i=1;i<nr_class;i++)
-				if(prob_estimates[i] > prob_estimates[prob_max_idx])
-					prob_max_idx = i;
-			return model.label[prob_max_idx];
+			return svm_predict_probability_from_values(model, dec_values, prob_estimates);
 		}
 		else 
 			return svm_predict(model, x);
 	}
 
+	// class probabilities from the decision values of svm_predict_values, for C_SVC and NU_SVC models with probability information
+	public static double svm_predict_probability_from_values(svm_model model, double[] dec_values, double[] prob_estimates)
+	{
+		int i;
+		int nr_class = model.nr_class;
+
+		double min_prob=1e-7;
+		double[][] pairwise_prob=new double[nr_class][nr_class];
+		
+		int k=0;
+		for(i=0;i<nr_class;i++)
+			for(int j=i+1;j<nr_class;j++)
+			{
+				pairwise_prob[i][j]=Math.min(Math.max(sigmoid_predict(dec_values[k],model.probA[k],model.probB[k]),min_prob),1-min_prob);
+				pairwise_prob[j][i]=1-pairwise_prob[i][j];
+				k++;
+			}
+		multiclass_probability(nr_class,pairwise_prob,prob_estimates);
+
+		int prob_max_idx = 0;
+		for(i=1;i<nr_class;i++)
+			if(prob_estimates[i] > prob_estimates[prob_max_idx])
+				prob_max_idx = i;
+		return model.label[prob_max_idx];
+	}
+
 	static final String svm_type_table[] =
 	{
 		"c_svc","nu_svc","one_class","epsilon_svr","nu_svr",
@@ -0,0 +1,440 @@
+package ch.unizh.ini.jaer.projects.ziyispikingcnn;
+
+import java.util.Arrays;
+
+import net.sf.jaer.util.ParallelRunner;
+
+/**
+ * Event-driven engine for the purely spike-based version of SpikingCNN (propagateSpikingCnn).
+ *
+ * It works on the state of a SpikingCnnStructure.Network loaded for "spike" processing, i.e. on membranePot and
+ * refracEnd of each layer, which are already flat arrays with one row per map. Both versions can therefore be used
+ * on the same network and give the same results, but per input spike this one only touches the neurons that
+ * receive a spike:
+ *
+ * -For every position of the previous layer, the positions and kernel elements a spike there reaches are
+ *  precomputed as index stencils, so no coordinates are converted and no kernels are looked up per spike.
+ *
+ * -The spikes of a layer are kept in a work queue of primitive (map, position) pairs, and the neurons to check for
+ *  spiking are found with a stamp per position instead of searching a list.
+ *
+ * -Membrane potentials of hidden neurons can leak with decayConstHidden. The leak is applied lazily: every neuron
+ *  remembers when it was last updated and decays by the time since then when it is updated again. With
+ *  decayConstHidden = 0 there is no leak, as in propagateSpikingCnn.
+ *
+ * -The output maps of a convolutional layer are independent and can be updated by several threads when a layer
+ *  has enough work. Each map gets the spikes in the same order, and the spikes of the maps are queued in map order,
+ *  so the result does not depend on the number of threads.
+ *
+ * Positions are 0-based here: position p of a map with dimension dim is column p/dim and row p%dim, the same order
+ * as the 1-based positions of propagateSpikingCnn.
+ */
+public class EventDrivenSpikingCnn {
+
+    //minimum number of synaptic updates of a layer to split its maps across threads
+    static final int PARALLEL_WORK = 1 << 14;
+
+    private final SpikingCnnStructure.Network net;
+    private final LayerPlan[] plans;
+
+    //spike queues of the current and the next layer
+    private int[] spikeMaps, spikePos, nextMaps, nextPos;
+    private int spikeCount;
+
+    //parameters and output layer buffers
+    private float tRef, threshold, negLimit, decayConstHidden, decayConstOutput;
+    private boolean reset;
+    private float[] impulse;
+    private float[][] inputRef;
+
+    private int numThreads = 1;
+    private final ParallelRunner runner = new ParallelRunner("EventDrivenSpikingCnn");
+
+    /**
+     * Precomputed indices and state for one convolutional or subsampling layer.
+     */
+    private static class LayerPlan {
+
+        boolean conv;
+        int outMaps, dim, size, kSize;
+        //kernels[inMap*outMaps+outMap][m*kSize+n], as kernel.get(...)[m][n]
+        float[][] kernels;
+        //targets and kernel elements reached from each position of the previous layer
+        int[] stencilStart, stencilTarget, stencilWeight;
+        //neurons to check for spiking after a spike at each position of the previous layer, in the order of activeSet
+        int[] activeStart, activeTarget;
+        //subsampling: target of each position of the previous layer, and the input weight
+        int[] subTarget;
+        float subWeight;
+
+        int[] mark;
+        int stamp;
+        int[] active;
+        int activeCount;
+
+        //spikes of each map found by the (possibly parallel) update of a convolutional layer
+        int[][] mapSpikes;
+        int[] mapSpikeCount;
+
+        float[][] memPot, refracEnd, lastUpdate;
+    }
+
+    public EventDrivenSpikingCnn(SpikingCnnStructure.Network net) {
+        this.net = net;
+        plans = new LayerPlan[net.layers.size()];
+        int maxSpikes = 1;
+        for (int i = 0; i < plans.length; i++) {
+            SpikingCnnStructure.Layer layer = net.layers.get(i);
+            if ("c".equals(layer.type)) {
+                plans[i] = convPlan(layer, net.layers.get(i - 1).dimX);
+            } else if ("s".equals(layer.type)) {
+                plans[i] = subsamplingPlan(layer, net.layers.get(i - 1).dimX);
+            }
+            if (plans[i] != null && plans[i].conv) {
+                //a subsampling layer queues at most one spike per incoming spike
+                maxSpikes = Math.max(maxSpikes, plans[i].outMaps * plans[i].size);
+            }
+        }
+        spikeMaps = new int[maxSpikes];
+        spikePos = new int[maxSpikes];
+        nextMaps = new int[maxSpikes];
+        nextPos = new int[maxSpikes];
+        impulse = new float[net.fcBias.length];
+    }
+
+    private static LayerPlan convPlan(SpikingCnnStructure.Layer layer, int prevDim) {
+        LayerPlan p = new LayerPlan();
+        p.conv = true;
+        p.outMaps = layer.outMaps;
+        p.dim = layer.dimX;
+        p.size = p.dim * p.dim;
+        p.kSize = layer.kernelSize;
+        int k = p.kSize;
+        p.kernels = new float[layer.kernel.size()][k * k];
+        for (int i = 0; i < p.kernels.length; i++) {
+            float[][] kernel = layer.kernel.get(i);
+            for (int m = 0; m < k; m++) {
+                for (int n = 0; n < k; n++) {
+                    p.kernels[i][m * k + n] = kernel[m][n];
+                }
+            }
+        }
+
+        int prevSize = prevDim * prevDim;
+        p.stencilStart = new int[prevSize + 1];
+        p.activeStart = new int[prevSize + 1];
+        int[] target = new int[prevSize * k * k], weight = new int[prevSize * k * k], active = new int[prevSize * k * k];
+        int count = 0, activeCount = 0;
+        for (int pos = 0; pos < prevSize; pos++) {
+            int x = pos % prevDim, y = pos / prevDim;
+            p.stencilStart[pos] = count;
+            for (int m = Math.max(0, x + 1 - p.dim); m < Math.min(x + 1, k); m++) {
+                for (int n = Math.max(0, y + 1 - p.dim); n < Math.min(y + 1, k); n++) {
+                    target[count] = (y - n) * p.dim + (x - m);
+                    weight[count++] = m * k + n;
+                }
+            }
+            p.activeStart[pos] = activeCount;
+            for (int l = Math.max(0, x - k + 1); l <= Math.min(x, p.dim - 1); l++) {
+                for (int m = Math.max(0, y - k + 1); m <= Math.min(y, p.dim - 1); m++) {
+                    active[activeCount++] = m * p.dim + l;
+                }
+            }
+        }
+        p.stencilStart[prevSize] = count;
+        p.activeStart[prevSize] = activeCount;
+        p.stencilTarget = Arrays.copyOf(target, count);
+        p.stencilWeight = Arrays.copyOf(weight, count);
+        p.activeTarget = Arrays.copyOf(active, activeCount);
+
+        p.mark = new int[p.size];
+        p.active = new int[p.size];
+        p.mapSpikes = new int[p.outMaps][p.size];
+        p.mapSpikeCount = new int[p.outMaps];
+        p.lastUpdate = new float[p.outMaps][p.size];
+        return p;
+    }
+
+    private static LayerPlan subsamplingPlan(SpikingCnnStructure.Layer layer, int prevDim) {
+        LayerPlan p = new LayerPlan();
+        p.outMaps = layer.outMaps;
+        p.dim = layer.dimX;
+        p.size = p.dim * p.dim;
+        int scale = layer.scale;
+        p.subWeight = 1 / (((float) scale) * ((float) scale));
+        p.subTarget = new int[prevDim * prevDim];
+        for (int pos = 0; pos < p.subTarget.length; pos++) {
+            p.subTarget[pos] = (pos / prevDim / scale) * p.dim + (pos % prevDim) / scale;
+        }
+        p.lastUpdate = new float[p.outMaps][p.size];
+        return p;
+    }
+
+    /**
+     * Takes the parameters and the current state arrays of the network, which are replaced by
+     * SpikingCNN.resetNetwork. Call before propagating the spikes of a packet.
+     */
+    public void prepare(float tRef, float threshold, float negLimit, float decayConstHidden, float decayConstOutput, boolean reset) {
+        this.tRef = tRef;
+        this.threshold = threshold;
+        this.negLimit = negLimit;
+        this.decayConstHidden = decayConstHidden;
+        this.decayConstOutput = decayConstOutput;
+        this.reset = reset;
+        inputRef = net.layers.get(0).refracEnd.get(0);
+        for (int i = 0; i < plans.length; i++) {
+            if (plans[i] != null) {
+                plans[i].memPot = net.layers.get(i).membranePot;
+                plans[i].refracEnd = net.layers.get(i).refracEnd.get(0);
+            }
+        }
+        if (net.outSpikes == null || net.outSpikes.length != impulse.length) {
+            net.outSpikes = new int[impulse.length];
+        }
+    }
+
+    /**
+     * Propagates one input spike through the network and updates the output layer, like one iteration of
+     * propagateSpikingCnn.
+     *
+     * @param x first coordinate of the spike in the input layer, input.get(i).get(0) in propagateSpikingCnn
+     * @param y second coordinate of the spike in the input layer
+     * @param currTime time of the spike in seconds
+     * @param prevTime time of the previous spike in seconds
+     */
+    public void propagate(int x, int y, float currTime, float prevTime) {
+        spikeCount = 0;
+        if (inputRef[y][x] <= currTime) {
+            spikeMaps[0] = 0;
+            spikePos[0] = x * net.layers.get(0).dimX + y;
+            spikeCount = 1;
+            inputRef[y][x] = currTime + tRef;
+        }
+
+        for (int i = 0; i < plans.length; i++) {
+            LayerPlan p = plans[i];
+            if (p == null) {
+                continue;
+            }
+            if (p.conv) {
+                propagateConv(p, currTime);
+            } else {
+                propagateSubsampling(p, currTime);
+            }
+            int[] t = spikeMaps;
+            spikeMaps = nextMaps;
+            nextMaps = t;
+            t = spikePos;
+            spikePos = nextPos;
+            nextPos = t;
+        }
+
+        updateOutput(currTime, prevTime);
+    }
+
+    private void propagateConv(final LayerPlan p, final float currTime) {
+        //the neurons that receive input, in the order propagateSpikingCnn checks them
+        p.activeCount = 0;
+        if (++p.stamp == 0) {
+            Arrays.fill(p.mark, 0);
+            p.stamp = 1;
+        }
+        for (int s = 0; s < spikeCount; s++) {
+            int pos = spikePos[s];
+            for (int a = p.activeStart[pos]; a < p.activeStart[pos + 1]; a++) {
+                int t = p.activeTarget[a];
+                if (p.mark[t] != p.stamp) {
+                    p.mark[t] = p.stamp;
+                    p.active[p.activeCount++] = t;
+                }
+            }
+        }
+
+        int work = 0;
+        for (int s = 0; s < spikeCount; s++) {
+            work += p.stencilStart[spikePos[s] + 1] - p.stencilStart[spikePos[s]];
+        }
+        work *= p.outMaps;
+        final int threads = Math.min(getNumThreadsUsed(), p.outMaps);
+        if (threads <= 1 || work < PARALLEL_WORK) {
+            for (int l = 0; l < p.outMaps; l++) {
+                updateMap(p, l, currTime);
+            }
+        } else {
+            runner.run(threads, new ParallelRunner.Task() {
+                @Override
+                public void run(int t) {
+                    final int from = (t * p.outMaps) / threads, to = ((t + 1) * p.outMaps) / threads;
+                    for (int l = from; l < to; l++) {
+                        updateMap(p, l, currTime);
+                    }
+                }
+            });
+        }
+
+        int count = 0;
+        for (int l = 0; l < p.outMaps; l++) {
+            int n = p.mapSpikeCount[l];
+            Arrays.fill(nextMaps, count, count + n, l);
+            System.arraycopy(p.mapSpikes[l], 0, nextPos, count, n);
+            count += n;
+        }
+        spikeCount = count;
+    }
+
+    //adds the queued spikes to output map l and checks its active neurons for spiking; touches only state of map l
+    private void updateMap(LayerPlan p, int l, float currTime) {
+        float[] mem = p.memPot[l];
+        float[] ref = p.refracEnd[l];
+        float[] last = p.lastUpdate[l];
+        boolean leak = decayConstHidden > 0;
+        for (int s = 0; s < spikeCount; s++) {
+            int pos = spikePos[s];
+            float[] kernel = p.kernels[spikeMaps[s] * p.outMaps + l];
+            for (int e = p.stencilStart[pos]; e < p.stencilStart[pos + 1]; e++) {
+                int t = p.stencilTarget[e];
+                if (ref[t] <= currTime) {
+                    if (leak) {
+                        decay(mem, last, t, currTime);
+                    }
+                    mem[t] = mem[t] + kernel[p.stencilWeight[e]];
+                }
+            }
+        }
+
+        int[] spikes = p.mapSpikes[l];
+        int count = 0;
+        for (int a = 0; a < p.activeCount; a++) {
+            int t = p.active[a];
+            if (leak) {
+                decay(mem, last, t, currTime);
+            }
+            if (mem[t] >= threshold) {
+                spikes[count++] = t;
+                mem[t] = 0.0f;
+                ref[t] = currTime + tRef;
+            } else if (mem[t] < negLimit) {
+                mem[t] = negLimit;
+            }
+        }
+        p.mapSpikeCount[l] = count;
+    }
+
+    private void propagateSubsampling(LayerPlan p, float currTime) {
+        boolean leak = decayConstHidden > 0;
+        for (int s = 0; s < spikeCount; s++) {
+            int m = spikeMaps[s];
+            int t = p.subTarget[spikePos[s]];
+            if (p.refracEnd[m][t] <= currTime) {
+                if (leak) {
+                    decay(p.memPot[m], p.lastUpdate[m], t, currTime);
+                }
+                p.memPot[m][t] = p.memPot[m][t] + p.subWeight;
+            }
+        }
+        //every incoming spike is checked once, in order, as activeSetSub in propagateSpikingCnn
+        int count = 0;
+        for (int s = 0; s < spikeCount; s++) {
+            int m = spikeMaps[s];
+            int t = p.subTarget[spikePos[s]];
+            if (leak) {
+                decay(p.memPot[m], p.lastUpdate[m], t, currTime);
+            }
+            if (p.memPot[m][t] >= threshold) {
+                nextMaps[count] = m;
+                nextPos[count++] = t;
+                p.memPot[m][t] = 0.0f;
+                p.refracEnd[m][t] = currTime + tRef;
+            }
+        }
+        spikeCount = count;
+    }
+
+    //lazy leak: decays the neuron by the time since its last update
+    private void decay(float[] mem, float[] last, int t, float currTime) {
+        float dt = currTime - last[t];
+        if (dt > 0) {
+            mem[t] = mem[t] * (float) Math.exp(-dt / decayConstHidden);
+        }
+        last[t] = currTime;
+    }
+
+    private void updateOutput(float currTime, float prevTime) {
+        int d = impulse.length;
+        int lastDim = net.layers.get(net.layers.size() - 1).dimX;
+        int mapSize = lastDim * lastDim;
+
+        //ffw*fv
+        Arrays.fill(impulse, 0.0f);
+        for (int s = 0; s < spikeCount; s++) {
+            int col = spikeMaps[s] * mapSize + spikePos[s];
+            for (int j = 0; j < d; j++) {
+                impulse[j] = impulse[j] + net.fcWeights[j][col];
+            }
+        }
+
+        float decayFactor = (float) Math.exp(-(currTime - prevTime) / decayConstOutput);
+        for (int j = 0; j < d; j++) {
+            //add bias, only for neurons past their refractory point
+            impulse[j] = impulse[j] + net.fcBias[j];
+            if (net.outRefracEnd[j] >= currTime) {
+                impulse[j] = 0.0f;
+            }
+            net.outMemPot[j] = net.outMemPot[j] + impulse[j];
+            if (net.outMemPot[j] < negLimit) {
+                net.outMemPot[j] = negLimit;
+            }
+            if (net.outMemPot[j] >= threshold) {
+                net.outSpikes[j] = 1;
+                net.outMemPot[j] = 0.0f;
+                net.outRefracEnd[j] = currTime + tRef;
+            } else {
+                net.outSpikes[j] = 0;
+            }
+            if (!reset) {
+                net.outSumSpikes[j] = net.outSumSpikes[j] * decayFactor + net.outSpikes[j];
+            } else {
+                net.outSumSpikes[j] = net.outSumSpikes[j] + net.outSpikes[j];
+            }
+        }
+    }
+
+    /**
+     * @return the number of threads, 0 to use all processors
+     */
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * @param numThreads the number of threads, 0 to use all processors
+     */
+    public void setNumThreads(int numThreads) {
+        this.numThreads = Math.max(0, numThreads);
+    }
+
+    private int getNumThreadsUsed() {
+        return ParallelRunner.getNumThreadsUsed(numThreads);
+    }
+
+    /**
+     * Clears the times at which the hidden neurons were last updated, e.g. when the network is reset or the input is
+     * rewound, so that the leak does not use the times from before.
+     */
+    public void clearLastUpdate() {
+        for (LayerPlan p : plans) {
+            if (p != null) {
+                for (float[] last : p.lastUpdate) {
+                    Arrays.fill(last, 0.0f);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the threads; they are started again when needed.
+     */
+    public void close() {
+        runner.close();
+    }
+}
@@ -137,6 +137,10 @@ public class SpikingCNN extends EventFilter2D implements FrameAnnotater {
     private boolean batch = getBoolean("batch",false);
     private float batchsize = getFloat("batchsize",0.02f);
     private boolean spike = getBoolean("spike",true);
+    private boolean eventDriven = getBoolean("eventDriven",true);
+    private int numThreads = getInt("numThreads",1);
+    private float decayConstHidden = getFloat("decayConstHidden",0.0f); //decay constant for hidden neurons, only used by the event-driven engine
+    private EventDrivenSpikingCnn engine = null;
 
     final String app = "Application", disp = "Display", param = "Parameters", inPro = "Processing Input", medTr = "Median Tracker", file = "Files";
 
@@ -154,12 +158,15 @@ public class SpikingCNN extends EventFilter2D implements FrameAnnotater {
         setPropertyTooltip(inPro, "batch", "process input spikes in a batched version; accuracy and latency depend on batchsize and refractory period is set to zero; please specify batchsize below");
         setPropertyTooltip(inPro, "batchsize", "unit:second; all spikes/events in this time interval are processed synchronously");
         setPropertyTooltip(inPro, "spike", "process input spikes in a purely spike based manner; no dependency on packet size");
+        setPropertyTooltip(inPro, "eventDriven", "with spike: only update the neurons reached by each spike, using precomputed kernel stencils; gives the same results as the original spike version");
+        setPropertyTooltip(inPro, "numThreads", "with eventDriven: number of threads that update the output maps of large convolutional layers, 0 to use all processors");
         //parameters
         setPropertyTooltip(param, "reset","reset network between each digits: select this only when label file is available");
         setPropertyTooltip(param, "negLimit","bound on negative potential");
         setPropertyTooltip(param, "tRef","refractory period");
         setPropertyTooltip(param, "threshold","threshold for spiking");
         setPropertyTooltip(param, "decayConstOutput","decay constant for the output layer");
+        setPropertyTooltip(param, "decayConstHidden","unit:second; with eventDriven: decay constant of the membrane potential of hidden neurons, applied when a neuron is updated; 0 disables the leak");
         //median tracker
         setPropertyTooltip(medTr, "medianTracker", "get the median of a moving digit; dependent on packet size; you can untick this option and specify the coordinates in fields above");
         setPropertyTooltip(medTr, "centerX", "x coordinate of the digit");
@@ -212,7 +219,21 @@ public class SpikingCNN extends EventFilter2D implements FrameAnnotater {
 
 
     @Override
-    public void resetFilter() {
+    synchronized public void resetFilter() {
+        if (engine != null) {
+            engine.close(); // threads are started again by the next packet
+            engine.clearLastUpdate(); // e.g. on rewind, time starts again
+        }
+        currTime = 0.0f;
+        prevTime = 0.0f;
+    }
+
+    @Override
+    public synchronized void setFilterEnabled(boolean yes) {
+        super.setFilterEnabled(yes);
+        if (!yes && engine != null) {
+            engine.close();
+        }
     }
 
     @Override
@@ -293,7 +314,11 @@ public class SpikingCNN extends EventFilter2D implements FrameAnnotater {
                 }
 
                 //propagate through network
-                propagateSpikingCnn(coordinates_index_new, tRef, threshold, times_new);
+                if (eventDriven && engine != null) {
+                    propagateEventDriven(coordinates_index_new, tRef, threshold, times_new);
+                } else {
+                    propagateSpikingCnn(coordinates_index_new, tRef, threshold, times_new);
+                }
 
 
                 //make prediction based on output scores
@@ -731,6 +756,13 @@ public class SpikingCNN extends EventFilter2D implements FrameAnnotater {
                 net.outRefracEnd[i]=0.0f;
                 net.outSumSpikes[i]=0;
             }
+            if (engine != null) {
+                engine.close();
+                engine = null;
+            }
+            if (spike) {
+                engine = new EventDrivenSpikingCnn(net);
+            }
             log.info(toString(networkReader));
         } catch (RuntimeException e) {
             log.warning("couldn't load net from file: caught " + e.toString());
@@ -813,10 +845,16 @@ public class SpikingCNN extends EventFilter2D implements FrameAnnotater {
                 for (int j = 0; j < correctly_sized_zeros.length; j++) {
                     for (int k = 0; k < correctly_sized_zeros[0].length; k++) {
                         zeros[j][k] = 0.0f;
+                        correctly_sized_zeros[j][k] = 0.0f;
                     }
                 }
                 current_layer.membranePot = zeros;
-                net.layers.get(i).refracEnd.add(zeros);
+                //replace, not add: only the first array is used, and it must not be the membrane potentials
+                if ("i".equals(current_layer.type)) {
+                    current_layer.refracEnd.set(0, new float[current_layer.dimX][current_layer.dimX]); //as loaded, indexed by input coordinates
+                } else {
+                    current_layer.refracEnd.set(0, correctly_sized_zeros);
+                }
             }
         }
         int outputclass = net.outMemPot.length;
@@ -830,6 +868,9 @@ public class SpikingCNN extends EventFilter2D implements FrameAnnotater {
             net.outRefracEnd[i]=0.0f;
             net.outSumSpikes[i]=0;
         }
+        if (engine != null) {
+            engine.clearLastUpdate();
+        }
     }
 
     //use median tracker to process input
@@ -1113,6 +1154,17 @@ public class SpikingCNN extends EventFilter2D implements FrameAnnotater {
         }
     }
 
+    //same as propagateSpikingCnn, but with the event-driven engine
+    public void propagateEventDriven(List<List<Integer>> input, float tRef, float threshold, List<Float> ts) {
+        engine.setNumThreads(numThreads);
+        engine.prepare(tRef, threshold, negLimit, decayConstHidden, decayConstOutput, reset);
+        for (int i = 0; i < ts.size(); i++) {
+            prevTime = currTime;
+            currTime = ts.get(i);
+            engine.propagate(input.get(i).get(0), input.get(i).get(1), currTime, prevTime);
+        }
+    }
+
     public int coordinateConversionMatrixToList(int x, int y, int dimx){
         return dimx*(y-1)+x;
     }
@@ -1521,5 +1573,28 @@ public class SpikingCNN extends EventFilter2D implements FrameAnnotater {
         putBoolean("spike",spike);
     }
 
+    public boolean isEventDriven(){return eventDriven;}
+
+    public void setEventDriven(boolean eventDriven){
+        this.eventDriven=eventDriven;
+        putBoolean("eventDriven",eventDriven);
+    }
+
+    public int getNumThreads(){return numThreads;}
+
+    public void setNumThreads(int numThreads){
+        this.numThreads=Math.max(0,numThreads);
+        putInt("numThreads",this.numThreads);
+    }
+
+    public float getdecayConstHidden(){
+        return decayConstHidden;
+    }
+
+    public void setdecayConstHidden(float decay){
+        this.decayConstHidden=decay;
+        putFloat("decayConstHidden",decay);
+    }
+
 
 }
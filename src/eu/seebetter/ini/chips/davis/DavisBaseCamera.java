@@ -175,6 +175,7 @@ abstract public class DavisBaseCamera extends DavisChip implements RemoteControl
         davisMenu.add(new JSeparator());
         davisMenu.add(new JMenuItem(new ToggleAutoContrast()));
         davisMenu.add(new JMenuItem(new ToggleHistogram()));
+        davisMenu.add(new JMenuItem(new ToggleDirtyTileRendering()));
         davisMenu.add(new JSeparator());
         davisMenu.add(new JMenuItem(new ToggleGlobalRollingShutter()));
         davisMenu.add(new JSeparator());
@@ -1430,6 +1431,31 @@ abstract public class DavisBaseCamera extends DavisChip implements RemoteControl
         }
     }
 
+    /**
+     * Adds dirty tile rendering option of the renderer
+     */
+    final public class ToggleDirtyTileRendering extends DavisMenuAction {
+
+        public ToggleDirtyTileRendering() {
+            super("Toggle DVS dirty tile rendering",
+                    "<html>Toggles whether DVS events are rendered to packed maps from which only the changed tiles are uploaded to the display."
+                    + "<p>Note that this control is only for displayed image rendering.",
+                    "ToggleDirtyTileRendering");
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            if (!(getRenderer() instanceof AEFrameChipRenderer)) {
+                return;
+            }
+            AEFrameChipRenderer frameRenderer = (AEFrameChipRenderer) getRenderer();
+            frameRenderer.setDirtyTileRenderingEnabled(!frameRenderer.isDirtyTileRenderingEnabled());
+            log.info("dirtyTileRendering = " + frameRenderer.isDirtyTileRenderingEnabled());
+            davisDisplayMethod.showStatusChangeText("dirtyTileRendering = " + frameRenderer.isDirtyTileRenderingEnabled());
+            putValue(Action.SELECTED_KEY, true);
+        }
+    }
+
     /**
      * Adds event capture/display option
      */
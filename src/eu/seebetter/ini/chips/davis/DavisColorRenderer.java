@@ -132,6 +132,14 @@ public class DavisColorRenderer extends AEFrameChipRenderer {
 		colors3[8] = colorFilterSequence[1];
 	}
 
+	/**
+	 * Events are rendered to onMap and offMap by updateEventMaps below.
+	 */
+	@Override
+	protected boolean isDirtyTileRenderingSupported() {
+		return false;
+	}
+
 	@Override
 	protected void updateEventMaps(final PolarityEvent e) {
 		float[] map;
@@ -0,0 +1,319 @@
+package eu.seebetter.ini.chips.davis.imu;
+
+import net.sf.jaer.eventprocessing.filter.TransformAtTime;
+
+/**
+ * Ring buffer of IMU gyro samples and of the camera transforms computed from
+ * them, held in primitive arrays indexed by sample timestamp. Consumers add
+ * the IMU samples of a packet before processing its events and then look up
+ * the gyro rates or the transform at any event time, linearly interpolated
+ * between the two samples that bracket it.
+ * <p>
+ * Lookups remember the sample found last, so that lookups with increasing
+ * timestamps, as in an event packet, cost O(1) and mostly only a compare.
+ * Lookups far from the last one jump to the sample estimated from the
+ * average sample interval. Times before the oldest or after the newest sample
+ * are clamped to that sample.
+ * <p>
+ * When the ring is full the oldest sample is overwritten. A sample with a
+ * timestamp older than the newest one, e.g. after a rewind or timestamp
+ * reset, clears the ring first.
+ *
+ * @author tobi
+ */
+public class IMUSampleRing {
+
+    /**
+     * Default capacity, about 8 s of samples at the usual 1 kHz IMU rate
+     */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private final int mask;
+    private final int[] timestamps;
+    private final float[] panRate, tiltRate, rollRate; // deg/s
+    private final float[] translationX, translationY, rotation, cos, sin; // transform set by consumer, in pixels and rad
+    private int first = 0, end = 0; // absolute index of oldest sample and one past the newest
+    private int cursor = 0; // absolute index of the sample found by the last lookup
+
+    /**
+     * Makes a ring with DEFAULT_CAPACITY.
+     */
+    public IMUSampleRing() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Makes a ring.
+     *
+     * @param capacity the number of samples held, rounded up to a power of
+     * two
+     */
+    public IMUSampleRing(int capacity) {
+        int n = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = n - 1;
+        timestamps = new int[n];
+        panRate = new float[n];
+        tiltRate = new float[n];
+        rollRate = new float[n];
+        translationX = new float[n];
+        translationY = new float[n];
+        rotation = new float[n];
+        cos = new float[n];
+        sin = new float[n];
+    }
+
+    /**
+     * Removes all samples.
+     */
+    public void clear() {
+        first = 0;
+        end = 0;
+        cursor = 0;
+    }
+
+    /**
+     * @return the number of samples held
+     */
+    public int size() {
+        return end - first;
+    }
+
+    /**
+     * @return true if no samples are held
+     */
+    public boolean isEmpty() {
+        return end == first;
+    }
+
+    /**
+     * @return the capacity in samples
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return the timestamp in us of the oldest sample, or 0 if empty
+     */
+    public int getOldestTimestamp() {
+        return isEmpty() ? 0 : timestamps[first & mask];
+    }
+
+    /**
+     * @return the timestamp in us of the newest sample, or 0 if empty
+     */
+    public int getNewestTimestamp() {
+        return isEmpty() ? 0 : timestamps[(end - 1) & mask];
+    }
+
+    /**
+     * Adds the gyro rates of an IMU sample. The transform of the sample is
+     * the identity until set by setTransform.
+     *
+     * @param sample the sample
+     */
+    public void add(IMUSample sample) {
+        add(sample.getTimestampUs(), sample.getGyroYawY(), sample.getGyroTiltX(), sample.getGyroRollZ());
+    }
+
+    /**
+     * Adds a sample. The transform of the sample is the identity until set by
+     * setTransform.
+     *
+     * @param timestamp the timestamp in us
+     * @param panRateDps pan (yaw) rate in deg/s, as IMUSample.getGyroYawY
+     * @param tiltRateDps tilt rate in deg/s, as IMUSample.getGyroTiltX
+     * @param rollRateDps roll rate in deg/s, as IMUSample.getGyroRollZ
+     */
+    public void add(int timestamp, float panRateDps, float tiltRateDps, float rollRateDps) {
+        if (!isEmpty() && timestamp - timestamps[(end - 1) & mask] < 0) {
+            clear();
+        }
+        if (end - first > mask) {
+            first++;
+        }
+        final int i = end & mask;
+        timestamps[i] = timestamp;
+        panRate[i] = panRateDps;
+        tiltRate[i] = tiltRateDps;
+        rollRate[i] = rollRateDps;
+        translationX[i] = 0;
+        translationY[i] = 0;
+        rotation[i] = 0;
+        cos[i] = 1;
+        sin[i] = 0;
+        end++;
+    }
+
+    /**
+     * Sets the transform of the newest sample, as computed by the consumer
+     * from the rates up to this sample.
+     *
+     * @param translationXPixels the x translation in pixels
+     * @param translationYPixels the y translation in pixels
+     * @param rotationRad the rotation in radians, as in TransformAtTime
+     */
+    public void setTransform(float translationXPixels, float translationYPixels, float rotationRad) {
+        if (isEmpty()) {
+            return;
+        }
+        final int i = (end - 1) & mask;
+        translationX[i] = translationXPixels;
+        translationY[i] = translationYPixels;
+        rotation[i] = rotationRad;
+        cos[i] = (float) Math.cos(rotationRad);
+        sin[i] = (float) Math.sin(rotationRad);
+    }
+
+    /**
+     * Finds the newest sample not newer than t, or the oldest sample if all
+     * are newer.
+     *
+     * @return the absolute index of the sample
+     */
+    private int locate(int t) {
+        int i = cursor;
+        if (i - first < 0 || i - end >= 0) {
+            i = end - 1;
+        }
+        final int last = end - 1;
+        int dt = t - timestamps[i & mask];
+        if (last > first) {
+            // jump close to the sample if t is far from the last lookup
+            int span = timestamps[last & mask] - timestamps[first & mask];
+            int n = last - first;
+            if (span > 0 && (dt > 4 * span / n || dt < -4 * span / n)) {
+                long k = last - (long) (timestamps[last & mask] - t) * n / span;
+                i = (int) Math.max(first, Math.min(last, k));
+            }
+        }
+        while (i < last && t - timestamps[(i + 1) & mask] >= 0) {
+            i++;
+        }
+        while (i > first && t - timestamps[i & mask] < 0) {
+            i--;
+        }
+        cursor = i;
+        return i;
+    }
+
+    /**
+     * @return the weight of the sample after sample i at time t
+     */
+    private float weight(int i, int t) {
+        if (i == end - 1) {
+            return 0;
+        }
+        int t0 = timestamps[i & mask];
+        int dt = timestamps[(i + 1) & mask] - t0;
+        int d = t - t0;
+        if (dt <= 0 || d <= 0) {
+            return 0;
+        }
+        return d >= dt ? 1 : (float) d / dt;
+    }
+
+    /**
+     * Interpolates the gyro rates at a time.
+     *
+     * @param t the time in us
+     * @param rates filled with the pan, tilt and roll rates in deg/s, as
+     * IMUSample.getGyroYawY, getGyroTiltX and getGyroRollZ; unchanged if the
+     * ring is empty
+     * @return false if the ring is empty
+     */
+    public boolean getRates(int t, float[] rates) {
+        if (isEmpty()) {
+            return false;
+        }
+        final int k = locate(t);
+        final float w = weight(k, t);
+        final int i = k & mask, j = (k + (w > 0 ? 1 : 0)) & mask;
+        rates[0] = panRate[i] + w * (panRate[j] - panRate[i]);
+        rates[1] = tiltRate[i] + w * (tiltRate[j] - tiltRate[i]);
+        rates[2] = rollRate[i] + w * (rollRate[j] - rollRate[i]);
+        return true;
+    }
+
+    /**
+     * Interpolates the transform at a time.
+     *
+     * @param t the time in us
+     * @param transform set to the interpolated transform at time t;
+     * unchanged if the ring is empty
+     * @return false if the ring is empty
+     */
+    public boolean getTransform(int t, TransformAtTime transform) {
+        if (isEmpty()) {
+            return false;
+        }
+        final int k = locate(t);
+        final float w = weight(k, t);
+        final int i = k & mask, j = (k + (w > 0 ? 1 : 0)) & mask;
+        transform.set(t, translationX[i] + w * (translationX[j] - translationX[i]),
+                translationY[i] + w * (translationY[j] - translationY[i]),
+                rotation[i] + w * (rotation[j] - rotation[i]));
+        return true;
+    }
+
+    /**
+     * Applies the transform interpolated at each event time to the addresses
+     * of n events, in place. Each address p is mapped to R(p-c)+T+c, where c
+     * is the center of rotation, as in Steadicam. Between two samples the
+     * cosine and sine of the rotation are interpolated linearly instead of
+     * being recomputed, which is exact to within the square of the rotation
+     * between two samples.
+     *
+     * @param n the number of events
+     * @param t the event times in us, preferably increasing
+     * @param x the x addresses
+     * @param y the y addresses
+     * @param centerX the x center of rotation
+     * @param centerY the y center of rotation
+     * @return false and leaves the addresses unchanged if the ring is empty
+     */
+    public boolean transform(int n, int[] t, float[] x, float[] y, float centerX, float centerY) {
+        if (isEmpty()) {
+            return false;
+        }
+        final int last = end - 1;
+        int e = 0;
+        while (e < n) {
+            // find the run of events between the sample found and the next one
+            final int k = locate(t[e]);
+            final int i = k & mask, j = (k + 1) & mask;
+            final int t0 = timestamps[i];
+            final float c0 = cos[i], s0 = sin[i], tx0 = translationX[i], ty0 = translationY[i];
+            int runEnd = e + 1;
+            float invDt = 0, dc = 0, ds = 0, dtx = 0, dty = 0;
+            if (t[e] - t0 < 0) { // before the oldest sample
+                while (runEnd < n && t[runEnd] - t0 < 0) {
+                    runEnd++;
+                }
+            } else if (k < last && timestamps[j] != t0) {
+                final int t1 = timestamps[j];
+                while (runEnd < n && t[runEnd] - t0 >= 0 && t[runEnd] - t1 < 0) {
+                    runEnd++;
+                }
+                invDt = 1f / (t1 - t0);
+                dc = cos[j] - c0;
+                ds = sin[j] - s0;
+                dtx = translationX[j] - tx0;
+                dty = translationY[j] - ty0;
+            } else if (k == last) {
+                while (runEnd < n && t[runEnd] - t0 >= 0) {
+                    runEnd++;
+                }
+            }
+            // branch free loop over the run, with the weight of the next sample 0 outside of the two samples
+            for (; e < runEnd; e++) {
+                final float w = (t[e] - t0) * invDt;
+                final float c = c0 + w * dc, s = s0 + w * ds;
+                final float nx = x[e] - centerX, ny = y[e] - centerY;
+                x[e] = (((c * nx) - (s * ny)) + tx0 + w * dtx) + centerX;
+                y[e] = (((s * nx) + (c * ny)) + ty0 + w * dty) + centerY;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package eu.visualize.ini.convnet;
+
+import java.beans.PropertyChangeSupport;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.sf.jaer.event.PolarityEvent;
+
+/**
+ * Feeds one DVS event stream into several DvsSubsamplerToFrame slices at once,
+ * e.g. to drive several CNNs and DvsSliceAviWriter outputs with different
+ * resolutions and slice sizes from the same stream.
+ * <p>
+ * Each Slice is defined by a window length and a hop, both measured either in
+ * events or in us of timestamp. If the hop equals the window, the slice is
+ * tumbling: the frame is handed out and then cleared in constant time. If the
+ * hop is shorter than the window, the slice is sliding: the slice remembers
+ * which pixel each event went to and subtracts expired events again, so every
+ * event costs constant time whatever the window length.
+ * <p>
+ * When a slice is complete its frame is normalized (also in constant time)
+ * and EVENT_NEW_SLICE is fired on the PropertyChangeSupport with the Slice as
+ * the new value. Listeners must read the frame inside propertyChange, since
+ * it is updated by the following events.
+ *
+ * @author tobi
+ */
+public class DvsMultiSliceSubsampler {
+
+    /**
+     * PropertyChangeEvent fired when a slice frame is complete; the new value
+     * is the Slice
+     */
+    public static final String EVENT_NEW_SLICE = "newSlice";
+
+    /**
+     * How a slice measures its window and hop
+     */
+    public enum SliceMethod {
+        EventCount, TimeIntervalUs
+    };
+
+    private final ArrayList<Slice> slices = new ArrayList<Slice>();
+    private final PropertyChangeSupport support = new PropertyChangeSupport(this);
+
+    /**
+     * Adds a new slice.
+     *
+     * @param dimX width of output frame
+     * @param dimY height of output frame
+     * @param colorScale scale by which each ON or OFF event is added, see
+     * DvsSubsamplerToFrame
+     * @param method whether window and hop count events or us
+     * @param window the length of the slice in events or us
+     * @param hop the interval between frames in events or us; equal to
+     * window for tumbling slices, less than window for sliding slices
+     * @return the slice, which can be used to identify the source of
+     * EVENT_NEW_SLICE events
+     */
+    synchronized public Slice addSlice(int dimX, int dimY, int colorScale, SliceMethod method, int window, int hop) {
+        if (window <= 0 || hop <= 0 || hop > window) {
+            throw new IllegalArgumentException("need 0<hop<=window but window=" + window + " hop=" + hop);
+        }
+        Slice s = new Slice(dimX, dimY, colorScale, method, window, hop);
+        slices.add(s);
+        return s;
+    }
+
+    /**
+     * Removes a slice.
+     *
+     * @param s the slice to remove
+     */
+    synchronized public void removeSlice(Slice s) {
+        slices.remove(s);
+    }
+
+    /**
+     * @return unmodifiable list of the slices
+     */
+    public List<Slice> getSlices() {
+        return Collections.unmodifiableList(slices);
+    }
+
+    /**
+     * Adds event to all slices, firing EVENT_NEW_SLICE for each slice that is
+     * completed by it.
+     *
+     * @param e the event
+     * @param srcWidth width of originating source sensor, e.g. 240 for DAVIS240
+     * @param srcHeight height of source address space
+     */
+    synchronized public void addEvent(PolarityEvent e, int srcWidth, int srcHeight) {
+        if (e.isSpecial() || e.isFilteredOut()) {
+            return;
+        }
+        for (int i = 0; i < slices.size(); i++) {
+            slices.get(i).addEvent(e, srcWidth, srcHeight);
+        }
+    }
+
+    /**
+     * Clears all slices, e.g. on rewind of a recording.
+     */
+    synchronized public void clear() {
+        for (Slice s : slices) {
+            s.clear();
+        }
+    }
+
+    /**
+     * Use this to add a PropertyChangeListener for EVENT_NEW_SLICE.
+     *
+     * @return the support
+     */
+    public PropertyChangeSupport getSupport() {
+        return support;
+    }
+
+    /**
+     * One window over the event stream with its own frame resolution, length
+     * and hop.
+     */
+    public class Slice {
+
+        private final DvsSubsamplerToFrame frame;
+        private final SliceMethod method;
+        private final int window, hop;
+        private final boolean tumbling;
+        // ring of events in a sliding window: pixel index, applied delta and timestamp
+        private int[] ringIndex, ringDelta, ringTimestamp;
+        private int ringStart = 0, ringSize = 0;
+        private int eventsSinceFrame = 0;
+        private int frameStartTimestamp = 0;
+        private boolean started = false;
+        private int frameTimestamp = 0;
+        private int frameCounter = 0;
+
+        private Slice(int dimX, int dimY, int colorScale, SliceMethod method, int window, int hop) {
+            frame = new DvsSubsamplerToFrame(dimX, dimY, colorScale);
+            this.method = method;
+            this.window = window;
+            this.hop = hop;
+            tumbling = hop == window;
+            if (!tumbling) {
+                int capacity = method == SliceMethod.EventCount ? window + 1 : 1024;
+                ringIndex = new int[capacity];
+                ringDelta = new int[capacity];
+                ringTimestamp = new int[capacity];
+            }
+        }
+
+        private void addEvent(PolarityEvent e, int srcWidth, int srcHeight) {
+            final int ts = e.timestamp;
+            if (!started || ts < frameStartTimestamp) { // first event or timestamp reset
+                clear();
+                started = true;
+                frameStartTimestamp = ts;
+            }
+            if (method == SliceMethod.TimeIntervalUs && ts - frameStartTimestamp >= hop) {
+                if (!tumbling) {
+                    expire(frameStartTimestamp + hop);
+                }
+                emitFrame(frameStartTimestamp + hop);
+                frameStartTimestamp = ts - ((ts - frameStartTimestamp) % hop); // skip empty hops
+            }
+            final int k = frame.getIndex(e.x, e.y, srcWidth, srcHeight);
+            if (k < 0 || k >= frame.getnPixels()) {
+                return;
+            }
+            frame.startSliceAt(ts);
+            final int delta = frame.accumulate(k, frame.isRectifyPolarties() ? 1 : (e.polarity == PolarityEvent.Polarity.On ? 1 : -1));
+            frame.incrementAccumulatedEventCount();
+            if (!tumbling) {
+                push(k, delta, ts);
+                expire(ts);
+            }
+            eventsSinceFrame++;
+            if (method == SliceMethod.EventCount && eventsSinceFrame >= hop && (tumbling || ringSize >= window)) {
+                emitFrame(ts);
+            }
+        }
+
+        private void push(int k, int delta, int ts) {
+            if (ringSize == ringIndex.length) { // only time windows grow
+                int n = ringIndex.length * 2;
+                ringIndex = unwrap(ringIndex, n);
+                ringDelta = unwrap(ringDelta, n);
+                ringTimestamp = unwrap(ringTimestamp, n);
+                ringStart = 0;
+            }
+            int i = ringStart + ringSize;
+            if (i >= ringIndex.length) {
+                i -= ringIndex.length;
+            }
+            ringIndex[i] = k;
+            ringDelta[i] = delta;
+            ringTimestamp[i] = ts;
+            ringSize++;
+        }
+
+        private int[] unwrap(int[] a, int n) {
+            int[] b = new int[n];
+            int first = Math.min(ringSize, a.length - ringStart);
+            System.arraycopy(a, ringStart, b, 0, first);
+            System.arraycopy(a, 0, b, first, ringSize - first);
+            return b;
+        }
+
+        private void expire(int ts) {
+            while (ringSize > 0) {
+                boolean expired = method == SliceMethod.EventCount ? ringSize > window : ts - ringTimestamp[ringStart] >= window;
+                if (!expired) {
+                    break;
+                }
+                frame.accumulate(ringIndex[ringStart], -ringDelta[ringStart]);
+                frame.decrementAccumulatedEventCount();
+                ringStart++;
+                if (ringStart == ringIndex.length) {
+                    ringStart = 0;
+                }
+                ringSize--;
+            }
+        }
+
+        private void emitFrame(int timestamp) {
+            frameTimestamp = timestamp;
+            frame.normalizeFrame();
+            frameCounter++;
+            support.firePropertyChange(EVENT_NEW_SLICE, null, this);
+            eventsSinceFrame = 0;
+            if (tumbling) {
+                frame.clear();
+            }
+        }
+
+        private void clear() {
+            frame.clear();
+            ringStart = 0;
+            ringSize = 0;
+            eventsSinceFrame = 0;
+            started = false;
+        }
+
+        /**
+         * Returns the frame. Its values are normalized when EVENT_NEW_SLICE
+         * is fired; listeners wanting the raw counts should use
+         * getEventSumAtPixel.
+         *
+         * @return the frame
+         */
+        public DvsSubsamplerToFrame getFrame() {
+            return frame;
+        }
+
+        /**
+         * @return the method
+         */
+        public SliceMethod getMethod() {
+            return method;
+        }
+
+        /**
+         * @return the window length in events or us
+         */
+        public int getWindow() {
+            return window;
+        }
+
+        /**
+         * @return the hop in events or us
+         */
+        public int getHop() {
+            return hop;
+        }
+
+        /**
+         * @return true if hop equals window, i.e. slices do not overlap
+         */
+        public boolean isTumbling() {
+            return tumbling;
+        }
+
+        /**
+         * @return the timestamp in us of the end of the last completed frame
+         */
+        public int getFrameTimestamp() {
+            return frameTimestamp;
+        }
+
+        /**
+         * @return the number of frames completed so far
+         */
+        public int getFrameCounter() {
+            return frameCounter;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Slice %dx%d %s window=%d hop=%d", frame.getWidth(), frame.getHeight(), method, window, hop);
+        }
+
+    }
+
+}
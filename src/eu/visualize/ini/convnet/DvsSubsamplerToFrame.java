@@ -17,6 +17,12 @@ import net.sf.jaer.util.filter.LowpassFilter;
  * much better than downsampling the sparse DVS output. The output of the
  * subsampler is available as a float array that is scaled by the color scale
  * for each event (with sign for ON and OFF events) and clipped to 0-1 range.
+ * <p>
+ * Clearing and normalization are constant-time operations. Each pixel carries
+ * the generation in which it was last written, so clear() only advances the
+ * generation counter and stale pixels read as zero. The sums needed for the
+ * 3-sigma normalization are updated as events arrive, so normalizeFrame() only
+ * freezes the scaling and values are computed on access.
  *
  * @author tobi
  */
@@ -27,8 +33,15 @@ public class DvsSubsamplerToFrame {
     private final int width; // width of output
     private final int height; // height of output
     private final int nPixels;
-    private final int[] eventSum; // eventSum contains raw integer signed event count
-    private final float[] pixmap; // pixmap contains the scaled event count centered on 0.5 and clipped to 0-1 range
+    private final int[] eventSum; // eventSum contains raw integer signed event count, valid only if pixelGeneration matches generation
+    private final int[] pixelGeneration; // generation in which each pixel was last written
+    private int generation = 1; // current generation; pixels with older generation are treated as cleared
+    private final float[] pixmap; // pixmap contains the scaled event count centered on 0.5 and clipped to 0-1 range, filled only on getPixmap()
+    private boolean pixmapValid = false;
+    private long runningSum = 0, runningSumSq = 0; // sum and sum of squares of nonzero signed counts
+    private int nonZeroCount = 0; // number of pixels with nonzero count
+    private boolean normalized = false; // set by normalizeFrame, reset by clear
+    private float normHalfRange = 0, normRangeRecip = 1, normZeroValue = 0; // scaling frozen by normalizeFrame
     private int colorScale;
     private float colorScaleRecip;
     public final float GRAY_LEVEL = 0.5f;
@@ -58,11 +71,24 @@ public class DvsSubsamplerToFrame {
         nPixels = getWidth() * getHeight();
         pixmap = new float[getnPixels()];
         eventSum = new int[getnPixels()];
+        pixelGeneration = new int[getnPixels()];
     }
 
+    /**
+     * Clears the histogram. This takes constant time regardless of the frame
+     * size.
+     */
     public void clear() {
-        Arrays.fill(eventSum, 0);
-        Arrays.fill(pixmap, rectifyPolarties ? 0 : GRAY_LEVEL);
+        generation++;
+        if (generation == Integer.MAX_VALUE) { // wrap around once every 2^31 clears
+            Arrays.fill(pixelGeneration, 0);
+            generation = 1;
+        }
+        runningSum = 0;
+        runningSumSq = 0;
+        nonZeroCount = 0;
+        normalized = false;
+        pixmapValid = false;
         accumulatedEventCount = 0;
         mostOffCount = Integer.MAX_VALUE;
         mostOnCount = Integer.MIN_VALUE;
@@ -123,15 +149,8 @@ public class DvsSubsamplerToFrame {
         if (e.isSpecial() || e.isFilteredOut()) {
             return;
         }
-        initialize(e);
-        int x = e.x, y = e.y;
-        if (srcWidth != width) {
-            x = (int) Math.floor(((float) e.x / srcWidth) * width);
-        }
-        if (srcHeight != height) {
-            y = (int) Math.floor(((float) e.y / srcHeight) * height);
-        }
-        int k = getIndex(x, y);
+        initialize(e.timestamp);
+        int k = getIndex(e.x, e.y, srcWidth, srcHeight);
         if (((k < 0) || (k >= eventSum.length))) {
             if (warningsBadEvent < 2) {
                 log.warning("ignoring event with index out of bounds for event " + e.toString() + " with srcWidth=" + srcWidth + " srcHeight=" + srcHeight);
@@ -142,13 +161,28 @@ public class DvsSubsamplerToFrame {
             warningsBadEvent++;
             return;
         }
-        int sum = eventSum[k];
-        sum += rectifyPolarties ? 1 : (e.polarity == PolarityEvent.Polarity.On ? 1 : -1);
+        accumulate(k, rectifyPolarties ? 1 : (e.polarity == PolarityEvent.Polarity.On ? 1 : -1));
+        accumulatedEventCount++;
+
+    }
+
+    /**
+     * Adds delta to the count at index k, clipping the count at +/-
+     * colorScale, and updates the running statistics used by normalizeFrame.
+     *
+     * @param k the index into the map, from getIndex
+     * @param delta the signed count to add
+     * @return the change that was actually applied after clipping, so that
+     * callers expiring events can subtract exactly what they added
+     */
+    int accumulate(int k, int delta) {
+        int old = pixelGeneration[k] == generation ? eventSum[k] : 0;
+        int sum = old + delta;
         // clip count at full scale
         if (sum > colorScale) {
             sum = colorScale;
         } else if (sum < -colorScale) {
-            sum = colorScale;
+            sum = -colorScale;
         }
         // keep track of largest and smallest count
         if (sum > mostOnCount) {
@@ -156,25 +190,45 @@ public class DvsSubsamplerToFrame {
         } else if (sum < mostOffCount) {
             mostOffCount = sum;
         }
-        eventSum[k] = sum; // eventSum contains raw integer signed event count
-        // compute the pixmap value (pmv) using gray level and colorScale
-        float pmv = 0;
-        if (!rectifyPolarties) {
-            pmv = GRAY_LEVEL + ((sum * colorScaleRecip) / 2); // full scale is +/- colorScale events
-        } else {
-            pmv = sum * colorScaleRecip; // full scale is just exactly colorScale events
+        setCount(k, old, sum);
+        return sum - old;
+    }
+
+    private void setCount(int k, int old, int sum) {
+        if (old != 0) {
+            nonZeroCount--;
         }
-        if (pmv > 1) {
-            pmv = 1;
-        } else if (pmv < 0) {
-            pmv = 0;
+        if (sum != 0) {
+            nonZeroCount++;
         }
-        // pixmap contains the scaled event count clipped to 0-1 range and either starting at zero or centered on 0.5, depending on rectifyPolarties
-        // This pixmap value is OVERWRITEN later if the frame is normalized, but otherwise if normalizeFrame is not called, then
-        // the pixmap value set here is the one that is returned (and typically used for rendering image) 
-        pixmap[k] = pmv;
+        runningSum += sum - old;
+        runningSumSq += ((long) sum * sum) - ((long) old * old);
+        eventSum[k] = sum; // eventSum contains raw integer signed event count
+        pixelGeneration[k] = generation;
+        pixmapValid = false;
+    }
+
+    /**
+     * Notes the start of a new slice at the first event after clear.
+     *
+     * @param timestamp the timestamp of the event in us
+     */
+    void startSliceAt(int timestamp) {
+        initialize(timestamp);
+    }
+
+    /**
+     * Counts an event that was added through accumulate.
+     */
+    void incrementAccumulatedEventCount() {
         accumulatedEventCount++;
+    }
 
+    /**
+     * Decrements the event count when an event expires from a sliding window.
+     */
+    void decrementAccumulatedEventCount() {
+        accumulatedEventCount--;
     }
 
     /**
@@ -201,9 +255,32 @@ public class DvsSubsamplerToFrame {
      * @see #normalizeFrame()
      */
     public float getValueAtPixel(int x, int y) {
-        return pixmap[getIndex(x, y)];
+        return valueAt(getIndex(x, y));
+    }
+
+    private float valueAt(int k) {
+        int sum = pixelGeneration[k] == generation ? eventSum[k] : 0;
+        float pmv;
+        if (normalized) {
+            if (sum == 0) {
+                return normZeroValue;
+            }
+            // rectifyPolarties=false: shift up by 3 sigma and divide by 6 sigma to get in range 0-1
+            // rectifyPolarties=true: don't shift (already origin at zero) and divide by 3 sigma to get in range 0-1
+            pmv = (sum + normHalfRange) * normRangeRecip;
+        } else if (!rectifyPolarties) {
+            pmv = GRAY_LEVEL + ((sum * colorScaleRecip) / 2); // full scale is +/- colorScale events
+        } else {
+            pmv = sum * colorScaleRecip; // full scale is just exactly colorScale events
+        }
+        if (pmv > 1) {
+            pmv = 1;
+        } else if (pmv < 0) {
+            pmv = 0;
+        }
+        return pmv;
     }
-    
+
 
     /**
      * Returns the integer event sum of the histogram clipped to +/- colorScale range. 
@@ -215,7 +292,8 @@ public class DvsSubsamplerToFrame {
      * @see #getValueAtPixel(int, int) 
      */
     public int getEventSumAtPixel(int x, int y) {
-        return eventSum[getIndex(x, y)];
+        int k = getIndex(x, y);
+        return pixelGeneration[k] == generation ? eventSum[k] : 0;
     }
     
     /** Sets the value of eventSum array. Utility method used for debugging normalization.
@@ -224,7 +302,8 @@ public class DvsSubsamplerToFrame {
      * @param y 
      */
     public void setEventSumAtPixel(int value, int x, int y){
-        eventSum[getIndex(x, y)]=value;
+        int k = getIndex(x, y);
+        setCount(k, pixelGeneration[k] == generation ? eventSum[k] : 0, value);
     }
     
     /**
@@ -238,6 +317,27 @@ public class DvsSubsamplerToFrame {
         return y + (height * x);
     }
 
+    /**
+     * Gets the index into the maps for a source address, scaling the source
+     * address space to this map's resolution.
+     *
+     * @param srcx
+     * @param srcy
+     * @param srcWidth width of originating source sensor, e.g. 240 for DAVIS240
+     * @param srcHeight height of source address space
+     * @return the index into the 1d arrays
+     */
+    public int getIndex(int srcx, int srcy, int srcWidth, int srcHeight) {
+        int x = srcx, y = srcy;
+        if (srcWidth != width) {
+            x = (int) Math.floor(((float) srcx / srcWidth) * width);
+        }
+        if (srcHeight != height) {
+            y = (int) Math.floor(((float) srcy / srcHeight) * height);
+        }
+        return getIndex(x, y);
+    }
+
     /**
      * @return the width
      */
@@ -260,11 +360,18 @@ public class DvsSubsamplerToFrame {
     }
 
     /**
-     * Returns the float[] 0-1 clipped map.
+     * Returns the float[] 0-1 clipped map. The map is filled on demand, so
+     * prefer getValueAtPixel when reading only part of the frame.
      *
      * @return the pixmap
      */
     public float[] getPixmap() {
+        if (!pixmapValid) {
+            for (int i = 0; i < nPixels; i++) {
+                pixmap[i] = valueAt(i);
+            }
+            pixmapValid = true;
+        }
         return pixmap;
     }
 
@@ -283,6 +390,7 @@ public class DvsSubsamplerToFrame {
     public void setColorScale(int colorScale) {
         this.colorScale = colorScale;
         colorScaleRecip = 1f / colorScale;
+        pixmapValid = false;
     }
 
     /**
@@ -312,15 +420,15 @@ public class DvsSubsamplerToFrame {
         return mostOnCount;
     }
 
-    private void initialize(PolarityEvent e) {
+    private void initialize(int timestamp) {
         if (cleared) {
             cleared = false;
             int lastStartTimestamp = startTimestamp;
-            if (e.timestamp < startTimestamp) {
+            if (timestamp < startTimestamp) {
                 frameIntervalFilter.reset();
-                lastStartTimestamp = e.timestamp;
+                lastStartTimestamp = timestamp;
             }
-            startTimestamp = e.timestamp;
+            startTimestamp = timestamp;
             lastIntervalUs = startTimestamp - lastStartTimestamp;
             if (lastStartTimestamp != 0) {
                 frameIntervalFilter.filter(lastIntervalUs, startTimestamp);
@@ -339,59 +447,48 @@ public class DvsSubsamplerToFrame {
     /**
      * Call this method to normalize accumulated frame to have zero mean and
      * range 0-1 using 3-sigma values, as is used in DeepLearnCnnNetwork.
+     * <p>
+     * The mean and variance of nonzero counts are maintained as events are
+     * added, so this call takes constant time; it freezes the scaling that
+     * getValueAtPixel applies until the next clear() or normalizeFrame().
      */
     public void normalizeFrame() {
         // net trained gets 0-1 range inputs, so make our input so
-        int n = eventSum.length;
-        float sum = 0, var = 0, count = 0;
-        // sum and average only non-zero pixels
-        for (int i = 0; i < n; i++) {
-            if (eventSum[i] != 0) {
-                sum += eventSum[i];
-                count++;
-            }
-        }
-        float mean = sum / count; // compute mean of all signed event counts
-
-        for (int i = 0; i < n; i++) {
-            if (eventSum[i] != 0) {
-                float f = (eventSum[i] - mean);
-                var += f * f;
-            }
+        final int n = nPixels;
+        final float count = nonZeroCount;
+        float sig = 0;
+        if (nonZeroCount > 0) {
+            // mean and 1-sigma of all nonzero signed event counts
+            double mean = (double) runningSum / count;
+            double var = ((double) runningSumSq / count) - (mean * mean);
+            sig = var > 0 ? (float) Math.sqrt(var) : 0;
         }
-        var = (var / count);
-        float sig = (float) Math.sqrt(var); // compute 1-sigma of signed counts
         if (sig < (0.1f / 255.0f)) {
             sig = 0.1f / 255.0f;  // restrict sigma to reasonable range
         }
         // if rectifyPolarties is false, pixels with count zero should end up with this 0-1 range value so that they come out to 127 in PNG file range of 0-255
         // if rectifyPolarties is true, pixels with zero count should end up with zero, and we use only 3 sigma range
-        final float numSDevs = 3;
-        final float mean_png_gray = rectifyPolarties ? 0 : 127f / 255;
-        final float range = rectifyPolarties ? numSDevs * sig : 2 * numSDevs * sig, halfRange = rectifyPolarties ? 0 : numSDevs * sig;
-        final float rangenew = 1;
-        int nonZeroCount = 0;
         //Now pixels with zero count go to 127/255, pixels with -3sigma or larger negative count go to 0,
         // and pixels with +3sigma or larger positive count go to 1. each count contributes +/- 1/6sigma to pixmap.
-        for (int i = 0; i < n; i++) {
-            if (eventSum[i] == 0) {
-                pixmap[i] = mean_png_gray;
-            } else {
-                nonZeroCount++;
-                // rectifyPolarties=false: shift up by 3 sigma and divide by 6 sigma to get in range 0-1
-                // rectifyPolarties=true: don't shift (already origin at zero) and divide by 3 sigma to get in range 0-1
-                float f = ((eventSum[i] + halfRange) * rangenew) / range;
-                if (f > 1) {
-                    f = 1;
-                } else if (f < 0) {
-                    f = 0;
-                }
-                pixmap[i] = f;
-            }
-        }
+        final float numSDevs = 3;
+        final float range = rectifyPolarties ? numSDevs * sig : 2 * numSDevs * sig;
+        normZeroValue = rectifyPolarties ? 0 : 127f / 255;
+        normHalfRange = rectifyPolarties ? 0 : numSDevs * sig;
+        normRangeRecip = 1 / range;
+        normalized = true;
+        pixmapValid = false;
         sparsity = (float) (n - nonZeroCount) / n;
     }
 
+    /**
+     * Returns true if normalizeFrame has been called since the last clear.
+     *
+     * @return true if values are normalized
+     */
+    public boolean isNormalized() {
+        return normalized;
+    }
+
     /**
      * Returns the computed sparsity (fraction of nonzero pixels) if
      * normalizeFrame is called beforehand.
@@ -420,6 +517,7 @@ public class DvsSubsamplerToFrame {
      */
     public void setRectifyPolarties(boolean rectifyPolarties) {
         this.rectifyPolarties = rectifyPolarties;
+        pixmapValid = false;
     }
 
 }
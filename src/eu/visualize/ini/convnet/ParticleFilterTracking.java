@@ -37,15 +37,11 @@ import net.sf.jaer.eventprocessing.EventFilter2D;
 import net.sf.jaer.eventprocessing.FilterChain;
 import net.sf.jaer.eventprocessing.tracking.RectangularClusterTrackerEvent;
 import net.sf.jaer.graphics.FrameAnnotater;
-import net.sf.jaer.util.filter.ParticleFilter.DynamicEvaluator;
-import net.sf.jaer.util.filter.ParticleFilter.MeasurmentEvaluator;
-import net.sf.jaer.util.filter.ParticleFilter.ParticleFilter;
+import net.sf.jaer.util.filter.ParticleFilter.ArrayParticleFilter;
+import net.sf.jaer.util.filter.ParticleFilter.GaussianParticleModel;
 import net.sf.jaer.eventprocessing.tracking.RectangularClusterTracker;
 import net.sf.jaer.graphics.AEFrameChipRenderer;
 import net.sf.jaer.graphics.AEViewer;
-import net.sf.jaer.util.filter.ParticleFilter.AverageEvaluator;
-import net.sf.jaer.util.filter.ParticleFilter.Particle;
-import net.sf.jaer.util.filter.ParticleFilter.SimpleParticle;
 
 /**
  *
@@ -56,11 +52,9 @@ import net.sf.jaer.util.filter.ParticleFilter.SimpleParticle;
 @DevelopmentStatus(DevelopmentStatus.Status.Experimental)
 public class ParticleFilterTracking extends EventFilter2D implements PropertyChangeListener, FrameAnnotater {
     public static final String PROP_SURROUNDINHIBITIONCOST = "PROP_SURROUNDINHIBITIONCOST";
-    private DynamicEvaluator dynamic;
-    private MeasurmentEvaluator measurement;
-    private AverageEvaluator average;
+    private GaussianParticleModel model;
 
-    private ParticleFilter filter;
+    private ArrayParticleFilter filter;
     
     private boolean Useframe = false;
     private boolean UseClustersFrametime = false;
@@ -75,6 +69,7 @@ public class ParticleFilterTracking extends EventFilter2D implements PropertyCha
     private boolean UsePureEvents = getBoolean("UsePureEvents", false);
     private boolean displayParticles = getBoolean("displayParticles", false);
     private int eventsNumToProcess = getInt("eventsNumToProcess", 10);
+    private int numThreads = getInt("numThreads", 0);
 
     private boolean addedViewerPropertyChangeListener = false; // TODO promote these to base EventFilter class
     private boolean addTimeStampsResetPropertyChangeListener = false;
@@ -97,9 +92,7 @@ public class ParticleFilterTracking extends EventFilter2D implements PropertyCha
         outputX = getStartPositionX();
         outputY = getStartPositionY();
         
-        dynamic = new DynamicEvaluator(noise);
-        measurement = new MeasurmentEvaluator();
-        average = new AverageEvaluator();
+        model = new GaussianParticleModel(noise);
 
         tracker = new RectangularClusterTracker(chip);
         heatMapCNN = new HeatMapCNN(chip);
@@ -128,6 +121,7 @@ public class ParticleFilterTracking extends EventFilter2D implements PropertyCha
         setPropertyTooltip("startPositionY", "Particles start position y");
         setPropertyTooltip("UsePureEvents", "Only use events");
         setPropertyTooltip("eventsNumToProcess", "The events in the packet will be processed");
+        setPropertyTooltip("numThreads", "Number of threads that update the particles, 0 to use all processors");
         // setPropertyTooltip("filterEventsEnabled", "Just for test");      
     }
 
@@ -182,8 +176,8 @@ public class ParticleFilterTracking extends EventFilter2D implements PropertyCha
                 /* If particles are outside, then they will be reset to the center point. */
                 if(outputX > 240 || outputY > 180 || outputX < 0 || outputY < 0) {
                     for(int i = 0; i < filter.getParticleCount(); i++) {
-                        filter.get(i).setX(120 + 50 * (r.nextDouble() * 2 - 1));
-                        filter.get(i).setY(90 + 50 * (r.nextDouble() * 2 - 1));
+                        filter.setX(i, 120 + 50 * (r.nextDouble() * 2 - 1));
+                        filter.setY(i, 90 + 50 * (r.nextDouble() * 2 - 1));
                     }
                 }                
             }    
@@ -243,8 +237,8 @@ public class ParticleFilterTracking extends EventFilter2D implements PropertyCha
         /* If particles are outside, then they will be reset to the center point. */
         if(outputX > 240 || outputY > 180 || outputX < 0 || outputY < 0) {
             for(i = 0; i < filter.getParticleCount(); i++) {
-                filter.get(i).setX(120 + 50 * (r.nextDouble() * 2 - 1));
-                filter.get(i).setY(90 + 50 * (r.nextDouble() * 2 - 1));
+                filter.setX(i, 120 + 50 * (r.nextDouble() * 2 - 1));
+                filter.setY(i, 90 + 50 * (r.nextDouble() * 2 - 1));
             }
         }                 
 
@@ -252,7 +246,7 @@ public class ParticleFilterTracking extends EventFilter2D implements PropertyCha
             outFile.write(String.format(in.getFirstEvent().getTimestamp() + " " + (int)outputX + " " + (int)outputY + "\n"));
             outFile.close();
         } catch (IOException ex) {
-            Logger.getLogger(ParticleFilter.class.getName()).log(Level.SEVERE, null, ex);
+            Logger.getLogger(ParticleFilterTracking.class.getName()).log(Level.SEVERE, null, ex);
         } catch (Exception e) {
             log.warning("Caught " + e + ". See following stack trace.");
             e.printStackTrace();
@@ -266,29 +260,52 @@ public class ParticleFilterTracking extends EventFilter2D implements PropertyCha
     */
     @Override
     public void resetFilter() {
-        filter = new ParticleFilter(dynamic, measurement, average);
-        
+        if(filter == null) {
+            filter = new ArrayParticleFilter(model, particlesCount);
+            filter.setNumThreads(numThreads);
+        }
+        filter.setParticleCount(particlesCount);
+
         Random r = new Random();
         for(int i = 0; i < particlesCount; i++) {
 //                double x = (chip.getSizeX()/2) * (r.nextDouble()*2 - 1) + chip.getSizeX()/2;
 //                double y = (chip.getSizeX()/2) * (r.nextDouble()*2 - 1) + chip.getSizeX()/2;
                 double x = r.nextGaussian() + startPositionX;
                 double y = r.nextGaussian() + startPositionY;
-                filter.addParticle(new SimpleParticle(x, y));
+                filter.setX(i, x);
+                filter.setY(i, y);
         }    
     }
 
+    @Override
+    public synchronized void cleanup() {
+        super.cleanup();
+        if(filter != null) {
+            filter.close();
+        }
+    }
+
+    @Override
+    public synchronized void setFilterEnabled(boolean yes) {
+        super.setFilterEnabled(yes);
+        if(!yes && (filter != null)) {
+            filter.close(); // stops the particle threads, they start again with the next packet
+        }
+    }
+
     @Override
     public void initFilter() {
         List<Float> xArray = new ArrayList<Float>();
         List<Float> yArray = new ArrayList<Float>();
+        List<Double> weightArray = new ArrayList<Double>();
 
         for(int i = 0; i < tracker.getMaxNumClusters(); i ++) {
             xArray.add((float)0);
             yArray.add((float)0);
+            weightArray.add(1.0);
         }
 
-        measurement.setMu(xArray, yArray);
+        model.setMeasurements(xArray, yArray, weightArray);
     }
 
     @Override
@@ -354,7 +371,7 @@ public class ParticleFilterTracking extends EventFilter2D implements PropertyCha
             gl.glColor4f(.1f, 1f, .1f, .25f);
 
             for(int i = 0; i < filter.getParticleCount(); i ++) {            
-                gl.glRectd(filter.get(i).getX() - 0.5, filter.get(i).getY() - 0.5, filter.get(i).getX() + 0.5, filter.get(i).getY() + 0.5);
+                gl.glRectd(filter.getX(i) - 0.5, filter.getY(i) - 0.5, filter.getX(i) + 0.5, filter.getY(i) + 0.5);
             }            
         }
         
@@ -366,20 +383,16 @@ public class ParticleFilterTracking extends EventFilter2D implements PropertyCha
     }   
     
     public void filterProcess() {
-        Random r = new Random();
-
-        measurement.setMu(measurementLocationsX, measurementLocationsY);
-        measurement.setMeasurementWeight(measurementWeight);
+        model.setMeasurements(measurementLocationsX, measurementLocationsY, measurementWeight);
         
         double originSum = 0;
         double effectiveNum = 0;
         // if(visibleCnt != 0) {
-            measurement.setVisibleCluster(enableFlg);
             filter.evaluateStrength();            
             originSum = filter.normalize(); // The sum value before normalize
             effectiveNum = filter.calculateNeff();
             if(originSum > threshold /* && effectiveNum < filter.getParticleCount() * 0.75*/) {
-                filter.resample(r);   
+                filter.resample();   
             } else {
                 filter.updateWeight();
             }
@@ -603,6 +616,25 @@ public class ParticleFilterTracking extends EventFilter2D implements PropertyCha
     public void setNoise(float noise) {
         this.noise = noise;
         putFloat("noise", noise);
+        model.setNoise(noise);
+    }
+
+    /**
+     * @return the number of threads that update the particles, 0 for all processors
+     */
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * @param numThreads the number of threads that update the particles, 0 for all processors
+     */
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+        putInt("numThreads", numThreads);
+        if(filter != null) {
+            filter.setNumThreads(numThreads);
+        }
     }
 
 
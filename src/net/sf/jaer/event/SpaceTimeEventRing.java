@@ -0,0 +1,288 @@
+package net.sf.jaer.event;
+
+/**
+ * Ring buffer of the events of a rolling time window, held as primitive
+ * arrays of x, y, timestamp and type (polarity, for PolarityEvent 1 for ON and
+ * 0 for OFF). Events are appended at the newest end and expired from the
+ * oldest end by a time watermark, so that both cost O(number of events added
+ * or expired) and no event objects are allocated.
+ * <p>
+ * Events are addressed by absolute index, which increases by one for each
+ * event added and wraps around as int arithmetic; the live events have the
+ * indices from getFirst() to getEnd()-1, so that consumers such as a GPU
+ * vertex buffer can remember the end they have seen and copy only the events
+ * added since. When more events are added than fit, the oldest ones are
+ * overwritten; ensureCapacity grows the ring.
+ * <p>
+ * Not thread safe; consumers outside the thread that adds events must
+ * synchronize on the ring.
+ *
+ * @author tobi
+ * @see net.sf.jaer.graphics.SpaceTimeRollingEventDisplayMethod
+ */
+public class SpaceTimeEventRing {
+
+    /**
+     * Default capacity in events
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private int mask;
+    private short[] x, y;
+    private int[] t;
+    private byte[] type;
+    private int first = 0, end = 0; // absolute index of oldest event and one past the newest
+    private int watermark = 0;
+    private boolean watermarkSet = false;
+    private long overwrittenCount = 0;
+
+    /**
+     * Makes a ring with DEFAULT_CAPACITY.
+     */
+    public SpaceTimeEventRing() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Makes a ring.
+     *
+     * @param capacity the number of events held, rounded up to a power of
+     * two
+     */
+    public SpaceTimeEventRing(int capacity) {
+        allocate(roundUp(capacity));
+    }
+
+    private static int roundUp(int capacity) {
+        return Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    }
+
+    private void allocate(int n) {
+        mask = n - 1;
+        x = new short[n];
+        y = new short[n];
+        t = new int[n];
+        type = new byte[n];
+    }
+
+    /**
+     * Grows the ring, keeping its events and their absolute indices.
+     *
+     * @param capacity the number of events to hold, rounded up to a power of
+     * two
+     * @return true if the capacity changed
+     */
+    public boolean ensureCapacity(int capacity) {
+        if (capacity <= mask + 1) {
+            return false;
+        }
+        final short[] ox = x, oy = y;
+        final int[] ot = t;
+        final byte[] otype = type;
+        final int omask = mask;
+        allocate(roundUp(capacity));
+        for (int i = first; i != end; i++) {
+            final int o = i & omask, k = i & mask;
+            x[k] = ox[o];
+            y[k] = oy[o];
+            t[k] = ot[o];
+            type[k] = otype[o];
+        }
+        return true;
+    }
+
+    /**
+     * Removes all events; absolute indices continue from the current end.
+     */
+    public void clear() {
+        first = end;
+        watermarkSet = false;
+    }
+
+    /**
+     * @return the number of events held
+     */
+    public int size() {
+        return end - first;
+    }
+
+    public boolean isEmpty() {
+        return end == first;
+    }
+
+    /**
+     * @return the capacity in events
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return the absolute index of the oldest event
+     */
+    public int getFirst() {
+        return first;
+    }
+
+    /**
+     * @return one past the absolute index of the newest event
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    /**
+     * @return the number of events that were overwritten because the ring was
+     * full, since construction
+     */
+    public long getOverwrittenCount() {
+        return overwrittenCount;
+    }
+
+    /**
+     * Adds an event.
+     *
+     * @param ex the x address
+     * @param ey the y address
+     * @param et the timestamp in us
+     * @param etype the type or polarity
+     */
+    public void add(short ex, short ey, int et, byte etype) {
+        if (end - first > mask) {
+            first++;
+            overwrittenCount++;
+        }
+        final int k = end & mask;
+        x[k] = ex;
+        y[k] = ey;
+        t[k] = et;
+        type[k] = etype;
+        end++;
+    }
+
+    /**
+     * Adds the events of a packet that are neither special nor filtered out.
+     *
+     * @param packet the packet
+     * @return the number of events added
+     */
+    public int addAll(EventPacket<?> packet) {
+        final int start = end;
+        for (BasicEvent e : packet) {
+            if (e.isSpecial() || e.isFilteredOut()) {
+                continue;
+            }
+            add(e.x, e.y, e.timestamp, (byte) e.getType());
+        }
+        return end - start;
+    }
+
+    /**
+     * Removes the oldest events up to the first one not older than the
+     * watermark. Events are expected in timestamp order; an out of order event
+     * is expired together with the events before it.
+     *
+     * @param watermarkUs the timestamp in us of the oldest event to keep
+     * @return the number of events removed
+     */
+    public int expire(int watermarkUs) {
+        watermark = watermarkUs;
+        watermarkSet = true;
+        final int start = first;
+        while (first != end && t[first & mask] - watermarkUs < 0) {
+            first++;
+        }
+        return first - start;
+    }
+
+    /**
+     * @return the last watermark passed to expire, or the oldest timestamp if
+     * expire was not called since the last clear
+     */
+    public int getWatermark() {
+        return watermarkSet ? watermark : getOldestTimestamp();
+    }
+
+    /**
+     * @return the timestamp in us of the oldest event, or 0 if empty
+     */
+    public int getOldestTimestamp() {
+        return isEmpty() ? 0 : t[first & mask];
+    }
+
+    /**
+     * @return the timestamp in us of the newest event, or 0 if empty
+     */
+    public int getNewestTimestamp() {
+        return isEmpty() ? 0 : t[(end - 1) & mask];
+    }
+
+    /**
+     * @param index the absolute index, from getFirst() to getEnd()-1
+     * @return the x address
+     */
+    public short getX(int index) {
+        return x[index & mask];
+    }
+
+    /**
+     * @param index the absolute index, from getFirst() to getEnd()-1
+     * @return the y address
+     */
+    public short getY(int index) {
+        return y[index & mask];
+    }
+
+    /**
+     * @param index the absolute index, from getFirst() to getEnd()-1
+     * @return the timestamp in us
+     */
+    public int getTimestamp(int index) {
+        return t[index & mask];
+    }
+
+    /**
+     * @param index the absolute index, from getFirst() to getEnd()-1
+     * @return the type, for PolarityEvent the polarity, 1 for ON and 0 for
+     * OFF
+     */
+    public byte getType(int index) {
+        return type[index & mask];
+    }
+
+    /**
+     * Copies events to arrays, e.g. for processing outside of the ring.
+     *
+     * @param from the absolute index of the first event to copy, from
+     * getFirst() to getEnd()
+     * @param n the number of events to copy, at most getEnd()-from
+     * @param ox receives the x addresses, or null
+     * @param oy receives the y addresses, or null
+     * @param ot receives the timestamps, or null
+     * @param otype receives the types, or null
+     * @param offset the index in the arrays of the first event
+     */
+    public void copyTo(int from, int n, short[] ox, short[] oy, int[] ot, byte[] otype, int offset) {
+        if (from - first < 0 || end - from < n) {
+            throw new IndexOutOfBoundsException("events " + from + " to " + (from + n) + " are not in ring holding " + first + " to " + end);
+        }
+        int done = 0;
+        while (done < n) {
+            final int k = (from + done) & mask;
+            final int len = Math.min(n - done, mask + 1 - k); // up to the end of the arrays
+            if (ox != null) {
+                System.arraycopy(x, k, ox, offset + done, len);
+            }
+            if (oy != null) {
+                System.arraycopy(y, k, oy, offset + done, len);
+            }
+            if (ot != null) {
+                System.arraycopy(t, k, ot, offset + done, len);
+            }
+            if (otype != null) {
+                System.arraycopy(type, k, otype, offset + done, len);
+            }
+            done += len;
+        }
+    }
+}
@@ -16,7 +16,6 @@ import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
-import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Observable;
 import java.util.Observer;
@@ -41,9 +40,9 @@ import ch.unizh.ini.jaer.hardware.pantilt.PanTilt;
 import com.jogamp.opengl.util.awt.TextRenderer;
 import eu.seebetter.ini.chips.DavisChip;
 import eu.seebetter.ini.chips.davis.imu.IMUSample;
+import eu.seebetter.ini.chips.davis.imu.IMUSampleRing;
 import java.awt.Point;
 import java.awt.event.MouseEvent;
-import java.util.concurrent.ArrayBlockingQueue;
 
 import net.sf.jaer.DevelopmentStatus;
 import net.sf.jaer.event.ApsDvsEvent;
@@ -96,8 +95,13 @@ public class Steadicam extends EventFilter2DMouseAdaptor implements FrameAnnotat
     private FilterChain filterChain;
     private boolean annotateEnclosedEnabled = getBoolean("annotateEnclosedEnabled", true);
     private PanTilt panTilt = null;
-    ArrayList<TransformAtTime> transformList = new ArrayList(); // holds list of transforms over update times commputed by enclosed filter update callbacks
+    private final IMUSampleRing imuSamples = new IMUSampleRing(); // IMU samples with the transform computed from each, to interpolate the transform at any event time
+    private final TransformAtTime imuTransform = new TransformAtTime(0, new Point2D.Float(), 0); // reused for the transform of the last IMU sample
     private TransformAtTime lastTransform = null, imageTransform = null;
+    // events of the packet and the times and addresses of its non-IMU events, transformed together after all IMU samples of the packet are added
+    private ApsDvsEvent[] packetEvents = new ApsDvsEvent[0];
+    private int[] eventTimes = new int[0];
+    private float[] eventX = new float[0], eventY = new float[0];
 //    private double[] angular, acceleration;
     private float panRate = 0, tiltRate = 0, rollRate = 0; // in deg/sec
     private float panOffset = getFloat("panOffset", 0), tiltOffset = getFloat("tiltOffset", 0), rollOffset = getFloat("rollOffset", 0);
@@ -198,7 +202,7 @@ public class Steadicam extends EventFilter2DMouseAdaptor implements FrameAnnotat
         setPropertyTooltip(transform, "disableTranslation", "Disables translations part of transform");
         setPropertyTooltip(transform, "selectCenterOfRotation", "Select during mouse movement the center of rotation (to try out stabilization), then confirm with mouse click on the image the actual center of rotation (COR)");
         setPropertyTooltip(transform, "eraseCenterOfRotationSelection", "Clear center of rotation to reset it back to center of image");
-        setPropertyTooltip(imu, "imuLagMs", "absolute delay/lag of IMU in ms; from Invense datasheet this delay is specified as 1.8ms; by default is set to 0ms to reduce memory pushes/pulls");
+        setPropertyTooltip(imu, "imuLagMs", "absolute delay/lag of IMU in ms; from Invense datasheet this delay is specified as 1.8ms; by default is set to 0ms. Events are transformed by the transform interpolated at their timestamp plus this lag, held at the last IMU sample of the packet");
 
         rollFilter.setTauMs(highpassTauMsRotation);
         panTranslationFilter.setTauMs(highpassTauMsTranslation);
@@ -234,8 +238,7 @@ public class Steadicam extends EventFilter2DMouseAdaptor implements FrameAnnotat
         if (outputPacket == null) {
             outputPacket = new ApsDvsEventPacket(in.getEventClass());
         }
-        transformList.clear(); // empty list of transforms to be applied
-        // The call to enclosed filters issues callbacks to us periodically via updates that fills transform list, in case of enclosed filters.
+        // The call to enclosed filters issues callbacks to us periodically via updates, in case of enclosed filters.
         // this is not the case when using integrated IMU which generates IMUSamples in the event stream.
         getEnclosedFilterChain().filterPacket(in);
 //        System.outputPacket.println("new steadicam input packet "+in);
@@ -244,7 +247,6 @@ public class Steadicam extends EventFilter2DMouseAdaptor implements FrameAnnotat
 //            checkOutputPacketEventType(in);
 //            OutputEventIterator outItr = getOutputPacket().outputIterator();// the transformed events output packet
             // TODO compute evenMotion boolean from opticalGyro
-            Iterator<TransformAtTime> transformItr = transformList.iterator(); // this list is filled by the enclosed filters
 //            int i=-1;
             sx2 = chip.getSizeX() / 2;
             sy2 = chip.getSizeY() / 2;
@@ -260,6 +262,12 @@ public class Steadicam extends EventFilter2DMouseAdaptor implements FrameAnnotat
                 return in;
             }
             ApsDvsEventPacket in2 = (ApsDvsEventPacket) in;
+            checkPacketArrays(in2.getSize());
+            // first pass adds the IMU samples of the packet to imuSamples and collects the other events.
+            // Because of imuLagMs an IMU sample should actually be applied to events from the past;
+            // this is done by looking up the transform at the event timestamp plus imuLagMs.
+            final int lagUs = Math.round(imuLagMs * 1000);
+            int numEvents = 0, numTransformed = 0;
             Iterator itr = in2.fullIterator();
             while (itr.hasNext()) {
                 Object o = itr.next();
@@ -270,74 +278,67 @@ public class Steadicam extends EventFilter2DMouseAdaptor implements FrameAnnotat
 //                i++;
 
                 ApsDvsEvent ev = (ApsDvsEvent) o;
-                switch (cameraRotationEstimator) {
-                    case VORSensor:
-                        if (ev.isImuSample()) {
-                            IMUSample s = ev.getImuSample(); // because of imuLagMs this IMU sample should actually be applied to samples from the past
-                            // to achieve this backwards application of the IMU samples we hold the older events in a FIFO and pop events from the FIFO until 
-                            // the event timestamp catches up to the current IMUSample timestamp - imuLagMs.
-
+                packetEvents[numEvents++] = ev;
+                if (ev.isImuSample()) {
+                    IMUSample s = ev.getImuSample();
 //                            System.out.println("steadicam dt IMU="+(s.getTimestampUs()-lastImuTs));
 //                            lastImuTs=s.getTimestampUs();
-                            lastTransform = updateTransform(s);
-                            if (transformImageEnabled && lastTransform != null && chip instanceof DavisChip && chip.getAeViewer() != null && chip.getCanvas() != null && chip.getCanvas().getDisplayMethod() instanceof ChipRendererDisplayMethodRGBA) {
-                                DavisChip apsDvsChip = (DavisChip) chip;
-                                int frameStartTimestamp = apsDvsChip.getFrameExposureStartTimestampUs();
-                                int frameEndTimestamp = apsDvsChip.getFrameExposureEndTimestampUs();
-                                int frameCounter = apsDvsChip.getFrameCount();
-                                if (frameEndTimestamp >= frameStartTimestamp && lastTransform.timestamp >= frameEndTimestamp && frameCounter > lastFrameNumber) {
-                                    // if a frame has been read outputPacket, then save the last transform to apply to rendering this frame
-                                    imageTransform = lastTransform;
-                                    lastFrameNumber = frameCounter; // only set transfrom once per frame, as soon as we have a tranform for it.
-                                    ChipRendererDisplayMethodRGBA displayMethod = (ChipRendererDisplayMethodRGBA) chip.getCanvas().getDisplayMethod(); // TODO not ideal (tobi)
-                                    displayMethod.setImageTransform(lastTransform.translationPixels, lastTransform.rotationRad);
-                                    // immediately set this to be the transform, assuming that next rendering cycle will draw this new frame
-                                }
+                    lastTransform = updateTransform(s);
+                    if (transformImageEnabled && lastTransform != null && chip instanceof DavisChip && chip.getAeViewer() != null && chip.getCanvas() != null && chip.getCanvas().getDisplayMethod() instanceof ChipRendererDisplayMethodRGBA) {
+                        DavisChip apsDvsChip = (DavisChip) chip;
+                        int frameStartTimestamp = apsDvsChip.getFrameExposureStartTimestampUs();
+                        int frameEndTimestamp = apsDvsChip.getFrameExposureEndTimestampUs();
+                        int frameCounter = apsDvsChip.getFrameCount();
+                        if (frameEndTimestamp >= frameStartTimestamp && lastTransform.timestamp >= frameEndTimestamp && frameCounter > lastFrameNumber) {
+                            // if a frame has been read outputPacket, then save the last transform to apply to rendering this frame
+                            if (imageTransform == null) {
+                                imageTransform = new TransformAtTime(0, new Point2D.Float(), 0);
                             }
-//                            pushEvent(ev);
-//                            continue; // next event
+                            imageTransform.set(lastTransform.timestamp, lastTransform.translationPixels.x, lastTransform.translationPixels.y, lastTransform.rotationRad);
+                            lastFrameNumber = frameCounter; // only set transfrom once per frame, as soon as we have a tranform for it.
+                            ChipRendererDisplayMethodRGBA displayMethod = (ChipRendererDisplayMethodRGBA) chip.getCanvas().getDisplayMethod(); // TODO not ideal (tobi)
+                            displayMethod.setImageTransform(imageTransform.translationPixels, imageTransform.rotationRad);
+                            // immediately set this to be the transform, assuming that next rendering cycle will draw this new frame
                         }
-
-                        break;
-                    default:
-                        lastTransform = transformItr.next();
+                    }
+                    continue;
                 }
-                pushEvent(ev);
-//                System.outputPacket.print(">");
-
-                ApsDvsEvent be = null;
-                while ((be = peekEvent()) != null && (be.timestamp <= ev.timestamp - imuLagMs * 1000 || be.timestamp > ev.timestamp)) {
-                    be = popEvent();
-//                    System.outputPacket.print("<");
-                    if (!(be.isImuSample())) {
-                        if (lastTransform != null) {
-
-                            // apply transform Re+T. First center events from middle of array at 0,0, then transform, then move them back to their origin
-                            int nx = be.x - corx, ny = be.y - cory;
-                            be.x = (short) ((((lastTransform.cosAngle * nx) - (lastTransform.sinAngle * ny)) + lastTransform.translationPixels.x) + corx);
-                            be.y = (short) (((lastTransform.sinAngle * nx) + (lastTransform.cosAngle * ny) + lastTransform.translationPixels.y) + cory);
-                            be.address = chip.getEventExtractor().getAddressFromCell(be.x, be.y, be.getType()); // so event is logged properly to disk
-                        }
+                eventTimes[numTransformed] = ev.timestamp + lagUs;
+                eventX[numTransformed] = ev.x;
+                eventY[numTransformed] = ev.y;
+                numTransformed++;
+            }
 
-                        if ((be.x > sxm1) || (be.x < 0) || (be.y > sym1) || (be.y < 0)) {
-                            be.setFilteredOut(true); // TODO this gradually fills the packet with filteredOut events, which are never seen afterwards because the iterator filters them outputPacket in the reused packet.
-                            continue; // discard events outside chip limits for now, because we can't render them presently, although they are valid events
-                        } else {
-                            be.setFilteredOut(false);
-                        }
-                        // deal with flipping contrast of output event depending on direction of motion, to make things appear the same regardless of camera rotationRad
+            // apply transform Re+T, interpolated at each event time. Events are centered at the center of rotation, transformed, then moved back
+            boolean transformed = lastTransform != null && imuSamples.transform(numTransformed, eventTimes, eventX, eventY, corx, cory);
 
-                        if (flipContrast) {
-                            if (evenMotion) {
-                                be.type = (byte) (1 - be.type); // don't let contrast flip when direction changes, try to stabilze contrast  by flipping it as well
-                                be.polarity = be.polarity == PolarityEvent.Polarity.On ? PolarityEvent.Polarity.Off : PolarityEvent.Polarity.On;
-                            }
-                        }
+            for (int k = 0, j = 0; k < numEvents; k++) {
+                ApsDvsEvent be = packetEvents[k];
+                if (!(be.isImuSample())) {
+                    if (transformed) {
+                        be.x = (short) eventX[j];
+                        be.y = (short) eventY[j];
+                        be.address = chip.getEventExtractor().getAddressFromCell(be.x, be.y, be.getType()); // so event is logged properly to disk
+                    }
+                    j++;
+
+                    if ((be.x > sxm1) || (be.x < 0) || (be.y > sym1) || (be.y < 0)) {
+                        be.setFilteredOut(true); // TODO this gradually fills the packet with filteredOut events, which are never seen afterwards because the iterator filters them outputPacket in the reused packet.
+                        continue; // discard events outside chip limits for now, because we can't render them presently, although they are valid events
+                    } else {
+                        be.setFilteredOut(false);
                     }
-                    outItr.nextOutput().copyFrom(be);
+                    // deal with flipping contrast of output event depending on direction of motion, to make things appear the same regardless of camera rotationRad
 
+                    if (flipContrast) {
+                        if (evenMotion) {
+                            be.type = (byte) (1 - be.type); // don't let contrast flip when direction changes, try to stabilze contrast  by flipping it as well
+                            be.polarity = be.polarity == PolarityEvent.Polarity.On ? PolarityEvent.Polarity.Off : PolarityEvent.Polarity.On;
+                        }
+                    }
                 }
-            } // event iterator
+                outItr.nextOutput().copyFrom(be);
+            }
 //            if(transformImageEnabled && lastTransform!=null && chip.getAeViewer()!=null && chip.getCanvas()!=null && chip.getCanvas().getDisplayMethod() instanceof ChipRendererDisplayMethodRGBA){
 //                ChipRendererDisplayMethodRGBA displayMethod=(ChipRendererDisplayMethodRGBA)chip.getCanvas().getDisplayMethod(); // TODO not ideal (tobi)
 //                displayMethod.setImageTransform(lastTransform.translationPixels,lastTransform.rotationRad);
@@ -367,39 +368,13 @@ public class Steadicam extends EventFilter2DMouseAdaptor implements FrameAnnotat
         return outputPacket;
     }
 
-    private final int INIITAL_QUEUE_SIZE = 1000;
-    private ArrayBlockingQueue<ApsDvsEvent> eventQueue = new ArrayBlockingQueue<ApsDvsEvent>(INIITAL_QUEUE_SIZE);
-    private ApsDvsEvent heldEvent=null; // used when imuLagMs==0
-    
-    private void pushEvent(ApsDvsEvent ev) {
-        if(imuLagMs==0){
-            heldEvent=ev;
-            return;
-        }
-        ApsDvsEvent ne = new ApsDvsEvent();
-        ne.copyFrom(ev);
-        if (!eventQueue.offer(ne)) {
-            // increase queue size
-            ArrayBlockingQueue<ApsDvsEvent> newQueue = new ArrayBlockingQueue<ApsDvsEvent>(eventQueue.size() * 2);
-            log.info("increased event queue to " + newQueue.remainingCapacity() + " events");
-            newQueue.addAll(eventQueue);
-            eventQueue = newQueue;
-            eventQueue.offer(ne);
-        };
-    }
-
-    private ApsDvsEvent popEvent() {
-        if(imuLagMs==0) {
-            ApsDvsEvent re=heldEvent;
-            heldEvent=null;
-            return re;
+    private void checkPacketArrays(int n) {
+        if (packetEvents.length < n) {
+            packetEvents = new ApsDvsEvent[n];
+            eventTimes = new int[n];
+            eventX = new float[n];
+            eventY = new float[n];
         }
-        return eventQueue.poll();
-    }
-
-    private ApsDvsEvent peekEvent() {
-        if(imuLagMs==0) return heldEvent;
-        return eventQueue.peek();
     }
 
     /**
@@ -418,10 +393,13 @@ public class Steadicam extends EventFilter2DMouseAdaptor implements FrameAnnotat
     /**
      * Computes transform using current gyro outputs based on timestamp supplied
      * and returns a TransformAtTime object. Should be called by update in
-     * enclosing processor.
+     * enclosing processor. The sample and its transform are added to the
+     * samples used to interpolate the transform at each event time.
      *
-     * @param timestamp the timestamp in us.
-     * @return the transform object representing the camera rotationRad
+     * @param imuSample the IMU sample
+     * @return the transform object representing the camera rotationRad, which
+     * is reused for the next sample, or null if no transform was computed from
+     * this sample
      */
     synchronized public TransformAtTime updateTransform(IMUSample imuSample) {
 
@@ -508,12 +486,13 @@ public class Steadicam extends EventFilter2DMouseAdaptor implements FrameAnnotat
 
         // computute transform in TransformAtTime units here.
         // Use the lens focal length and camera resolution.
-        TransformAtTime tr = new TransformAtTime(timestamp,
-                new Point2D.Float(
-                        (float) ((Math.PI / 180) * panTranslationDeg) / radPerPixel,
-                        (float) ((Math.PI / 180) * tiltTranslationDeg) / radPerPixel),
+        imuTransform.set(timestamp,
+                (float) ((Math.PI / 180) * panTranslationDeg) / radPerPixel,
+                (float) ((Math.PI / 180) * tiltTranslationDeg) / radPerPixel,
                 (-rollDeg * (float) Math.PI) / 180);
-        return tr;
+        imuSamples.add(imuSample);
+        imuSamples.setTransform(imuTransform.translationPixels.x, imuTransform.translationPixels.y, imuTransform.rotationRad);
+        return imuTransform;
     }
 
     // done inline in filterPacket method
@@ -545,6 +524,7 @@ public class Steadicam extends EventFilter2DMouseAdaptor implements FrameAnnotat
         panCalibrator.reset();
         tiltCalibrator.reset();
         rollCalibrator.reset();
+        imuSamples.clear(); // events are not transformed during calibration
         log.info("calibration started");
 
 //        panOffset = panRate; // TODO offsets should really be some average over some samples
@@ -766,7 +746,7 @@ public class Steadicam extends EventFilter2DMouseAdaptor implements FrameAnnotat
                 panTilt.close();
             }
         }
-        eventQueue.clear();
+        imuSamples.clear();
         rewindFlg = true;
     }
 
@@ -16,6 +16,7 @@ import net.sf.jaer.Description;
 import net.sf.jaer.DevelopmentStatus;
 import net.sf.jaer.chip.AEChip;
 import net.sf.jaer.event.EventPacket;
+import net.sf.jaer.event.PolarityEvent;
 import net.sf.jaer.event.orientation.DvsOrientationEvent;
 import net.sf.jaer.event.orientation.OrientationEventInterface;
 import net.sf.jaer.eventprocessing.EventFilter2D;
@@ -86,6 +87,20 @@ abstract public class AbstractOrientationFilter extends EventFilter2D implements
     protected int dtRejectThreshold = minDtThresholdUs * dtRejectMultiplier;
     protected int rfSize;
     protected Random r;
+    /**
+     * Use the flat timestamp map with precompiled receptive fields
+     */
+    protected boolean flatMapEnabled = getBoolean("flatMapEnabled", true);
+    /**
+     * Evaluate the flat map in parallel in tiles
+     */
+    protected boolean parallelTilesEnabled = getBoolean("parallelTilesEnabled", false);
+    /**
+     * Times of most recent input events and precompiled receptive fields,
+     * used instead of lastTimesMap, offsets and dts when flatMapEnabled is set
+     */
+    protected FlatOrientationMap flatMap = null;
+    private PolarityEvent[] flatMapEvents = new PolarityEvent[0];
 
     /**
      * Times of most recent input events: [x][y][polarity]
@@ -153,7 +168,7 @@ abstract public class AbstractOrientationFilter extends EventFilter2D implements
         super(chip);
         chip.addObserver(this);
         // properties, tips and groups
-        final String size = "Size", tim = "Timing", disp = "Display", hist = "ori history";
+        final String size = "Size", tim = "Timing", disp = "Display", hist = "ori history", perf = "Performance";
 
         setPropertyTooltip(disp, "showLegendEnabled", "shows a legend for orientation colors");
         setPropertyTooltip(disp, "showGlobalEnabled", "shows line of average orientation");
@@ -173,6 +188,8 @@ abstract public class AbstractOrientationFilter extends EventFilter2D implements
         setPropertyTooltip(hist, "oriHistoryEnabled", "enable use of prior orientation values to filter out events not consistent with history");
         setPropertyTooltip(hist, "oriHistoryMixingFactor", "mixing factor for history of local orientation, increase to learn new orientations more quickly");
         setPropertyTooltip(hist, "oriHistoryDiffThreshold", "detected orientation must be within this value of historical value to pass. Value of 0.5 corresponds to 45degree with 4 directions.");
+        setPropertyTooltip(perf, "flatMapEnabled", "<html>Keeps the event times in one flat array with precompiled receptive field offsets, which is faster. <br>Receptive field pixels outside the chip count as pixels without events.");
+        setPropertyTooltip(perf, "parallelTilesEnabled", "<html>With flatMapEnabled, computes the orientations of a packet in parallel in tiles of " + FlatOrientationMap.TILE + "x" + FlatOrientationMap.TILE + " pixels. <br>Events only see the events of neighboring tiles from previous packets.");
     }
 
     public Object getFilterState() {
@@ -203,6 +220,9 @@ abstract public class AbstractOrientationFilter extends EventFilter2D implements
                 Arrays.fill(element, -1f);
             }
         }
+        if (flatMap != null) {
+            flatMap.reset();
+        }
     }
 
     /**
@@ -216,6 +236,10 @@ abstract public class AbstractOrientationFilter extends EventFilter2D implements
         } else {
             lastTimesMap = null;
             oriHistoryMap = null;
+            if (flatMap != null) {
+                flatMap.close();
+                flatMap = null;
+            }
         }
     }
 
@@ -228,6 +252,72 @@ abstract public class AbstractOrientationFilter extends EventFilter2D implements
         }
     }
 
+    /**
+     * Makes sure the flat map fits the chip and the receptive field and starts
+     * a new packet.
+     *
+     * @return the flat map
+     */
+    protected FlatOrientationMap checkFlatMap() {
+        if ((flatMap == null) || !flatMap.matches(chip.getSizeX(), chip.getSizeY(), length, width)) {
+            if (flatMap != null) {
+                flatMap.close();
+            }
+            flatMap = new FlatOrientationMap(chip.getSizeX(), chip.getSizeY(), length, width);
+        }
+        flatMap.clearEvents();
+        return flatMap;
+    }
+
+    /**
+     * Adds an event to the packet of the flat map.
+     *
+     * @param e the event
+     * @param x the subsampled x address
+     * @param y the subsampled y address
+     * @param type the event type, 0 or 1
+     * @return false if the event is outside the map
+     */
+    protected boolean addToFlatMap(PolarityEvent e, int x, int y, int type) {
+        if (!flatMap.contains(x, y, type)) {
+            return false;
+        }
+        int k = flatMap.add(x, y, type, e.timestamp);
+        if (k == flatMapEvents.length) {
+            flatMapEvents = Arrays.copyOf(flatMapEvents, Math.max(1024, 2 * k));
+        }
+        flatMapEvents[k] = e;
+        return true;
+    }
+
+    /**
+     * Computes the orientation delta times of the packet of the flat map.
+     * Afterwards getFlatMapEvent(k) fills oridts and oriDecideHelper for
+     * event k.
+     *
+     * @param rejectNegativeDt whether negative delta times are rejected when
+     * averaging
+     * @return the number of events
+     */
+    protected int processFlatMap(boolean rejectNegativeDt) {
+        flatMap.process(rejectNegativeDt, useAverageDtEnabled, dtRejectThreshold, parallelTilesEnabled);
+        return flatMap.getNumEvents();
+    }
+
+    /**
+     * Returns event k of the flat map packet and copies its delta times to
+     * oridts and oriDecideHelper.
+     *
+     * @param k the index of the event
+     * @return the event
+     */
+    protected PolarityEvent getFlatMapEvent(int k) {
+        flatMap.getResult(k, oridts, oriDecideHelper);
+        PolarityEvent e = flatMapEvents[k];
+        flatMapEvents[k] = null;
+        return e;
+    }
+
     synchronized protected void allocateMaps() {
         if (!isFilterEnabled()) {
             return;
@@ -637,6 +727,38 @@ abstract public class AbstractOrientationFilter extends EventFilter2D implements
     }
     // </editor-fold>
 
+    /**
+     * @return the flatMapEnabled
+     */
+    public boolean isFlatMapEnabled() {
+        return flatMapEnabled;
+    }
+
+    /**
+     * @param flatMapEnabled true to use the flat timestamp map
+     */
+    synchronized public void setFlatMapEnabled(boolean flatMapEnabled) {
+        this.flatMapEnabled = flatMapEnabled;
+        putBoolean("flatMapEnabled", flatMapEnabled);
+        resetFilter();
+    }
+
+    /**
+     * @return the parallelTilesEnabled
+     */
+    public boolean isParallelTilesEnabled() {
+        return parallelTilesEnabled;
+    }
+
+    /**
+     * @param parallelTilesEnabled true to compute the orientations of the flat
+     * map in parallel tiles
+     */
+    public void setParallelTilesEnabled(boolean parallelTilesEnabled) {
+        this.parallelTilesEnabled = parallelTilesEnabled;
+        putBoolean("parallelTilesEnabled", parallelTilesEnabled);
+    }
+
     /**
      * @return the showLegendEnabled
      */
@@ -0,0 +1,396 @@
+/*
+ * FlatOrientationMap.java
+ *
+ * This is part of jAER
+ * <a href="http://jaerproject.net/">jaerproject.net</a>,
+ * licensed under the LGPL (<a href="http://en.wikipedia.org/wiki/GNU_Lesser_General_Public_License">http://en.wikipedia.org/wiki/GNU_Lesser_General_Public_License</a>.
+ */
+package net.sf.jaer.eventprocessing.label;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.jaer.util.ParallelRunner;
+
+/**
+ * Timestamp map and precompiled receptive fields for the orientation labelers
+ * of AbstractOrientationFilter.
+ * <p>
+ * The last event times are kept in a single int array, one plane per event
+ * type, with a border of length+width pixels around the chip. The receptive
+ * field of each orientation is compiled into index deltas in this array, so
+ * the delta times of an event are read with one add per neighbor and without
+ * bounds checks. Pixels in the border never get events and behave like pixels
+ * that have not fired yet (time 0).
+ * <p>
+ * The events of a packet are added with add() and evaluated together with
+ * process(). For each event and orientation this gives the average or max
+ * delta time and the decision helper (variance or previous max) that the
+ * labelers use for their winner-take-all, computed exactly like the loops in
+ * SimpleOrientationFilter and ApsDvsOrientationFilter.
+ * <p>
+ * With tiles, the chip is split into TILE x TILE pixel tiles that are
+ * evaluated in parallel. Each tile sees the events of its own pixels in order
+ * and the map of the neighboring tiles as it was at the start of the packet.
+ * The results therefore only depend on the packet, not on the number of
+ * threads.
+ *
+ * @author tobi
+ */
+public class FlatOrientationMap {
+
+    /**
+     * The number of orientations, as in AbstractOrientationFilter
+     */
+    public static final int NUM_ORIENTATIONS = 4;
+    /**
+     * The number of event types (polarities) stored
+     */
+    public static final int NUM_TYPES = 2;
+    /**
+     * The size of the tiles in pixels
+     */
+    public static final int TILE = 32;
+    /**
+     * Packets with fewer events than this are evaluated in the calling thread
+     */
+    private static final int MIN_PARALLEL_EVENTS = 512;
+
+    private final int sizeX, sizeY, length, width, pad, stride, plane, rfSize;
+    private final int tileStride, tilePlane, tilesX, tilesY;
+    private final int[] times;
+    // index deltas of the receptive fields in the map and in a tile buffer, [orientation][neighbor]
+    private final int[][] deltas, tileDeltas;
+
+    // the events of the current packet
+    private int n = 0;
+    private int[] ex = new int[0], ey = new int[0], etype = new int[0], ets = new int[0];
+    // results, NUM_ORIENTATIONS per event
+    private int[] oridts = new int[0], decideHelpers = new int[0];
+
+    // per tile event lists
+    private int[] tileStart, tileEvents = new int[0];
+
+    private final Scratch scratch;
+    private Scratch[] threadScratch = null;
+    private final ParallelRunner runner = new ParallelRunner("FlatOrientationMap");
+    private int numThreads = 0;
+
+    // scratch memory of one thread
+    private class Scratch {
+
+        final int[] dts = new int[rfSize];
+        int[] tile = null;
+    }
+
+    /**
+     * Makes a new map with all times 0.
+     *
+     * @param sizeX the number of columns
+     * @param sizeY the number of rows
+     * @param length the half length of the receptive field, see
+     * AbstractOrientationFilter.getLength()
+     * @param width the half width of the receptive field, see
+     * AbstractOrientationFilter.getWidth()
+     */
+    public FlatOrientationMap(int sizeX, int sizeY, int length, int width) {
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.length = length;
+        this.width = width;
+        pad = length + width;
+        stride = sizeX + 2 * pad;
+        plane = stride * (sizeY + 2 * pad);
+        rfSize = 2 * length * ((2 * width) + 1);
+        times = new int[NUM_TYPES * plane];
+        tileStride = TILE + 2 * pad;
+        tilePlane = tileStride * tileStride;
+        tilesX = (sizeX + TILE - 1) / TILE;
+        tilesY = (sizeY + TILE - 1) / TILE;
+        tileStart = new int[tilesX * tilesY + 1];
+        deltas = compileReceptiveFields(stride);
+        tileDeltas = compileReceptiveFields(tileStride);
+        scratch = new Scratch();
+    }
+
+    /**
+     * Compiles the receptive fields into index deltas, in the same order as
+     * AbstractOrientationFilter.computeRFOffsets().
+     */
+    private int[][] compileReceptiveFields(int rowStride) {
+        final int[] bx = {1, 1, 0, -1}, by = {0, 1, 1, 1}; // AbstractOrientationFilter.baseOffsets
+        int[][] d = new int[NUM_ORIENTATIONS][rfSize];
+        for (int ori = 0; ori < NUM_ORIENTATIONS; ori++) {
+            int p = (ori + 2) % NUM_ORIENTATIONS; // perpendicular direction
+            int ind = 0;
+            for (int s = -length; s <= length; s++) {
+                if (s == 0) {
+                    continue;
+                }
+                for (int w = -width; w <= width; w++) {
+                    int dx = (s * bx[ori]) + (w * bx[p]), dy = (s * by[ori]) + (w * by[p]);
+                    d[ori][ind++] = (dy * rowStride) + dx;
+                }
+            }
+        }
+        return d;
+    }
+
+    /**
+     * @return true if this map fits the chip size and receptive field
+     */
+    public boolean matches(int sizeX, int sizeY, int length, int width) {
+        return this.sizeX == sizeX && this.sizeY == sizeY && this.length == length && this.width == width;
+    }
+
+    /**
+     * Sets all times to 0 and clears the packet.
+     */
+    public void reset() {
+        Arrays.fill(times, 0);
+        n = 0;
+    }
+
+    /**
+     * @return true if x and y are on the chip and type is a stored type
+     */
+    public boolean contains(int x, int y, int type) {
+        return x >= 0 && y >= 0 && x < sizeX && y < sizeY && type >= 0 && type < NUM_TYPES;
+    }
+
+    /**
+     * Starts a new packet.
+     */
+    public void clearEvents() {
+        n = 0;
+    }
+
+    /**
+     * Adds an event of the packet. The event must be contained in the map.
+     *
+     * @return the index of the event in the packet
+     */
+    public int add(int x, int y, int type, int ts) {
+        if (n == ex.length) {
+            int cap = Math.max(1024, 2 * n);
+            ex = Arrays.copyOf(ex, cap);
+            ey = Arrays.copyOf(ey, cap);
+            etype = Arrays.copyOf(etype, cap);
+            ets = Arrays.copyOf(ets, cap);
+            oridts = Arrays.copyOf(oridts, cap * NUM_ORIENTATIONS);
+            decideHelpers = Arrays.copyOf(decideHelpers, cap * NUM_ORIENTATIONS);
+            tileEvents = Arrays.copyOf(tileEvents, cap);
+        }
+        ex[n] = x;
+        ey[n] = y;
+        etype[n] = type;
+        ets[n] = ts;
+        return n++;
+    }
+
+    /**
+     * @return the number of events of the packet
+     */
+    public int getNumEvents() {
+        return n;
+    }
+
+    /**
+     * Stores the times of the events of the packet and computes their delta
+     * times.
+     *
+     * @param rejectNegativeDt whether negative delta times are rejected when
+     * averaging, as in SimpleOrientationFilter
+     * @param useAverageDt use the average instead of the max delta time
+     * @param dtRejectThreshold delta times larger than this are rejected
+     * @param tiles evaluate the packet in tiles, in parallel
+     */
+    public void process(boolean rejectNegativeDt, boolean useAverageDt, int dtRejectThreshold, boolean tiles) {
+        if (!tiles) {
+            for (int k = 0; k < n; k++) {
+                int c = (etype[k] * plane) + ((ey[k] + pad) * stride) + ex[k] + pad;
+                times[c] = ets[k];
+                evaluate(times, c, deltas, k, rejectNegativeDt, useAverageDt, dtRejectThreshold, scratch.dts);
+            }
+            return;
+        }
+        processTiles(rejectNegativeDt, useAverageDt, dtRejectThreshold);
+        // the tiles only wrote their own buffers; now store the times in packet order
+        for (int k = 0; k < n; k++) {
+            times[(etype[k] * plane) + ((ey[k] + pad) * stride) + ex[k] + pad] = ets[k];
+        }
+    }
+
+    /**
+     * Computes the delta times of event k.
+     *
+     * @param map the map or tile buffer
+     * @param c the index of the event in map
+     * @param d the receptive field deltas for map
+     */
+    private void evaluate(final int[] map, final int c, final int[][] d, final int k,
+            final boolean rejectNegativeDt, final boolean useAverageDt, final int thr, final int[] dts) {
+        final int ts = ets[k];
+        for (int ori = 0; ori < NUM_ORIENTATIONS; ori++) {
+            final int[] od = d[ori];
+            int oridt, helper;
+            if (useAverageDt) {
+                int sum = 0, count = 0;
+                for (int i = 0; i < rfSize; i++) {
+                    int dt = ts - map[c + od[i]];
+                    // -1 if the delta time is used, 0 if it is rejected as outlier
+                    int keep = (dt <= thr) & (!rejectNegativeDt | dt >= 0) ? -1 : 0;
+                    dt &= keep;
+                    dts[i] = dt;
+                    sum += dt;
+                    count -= keep;
+                }
+                if (count > 0) {
+                    oridt = sum / count;
+                    helper = 0;
+                    for (int i = 0; i < rfSize; i++) {
+                        int dt = dts[i];
+                        dt = dt > 0 ? dt - oridt : dt;
+                        helper += dt * dt;
+                    }
+                    if (helper < 0) {
+                        helper = Integer.MAX_VALUE; // overflow
+                    }
+                    helper /= count;
+                } else {
+                    oridt = Integer.MAX_VALUE;
+                    helper = Integer.MAX_VALUE;
+                }
+            } else {
+                oridt = Integer.MIN_VALUE;
+                helper = Integer.MIN_VALUE;
+                for (int i = 0; i < rfSize; i++) {
+                    int dt = ts - map[c + od[i]];
+                    boolean larger = (dt <= thr) & (dt > oridt);
+                    helper = larger ? oridt : helper;
+                    oridt = larger ? dt : oridt;
+                }
+            }
+            oridts[(k * NUM_ORIENTATIONS) + ori] = oridt;
+            decideHelpers[(k * NUM_ORIENTATIONS) + ori] = helper;
+        }
+    }
+
+    private void processTiles(final boolean rejectNegativeDt, final boolean useAverageDt, final int thr) {
+        // stable counting sort of the events by tile
+        final int numTiles = tilesX * tilesY;
+        Arrays.fill(tileStart, 0);
+        for (int k = 0; k < n; k++) {
+            tileStart[tileOf(k) + 1]++;
+        }
+        for (int t = 0; t < numTiles; t++) {
+            tileStart[t + 1] += tileStart[t];
+        }
+        int[] next = Arrays.copyOf(tileStart, numTiles);
+        for (int k = 0; k < n; k++) {
+            tileEvents[next[tileOf(k)]++] = k;
+        }
+        final AtomicInteger nextTile = new AtomicInteger(0);
+        int nt = Math.min(getNumThreads(), n / MIN_PARALLEL_EVENTS);
+        if (nt <= 1) {
+            processTiles(nextTile, scratch, rejectNegativeDt, useAverageDt, thr);
+            return;
+        }
+        final Scratch[] scratches = getThreadScratch();
+        runner.run(nt, new ParallelRunner.Task() {
+            @Override
+            public void run(int i) {
+                processTiles(nextTile, scratches[i], rejectNegativeDt, useAverageDt, thr);
+            }
+        });
+    }
+
+    private int tileOf(int k) {
+        return ((ey[k] / TILE) * tilesX) + (ex[k] / TILE);
+    }
+
+    // evaluates tiles until none is left
+    private void processTiles(AtomicInteger nextTile, Scratch s, boolean rejectNegativeDt, boolean useAverageDt, int thr) {
+        if (s.tile == null) {
+            s.tile = new int[NUM_TYPES * tilePlane];
+        }
+        final int numTiles = tilesX * tilesY;
+        int t;
+        while ((t = nextTile.getAndIncrement()) < numTiles) {
+            if (tileStart[t] == tileStart[t + 1]) {
+                continue;
+            }
+            // copy the tile and its border from the map; other tiles only read the map
+            int x0 = (t % tilesX) * TILE, y0 = (t / tilesX) * TILE;
+            int w = Math.min(TILE, sizeX - x0) + (2 * pad), h = Math.min(TILE, sizeY - y0) + (2 * pad);
+            for (int type = 0; type < NUM_TYPES; type++) {
+                for (int row = 0; row < h; row++) {
+                    System.arraycopy(times, (type * plane) + ((y0 + row) * stride) + x0, s.tile, (type * tilePlane) + (row * tileStride), w);
+                }
+            }
+            for (int i = tileStart[t]; i < tileStart[t + 1]; i++) {
+                int k = tileEvents[i];
+                int c = (etype[k] * tilePlane) + ((ey[k] - y0 + pad) * tileStride) + ex[k] - x0 + pad;
+                s.tile[c] = ets[k];
+                evaluate(s.tile, c, tileDeltas, k, rejectNegativeDt, useAverageDt, thr, s.dts);
+            }
+        }
+    }
+
+    /**
+     * Copies the results of event k.
+     *
+     * @param k the index of the event in the packet
+     * @param oridts the average or max delta time for each orientation,
+     * Integer.MAX_VALUE if all were rejected
+     * @param oriDecideHelper the variance or previous max delta time for each
+     * orientation
+     */
+    public void getResult(int k, int[] oridts, int[] oriDecideHelper) {
+        System.arraycopy(this.oridts, k * NUM_ORIENTATIONS, oridts, 0, NUM_ORIENTATIONS);
+        System.arraycopy(decideHelpers, k * NUM_ORIENTATIONS, oriDecideHelper, 0, NUM_ORIENTATIONS);
+    }
+
+    /**
+     * @return the last time of a pixel
+     */
+    public int getTime(int x, int y, int type) {
+        return times[(type * plane) + ((y + pad) * stride) + x + pad];
+    }
+
+    /**
+     * @return the number of threads used for tiles
+     */
+    public int getNumThreads() {
+        return ParallelRunner.getNumThreadsUsed(numThreads);
+    }
+
+    /**
+     * @param numThreads the number of threads used for tiles, 0 to use all
+     * processors
+     */
+    synchronized public void setNumThreads(int numThreads) {
+        if (numThreads != this.numThreads) {
+            close();
+            this.numThreads = numThreads;
+        }
+    }
+
+    synchronized private Scratch[] getThreadScratch() {
+        if (threadScratch == null) {
+            threadScratch = new Scratch[getNumThreads()];
+            for (int i = 0; i < threadScratch.length; i++) {
+                threadScratch[i] = new Scratch();
+            }
+        }
+        return threadScratch;
+    }
+
+    /**
+     * Stops the threads. They are started again when needed.
+     */
+    synchronized public void close() {
+        runner.close();
+        threadScratch = null;
+    }
+}
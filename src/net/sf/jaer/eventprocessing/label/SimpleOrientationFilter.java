@@ -99,6 +99,7 @@ public class SimpleOrientationFilter extends AbstractOrientationFilter{
 
         oriHist.reset();
         checkMaps(in);
+        if ( flatMapEnabled ) checkFlatMap();
 
         // for each event write out an event of an orientation type if 
         // there have also been events within past dt along this 
@@ -135,6 +136,13 @@ public class SimpleOrientationFilter extends AbstractOrientationFilter{
                 log.warning("coordinate for event "+e.toString()+" is out of bounds");
                 continue;
             }
+            if ( flatMapEnabled ){
+                // the delta times of all events are computed after the loop
+                if ( !addToFlatMap(e , x , y , type) ){
+                    log.warning("coordinate for event "+e.toString()+" is out of bounds");
+                }
+                continue;
+            }
             lastTimesMap[x][y][type] = e.timestamp;
 
             // For each orientation and position in the receptive field compute
@@ -220,105 +228,17 @@ public class SimpleOrientationFilter extends AbstractOrientationFilter{
                 // </editor-fold>
             }
 
-            if ( !multiOriOutputEnabled ){
-                // <editor-fold defaultstate="collapsed" desc="--WTA to find the one best orientation per event--">
-                // here we do a WTA, only 1 event max gets generated in optimal 
-                // orienation IFF is also satisfies coincidence timing requirement
-
-                // now find min of these, this is most likely orientation, iff this time is also less than minDtThreshold
-                int mindt = minDtThresholdUs, decideHelper = 0, dir = -1;
-                for ( int ori = 0 ; ori < NUM_TYPES ; ori++ ){
-                    if ( oridts[ori] < mindt ){
-                        mindt = oridts[ori];
-                        decideHelper = oriDecideHelper[ori];
-                        dir = ori;
-                    } else if(oridts[ori] == mindt){
-                        // <editor-fold defaultstate="collapsed" desc="--COMMENT--">
-                        //Before only the check above ( oridts[ori] < mindt )
-                        // was performed. This however was biased towards 
-                        // horizontal directions, as if the oridts[ori] of 
-                        // 'later' orientations was equal to an earlier one
-                        // then the final orientation would still be the first 
-                        // to accour. As we always loop from horizontal to
-                        // up-left the up-left orientation had a dissadvantage.
-                        // The oriDecideHelper is either the second largest time
-                        // if the MAXdt method is used, or the estimator of the
-                        // standard deviation if the average method is used.
-                        //  This still has a very small bias, as if the second
-                        //  decicion is also equal (oriDecideHelper == decideHelper)
-                        //  we chose the new orientation over the old one.
-                        //  THis is much more unlikely though.
-                        // </editor-fold>
-                        if(oriDecideHelper[ori] <= decideHelper){
-                            mindt = oridts[ori];
-                            dir = ori;
-                        }
-                    }
-                }
-
-                if ( dir == -1 ){ // didn't find a good orientation
-                    if ( passAllEvents ) writeOutput(outItr , e , false , (byte)0);
-                    continue;
-                }
-                
-                if ( oriHistoryEnabled ){
-                    //We only let the orientation pass if it is within some
-                    // agreement with the past orientations we found at this 
-                    // particular spot. If it is too different, we ignore it
-                    // and dont count it as a valid orientation.
-                    
-                    // update lowpass orientation map
-                    float f = oriHistoryMap[x][y];
-                    if(f == -1f) {
-                        //If we initialize to 0 we have a big bias towards 
-                        // horizontal direction. Hence, we initialize the 
-                        // array to '-1' and check for this. If we find a '-1'
-                        // this means this location has never had a orientation
-                        // and we initialize it with the found location.
-                        // This should guarantee handling the orientations in a 
-                        // unbiased fashion.
-                        f = dir;
-                    } 
-                    f = ( 1 - oriHistoryMixingFactor ) * f + oriHistoryMixingFactor * dir;
-                    oriHistoryMap[x][y] = f;
+            writeOrientation(outItr , e , x , y);
+        }
 
-                    //fd is the distance between the orientation in the HistoryMap
-                    // and the currently detected orientation.
-                    float fd = f - dir;
-                    final int halfTypes = NUM_TYPES / 2;
-                    //The distance between orientation 0 (horizontal) and ori 3
-                    // (up-left) is not equal to 0-3=3 but infact is just 1.
-                    // There is one orientation between 0 and 3, hence we need
-                    // to adjust here.
-                    if ( fd > halfTypes ){
-                        fd = fd - NUM_TYPES;
-                    } else if ( fd < -halfTypes ){
-                        fd = fd + NUM_TYPES;
-                    }
-                    if ( Math.abs(fd) > oriHistoryDiffThreshold ){
-                        if ( passAllEvents ) writeOutput(outItr , e , false , (byte)0);
-                        continue;
-                    }
-                }
-                
-                writeOutput(outItr , e , true , (byte)dir);
-                oriHist.add(dir);
-                // </editor-fold>
-            } else {
-                // <editor-fold defaultstate="collapsed" desc="--allow multiple orientations per event--">
-                // here events are generated in oris that satisfy timing; there is no WTA
-                // now write output cell iff all events along dir occur within minDtThreshold
-                for ( int k = 0 ; k < NUM_TYPES ; k++ ){
-                    if ( oridts[k] < minDtThresholdUs ){
-                        writeOutput(outItr , e , true , (byte)k);
-                        oriHist.add(k);
-                    } else writeOutput(outItr , e , false , (byte)0);
-                }
-                // </editor-fold>
+        if ( flatMapEnabled ){
+            int n = processFlatMap(true);
+            for ( int k = 0 ; k < n ; k++ ){
+                PolarityEvent e = getFlatMapEvent(k);
+                writeOrientation(outItr , e , e.x >>> subSampleShift , e.y >>> subSampleShift);
             }
         }
         
-        
         for (Object o : outputPacket) {
             //bbeyer: What is the use of this inclusive or?
             // If the orientation is 0 than the address stays the same.
@@ -337,6 +257,108 @@ public class SimpleOrientationFilter extends AbstractOrientationFilter{
         return showRawInputEnabled ? in : getOutputPacket();
     }
     
+    /** Writes the output of an event from the delta times in oridts and oriDecideHelper.
+     * @param x the subsampled x address
+     * @param y the subsampled y address */
+    private void writeOrientation(OutputEventIterator outItr, PolarityEvent e, int x, int y){
+        if ( !multiOriOutputEnabled ){
+            // <editor-fold defaultstate="collapsed" desc="--WTA to find the one best orientation per event--">
+            // here we do a WTA, only 1 event max gets generated in optimal 
+            // orienation IFF is also satisfies coincidence timing requirement
+
+            // now find min of these, this is most likely orientation, iff this time is also less than minDtThreshold
+            int mindt = minDtThresholdUs, decideHelper = 0, dir = -1;
+            for ( int ori = 0 ; ori < NUM_TYPES ; ori++ ){
+                if ( oridts[ori] < mindt ){
+                    mindt = oridts[ori];
+                    decideHelper = oriDecideHelper[ori];
+                    dir = ori;
+                } else if(oridts[ori] == mindt){
+                    // <editor-fold defaultstate="collapsed" desc="--COMMENT--">
+                    //Before only the check above ( oridts[ori] < mindt )
+                    // was performed. This however was biased towards 
+                    // horizontal directions, as if the oridts[ori] of 
+                    // 'later' orientations was equal to an earlier one
+                    // then the final orientation would still be the first 
+                    // to accour. As we always loop from horizontal to
+                    // up-left the up-left orientation had a dissadvantage.
+                    // The oriDecideHelper is either the second largest time
+                    // if the MAXdt method is used, or the estimator of the
+                    // standard deviation if the average method is used.
+                    //  This still has a very small bias, as if the second
+                    //  decicion is also equal (oriDecideHelper == decideHelper)
+                    //  we chose the new orientation over the old one.
+                    //  THis is much more unlikely though.
+                    // </editor-fold>
+                    if(oriDecideHelper[ori] <= decideHelper){
+                        mindt = oridts[ori];
+                        dir = ori;
+                    }
+                }
+            }
+
+            if ( dir == -1 ){ // didn't find a good orientation
+                if ( passAllEvents ) writeOutput(outItr , e , false , (byte)0);
+                return;
+            }
+            
+            if ( oriHistoryEnabled ){
+                //We only let the orientation pass if it is within some
+                // agreement with the past orientations we found at this 
+                // particular spot. If it is too different, we ignore it
+                // and dont count it as a valid orientation.
+                
+                // update lowpass orientation map
+                float f = oriHistoryMap[x][y];
+                if(f == -1f) {
+                    //If we initialize to 0 we have a big bias towards 
+                    // horizontal direction. Hence, we initialize the 
+                    // array to '-1' and check for this. If we find a '-1'
+                    // this means this location has never had a orientation
+                    // and we initialize it with the found location.
+                    // This should guarantee handling the orientations in a 
+                    // unbiased fashion.
+                    f = dir;
+                } 
+                f = ( 1 - oriHistoryMixingFactor ) * f + oriHistoryMixingFactor * dir;
+                oriHistoryMap[x][y] = f;
+
+                //fd is the distance between the orientation in the HistoryMap
+                // and the currently detected orientation.
+                float fd = f - dir;
+                final int halfTypes = NUM_TYPES / 2;
+                //The distance between orientation 0 (horizontal) and ori 3
+                // (up-left) is not equal to 0-3=3 but infact is just 1.
+                // There is one orientation between 0 and 3, hence we need
+                // to adjust here.
+                if ( fd > halfTypes ){
+                    fd = fd - NUM_TYPES;
+                } else if ( fd < -halfTypes ){
+                    fd = fd + NUM_TYPES;
+                }
+                if ( Math.abs(fd) > oriHistoryDiffThreshold ){
+                    if ( passAllEvents ) writeOutput(outItr , e , false , (byte)0);
+                    return;
+                }
+            }
+            
+            writeOutput(outItr , e , true , (byte)dir);
+            oriHist.add(dir);
+            // </editor-fold>
+        } else {
+            // <editor-fold defaultstate="collapsed" desc="--allow multiple orientations per event--">
+            // here events are generated in oris that satisfy timing; there is no WTA
+            // now write output cell iff all events along dir occur within minDtThreshold
+            for ( int k = 0 ; k < NUM_TYPES ; k++ ){
+                if ( oridts[k] < minDtThresholdUs ){
+                    writeOutput(outItr , e , true , (byte)k);
+                    oriHist.add(k);
+                } else writeOutput(outItr , e , false , (byte)0);
+            }
+            // </editor-fold>
+        }
+    }
+    
     private void writeOutput(OutputEventIterator outItr, PolarityEvent e, boolean hasOrientation, byte orientation){
         if ( !isBinocular ){
             if(isApsDvs){
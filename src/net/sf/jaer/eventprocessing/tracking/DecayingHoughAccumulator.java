@@ -0,0 +1,388 @@
+/*
+ * DecayingHoughAccumulator.java
+ *
+ * Copyright 2026 Tobi Delbruck, Inst. of Neuroinformatics, UNI-ETH Zurich
+ */
+package net.sf.jaer.eventprocessing.tracking;
+
+import java.util.Arrays;
+
+/**
+ * Hough accumulator for event-driven trackers, whose cost per event is the
+ * number of cells an event votes for and does not depend on the number of
+ * cells in the accumulator.
+ * <p>
+ * Decay is lazy: all cells decay by the same factor, so the accumulator holds
+ * the cells in a common scaled domain and a decay just changes the scale. The
+ * cells are only rescaled every ~35 e-foldings of decay to keep the numbers in
+ * float range. Decay can be exponential in event time with time constant tauUs
+ * (see decayTo) or by a factor, e.g. per packet (see decayBy).
+ * <p>
+ * Since decay keeps the order of the cells, the peaks are tracked on vote by a
+ * min-heap of the largest cells, holding some more cells than the number of
+ * peaks asked for, together with an upper bound on the cells outside the heap.
+ * Cells that are lowered (negative votes or scaleCell) can drop below cells
+ * outside the heap; only then, when getPeaks cannot be sure of its result, the
+ * whole accumulator is scanned to rebuild the heap.
+ * <p>
+ * The cells an event votes for are usually a function of its address only,
+ * so the accumulator also caches these vote stencils as arrays of cell
+ * indices, see getStencil.
+ *
+ * @author tobi
+ * @see HoughLineTracker
+ * @see HoughCircleTracker
+ */
+public class DecayingHoughAccumulator {
+
+    /** The scale is folded into the cells when it leaves this range */
+    private static final double MIN_SCALE = 1e-15, MAX_SCALE = 1e15;
+
+    private final int numCells;
+    private final float[] cells; // values in the scaled domain, the value of a cell is cells[i]*scale
+    private double scale = 1;
+    private float tauUs = 0;
+    private int lastTimestamp;
+    private boolean lastTimestampSet = false;
+
+    private final int numPeaks;
+    private final int[] heap; // min-heap of cell indices by value
+    private final int[] heapPos; // position of cell in heap or -1
+    private int heapSize = 0;
+    private float outsideMax; // upper bound on the cells outside the heap, in scaled domain
+
+    private int[][] stencils = null;
+
+    /**
+     * Makes a new accumulator with all cells zero.
+     *
+     * @param numCells the number of cells, e.g. nTheta*nRho
+     * @param numPeaks the maximum number of peaks that getPeaks can return
+     */
+    public DecayingHoughAccumulator(int numCells, int numPeaks) {
+        if (numCells < 0 || numPeaks < 1) {
+            throw new IllegalArgumentException("numCells=" + numCells + " must be >=0 and numPeaks=" + numPeaks + " must be >=1");
+        }
+        this.numCells = numCells;
+        this.numPeaks = numPeaks;
+        cells = new float[numCells];
+        heap = new int[Math.min(numCells, (2 * numPeaks) + 8)];
+        heapPos = new int[numCells];
+        clear();
+    }
+
+    /**
+     * Zeros all cells; keeps the cached stencils.
+     */
+    public void clear() {
+        zero();
+        lastTimestampSet = false;
+    }
+
+    private void zero() {
+        Arrays.fill(cells, 0);
+        Arrays.fill(heapPos, -1);
+        heapSize = 0;
+        scale = 1;
+        outsideMax = 0;
+    }
+
+    /**
+     * @return the number of cells
+     */
+    public int getNumCells() {
+        return numCells;
+    }
+
+    /**
+     * @return the maximum number of peaks that getPeaks returns
+     */
+    public int getNumPeaks() {
+        return numPeaks;
+    }
+
+    /**
+     * @return the time constant in us of the exponential decay in decayTo
+     */
+    public float getTauUs() {
+        return tauUs;
+    }
+
+    /**
+     * @param tauUs the time constant in us of the exponential decay in
+     * decayTo, 0 for no decay
+     */
+    public void setTauUs(float tauUs) {
+        this.tauUs = tauUs < 0 ? 0 : tauUs;
+    }
+
+    /**
+     * @param cell the cell index
+     * @return the decayed value of the cell
+     */
+    public float getValue(int cell) {
+        return (float) (cells[cell] * scale);
+    }
+
+    /**
+     * Decays all cells exponentially with tauUs to the timestamp. Timestamps
+     * going backwards, e.g. on rewind, restart the decay without decaying.
+     *
+     * @param timestamp the timestamp in us
+     */
+    public void decayTo(int timestamp) {
+        if (lastTimestampSet && tauUs > 0) {
+            final int dt = timestamp - lastTimestamp;
+            if (dt > 0) {
+                decayBy((float) Math.exp(-dt / tauUs));
+            }
+        }
+        lastTimestamp = timestamp;
+        lastTimestampSet = true;
+    }
+
+    /**
+     * Multiplies all cells by a factor, which costs O(1) unless the factor is
+     * 0.
+     *
+     * @param factor the factor, e.g. 0.9; 0 zeros all cells
+     */
+    public void decayBy(float factor) {
+        if (factor == 0) {
+            zero();
+            return;
+        }
+        if (!(factor > 0)) {
+            throw new IllegalArgumentException("decay factor " + factor + " must not be negative");
+        }
+        scale *= factor;
+        if (scale < MIN_SCALE || scale > MAX_SCALE) {
+            rebase();
+        }
+    }
+
+    private void rebase() {
+        final float s = (float) scale;
+        for (int i = 0; i < numCells; i++) {
+            cells[i] *= s;
+        }
+        outsideMax *= s;
+        scale = 1;
+    }
+
+    /**
+     * Adds a vote to a cell.
+     *
+     * @param cell the cell index
+     * @param weight the weight of the vote, e.g. 1, or -1 to remove a vote
+     */
+    public void vote(int cell, float weight) {
+        final float v = cells[cell] + (float) (weight / scale);
+        if (weight >= 0) {
+            raised(cell, v);
+        } else {
+            lowered(cell, v);
+        }
+    }
+
+    /**
+     * Adds a vote to all cells of a stencil.
+     *
+     * @param stencil the cell indices, e.g. from getStencil
+     * @param weight the weight of the vote
+     */
+    public void vote(int[] stencil, float weight) {
+        final float w = (float) (weight / scale);
+        if (weight >= 0) {
+            for (int c : stencil) {
+                raised(c, cells[c] + w);
+            }
+        } else {
+            for (int c : stencil) {
+                lowered(c, cells[c] + w);
+            }
+        }
+    }
+
+    /**
+     * Multiplies a single cell by a factor, e.g. to depress a peak that was
+     * found.
+     *
+     * @param cell the cell index
+     * @param factor the factor
+     */
+    public void scaleCell(int cell, float factor) {
+        final float v = cells[cell] * factor;
+        if (v >= cells[cell]) {
+            raised(cell, v);
+        } else {
+            lowered(cell, v);
+        }
+    }
+
+    private void raised(int c, float v) {
+        cells[c] = v;
+        if (heapSize == heap.length && v < cells[heap[0]]) { // usual case, c is below all cells of heap so is not in it
+            if (v > outsideMax) {
+                outsideMax = v;
+            }
+            return;
+        }
+        final int p = heapPos[c];
+        if (p >= 0) {
+            siftDown(p);
+        } else if (heapSize < heap.length) {
+            heap[heapSize] = c;
+            heapPos[c] = heapSize;
+            siftUp(heapSize++);
+        } else if (v > cells[heap[0]]) {
+            final int root = heap[0];
+            if (cells[root] > outsideMax) {
+                outsideMax = cells[root];
+            }
+            heapPos[root] = -1;
+            heap[0] = c;
+            heapPos[c] = 0;
+            siftDown(0);
+        } else if (v > outsideMax) {
+            outsideMax = v;
+        }
+    }
+
+    private void lowered(int c, float v) {
+        cells[c] = v;
+        final int p = heapPos[c];
+        if (p >= 0) {
+            siftUp(p);
+        }
+        // cells outside of heap only got lower, so outsideMax is still a bound
+    }
+
+    private void siftUp(int p) {
+        final int c = heap[p];
+        final float v = cells[c];
+        while (p > 0) {
+            final int parent = (p - 1) >> 1;
+            final int pc = heap[parent];
+            if (cells[pc] <= v) {
+                break;
+            }
+            heap[p] = pc;
+            heapPos[pc] = p;
+            p = parent;
+        }
+        heap[p] = c;
+        heapPos[c] = p;
+    }
+
+    private void siftDown(int p) {
+        final int c = heap[p];
+        final float v = cells[c];
+        while (true) {
+            int child = (2 * p) + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && cells[heap[child + 1]] < cells[heap[child]]) {
+                child++;
+            }
+            final int cc = heap[child];
+            if (cells[cc] >= v) {
+                break;
+            }
+            heap[p] = cc;
+            heapPos[cc] = p;
+            p = child;
+        }
+        heap[p] = c;
+        heapPos[c] = p;
+    }
+
+    /**
+     * Scans all cells to rebuild the heap from the largest ones.
+     */
+    private void rebuild() {
+        for (int i = 0; i < heapSize; i++) {
+            heapPos[heap[i]] = -1;
+        }
+        heapSize = 0;
+        outsideMax = Float.NEGATIVE_INFINITY;
+        for (int c = 0; c < numCells; c++) {
+            raised(c, cells[c]);
+        }
+    }
+
+    /**
+     * Returns the largest cells in order of decreasing value. Costs
+     * O(heap size) unless cells that were lowered make a scan of the
+     * accumulator necessary.
+     *
+     * @param peakCells receives the indices of the cells, its length is the
+     * number of peaks asked for; at most getNumPeaks()
+     * @param peakValues receives the values of the cells, or null
+     * @return the number of peaks returned, which is less than asked for only
+     * if there are fewer cells
+     */
+    public int getPeaks(int[] peakCells, float[] peakValues) {
+        final int n = Math.min(Math.min(peakCells.length, numPeaks), heapSize);
+        if (!selectPeaks(peakCells, n)) {
+            rebuild();
+            selectPeaks(peakCells, n);
+        }
+        if (peakValues != null) {
+            for (int i = 0; i < n; i++) {
+                peakValues[i] = getValue(peakCells[i]);
+            }
+        }
+        return n;
+    }
+
+    // selects the n largest cells of heap into peaks, returns false if the smallest of them is not surely larger than all cells outside of heap
+    private boolean selectPeaks(int[] peaks, int n) {
+        int count = 0;
+        for (int i = 0; i < heapSize; i++) { // insertion sort into peaks, the heap is small
+            final int c = heap[i];
+            final float v = cells[c];
+            if (count == n && (n == 0 || v <= cells[peaks[n - 1]])) {
+                continue;
+            }
+            int j = count < n ? count++ : n - 1;
+            while (j > 0 && cells[peaks[j - 1]] < v) {
+                peaks[j] = peaks[j - 1];
+                j--;
+            }
+            peaks[j] = c;
+        }
+        return n == 0 || cells[peaks[n - 1]] >= outsideMax;
+    }
+
+    /**
+     * Sets the number of event addresses for which stencils are cached and
+     * drops all cached stencils, e.g. when the stencils change with the
+     * tracker parameters.
+     *
+     * @param numAddresses the number of addresses, e.g. sizeX*sizeY
+     */
+    public void setNumStencils(int numAddresses) {
+        stencils = new int[numAddresses][];
+    }
+
+    /**
+     * @param address the event address, e.g. x+sizeX*y
+     * @return the cached stencil, or null if not cached
+     */
+    public int[] getStencil(int address) {
+        return stencils == null ? null : stencils[address];
+    }
+
+    /**
+     * Caches a stencil.
+     *
+     * @param address the event address
+     * @param stencil the indices of the cells an event at the address votes
+     * for
+     */
+    public void setStencil(int address, int[] stencil) {
+        stencils[address] = stencil;
+    }
+}
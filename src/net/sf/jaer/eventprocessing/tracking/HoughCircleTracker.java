@@ -32,15 +32,27 @@ import ch.unizh.ini.jaer.projects.labyrinthkalman.WeightedEvent;
 
 /**
  * A simple circle tracker based on a hough transform that correctly tracks the maximum even when it's location changes out from under us.
+ * <p>
+ * The Hough space is a DecayingHoughAccumulator that decays lazily and tracks its largest cells on each vote, and the circle of centers
+ * each pixel votes for is cached, so that the cost per event does not depend on the chip size.
  * @author Jan Funke
+ * @see DecayingHoughAccumulator
  */
 @Description("Circle tracker based on a hough transform")
 public class HoughCircleTracker extends EventFilter2D implements FrameAnnotater, Observer {
 
-	// the Hough space
+	// the Hough space, cell x+cameraX*y is the circle center x,y
 	int cameraX;
 	int cameraY;
-	float[][] accumulatorArray;
+	DecayingHoughAccumulator accumulator;
+
+	// the largest cells in Hough space, from which the local maxima are taken
+	int[] peakCells;
+	float[] peakValues;
+	// the cells of the local maxima found in the current packet, largest first
+	int[] maxCells;
+	int[] stencilBuffer = new int[64];
+	int stencilLength;
 
 	//for decay in Hough space
 	float timeStamp = 0;
@@ -52,8 +64,9 @@ public class HoughCircleTracker extends EventFilter2D implements FrameAnnotater,
 	float[] maxValue;
 
 	// history of the encountered spikes to remove the least recent one from
-	// hough space
-	Coordinate[] eventHistory;
+	// hough space, x is -1 for no event
+	short[] eventHistoryX;
+	short[] eventHistoryY;
 	int bufferIndex = 0;
 
 	// visualisation stuff
@@ -124,7 +137,12 @@ public class HoughCircleTracker extends EventFilter2D implements FrameAnnotater,
 
 		System.out.println("HoughCircleTracker initialising...");
 
-		accumulatorArray = new float[chip.getSizeX()][chip.getSizeY()];
+		int nrPeaks = Math.max(8, 4*nrMax); // candidates for the local maxima
+		accumulator = new DecayingHoughAccumulator(chip.getSizeX()*chip.getSizeY(), nrPeaks);
+		accumulator.setNumStencils(chip.getSizeX()*chip.getSizeY());
+		peakCells = new int[nrPeaks];
+		peakValues = new float[nrPeaks];
+		maxCells = new int[nrMax];
 
 		if((chip.getSizeX()==0) || (chip.getSizeY()==0)){
 			return;
@@ -133,16 +151,9 @@ public class HoughCircleTracker extends EventFilter2D implements FrameAnnotater,
 		cameraX = chip.getSizeX();
 		cameraY = chip.getSizeY();
 
-		for(int i=0;i<chip.getSizeX();i++){
-			for(int j=0; j < chip.getSizeY();j++){
-				accumulatorArray[i][j]=0;
-			}
-		}
-
-		eventHistory = new Coordinate[bufferLength];
-		for(int i=0;i<bufferLength;i++) {
-			eventHistory[i] = null;
-		}
+		eventHistoryX = new short[bufferLength];
+		eventHistoryY = new short[bufferLength];
+		java.util.Arrays.fill(eventHistoryX, (short)-1);
 
 		bufferIndex = 0;
 		maxValue = new float[nrMax];
@@ -302,7 +313,7 @@ public class HoughCircleTracker extends EventFilter2D implements FrameAnnotater,
 		cameraY=chip.getSizeY();
 		cameraX=chip.getSizeX();
 
-		if((accumulatorArray == null) || (maxValue == null) || (maxCoordinate == null)) {
+		if((accumulator == null) || (maxValue == null) || (maxCoordinate == null)) {
 			return;
 		}
 
@@ -314,7 +325,7 @@ public class HoughCircleTracker extends EventFilter2D implements FrameAnnotater,
 			for (int x = 0; x < cameraX; x++) {
 				for (int y = 0; y < cameraY; y++) {
 
-					float red   = accumulatorArray[x][y]/maxValue[0];
+					float red   = value(x,y)/maxValue[0];
 					float green = 1.0f - red;
 
 					gl.glColor4f(red,green,0.0f,.3f);
@@ -348,14 +359,29 @@ public class HoughCircleTracker extends EventFilter2D implements FrameAnnotater,
 
 	}
 
+	// votes for all possible circle centers of an event at x,y, using the cached circle of centers of the pixel
+	void accumulate(int x, int y, float weight){
+		if ((x < 0) || (x >= cameraX) || (y < 0) || (y >= cameraY)) {
+			accumulator.vote(computeStencil(x, y), weight);
+			return;
+		}
+		int address = x + (cameraX*y);
+		int[] stencil = accumulator.getStencil(address);
+		if (stencil == null) {
+			stencil = computeStencil(x, y);
+			accumulator.setStencil(address, stencil);
+		}
+		accumulator.vote(stencil, weight);
+	}
+
 	// fast inclined ellipse drawing algorithm; ellipse eqn: A*x^2+B*y^2+C*x*y-1 = 0
 	// the algorithm is fast because it uses just integer addition and subtraction
-	void accumulate(Coordinate event, float weight){
+	// returns the cells of the circle of radius around centerX,centerY that are inside Hough space
+	int[] computeStencil(int centerX, int centerY){
 
 		// TODO: this is a little overhead here, since we only draw circles in
 		// Hough space (not ellipses)
-		int centerX = (int)event.x;
-		int centerY = (int)event.y;
+		stencilLength = 0;
 		int aa	  = Math.round(radius*radius);
 		int bb	  = aa;
 		int twoC	= 0;
@@ -372,8 +398,8 @@ public class HoughCircleTracker extends EventFilter2D implements FrameAnnotater,
 		// d(x,y+1)   = 2a^2y+a^2+2cx				= dx+aa
 		// d(x+1,y+1) = 2b^2x+b^2+2cy+2c+2a^2y+a^2+2cx = d(x,y+1)-dy+bb
 		while (dy > dx){
-			increaseHoughPoint(centerX+x,centerY+y,weight);
-			increaseHoughPoint(centerX-x,centerY-y,weight);
+			addStencilPoint(centerX+x,centerY+y);
+			addStencilPoint(centerX-x,centerY-y);
 			ellipseError = ellipseError + dx + aa;
 			dx = dx + twoaa;
 			dy = dy - twoC;
@@ -390,8 +416,8 @@ public class HoughCircleTracker extends EventFilter2D implements FrameAnnotater,
 		// d(x+1,y)   = 2b^2x+b^2+2cy				= -dy+bb
 		// d(x+1,y+1) = 2b^2x+b^2+2cy+2c+2a^2y+a^2+2cx = d(x+1,y)+dx+aa
 		while (dy > 0){
-			increaseHoughPoint(centerX+x,centerY+y,weight);
-			increaseHoughPoint(centerX-x,centerY-y,weight);
+			addStencilPoint(centerX+x,centerY+y);
+			addStencilPoint(centerX-x,centerY-y);
 			ellipseError = (ellipseError - dy) + bb;
 			dx = dx + twoC;
 			dy = dy - twobb;
@@ -408,8 +434,8 @@ public class HoughCircleTracker extends EventFilter2D implements FrameAnnotater,
 		// d(x+1,y)   = 2b^2x+b^2+2cy				= -dy+bb
 		// d(x+1,y-1) = 2b^2x+b^2+2cy-2c-2a^2y+a^2-2cx = d(x+1,y)-dx+aa
 		while (dy > - dx){
-			increaseHoughPoint(centerX+x,centerY+y,weight);
-			increaseHoughPoint(centerX-x,centerY-y,weight);
+			addStencilPoint(centerX+x,centerY+y);
+			addStencilPoint(centerX-x,centerY-y);
 			ellipseError = (ellipseError - dy) + bb;
 			dx = dx + twoC;
 			dy = dy - twobb;
@@ -426,8 +452,8 @@ public class HoughCircleTracker extends EventFilter2D implements FrameAnnotater,
 		// d(x,y-1)   = -2a^2y+a^2-2cx			   = -dx+aa
 		// d(x+1,y-1) = 2b^2x+b^2+2cy-2c-2a^2y+a^2-2cx = d(x+1,y)-dy+bb
 		while (dx > 0){
-			increaseHoughPoint(centerX+x,centerY+y,weight);
-			increaseHoughPoint(centerX-x,centerY-y,weight);
+			addStencilPoint(centerX+x,centerY+y);
+			addStencilPoint(centerX-x,centerY-y);
 			ellipseError = (ellipseError - dx) + aa;
 			dx = dx - twoaa;
 			dy = dy + twoC;
@@ -444,8 +470,8 @@ public class HoughCircleTracker extends EventFilter2D implements FrameAnnotater,
 		// d(x,y-1)   = -2a^2y+a^2-2cx				= -dx+aa
 		// d(x-1,y-1) = -2b^2x+b^2-2cy+2c-2a^2y+a^2-2cx = d(x+1,y)+dy+bb
 		while ((dy < dx)&& (x > 0)){
-			increaseHoughPoint(centerX+x,centerY+y,weight);
-			increaseHoughPoint(centerX-x,centerY-y,weight);
+			addStencilPoint(centerX+x,centerY+y);
+			addStencilPoint(centerX-x,centerY-y);
 			ellipseError = (ellipseError - dx) + aa;
 			dx = dx - twoaa;
 			dy = dy + twoC;
@@ -462,8 +488,8 @@ public class HoughCircleTracker extends EventFilter2D implements FrameAnnotater,
 		// d(x-1,y)   = -2b^2x+b^2-2cy				= dy+bb
 		// d(x-1,y-1) = -2b^2x+b^2-2cy+2c-2a^2y+a^2-2cx = d(x+1,y)-dx+aa
 		while ((dy < 0)&& (x > 0)){
-			increaseHoughPoint(centerX+x,centerY+y,weight);
-			increaseHoughPoint(centerX-x,centerY-y,weight);
+			addStencilPoint(centerX+x,centerY+y);
+			addStencilPoint(centerX-x,centerY-y);
 			ellipseError = ellipseError + dy + bb;
 			dx = dx - twoC;
 			dy = dy + twobb;
@@ -480,8 +506,8 @@ public class HoughCircleTracker extends EventFilter2D implements FrameAnnotater,
 		// d(x-1,y)   = -2b^2x+b^2-2cy				= dy+bb
 		// d(x-1,y+1) = -2b^2x+b^2-2cy-2c+2a^2y+a^2+2cx = d(x+1,y)-dx+aa
 		while ((dy < - dx)&& (x > 0)){
-			increaseHoughPoint(centerX+x,centerY+y,weight);
-			increaseHoughPoint(centerX-x,centerY-y,weight);
+			addStencilPoint(centerX+x,centerY+y);
+			addStencilPoint(centerX-x,centerY-y);
 			ellipseError = ellipseError + dy + bb;
 			dx = dx - twoC;
 			dy = dy + twobb;
@@ -498,8 +524,8 @@ public class HoughCircleTracker extends EventFilter2D implements FrameAnnotater,
 		// d(x,y+1)   = 2a^2y+a^2+2cx				 = dx+aa
 		// d(x-1,y+1) = -2b^2x+b^2-2cy-2c+2a^2y+a^2+2cx = d(x,y+1)+dy+bb
 		while (((dy > 0) && (dx < 0))&& (x > 0)){
-			increaseHoughPoint(centerX+x,centerY+y,weight);
-			increaseHoughPoint(centerX-x,centerY-y,weight);
+			addStencilPoint(centerX+x,centerY+y);
+			addStencilPoint(centerX-x,centerY-y);
 			ellipseError = ellipseError + dx + aa;
 			dx = dx + twoaa;
 			dy = dy - twoC;
@@ -511,6 +537,12 @@ public class HoughCircleTracker extends EventFilter2D implements FrameAnnotater,
 				x = x - 1;
 			}
 		}
+		return java.util.Arrays.copyOf(stencilBuffer, stencilLength);
+	}
+
+	// the value of the Hough point x,y
+	float value(int x, int y) {
+		return accumulator.getValue(x + (cameraX*y));
 	}
 
 	boolean islocmax(int x, int y)
@@ -521,28 +553,28 @@ public class HoughCircleTracker extends EventFilter2D implements FrameAnnotater,
 			|| ((y-locMaxRad) < 0) || ((y+locMaxRad) > (chip.getSizeY()-1))) {
 			return false;
 		}
-		if(accumulatorArray[x][y]<accumulatorArray[x][y+1]) {
+		if(value(x,y)<value(x,y+1)) {
 			return false;
 		}
-		if(accumulatorArray[x][y]<accumulatorArray[x][y-1]) {
+		if(value(x,y)<value(x,y-1)) {
 			return false;
 		}
-		if(accumulatorArray[x][y]<accumulatorArray[x+1][y]) {
+		if(value(x,y)<value(x+1,y)) {
 			return false;
 		}
-		if(accumulatorArray[x][y]<accumulatorArray[x-1][y]) {
+		if(value(x,y)<value(x-1,y)) {
 			return false;
 		}
-		if(accumulatorArray[x][y]<accumulatorArray[x+1][y-1]) {
+		if(value(x,y)<value(x+1,y-1)) {
 			return false;
 		}
-		if(accumulatorArray[x][y]<accumulatorArray[x-1][y+1]) {
+		if(value(x,y)<value(x-1,y+1)) {
 			return false;
 		}
-		if(accumulatorArray[x][y]<accumulatorArray[x+1][y+1]) {
+		if(value(x,y)<value(x+1,y+1)) {
 			return false;
 		}
-		if(accumulatorArray[x][y]<accumulatorArray[x-1][y-1]) {
+		if(value(x,y)<value(x-1,y-1)) {
 			return false;
 		}
 
@@ -552,29 +584,39 @@ public class HoughCircleTracker extends EventFilter2D implements FrameAnnotater,
 
 	}
 
-	void increaseHoughPoint(int x, int y, float weight) {
-
-		if ((x < 0) || (x > (chip.getSizeX() - 1)) || (y < 0) || (y > (chip.getSizeY() - 1))) {
-			return;
+	// inserts the local maximum at cell into the nrFound maxima sorted by value, unless it
+	// touches an equal maximum of the same plateau; returns the new number of maxima
+	int insertMaximum(int cell, float v, int nrFound) {
+		if ((nrFound == nrMax) && (v <= maxValue[nrMax-1])) {
+			return nrFound;
+		}
+		int x = cell % cameraX;
+		int y = cell / cameraX;
+		for (int i = 0; i < nrFound; i++) {
+			if ((Math.abs((maxCells[i] % cameraX) - x) <= 1) && (Math.abs((maxCells[i] / cameraX) - y) <= 1)) {
+				return nrFound;
+			}
 		}
+		int i = (nrFound < nrMax) ? nrFound++ : nrMax-1;
+		for (; (i > 0) && (maxValue[i-1] < v); i--) {
+			maxValue[i] = maxValue[i-1];
+			maxCells[i] = maxCells[i-1];
+		}
+		maxValue[i] = v;
+		maxCells[i] = cell;
+		return nrFound;
+	}
 
-		// increase the value of the hough point
-		accumulatorArray[x][y] = accumulatorArray[x][y] + weight;
-
-		// check if this is a new maximum
-		for(int i=0; i<nrMax; i++)
-		{
-			if (accumulatorArray[x][y] >= maxValue[i]) {
+	void addStencilPoint(int x, int y) {
 
-				maxValue[i] = accumulatorArray[x][y];
+		if ((x < 0) || (x > (cameraX - 1)) || (y < 0) || (y > (cameraY - 1))) {
+			return;
+		}
 
-				if ((maxValue[i] > threshold) && (maxCoordinate[i] != null)){
-					maxCoordinate[i].x = x;
-					maxCoordinate[i].y = y;
-				}
-				i += nrMax;
-			}
+		if (stencilLength == stencilBuffer.length) {
+			stencilBuffer = java.util.Arrays.copyOf(stencilBuffer, 2*stencilLength);
 		}
+		stencilBuffer[stencilLength++] = x + (cameraX*y);
 	}
 
 	@Override
@@ -591,11 +633,8 @@ public class HoughCircleTracker extends EventFilter2D implements FrameAnnotater,
 			float decay_factor = 1.0f/(0.0001f * decay * delta_t);
 
 			//for an exponentially decaying hough-space-weight.
-			for (int x = 0; x < cameraX; x++) {
-				for (int y = 0; y < cameraY; y++) {
-					accumulatorArray[x][y] *= decay_factor;
-
-				}
+			if ((decay_factor > 0) && !Float.isInfinite(decay_factor)) {
+				accumulator.decayBy(decay_factor);
 			}
 		}
 		timeStamp = in.getLastTimestamp();
@@ -618,42 +657,56 @@ public class HoughCircleTracker extends EventFilter2D implements FrameAnnotater,
 			}
 
 			// save event in history
-			eventHistory[bufferIndex] = new Coordinate(event.x, event.y);
+			eventHistoryX[bufferIndex] = event.x;
+			eventHistoryY[bufferIndex] = event.y;
 
 			// accumulate all possible circle centers for the current event
-			accumulate(eventHistory[bufferIndex], weight);
+			accumulate(event.x, event.y, weight);
 
 			// increase buffer index
 			bufferIndex = (bufferIndex+1)%bufferLength;
 
 			// remove the least recent event from hough space
-			if((eventHistory[bufferIndex] != null) && (decayMode == false)) {
-				accumulate(eventHistory[bufferIndex], -1);
+			if((eventHistoryX[bufferIndex] != -1) && (decayMode == false)) {
+				accumulate(eventHistoryX[bufferIndex], eventHistoryY[bufferIndex], -1);
 			}
 		}
 		for(int i = 0; i<nrMax; i++)
 		{
 			maxValue[i] = 0;
 		}
-		for (int x = 0; x < cameraX; x++) {
-			for (int y = 0; y < cameraY; y++) {
-
-				for(int i=0; i<nrMax; i++)
-				{
-					if ((accumulatorArray[x][y] >= maxValue[i])
-						&& islocmax(x,y)) {
-
-						maxValue[i] = accumulatorArray[x][y];
-
-						if (maxValue[i] > threshold){
-							maxCoordinate[i].x = x;
-							maxCoordinate[i].y = y;
-						}
-						i += nrMax;
+		// the maxima are the largest local maxima among the largest cells. A single blurred peak
+		// and its neighbours can fill all candidates, so when the candidates hold fewer than
+		// nrMax local maxima the search is widened to the neighbours of the candidates.
+		int nrPeaks = accumulator.getPeaks(peakCells, peakValues);
+		int nrFound = 0;
+		for (int k = 0; (k < nrPeaks) && (nrFound < nrMax); k++) {
+			int x = peakCells[k] % cameraX;
+			int y = peakCells[k] / cameraX;
+			if (islocmax(x,y)) {
+				nrFound = insertMaximum(peakCells[k], peakValues[k], nrFound);
+			}
+		}
+		for (int k = 0; (k < nrPeaks) && (nrFound < nrMax); k++) {
+			int px = peakCells[k] % cameraX;
+			int py = peakCells[k] / cameraX;
+			for (int y = py-1; y <= (py+1); y++) {
+				for (int x = px-1; x <= (px+1); x++) {
+					if ((x < 1) || (x > (cameraX-2)) || (y < 1) || (y > (cameraY-2))) {
+						continue;
+					}
+					float v = value(x,y);
+					if ((v > 0) && islocmax(x,y)) {
+						nrFound = insertMaximum(x + (cameraX*y), v, nrFound);
 					}
 				}
 			}
-
+		}
+		for (int i = 0; i < nrFound; i++) {
+			if (maxValue[i] > threshold){
+				maxCoordinate[i].x = maxCells[i] % cameraX;
+				maxCoordinate[i].y = maxCells[i] / cameraX;
+			}
 		}
 
 		OutputEventIterator itr = out.outputIterator();
@@ -667,15 +720,15 @@ public class HoughCircleTracker extends EventFilter2D implements FrameAnnotater,
 				if(((x-1) > 0) && ((x+1) < (chip.getSizeX()-1))
 					&& ((y-1) > 0) && ((y+1) < (chip.getSizeY()-1)))
 				{
-					accumulatorArray[x][y] *= 0.01f;
-					accumulatorArray[x][y+1] *= 0.1f;
-					accumulatorArray[x][y-1] *= 0.1f;
-					accumulatorArray[x+1][y] *= 0.1f;
-					accumulatorArray[x-1][y] *= 0.1f;
-					accumulatorArray[x+1][y+1] *= 0.1f;
-					accumulatorArray[x-1][y+1] *= 0.1f;
-					accumulatorArray[x-1][y-1] *= 0.1f;
-					accumulatorArray[x-1][y-1] *= 0.1f;
+					accumulator.scaleCell(x + (cameraX*y), 0.01f);
+					accumulator.scaleCell(x + (cameraX*(y+1)), 0.1f);
+					accumulator.scaleCell(x + (cameraX*(y-1)), 0.1f);
+					accumulator.scaleCell((x+1) + (cameraX*y), 0.1f);
+					accumulator.scaleCell((x-1) + (cameraX*y), 0.1f);
+					accumulator.scaleCell((x+1) + (cameraX*(y+1)), 0.1f);
+					accumulator.scaleCell((x-1) + (cameraX*(y+1)), 0.1f);
+					accumulator.scaleCell((x-1) + (cameraX*(y-1)), 0.1f);
+					accumulator.scaleCell((x-1) + (cameraX*(y-1)), 0.1f);
 				}
 
 			}
@@ -12,6 +12,7 @@
 package net.sf.jaer.eventprocessing.tracking;
 
 import java.awt.Dimension;
+import java.util.Arrays;
 import java.util.Observable;
 import java.util.Observer;
 
@@ -50,9 +51,15 @@ import net.sf.jaer.util.filter.LowpassFilter;
  * Each point is splatted in its p, theta form into an accumulator array; the
  * array maximum value is computed for each packet and the resulting p,theta
  * values are lowpass filtered to form the output.
+ * <p>
+ * The accumulator is a DecayingHoughAccumulator, which decays lazily and
+ * tracks its maximum on each vote, and the cells each pixel votes for are
+ * cached, so that the cost per event does not depend on the accumulator
+ * resolution.
  *
  * @author tobi
  * @see LineDetector
+ * @see DecayingHoughAccumulator
  */
 @Description("Tracks a single line as used for line-following navigation or for lane tracking")
 @DevelopmentStatus(DevelopmentStatus.Status.Experimental)
@@ -72,15 +79,18 @@ public class HoughLineTracker extends EventFilter2D implements FrameAnnotater, L
     private float thetaResDeg = getPrefs().getFloat("LineTracker.thetaResDeg", 10);
     private float rhoResPixels = getPrefs().getFloat("LineTracker.rhoResPixels", 6);
     private boolean showHoughWindow = false;
+    private float houghTauMs = getPrefs().getFloat("LineTracker.houghTauMs", 0);
     private float rhoLimit;
-    private float[][] accumArray;
+    private DecayingHoughAccumulator accumulator;
     private int nTheta, nRho;
     private float tauMs = getPrefs().getFloat("LineTracker.tauMs", 10);
+    private int[] peakCell = new int[1];
+    private float[] peakValue = new float[1];
+    private int[] stencilBuffer;
 
     float[] cos = null, sin = null;
     int rhoMaxIndex, thetaMaxIndex;
     float accumMax;
-    int[][] accumUpdateTime;
     float sx2, sy2; // half chip size
     private float rhoPixelsFiltered = 0;
     private float thetaDegFiltered = 0;
@@ -104,6 +114,7 @@ public class HoughLineTracker extends EventFilter2D implements FrameAnnotater, L
         setPropertyTooltip("positionMixingFactor", "how much line position gets moved per packet");
         setPropertyTooltip("favorVerticalAngleRangeDeg", "range of angle on each side of vertical that is allowed for line");
         setPropertyTooltip("houghDecayFactor", "hough accumulator cells are multiplied by this factor before each frame, 0=no memory, 1=infinite memory");
+        setPropertyTooltip("houghTauMs", "if >0, hough accumulator cells decay continuously with this time constant in ms of event time instead of by houghDecayFactor each frame");
         setPropertyTooltip("thetaResDeg", "quantization in degrees of hough transform map");
         setPropertyTooltip("rhoResPixels", "quantization in pixels of hough transform map");
         setPropertyTooltip("showHoughWindow", "shows the hough transform integrator array");
@@ -151,8 +162,10 @@ public class HoughLineTracker extends EventFilter2D implements FrameAnnotater, L
         // rho can span this +/- limit after hough transform of event
         // coordinate which shifted so that middle of chip is zero
         nRho = (int) ((2 * rhoLimit) / rhoResPixels);
-        accumArray = new float[nTheta][nRho];
-        //        accumUpdateTime=new int[nTheta][nRho];
+        accumulator = new DecayingHoughAccumulator(nTheta * nRho, 1);
+        accumulator.setTauUs(houghTauMs * 1000);
+        accumulator.setNumStencils(chip.getSizeX() * chip.getSizeY());
+        stencilBuffer = new int[nTheta];
         accumMax = Float.NEGATIVE_INFINITY;
         // precompute sin/cos for accumulator array updates for quantized angle values
         cos = new float[nTheta];
@@ -184,7 +197,7 @@ public class HoughLineTracker extends EventFilter2D implements FrameAnnotater, L
         for (BasicEvent e : in) {
             addEvent(e);
         }
-        decayAccumArray();
+        decayAccumulator();
         thetaDegFiltered = thetaFilter.filter(getThetaDeg(), in.getLastTimestamp());
         rhoPixelsFiltered = rhoFilter.filter(getRhoPixels(), in.getLastTimestamp());
         if (showHoughWindow) {
@@ -196,8 +209,35 @@ public class HoughLineTracker extends EventFilter2D implements FrameAnnotater, L
     // http://rkb.home.cern.ch/rkb/AN16pp/node122.html
 
     private void addEvent(BasicEvent e) {
-        float x = e.x - sx2;
-        float y = e.y - sy2; // x,y relative to center of chip
+        if (houghTauMs > 0) {
+            accumulator.decayTo(e.timestamp);
+        }
+        final int sizeX = chip.getSizeX();
+        if ((e.x < 0) || (e.x >= sizeX) || (e.y < 0) || (e.y >= chip.getSizeY())) {
+            accumulator.vote(computeStencil(e.x, e.y), 1);
+            return;
+        }
+        final int address = e.x + (sizeX * e.y);
+        int[] stencil = accumulator.getStencil(address);
+        if (stencil == null) {
+            stencil = computeStencil(e.x, e.y);
+            accumulator.setStencil(address, stencil);
+        }
+        accumulator.vote(stencil, 1);
+    }
+
+    /**
+     * Computes the accumulator cells an event votes for, which are cached per
+     * pixel.
+     *
+     * @param ex the event x address
+     * @param ey the event y address
+     * @return the cell indices thetaNumber*nRho+rhoNumber
+     */
+    private int[] computeStencil(int ex, int ey) {
+        float x = ex - sx2;
+        float y = ey - sy2; // x,y relative to center of chip
+        int n = 0;
         // iterate over all angles included in allowedThetaNumber angles
         for (int thetaNumber = 0; thetaNumber < allowedThetaNumber; thetaNumber++) {
             // only iterate up to allowed angle, 0 is vertical line,
@@ -208,7 +248,7 @@ public class HoughLineTracker extends EventFilter2D implements FrameAnnotater, L
                 //                log.warning(String.format("e.x=%d, e.y=%d, x=%f, y=%f, rho=%f, rhoNumber=%d",e.x,e.y,x,y,rho,rhoNumber));
                 continue;
             }
-            updateHoughAccumulator(thetaNumber, rhoNumber);
+            stencilBuffer[n++] = (thetaNumber * nRho) + rhoNumber;
         }
         // iterate over all angles included in allowedThetaNumber angles, handle the angles from Pi-allowedThetaNumber to Pi
         for (int thetaNumber = (nTheta - allowedThetaNumber) + 1; thetaNumber < nTheta; thetaNumber++) {
@@ -220,23 +260,9 @@ public class HoughLineTracker extends EventFilter2D implements FrameAnnotater, L
                 //                log.warning(String.format("e.x=%d, e.y=%d, x=%f, y=%f, rho=%f, rhoNumber=%d",e.x,e.y,x,y,rho,rhoNumber));
                 continue;
             }
-            updateHoughAccumulator(thetaNumber, rhoNumber);
+            stencilBuffer[n++] = (thetaNumber * nRho) + rhoNumber;
         }
-    }
-
-    /**
-     * Uses a reset array and just counts events in each bin to determine the
-     * peak locations of the lines
-     *
-     * @param thetaNumber the index of the theta of the line. thetaNumber=0
-     * means theta=0 which is a horizontal line, theta=nTheta/2 is a vertical
-     * line. ???? must be wrong, rotate 90 deg
-     * @param rhoNumber the rho (radius) number. rho is spaced by rhoResPixels.
-     */
-    private void updateHoughAccumulator(int thetaNumber, int rhoNumber) {
-        float f = accumArray[thetaNumber][rhoNumber];
-        f++;
-        accumArray[thetaNumber][rhoNumber] = f; // update the accumulator
+        return Arrays.copyOf(stencilBuffer, n);
     }
 
     @Override
@@ -301,7 +327,8 @@ public class HoughLineTracker extends EventFilter2D implements FrameAnnotater, L
 
             @Override
             synchronized public void display(GLAutoDrawable drawable) {
-                if (accumArray == null) {
+                final DecayingHoughAccumulator accumulator = HoughLineTracker.this.accumulator;
+                if (accumulator == null) {
                     return;
                 }
                 GL2 gl = drawable.getGL().getGL2();
@@ -311,7 +338,7 @@ public class HoughLineTracker extends EventFilter2D implements FrameAnnotater, L
                 gl.glClear(GL.GL_COLOR_BUFFER_BIT);
                 for (int i = 0; i < nTheta; i++) {
                     for (int j = 0; j < nRho; j++) {
-                        float f = accumArray[i][j] / accumMax;
+                        float f = accumulator.getValue((i * nRho) + j) / accumMax;
                         gl.glColor3f(f, f, f);
                         gl.glRectf(i, j, i + 1, j + 1);
                     }
@@ -395,23 +422,18 @@ public class HoughLineTracker extends EventFilter2D implements FrameAnnotater, L
         rhoFilter.setTauMs(tauMs);
         thetaFilter.setTauMs(tauMs);
     }
-    // doesn't actually reset, but decays accumulator array according to houghDecayFactor
+    // doesn't actually reset, but decays accumulator array according to houghDecayFactor unless it decays by houghTauMs
     // also determines maximum accumulator value and sets line estimate according to this
 
-    private void decayAccumArray() {
+    private void decayAccumulator() {
+        if (houghTauMs <= 0) {
+            accumulator.decayBy(houghDecayFactor);
+        }
         accumMax = 0;
-        for (int theta = 0; theta < nTheta; theta++) {
-            float[] f = accumArray[theta];
-            for (int rho = 0; rho < f.length; rho++) {
-                float fval = f[rho];
-                fval *= houghDecayFactor;
-                if (fval > accumMax) {
-                    accumMax = fval;
-                    thetaMaxIndex = theta;
-                    rhoMaxIndex = rho;
-                }
-                f[rho] = fval;
-            }
+        if ((accumulator.getPeaks(peakCell, peakValue) > 0) && (peakValue[0] > 0)) {
+            accumMax = peakValue[0];
+            thetaMaxIndex = peakCell[0] / nRho;
+            rhoMaxIndex = peakCell[0] % nRho;
         }
     }
 
@@ -473,7 +495,7 @@ public class HoughLineTracker extends EventFilter2D implements FrameAnnotater, L
         return favorVerticalAngleRangeDeg;
     }
 
-    public void setFavorVerticalAngleRangeDeg(float favorVerticalAngleRangeDeg) {
+    synchronized public void setFavorVerticalAngleRangeDeg(float favorVerticalAngleRangeDeg) {
         if (favorVerticalAngleRangeDeg < 5) {
             favorVerticalAngleRangeDeg = 5;
         } else if (favorVerticalAngleRangeDeg > 90) {
@@ -481,6 +503,9 @@ public class HoughLineTracker extends EventFilter2D implements FrameAnnotater, L
         }
         this.favorVerticalAngleRangeDeg = favorVerticalAngleRangeDeg;
         allowedThetaNumber = getAllowedThetaNumber(favorVerticalAngleRangeDeg);
+        if (accumulator != null) {
+            accumulator.setNumStencils(chip.getSizeX() * chip.getSizeY()); // the cached stencils depend on the allowed angles
+        }
         getPrefs().putFloat("LineTracker.favorVerticalAngleRangeDeg", favorVerticalAngleRangeDeg);
     }
     //    public int getUpdateThresholdEvents() {
@@ -506,4 +531,19 @@ public class HoughLineTracker extends EventFilter2D implements FrameAnnotater, L
         this.houghDecayFactor = houghDecayFactor;
         getPrefs().putFloat("LineTracker.houghDecayFactor", houghDecayFactor);
     }
+
+    public float getHoughTauMs() {
+        return houghTauMs;
+    }
+
+    synchronized public void setHoughTauMs(float houghTauMs) {
+        if (houghTauMs < 0) {
+            houghTauMs = 0;
+        }
+        this.houghTauMs = houghTauMs;
+        getPrefs().putFloat("LineTracker.houghTauMs", houghTauMs);
+        if (accumulator != null) {
+            accumulator.setTauUs(houghTauMs * 1000);
+        }
+    }
 }
@@ -48,6 +48,8 @@ import net.sf.jaer.event.orientation.OrientationEventInterface;
 import net.sf.jaer.eventprocessing.EventFilter2D;
 import net.sf.jaer.graphics.ChipCanvas;
 import net.sf.jaer.graphics.FrameAnnotater;
+import net.sf.jaer.graphics.SoftwareFrameAnnotater;
+import net.sf.jaer.graphics.SoftwareRasterizer;
 import net.sf.jaer.util.DrawGL;
 import net.sf.jaer.util.filter.LowpassFilter;
 
@@ -63,7 +65,7 @@ import net.sf.jaer.util.filter.LowpassFilter;
 @Description("Tracks multiple moving compact (not linear) objects")
 @DevelopmentStatus(DevelopmentStatus.Status.Stable)
 public class RectangularClusterTracker extends EventFilter2D
-	implements Observer, ClusterTrackerInterface, FrameAnnotater, MouseListener/* , PreferenceChangeListener */ {
+	implements Observer, ClusterTrackerInterface, FrameAnnotater, SoftwareFrameAnnotater, MouseListener/* , PreferenceChangeListener */ {
 	// TODO split out the Cluster object as it's own class.
 	// TODO delegate worker object to update the clusters (RectangularClusterTrackerDelegate)
 	// public TelluridePatchExtractor TelluridePatchExtractor = new TelluridePatchExtractor();
@@ -1734,6 +1736,51 @@ public class RectangularClusterTracker extends EventFilter2D
 			}
 		}
 
+		/**
+		 * Draws the cluster into an image rendered without OpenGL, like
+		 * draw(GLAutoDrawable) but without the text annotations.
+		 *
+		 * @param raster
+		 *            the image
+		 */
+		public void draw(SoftwareRasterizer raster) {
+			final float BOX_LINE_WIDTH = 2f;
+			final float PATH_POINT_SIZE = 4f;
+
+			setColorAutomatically();
+			rgb = getColor().getRGBComponents(null);
+			if (visibilityFlag) {
+				raster.setColor(rgb);
+				raster.setLineWidth(BOX_LINE_WIDTH);
+			}
+			else {
+				raster.setColor(.3f, .3f, .3f);
+				raster.setLineWidth(1);
+			}
+
+			if (isUseEllipticalClusters()) {
+				raster.drawEllipse(location.x, location.y, radiusX, radiusY, angle, 15);
+			}
+			else {
+				raster.drawBox(location.x, location.y, radiusX * 2, radiusY * 2, angle);
+			}
+			if ((angle != 0) || dynamicAngleEnabled) {
+				raster.drawLine(location.x, location.y, location.x + (radiusX * (float) Math.cos(angle)),
+					location.y + (radiusX * (float) Math.sin(angle)));
+			}
+			if (showClusterVelocity) {
+				raster.drawVector(location.x, location.y, velocityPPS.x, velocityPPS.y, 2, velocityVectorScaling);
+			}
+			if (showClusterRadius) {
+				raster.drawCircle(location.x, location.y, getRadius(), 32);
+			}
+			if (showPaths) {
+				for (Point2D.Float p : getPath()) {
+					raster.drawPoint(p.x, p.y, PATH_POINT_SIZE);
+				}
+			}
+		}
+
 		/**
 		 * Computes a geometrical updateShape factor based on location of a
 		 * point relative to the vanishing point. If a vanishingPoint pixel has
@@ -2882,6 +2929,27 @@ public class RectangularClusterTracker extends EventFilter2D
 		}
 	}
 
+	@Override
+	synchronized public void annotate(SoftwareRasterizer raster) {
+		if (!isFilterEnabled()) {
+			return;
+		}
+		if (vanishingPoint != null) {
+			raster.setColor(0, 0, 1);
+			raster.drawPoint((float) vanishingPoint.getX(), (float) vanishingPoint.getY(), 10);
+		}
+		try {
+			for (Cluster c : clusters) {
+				if (showAllClusters || c.isVisible()) {
+					c.draw(raster);
+				}
+			}
+		}
+		catch (java.util.ConcurrentModificationException e) {
+			log.warning("concurrent modification of cluster list while drawing " + clusters.size() + " clusters");
+		}
+	}
+
 	// The following methods need to be implement for 'MouseListener' we only use 'mouseClicked'
 	@Override
 	public void mousePressed(MouseEvent e) {
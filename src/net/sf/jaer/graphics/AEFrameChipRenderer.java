@@ -41,6 +41,10 @@ import net.sf.jaer.util.histogram.SimpleHistogram;
  * Besides the pixmaps for APS samples and ON and OFF events, an additional
  * pixmap is provided for pixel annotation; see {@link #getAnnotateMap() }.
  *
+ * With dirty tile rendering the ON and OFF events are rendered to packed byte
+ * RGBA maps that are cleared lazily and from which only the changed tiles are
+ * uploaded; see {@link #setDirtyTileRenderingEnabled(boolean) }.
+ *
  * @author christian, tobi
  * @see ChipRendererDisplayMethod
  */
@@ -103,6 +107,16 @@ public class AEFrameChipRenderer extends AEChipRenderer {
      * @see #setAnnotateColorRGBA(int, int, float[]) and similar methods
      */
     protected FloatBuffer annotateMap;
+    /**
+     * Packed byte RGBA maps for ON and OFF events, used instead of onMap and
+     * offMap with dirty tile rendering.
+     *
+     * @see #setDirtyTileRenderingEnabled(boolean)
+     */
+    protected PackedRGBAMap onPackedMap, offPackedMap;
+    private boolean dirtyTileRenderingEnabled = prefs.getBoolean("AEFrameChipRenderer.dirtyTileRenderingEnabled", false);
+    private boolean packedMapsInUse = false; // set for each packet rendered by render(EventPacket)
+    private final float[] packedPixel = new float[4];
     // double buffered histogram so we can accumulate new histogram while old one is still being rendered and returned
     // to caller
     private final int histStep = 4; // histogram bin step in ADC counts of 1024 levels
@@ -222,6 +236,34 @@ public class AEFrameChipRenderer extends AEChipRenderer {
         offMap.rewind();
         onMap.limit(n);
         offMap.limit(n);
+        if (onPackedMap != null) {
+            onPackedMap.clear();
+            offPackedMap.clear();
+        }
+    }
+
+    /**
+     * Allocates the packed ON and OFF maps to the texture size if needed.
+     */
+    protected void checkPackedMapAllocation() {
+        checkPixmapAllocation();
+        if ((onPackedMap == null) || (onPackedMap.getWidth() != textureWidth) || (onPackedMap.getHeight() != textureHeight)) {
+            onPackedMap = new PackedRGBAMap(textureWidth, textureHeight);
+            offPackedMap = new PackedRGBAMap(textureWidth, textureHeight);
+        }
+    }
+
+    /**
+     * Starts a new frame of the packed maps. Instead of clearing them, pixels
+     * rendered before are cleared lazily unless accumulating.
+     */
+    private void startPackedMapsFrame() {
+        setColors();
+        final float decay = accumulateEnabled ? 1 : 0;
+        onPackedMap.setDecay(decay);
+        offPackedMap.setDecay(decay);
+        onPackedMap.nextFrame();
+        offPackedMap.nextFrame();
     }
 
     public synchronized void clearAnnotationMap() {
@@ -313,12 +355,22 @@ public class AEFrameChipRenderer extends AEChipRenderer {
 //        adaptDvsDownsampling();
 
         numEventTypes = pkt.getNumCellTypes();
+        packedMapsInUse = dirtyTileRenderingEnabled && isDirtyTileRenderingSupported();
+        if (packedMapsInUse) {
+            checkPackedMapAllocation();
+            startPackedMapsFrame();
+        }
 
         if (pkt instanceof ApsDvsEventPacket) {
             renderApsDvsEvents(pkt);
         } else {
             renderDvsEvents(pkt);
         }
+
+        if (packedMapsInUse) {
+            onPackedMap.flush();
+            offPackedMap.flush();
+        }
     }
 
     protected void renderApsDvsEvents(final EventPacket pkt) {
@@ -327,7 +379,9 @@ public class AEFrameChipRenderer extends AEChipRenderer {
         }
 
         if (!accumulateEnabled) {
-            resetMaps();
+            if (!packedMapsInUse) {
+                resetMaps();
+            }
 
             if (numEventTypes > 2) {
                 resetAnnotationFrame(0.0f);
@@ -387,7 +441,9 @@ public class AEFrameChipRenderer extends AEChipRenderer {
 
     protected void renderDvsEvents(final EventPacket pkt) {
         if (!accumulateEnabled) {
-            resetMaps();
+            if (!packedMapsInUse) {
+                resetMaps();
+            }
 
             if (numEventTypes > 2) {
                 resetAnnotationFrame(0.0f);
@@ -527,6 +583,18 @@ public class AEFrameChipRenderer extends AEChipRenderer {
 //            return;
 //        }
         dvsDownsamplingCount = 0;
+        if (packedMapsInUse) {
+            final int index = getIndex(e);
+            if (index < 0) {
+                return;
+            }
+            final PackedRGBAMap packedMap = ((packet.getNumCellTypes() > 2) || (e.polarity == Polarity.On)) ? onPackedMap : offPackedMap;
+            final int pixel = index >> 2;
+            packedMap.get(pixel, packedPixel);
+            updateEventMapPixel(e, packedPixel, 0);
+            packedMap.set(pixel, packedPixel);
+            return;
+        }
         float[] map;
         if (packet.getNumCellTypes() > 2) {
             map = onMap.array();
@@ -541,6 +609,17 @@ public class AEFrameChipRenderer extends AEChipRenderer {
             return;
         }
 
+        updateEventMapPixel(e, map, index);
+    }
+
+    /**
+     * Renders an event to the RGBA value of its pixel in an event map.
+     *
+     * @param e the event
+     * @param map the event map, or a single pixel
+     * @param index index of the R value of the pixel in map
+     */
+    protected void updateEventMapPixel(final PolarityEvent e, final float[] map, final int index) {
         if (packet.getNumCellTypes() > 2) {
             checkTypeColors(packet.getNumCellTypes());
 
@@ -726,6 +805,36 @@ public class AEFrameChipRenderer extends AEChipRenderer {
         return offMap;
     }
 
+    /**
+     * Returns the packed map for ON events used with dirty tile rendering
+     *
+     * @return the map, or null if dirty tile rendering has not been used
+     * @see #isPackedMapsInUse()
+     */
+    protected PackedRGBAMap getOnPackedMap() {
+        return onPackedMap;
+    }
+
+    /**
+     * Returns the packed map for OFF events used with dirty tile rendering
+     *
+     * @return the map, or null if dirty tile rendering has not been used
+     * @see #isPackedMapsInUse()
+     */
+    protected PackedRGBAMap getOffPackedMap() {
+        return offPackedMap;
+    }
+
+    /**
+     * Returns whether the last packet was rendered to the packed ON and OFF
+     * maps rather than to onMap and offMap
+     *
+     * @return true if the display should use the packed maps
+     */
+    protected boolean isPackedMapsInUse() {
+        return packedMapsInUse;
+    }
+
     /**
      * Returns pixmap for annotated pixels
      *
@@ -765,6 +874,14 @@ public class AEFrameChipRenderer extends AEChipRenderer {
     public float[] getDvsRenderedValuesAtPixel(final int x, final int y) {
         final int k = getPixMapIndex(x, y);
         final float[] f = new float[3];
+        if (packedMapsInUse) {
+            final float[] v = new float[4];
+            onPackedMap.get(k >> 2, v);
+            f[0] = v[3];
+            offPackedMap.get(k >> 2, v);
+            f[1] = v[3];
+            return f;
+        }
         f[0] = onMap.get(k + 3);
         f[1] = offMap.get(k + 3);
         f[2] = 0; // return alpha channel which is the ON and OFF value that is rendered (RGB are 1 for ON and OFF maps)
@@ -1036,6 +1153,39 @@ public class AEFrameChipRenderer extends AEChipRenderer {
         displayAnnotation = extRender;
     }
 
+    /**
+     * @return whether ON and OFF events are rendered with dirty tiles
+     */
+    public boolean isDirtyTileRenderingEnabled() {
+        return dirtyTileRenderingEnabled;
+    }
+
+    /**
+     * Sets whether ON and OFF events are rendered to packed byte RGBA maps
+     * that track the tiles changed in each frame. The maps are cleared lazily
+     * by the frame in which each pixel was last rendered rather than every
+     * frame, and the display uploads only the changed tiles instead of the
+     * whole float maps. APS frames and the annotation map are rendered as
+     * before. Has no effect for subclasses that render events themselves.
+     *
+     * @param dirtyTileRenderingEnabled true to use dirty tile rendering
+     * @see PackedRGBAMap
+     */
+    public synchronized void setDirtyTileRenderingEnabled(final boolean dirtyTileRenderingEnabled) {
+        this.dirtyTileRenderingEnabled = dirtyTileRenderingEnabled;
+        prefs.putBoolean("AEFrameChipRenderer.dirtyTileRenderingEnabled", dirtyTileRenderingEnabled);
+    }
+
+    /**
+     * Subclasses that render events to onMap and offMap themselves override
+     * this method to return false.
+     *
+     * @return true if updateEventMaps can render to the packed maps
+     */
+    protected boolean isDirtyTileRenderingSupported() {
+        return true;
+    }
+
     public boolean isDisplayFrames() {
         return ((DvsDisplayConfigInterface) chip.getBiasgen()).isDisplayFrames();
     }
@@ -41,6 +41,11 @@ public class ChipRendererDisplayMethodRGBA extends DisplayMethod implements Disp
 	public final float SPECIAL_BAR_LINE_WIDTH = 8;
 	private boolean renderSpecialEvents = true;
 
+	// textures holding the packed ON and OFF maps of dirty tile rendering, which are only updated where changed
+	private final int[] packedMapTextures = new int[2];
+	private final PackedRGBAMap[] uploadedPackedMaps = new PackedRGBAMap[2];
+	private int[] dirtyRegions = new int[0];
+
 	/**
 	 * Creates a new instance of ChipRendererDisplayMethodRGBA
 	 */
@@ -79,9 +84,13 @@ public class ChipRendererDisplayMethodRGBA extends DisplayMethod implements Disp
 		boolean displayEvents = false;
 		boolean displayFrames = true;
 		boolean displayAnnotation = false;
+		AEFrameChipRenderer packedMapsRenderer = null;
 
 		if (renderer instanceof AEFrameChipRenderer) {
 			final AEFrameChipRenderer frameRenderer = (AEFrameChipRenderer) renderer;
+			if (frameRenderer.isPackedMapsInUse()) {
+				packedMapsRenderer = frameRenderer;
+			}
 			onMap = frameRenderer.getOnMap();
 			offMap = frameRenderer.getOffMap();
 			annotateMap = frameRenderer.getAnnotateMap();
@@ -135,7 +144,12 @@ public class ChipRendererDisplayMethodRGBA extends DisplayMethod implements Disp
 			getChipCanvas().checkGLError(gl, glu, "after frames");
 		}
 
-		if ((onMap != null) && displayEvents) {
+		if ((packedMapsRenderer != null) && displayEvents) {
+			displayPackedMap(gl, packedMapsRenderer.getOnPackedMap(), 0, nearestFilter, width, height);
+			displayPackedMap(gl, packedMapsRenderer.getOffPackedMap(), 1, nearestFilter, width, height);
+		}
+
+		if ((onMap != null) && displayEvents && (packedMapsRenderer == null)) {
 			gl.glBindTexture(GL.GL_TEXTURE_2D, 1);
 			gl.glPixelStorei(GL.GL_UNPACK_ALIGNMENT, 1);
 			gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_S, GL2.GL_CLAMP);
@@ -151,7 +165,7 @@ public class ChipRendererDisplayMethodRGBA extends DisplayMethod implements Disp
 			gl.glDisable(GL.GL_TEXTURE_2D);
 		}
 
-		if ((offMap != null) && displayEvents) {
+		if ((offMap != null) && displayEvents && (packedMapsRenderer == null)) {
 			gl.glBindTexture(GL.GL_TEXTURE_2D, 1);
 			gl.glPixelStorei(GL.GL_UNPACK_ALIGNMENT, 1);
 			gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_S, GL2.GL_CLAMP);
@@ -239,6 +253,60 @@ public class ChipRendererDisplayMethodRGBA extends DisplayMethod implements Disp
 		}
 	}
 
+	/**
+	 * Draws a packed event map from its own texture, uploading only the
+	 * regions that changed since it was last drawn.
+	 *
+	 * @param k 0 for the ON map, 1 for the OFF map
+	 */
+	private void displayPackedMap(final GL2 gl, final PackedRGBAMap map, final int k, final int filter, final int width, final int height) {
+		if (map == null) {
+			return;
+		}
+		if (packedMapTextures[k] == 0) {
+			// texture 1 is used by the other event and annotation layers without being generated; make sure it is not returned
+			gl.glBindTexture(GL.GL_TEXTURE_2D, 1);
+			gl.glGenTextures(1, packedMapTextures, k);
+		}
+		gl.glBindTexture(GL.GL_TEXTURE_2D, packedMapTextures[k]);
+		gl.glPixelStorei(GL.GL_UNPACK_ALIGNMENT, 1);
+		gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_S, GL2.GL_CLAMP);
+		gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_T, GL2.GL_CLAMP);
+		gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER, filter);
+		gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, filter);
+		gl.glTexEnvf(GL2ES1.GL_TEXTURE_ENV, GL2ES1.GL_TEXTURE_ENV_MODE, GL.GL_REPLACE);
+		if (dirtyRegions.length < (4 * map.getMaxRegions())) {
+			dirtyRegions = new int[4 * map.getMaxRegions()];
+		}
+		synchronized (map) {
+			if (uploadedPackedMaps[k] != map) {
+				// new or reallocated map, upload all of it
+				map.getDirtyRegions(dirtyRegions);
+				gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, GL.GL_RGBA, map.getWidth(), map.getHeight(), 0, GL.GL_RGBA, GL.GL_UNSIGNED_BYTE, map.getBuffer());
+				uploadedPackedMaps[k] = map;
+			} else {
+				final int n = map.getDirtyRegions(dirtyRegions);
+				if (n > 0) {
+					gl.glPixelStorei(GL2.GL_UNPACK_ROW_LENGTH, map.getWidth());
+					for (int i = 0; i < (4 * n); i += 4) {
+						gl.glPixelStorei(GL2.GL_UNPACK_SKIP_PIXELS, dirtyRegions[i]);
+						gl.glPixelStorei(GL2.GL_UNPACK_SKIP_ROWS, dirtyRegions[i + 1]);
+						gl.glTexSubImage2D(GL.GL_TEXTURE_2D, 0, dirtyRegions[i], dirtyRegions[i + 1], dirtyRegions[i + 2], dirtyRegions[i + 3],
+							GL.GL_RGBA, GL.GL_UNSIGNED_BYTE, map.getBuffer());
+					}
+					gl.glPixelStorei(GL2.GL_UNPACK_ROW_LENGTH, 0);
+					gl.glPixelStorei(GL2.GL_UNPACK_SKIP_PIXELS, 0);
+					gl.glPixelStorei(GL2.GL_UNPACK_SKIP_ROWS, 0);
+				}
+			}
+		}
+
+		gl.glEnable(GL.GL_TEXTURE_2D);
+		drawPolygon(gl, width, height);
+		gl.glDisable(GL.GL_TEXTURE_2D);
+		getChipCanvas().checkGLError(gl, glu, "after packed event map");
+	}
+
 	private void drawPolygon(final GL2 gl, final int width, final int height) {
 		final double xRatio = (double) chip.getSizeX() / (double) width;
 		final double yRatio = (double) chip.getSizeY() / (double) height;
@@ -0,0 +1,330 @@
+package net.sf.jaer.graphics;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * RGBA pixmap with one byte per color component, which tracks the tiles of
+ * TILE_SIZE x TILE_SIZE pixels that changed since they were last uploaded to
+ * the display.
+ * <p>
+ * Instead of clearing or fading the whole map every rendered frame, each pixel
+ * remembers the frame in which it was last set, and its alpha is decayed
+ * lazily by the decay factor for each frame since then. With decay 0 a pixel
+ * not set in the current frame reads as cleared, as after
+ * AEFrameChipRenderer.resetMaps(); with decay 1 pixels accumulate. The decayed
+ * values are written to the map by flush(), with decay 0 only for the pixels
+ * set in the previous frame and otherwise only for tiles that still hold
+ * decaying pixels, so the cost of a frame is proportional to the number of
+ * rendered events or active tiles rather than to the size of the map.
+ * <p>
+ * The renderer calls nextFrame(), set() and get() for each event and flush()
+ * after the packet; the display method uploads the regions returned by
+ * getDirtyRegions(int[]) from getBuffer().
+ *
+ * @author tobi
+ * @see AEFrameChipRenderer#setDirtyTileRenderingEnabled(boolean)
+ */
+public class PackedRGBAMap {
+
+    /**
+     * log2 of the tile size
+     */
+    public static final int TILE_SHIFT = 5;
+    /**
+     * Width and height of the dirty tiles in pixels
+     */
+    public static final int TILE_SIZE = 1 << TILE_SHIFT;
+
+    private final int width, height, tilesX, tilesY;
+    private final byte[] rgba;
+    private final ByteBuffer buffer;
+    private final int[] stamps; // frame in which each pixel was last set or decayed
+    private final int[] tileTouched; // frame in which a pixel of each tile was last set
+    private final boolean[] tileLive; // tiles with pixels that may still decay
+    private final boolean[] tileDirty; // tiles changed since the last upload
+    private int frame = 1;
+    private float decay = 0;
+    // pixels set in the current and in the previous frame
+    private int[] framePixels = new int[1024], lastFramePixels = new int[1024];
+    private int numFramePixels = 0, numLastFramePixels = 0;
+    private boolean lastFramePixelsComplete = true; // true if only the pixels in lastFramePixels can be nonzero
+
+    /**
+     * Makes a new cleared map with all tiles dirty.
+     *
+     * @param width the width in pixels, e.g. the texture width
+     * @param height the height in pixels
+     */
+    public PackedRGBAMap(int width, int height) {
+        this.width = width;
+        this.height = height;
+        tilesX = (width + TILE_SIZE - 1) >> TILE_SHIFT;
+        tilesY = (height + TILE_SIZE - 1) >> TILE_SHIFT;
+        rgba = new byte[4 * width * height];
+        buffer = ByteBuffer.wrap(rgba);
+        stamps = new int[width * height];
+        tileTouched = new int[tilesX * tilesY];
+        tileLive = new boolean[tilesX * tilesY];
+        tileDirty = new boolean[tilesX * tilesY];
+        Arrays.fill(tileDirty, true);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the RGBA bytes, rows of width pixels starting at the bottom row
+     */
+    public ByteBuffer getBuffer() {
+        buffer.rewind();
+        return buffer;
+    }
+
+    /**
+     * @return the factor applied to the alpha of a pixel for each frame in
+     * which it is not set
+     */
+    public float getDecay() {
+        return decay;
+    }
+
+    /**
+     * @param decay the factor applied to the alpha of a pixel for each frame
+     * in which it is not set, 0 to clear every frame, 1 to accumulate
+     */
+    public void setDecay(float decay) {
+        this.decay = decay < 0 ? 0 : decay > 1 ? 1 : decay;
+    }
+
+    /**
+     * Starts a new frame; pixels set before now decay.
+     */
+    public void nextFrame() {
+        frame++;
+    }
+
+    private int tile(int pixel) {
+        final int x = pixel % width, y = pixel / width;
+        return ((y >> TILE_SHIFT) * tilesX) + (x >> TILE_SHIFT);
+    }
+
+    /**
+     * Reads a pixel, decayed to the current frame.
+     *
+     * @param pixel the pixel index y*width+x, i.e. the index into a float
+     * RGBA pixmap divided by 4
+     * @param value filled with the RGBA components in the range 0-1
+     */
+    public void get(int pixel, float[] value) {
+        final int i = pixel << 2;
+        final int age = frame - stamps[pixel];
+        if (age != 0 && decay == 0) {
+            value[0] = 0;
+            value[1] = 0;
+            value[2] = 0;
+            value[3] = 0;
+            return;
+        }
+        final float s = 1f / 255;
+        value[0] = (rgba[i] & 0xff) * s;
+        value[1] = (rgba[i + 1] & 0xff) * s;
+        value[2] = (rgba[i + 2] & 0xff) * s;
+        float a = (rgba[i + 3] & 0xff) * s;
+        if (age != 0 && decay != 1) {
+            a *= (float) Math.pow(decay, age);
+        }
+        value[3] = a;
+    }
+
+    /**
+     * Sets a pixel in the current frame.
+     *
+     * @param pixel the pixel index y*width+x
+     * @param value the RGBA components, clipped to 0-1
+     */
+    public void set(int pixel, float[] value) {
+        final int i = pixel << 2;
+        rgba[i] = toByte(value[0]);
+        rgba[i + 1] = toByte(value[1]);
+        rgba[i + 2] = toByte(value[2]);
+        rgba[i + 3] = toByte(value[3]);
+        if (stamps[pixel] != frame) {
+            if (numFramePixels == framePixels.length) {
+                framePixels = Arrays.copyOf(framePixels, 2 * numFramePixels);
+            }
+            framePixels[numFramePixels++] = pixel;
+        }
+        stamps[pixel] = frame;
+        final int t = tile(pixel);
+        tileTouched[t] = frame;
+        tileLive[t] = true;
+    }
+
+    private static byte toByte(float v) {
+        return (byte) (v <= 0 ? 0 : v >= 1 ? 255 : (int) ((v * 255) + .5f));
+    }
+
+    /**
+     * Clears all pixels and marks all tiles dirty.
+     */
+    public synchronized void clear() {
+        Arrays.fill(rgba, (byte) 0);
+        Arrays.fill(stamps, 0);
+        Arrays.fill(tileLive, false);
+        Arrays.fill(tileDirty, true);
+        numFramePixels = 0;
+        numLastFramePixels = 0;
+        lastFramePixelsComplete = true;
+    }
+
+    /**
+     * Writes the decayed values of the pixels of all tiles that were set in
+     * this frame or still hold decaying pixels, and marks these tiles dirty.
+     * Called after rendering a packet.
+     *
+     * @return the number of dirty tiles
+     */
+    public synchronized int flush() {
+        if (decay == 0 && lastFramePixelsComplete) {
+            return flushCleared();
+        }
+        int numDirty = 0;
+        for (int t = 0; t < tileLive.length; t++) {
+            if (tileLive[t]) {
+                final boolean touched = tileTouched[t] == frame;
+                if (decay == 1) {
+                    tileDirty[t] |= touched;
+                } else {
+                    tileLive[t] = decayTile(t) || touched;
+                    tileDirty[t] = true;
+                }
+            }
+            if (tileDirty[t]) {
+                numDirty++;
+            }
+        }
+        lastFramePixelsComplete = decay == 0;
+        swapFramePixels();
+        return numDirty;
+    }
+
+    /**
+     * Flush with decay 0 when all pixels not set in this frame are either
+     * zero or in lastFramePixels: clears the pixels that were set in the
+     * previous frame but not in this one.
+     */
+    private int flushCleared() {
+        for (int k = 0; k < numLastFramePixels; k++) {
+            final int p = lastFramePixels[k];
+            if (stamps[p] != frame) {
+                final int i = p << 2;
+                rgba[i] = 0;
+                rgba[i + 1] = 0;
+                rgba[i + 2] = 0;
+                rgba[i + 3] = 0;
+                stamps[p] = frame;
+                tileDirty[tile(p)] = true;
+            }
+        }
+        int numDirty = 0;
+        for (int t = 0; t < tileDirty.length; t++) {
+            if (tileTouched[t] == frame) {
+                tileDirty[t] = true;
+            }
+            if (tileDirty[t]) {
+                numDirty++;
+            }
+        }
+        swapFramePixels();
+        return numDirty;
+    }
+
+    private void swapFramePixels() {
+        final int[] tmp = lastFramePixels;
+        lastFramePixels = framePixels;
+        numLastFramePixels = numFramePixels;
+        framePixels = tmp;
+        numFramePixels = 0;
+    }
+
+    /**
+     * Decays the pixels of a tile that were not set in this frame.
+     *
+     * @return true if any of these pixels is still visible
+     */
+    private boolean decayTile(int t) {
+        final int x0 = (t % tilesX) << TILE_SHIFT, y0 = (t / tilesX) << TILE_SHIFT;
+        final int x1 = Math.min(width, x0 + TILE_SIZE), y1 = Math.min(height, y0 + TILE_SIZE);
+        boolean visible = false;
+        for (int y = y0; y < y1; y++) {
+            for (int p = (y * width) + x0, end = (y * width) + x1; p < end; p++) {
+                final int age = frame - stamps[p];
+                if (age == 0) {
+                    continue;
+                }
+                stamps[p] = frame;
+                final int i = p << 2;
+                final int a = rgba[i + 3] & 0xff;
+                if (a == 0) {
+                    continue;
+                }
+                if (decay == 0) {
+                    rgba[i] = 0;
+                    rgba[i + 1] = 0;
+                    rgba[i + 2] = 0;
+                    rgba[i + 3] = 0;
+                } else {
+                    final int na = (int) ((a * Math.pow(decay, age)) + .5);
+                    rgba[i + 3] = (byte) na;
+                    visible |= na > 0;
+                }
+            }
+        }
+        return visible;
+    }
+
+    /**
+     * Returns the dirty regions and marks all tiles clean. Adjacent dirty
+     * tiles of a tile row are merged into one region.
+     *
+     * @param regions filled with x, y, width and height in pixels of each
+     * region; must have room for 4*getMaxRegions() values
+     * @return the number of regions
+     */
+    public synchronized int getDirtyRegions(int[] regions) {
+        int n = 0;
+        for (int ty = 0; ty < tilesY; ty++) {
+            int tx = 0;
+            while (tx < tilesX) {
+                if (!tileDirty[(ty * tilesX) + tx]) {
+                    tx++;
+                    continue;
+                }
+                final int start = tx;
+                while (tx < tilesX && tileDirty[(ty * tilesX) + tx]) {
+                    tileDirty[(ty * tilesX) + tx] = false;
+                    tx++;
+                }
+                final int x = start << TILE_SHIFT, y = ty << TILE_SHIFT;
+                regions[n++] = x;
+                regions[n++] = y;
+                regions[n++] = Math.min(width, tx << TILE_SHIFT) - x;
+                regions[n++] = Math.min(height, y + TILE_SIZE) - y;
+            }
+        }
+        return n / 4;
+    }
+
+    /**
+     * @return the largest number of regions returned by getDirtyRegions
+     */
+    public int getMaxRegions() {
+        return tilesY * ((tilesX + 1) / 2);
+    }
+}
@@ -0,0 +1,342 @@
+package net.sf.jaer.graphics;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import net.sf.jaer.event.ApsDvsEvent;
+import net.sf.jaer.event.ApsDvsEventPacket;
+import net.sf.jaer.event.BasicEvent;
+import net.sf.jaer.event.EventPacket;
+import net.sf.jaer.event.PolarityEvent;
+import net.sf.jaer.event.SpaceTimeEventRing;
+import net.sf.jaer.graphics.AEChipRenderer.ColorMode;
+import net.sf.jaer.util.ParallelRunner;
+
+/**
+ * Renders DVS event histograms and APS frames into a SoftwareRasterizer
+ * without OpenGL, e.g. for making previews and annotated videos on headless
+ * servers.
+ * <p>
+ * Packets are first accumulated into per-pixel ON and OFF event counts and,
+ * for ApsDvsEvent packets, into the APS frame, which is shown from its first
+ * complete readout on, normalized to its own range. render() then converts
+ * the counts and the frame into image pixels, in parallel horizontal bands of
+ * the pixel array, and resets the counts unless accumulation is enabled.
+ * Annotations are drawn afterwards with SoftwareFrameAnnotater.
+ * <p>
+ * GrayLevel and Contrast color modes draw ON events brighter and OFF events
+ * darker on gray or on the APS frame; all other modes draw ON events green
+ * and OFF events red on black or on the APS frame. colorScale events reach
+ * full scale.
+ *
+ * @author tobi
+ * @see SoftwareRasterizer
+ */
+public class SoftwareChipRenderer {
+
+    private final int sizeX, sizeY;
+    private final int[] onCounts, offCounts;
+    private final float[] apsReset, apsValues, apsGray;
+    private float apsMin = Float.MAX_VALUE, apsMax = 0;
+    private boolean frameAvailable = false;
+    private int colorScale = 2;
+    private ColorMode colorMode = ColorMode.GrayLevel;
+    private boolean displayEvents = true, displayFrames = true, accumulateEnabled = false;
+    private int numThreads = 0;
+    private final ParallelRunner runner = new ParallelRunner("SoftwareChipRenderer");
+
+    /**
+     * Makes a new renderer.
+     *
+     * @param sizeX the width of the pixel array
+     * @param sizeY the height of the pixel array
+     */
+    public SoftwareChipRenderer(int sizeX, int sizeY) {
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        onCounts = new int[sizeX * sizeY];
+        offCounts = new int[sizeX * sizeY];
+        apsReset = new float[sizeX * sizeY];
+        apsValues = new float[sizeX * sizeY];
+        apsGray = new float[sizeX * sizeY];
+    }
+
+    public int getSizeX() {
+        return sizeX;
+    }
+
+    public int getSizeY() {
+        return sizeY;
+    }
+
+    /**
+     * Adds the events of a packet to the event counts and the APS frame.
+     *
+     * @param packet the packet, of any event type; events other than
+     * PolarityEvent count as ON events
+     */
+    public void accumulate(EventPacket<?> packet) {
+        if (packet == null) {
+            return;
+        }
+        final boolean multiType = packet.getNumCellTypes() > 2;
+        if (packet instanceof ApsDvsEventPacket) {
+            final boolean backwards = packet.getDurationUs() < 0;
+            final boolean timeLimitEnabled = packet.isTimeLimitEnabled();
+            packet.setTimeLimitEnabled(false);
+            final Iterator<ApsDvsEvent> itr = ((ApsDvsEventPacket) packet).fullIterator();
+            while (itr.hasNext()) {
+                final ApsDvsEvent e = itr.next();
+                if (e.isSpecial()) {
+                    continue;
+                }
+                if (e.isApsData()) {
+                    if (!backwards) {
+                        updateFrame(e);
+                    }
+                } else if (!e.isFilteredOut()) {
+                    count(e, multiType);
+                }
+            }
+            packet.setTimeLimitEnabled(timeLimitEnabled);
+        } else {
+            for (BasicEvent e : packet) {
+                if (!e.isSpecial()) {
+                    count(e, multiType);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the events held in a ring, e.g. the time window shown by
+     * SpaceTimeRollingEventDisplayMethod, to the event counts. Events of type
+     * 0 count as OFF events and all others as ON events, as for
+     * PolarityEvent.
+     *
+     * @param ring the events
+     */
+    public void accumulate(SpaceTimeEventRing ring) {
+        for (int k = ring.getFirst(), end = ring.getEnd(); k != end; k++) {
+            final int x = ring.getX(k), y = ring.getY(k);
+            if (x < 0 || y < 0 || x >= sizeX || y >= sizeY) {
+                continue;
+            }
+            if (ring.getType(k) == 0) {
+                offCounts[(y * sizeX) + x]++;
+            } else {
+                onCounts[(y * sizeX) + x]++;
+            }
+        }
+    }
+
+    private void count(BasicEvent e, boolean multiType) {
+        if (e.x < 0 || e.y < 0 || e.x >= sizeX || e.y >= sizeY) {
+            return;
+        }
+        final int i = (e.y * sizeX) + e.x;
+        if (!multiType && (e instanceof PolarityEvent) && ((PolarityEvent) e).polarity == PolarityEvent.Polarity.Off) {
+            offCounts[i]++;
+        } else {
+            onCounts[i]++;
+        }
+    }
+
+    private void updateFrame(ApsDvsEvent e) {
+        if (e.isStartOfFrame()) {
+            apsMin = Float.MAX_VALUE;
+            apsMax = 0;
+            return;
+        }
+        if (e.isEndOfFrame()) {
+            final float range = apsMax > apsMin ? apsMax - apsMin : 1;
+            final float min = apsMin == Float.MAX_VALUE ? 0 : apsMin;
+            for (int i = 0; i < apsGray.length; i++) {
+                apsGray[i] = (apsValues[i] - min) / range;
+            }
+            frameAvailable = true;
+            return;
+        }
+        if (e.x < 0 || e.y < 0 || e.x >= sizeX || e.y >= sizeY) {
+            return;
+        }
+        final int i = (e.y * sizeX) + e.x;
+        if (e.isResetRead()) {
+            apsReset[i] = e.getAdcSample();
+        } else if (e.isSignalRead()) {
+            float val = apsReset[i] - e.getAdcSample();
+            if (val < 0) {
+                val = 0;
+            }
+            apsValues[i] = val;
+            if (val < apsMin) {
+                apsMin = val;
+            }
+            if (val > apsMax) {
+                apsMax = val;
+            }
+        }
+    }
+
+    /**
+     * Renders the accumulated events and the last APS frame over the whole
+     * image, and resets the event counts unless accumulateEnabled.
+     *
+     * @param raster the image, which must have the size of the pixel array
+     * times its scale
+     */
+    public void render(final SoftwareRasterizer raster) {
+        if (raster.getChipWidth() != sizeX || raster.getChipHeight() != sizeY) {
+            throw new IllegalArgumentException("raster is for " + raster.getChipWidth() + "x" + raster.getChipHeight()
+                    + " pixels but renderer is for " + sizeX + "x" + sizeY);
+        }
+        final int n = Math.min(getNumThreadsUsed(), sizeY);
+        runner.run(n, new ParallelRunner.Task() {
+            @Override
+            public void run(int k) {
+                renderRows(raster, (k * sizeY) / n, ((k + 1) * sizeY) / n);
+            }
+        });
+        if (!accumulateEnabled) {
+            resetEvents();
+        }
+    }
+
+    /**
+     * Renders the pixel rows y0 to y1-1; bands of rows are independent.
+     */
+    private void renderRows(SoftwareRasterizer raster, int y0, int y1) {
+        final int[] pixels = raster.getPixels();
+        final int scale = raster.getScale(), width = raster.getWidth(), height = raster.getHeight();
+        final boolean gray = colorMode == ColorMode.GrayLevel || colorMode == ColorMode.Contrast;
+        final boolean frame = displayFrames && frameAvailable;
+        final float background = gray ? .5f : 0;
+        final float step = displayEvents ? (gray ? .5f : 1f) / colorScale : 0;
+        for (int y = y0; y < y1; y++) {
+            final int row0 = height - ((y + 1) * scale);
+            final int rowStart = row0 * width;
+            for (int x = 0, i = y * sizeX; x < sizeX; x++, i++) {
+                final float base = frame ? apsGray[i] : background;
+                final int rgb;
+                if (gray) {
+                    final float v = base + (step * (onCounts[i] - offCounts[i]));
+                    rgb = SoftwareRasterizer.rgb(v, v, v);
+                } else {
+                    rgb = SoftwareRasterizer.rgb(base + (step * offCounts[i]), base + (step * onCounts[i]), base);
+                }
+                final int c = rowStart + (x * scale);
+                for (int s = 0; s < scale; s++) {
+                    pixels[c + s] = rgb;
+                }
+            }
+            // the first image row of this pixel row is done; copy it to the others
+            for (int r = 1; r < scale; r++) {
+                System.arraycopy(pixels, rowStart, pixels, rowStart + (r * width), width);
+            }
+        }
+    }
+
+    /**
+     * Resets the event counts.
+     */
+    public void resetEvents() {
+        Arrays.fill(onCounts, 0);
+        Arrays.fill(offCounts, 0);
+    }
+
+    /**
+     * Resets the event counts and discards the APS frame.
+     */
+    public void reset() {
+        resetEvents();
+        frameAvailable = false;
+        apsMin = Float.MAX_VALUE;
+        apsMax = 0;
+    }
+
+    /**
+     * @return true if a complete APS frame has been accumulated
+     */
+    public boolean isFrameAvailable() {
+        return frameAvailable;
+    }
+
+    /**
+     * @return the number of events of one polarity that reach full scale
+     */
+    public int getColorScale() {
+        return colorScale;
+    }
+
+    /**
+     * @param colorScale the number of events of one polarity that reach full
+     * scale, at least 1
+     */
+    public void setColorScale(int colorScale) {
+        this.colorScale = Math.max(1, colorScale);
+    }
+
+    public ColorMode getColorMode() {
+        return colorMode;
+    }
+
+    /**
+     * @param colorMode GrayLevel or Contrast for brighter ON and darker OFF
+     * events, any other mode for green ON and red OFF events
+     */
+    public void setColorMode(ColorMode colorMode) {
+        this.colorMode = colorMode;
+    }
+
+    public boolean isDisplayEvents() {
+        return displayEvents;
+    }
+
+    public void setDisplayEvents(boolean displayEvents) {
+        this.displayEvents = displayEvents;
+    }
+
+    public boolean isDisplayFrames() {
+        return displayFrames;
+    }
+
+    public void setDisplayFrames(boolean displayFrames) {
+        this.displayFrames = displayFrames;
+    }
+
+    public boolean isAccumulateEnabled() {
+        return accumulateEnabled;
+    }
+
+    /**
+     * @param accumulateEnabled true to keep the event counts after render()
+     */
+    public void setAccumulateEnabled(boolean accumulateEnabled) {
+        this.accumulateEnabled = accumulateEnabled;
+    }
+
+    /**
+     * @return the number of rendering threads, 0 to use all processors
+     */
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * @param numThreads the number of rendering threads, 0 to use all
+     * processors
+     */
+    synchronized public void setNumThreads(int numThreads) {
+        this.numThreads = Math.max(0, numThreads);
+    }
+
+    private int getNumThreadsUsed() {
+        return ParallelRunner.getNumThreadsUsed(numThreads);
+    }
+
+    /**
+     * Stops the rendering threads; they are started again when needed.
+     */
+    public void close() {
+        runner.close();
+    }
+}
@@ -0,0 +1,23 @@
+package net.sf.jaer.graphics;
+
+/**
+ * An EventFilter2D implements SoftwareFrameAnnotater, in addition to
+ * FrameAnnotater, in order to draw its annotations into images rendered
+ * without OpenGL, e.g. by HeadlessAviWriter on a server without display.
+ *
+ * @author tobi
+ * @see SoftwareRasterizer
+ * @see FrameAnnotater
+ */
+public interface SoftwareFrameAnnotater {
+
+    /**
+     * Draws the annotations of the last processed packet, as
+     * FrameAnnotater.annotate(GLAutoDrawable) does with OpenGL. The
+     * rasterizer takes coordinates with pixel 0,0 in the LL corner and pixel
+     * spacing 1 unit.
+     *
+     * @param raster the image to draw into
+     */
+    public void annotate(SoftwareRasterizer raster);
+}
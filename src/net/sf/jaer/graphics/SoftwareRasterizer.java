@@ -0,0 +1,400 @@
+package net.sf.jaer.graphics;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+
+/**
+ * Off-screen image in main memory that annotations and rendered events are
+ * drawn into without OpenGL, for use on machines without a display or GPU.
+ * <p>
+ * The pixels are packed RGB ints, rows starting at the top as in a
+ * BufferedImage, and the image is the chip pixel array magnified by an
+ * integer scale. Drawing methods take chip coordinates as in
+ * FrameAnnotater.annotate, i.e. with pixel 0,0 in the lower left corner and
+ * pixel spacing 1 unit, and mirror the methods of DrawGL. Line widths and
+ * point sizes are in image pixels, as for glLineWidth.
+ *
+ * @author tobi
+ * @see SoftwareChipRenderer
+ * @see SoftwareFrameAnnotater
+ */
+public class SoftwareRasterizer {
+
+    private final int chipWidth, chipHeight, scale, width, height;
+    private final BufferedImage image;
+    private final int[] pixels;
+    private int color = 0xffffff;
+    private int lineWidth = 1;
+
+    /**
+     * Makes a new black image.
+     *
+     * @param chipWidth the width of the chip pixel array
+     * @param chipHeight the height of the chip pixel array
+     * @param scale the number of image pixels per chip pixel in each
+     * direction, at least 1
+     */
+    public SoftwareRasterizer(int chipWidth, int chipHeight, int scale) {
+        this.chipWidth = chipWidth;
+        this.chipHeight = chipHeight;
+        this.scale = Math.max(1, scale);
+        width = chipWidth * this.scale;
+        height = chipHeight * this.scale;
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * @return the image width in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the image height in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    public int getChipWidth() {
+        return chipWidth;
+    }
+
+    public int getChipHeight() {
+        return chipHeight;
+    }
+
+    /**
+     * @return the number of image pixels per chip pixel in each direction
+     */
+    public int getScale() {
+        return scale;
+    }
+
+    /**
+     * @return the packed RGB pixels, width pixels per row starting at the top
+     * row; changes are visible in getImage()
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * @return the image, which shares its pixels with this rasterizer
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * @return a copy of the image that is not changed by later drawing, e.g.
+     * to queue it to an AVIEncoderPipeline
+     */
+    public BufferedImage copyImage() {
+        BufferedImage copy = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] copyPixels = ((DataBufferInt) copy.getRaster().getDataBuffer()).getData();
+        System.arraycopy(pixels, 0, copyPixels, 0, pixels.length);
+        return copy;
+    }
+
+    /**
+     * Writes the image to a PNG file.
+     *
+     * @param file the file
+     * @throws IOException if the file cannot be written
+     */
+    public void writePng(File file) throws IOException {
+        if (!ImageIO.write(image, "png", file)) {
+            throw new IOException("no PNG writer available for " + file);
+        }
+    }
+
+    /**
+     * Fills the whole image with the current color.
+     */
+    public void clear() {
+        Arrays.fill(pixels, color);
+    }
+
+    /**
+     * Sets the drawing color.
+     *
+     * @param r red 0-1
+     * @param g green 0-1
+     * @param b blue 0-1
+     */
+    public void setColor(float r, float g, float b) {
+        color = rgb(r, g, b);
+    }
+
+    /**
+     * Sets the drawing color, like glColor3fv.
+     *
+     * @param rgb the red, green and blue components 0-1; further components
+     * are ignored
+     */
+    public void setColor(float[] rgb) {
+        setColor(rgb[0], rgb[1], rgb[2]);
+    }
+
+    public void setColor(Color c) {
+        color = c.getRGB() & 0xffffff;
+    }
+
+    /**
+     * @return the drawing color as packed RGB
+     */
+    public int getColor() {
+        return color;
+    }
+
+    /**
+     * @return the line width in image pixels
+     */
+    public int getLineWidth() {
+        return lineWidth;
+    }
+
+    /**
+     * @param lineWidth the line width in image pixels, like glLineWidth
+     */
+    public void setLineWidth(float lineWidth) {
+        this.lineWidth = Math.max(1, Math.round(lineWidth));
+    }
+
+    /**
+     * Packs a color.
+     *
+     * @param r red 0-1
+     * @param g green 0-1
+     * @param b blue 0-1
+     * @return the packed RGB value, with components clipped to 0-1
+     */
+    public static int rgb(float r, float g, float b) {
+        return (toByte(r) << 16) | (toByte(g) << 8) | toByte(b);
+    }
+
+    private static int toByte(float v) {
+        return v <= 0 ? 0 : v >= 1 ? 255 : (int) ((v * 255) + .5f);
+    }
+
+    /**
+     * Sets all image pixels of a chip pixel.
+     *
+     * @param x the chip pixel x address
+     * @param y the chip pixel y address
+     * @param rgb the packed RGB value
+     */
+    public void setChipPixel(int x, int y, int rgb) {
+        if (x < 0 || y < 0 || x >= chipWidth || y >= chipHeight) {
+            return;
+        }
+        final int row0 = height - ((y + 1) * scale), col0 = x * scale;
+        for (int r = row0; r < row0 + scale; r++) {
+            Arrays.fill(pixels, (r * width) + col0, (r * width) + col0 + scale, rgb);
+        }
+    }
+
+    private float toColumn(float x) {
+        return x * scale;
+    }
+
+    private float toRow(float y) {
+        return height - (y * scale);
+    }
+
+    /**
+     * Fills a square of the current color, like a GL_POINT.
+     *
+     * @param x the chip x coordinate of the center
+     * @param y the chip y coordinate of the center
+     * @param size the side of the square in image pixels
+     */
+    public void drawPoint(float x, float y, float size) {
+        final int s = Math.max(1, Math.round(size));
+        fillSquare((int) Math.floor(toColumn(x)), (int) Math.floor(toRow(y)), s);
+    }
+
+    /**
+     * Fills a square of side s around image pixel c,r.
+     */
+    private void fillSquare(int c, int r, int s) {
+        int c0 = c - ((s - 1) >> 1), r0 = r - ((s - 1) >> 1);
+        int c1 = Math.min(width, c0 + s), r1 = Math.min(height, r0 + s);
+        c0 = Math.max(0, c0);
+        r0 = Math.max(0, r0);
+        if (c0 >= c1) {
+            return;
+        }
+        for (int row = r0; row < r1; row++) {
+            Arrays.fill(pixels, (row * width) + c0, (row * width) + c1, color);
+        }
+    }
+
+    /**
+     * Draws a line in the current color and line width.
+     *
+     * @param x0 the chip x coordinate of the start
+     * @param y0 the chip y coordinate of the start
+     * @param x1 the chip x coordinate of the end
+     * @param y1 the chip y coordinate of the end
+     */
+    public void drawLine(float x0, float y0, float x1, float y1) {
+        float c0 = toColumn(x0), r0 = toRow(y0), c1 = toColumn(x1), r1 = toRow(y1);
+        if (Float.isNaN(c0 + r0 + c1 + r1) || Float.isInfinite(c0 + r0 + c1 + r1)) {
+            return;
+        }
+        // clip the segment to the image extended by the line width, so that
+        // long vectors that leave the image cost nothing outside of it
+        final float m = lineWidth;
+        final float dc = c1 - c0, dr = r1 - r0;
+        float t0 = 0, t1 = 1;
+        final float[] p = {-dc, dc, -dr, dr};
+        final float[] q = {c0 + m, width + m - c0, r0 + m, height + m - r0};
+        for (int i = 0; i < 4; i++) {
+            if (p[i] == 0) {
+                if (q[i] < 0) {
+                    return;
+                }
+            } else {
+                final float t = q[i] / p[i];
+                if (p[i] < 0) {
+                    if (t > t1) {
+                        return;
+                    }
+                    t0 = Math.max(t0, t);
+                } else {
+                    if (t < t0) {
+                        return;
+                    }
+                    t1 = Math.min(t1, t);
+                }
+            }
+        }
+        if (t0 > t1) {
+            return;
+        }
+        int ca = (int) Math.floor(c0 + (t0 * dc)), ra = (int) Math.floor(r0 + (t0 * dr));
+        final int cb = (int) Math.floor(c0 + (t1 * dc)), rb = (int) Math.floor(r0 + (t1 * dr));
+        // Bresenham
+        final int adc = Math.abs(cb - ca), adr = -Math.abs(rb - ra);
+        final int sc = ca < cb ? 1 : -1, sr = ra < rb ? 1 : -1;
+        int err = adc + adr;
+        while (true) {
+            if (lineWidth == 1) {
+                if (ca >= 0 && ra >= 0 && ca < width && ra < height) {
+                    pixels[(ra * width) + ca] = color;
+                }
+            } else {
+                fillSquare(ca, ra, lineWidth);
+            }
+            if (ca == cb && ra == rb) {
+                break;
+            }
+            final int e2 = 2 * err;
+            if (e2 >= adr) {
+                err += adr;
+                ca += sc;
+            }
+            if (e2 <= adc) {
+                err += adc;
+                ra += sr;
+            }
+        }
+    }
+
+    /**
+     * Draws a line from a center, like DrawGL.drawLine.
+     *
+     * @param centerX the chip x coordinate of the start
+     * @param centerY the chip y coordinate of the start
+     * @param x the x length of the line before scaling
+     * @param y the y length of the line before scaling
+     * @param scale the scaling of the length
+     */
+    public void drawLine(float centerX, float centerY, float x, float y, float scale) {
+        drawLine(centerX, centerY, centerX + (x * scale), centerY + (y * scale));
+    }
+
+    /**
+     * Draws an arrow, like DrawGL.drawVector.
+     *
+     * @param origX the chip x coordinate of the arrow origin
+     * @param origY the chip y coordinate of the arrow origin
+     * @param headX the x length of the arrow
+     * @param headY the y length of the arrow
+     * @param headlength the length of the arrow tip segments in chip pixels
+     * @param scale the scaling of the arrow length
+     */
+    public void drawVector(float origX, float origY, float headX, float headY, float headlength, float scale) {
+        final float endx = headX * scale, endy = headY * scale;
+        float arx = -endx + endy, ary = -endx - endy; // halfway between pointing back to origin
+        final float l = (float) Math.sqrt((arx * arx) + (ary * ary));
+        final float ex = origX + endx, ey = origY + endy;
+        drawLine(origX, origY, ex, ey);
+        if (l == 0) {
+            return;
+        }
+        arx = (arx / l) * headlength;
+        ary = (ary / l) * headlength;
+        drawLine(ex, ey, ex + arx, ey + ary);
+        drawLine(ex, ey, ex + ary, ey - arx);
+    }
+
+    /**
+     * Draws the outline of a rotated rectangle, like DrawGL.drawBox.
+     *
+     * @param centerX the chip x coordinate of the center
+     * @param centerY the chip y coordinate of the center
+     * @param width the width in chip pixels
+     * @param height the height in chip pixels
+     * @param angle the rotation in radians
+     */
+    public void drawBox(float centerX, float centerY, float width, float height, float angle) {
+        final float w = width / 2, h = height / 2;
+        final float c = (float) Math.cos(angle), s = (float) Math.sin(angle);
+        final float[] xs = {-w, w, w, -w}, ys = {-h, -h, h, h};
+        float px = centerX + ((c * xs[3]) - (s * ys[3])), py = centerY + ((s * xs[3]) + (c * ys[3]));
+        for (int i = 0; i < 4; i++) {
+            final float qx = centerX + ((c * xs[i]) - (s * ys[i])), qy = centerY + ((s * xs[i]) + (c * ys[i]));
+            drawLine(px, py, qx, qy);
+            px = qx;
+            py = qy;
+        }
+    }
+
+    /**
+     * Draws the outline of a rotated ellipse as a polygon, like
+     * DrawGL.drawEllipse.
+     *
+     * @param centerX the chip x coordinate of the center
+     * @param centerY the chip y coordinate of the center
+     * @param radiusX the x radius in chip pixels
+     * @param radiusY the y radius in chip pixels
+     * @param angle the rotation in radians
+     * @param N the number of polygon vertices
+     */
+    public void drawEllipse(float centerX, float centerY, float radiusX, float radiusY, float angle, int N) {
+        final float c = (float) Math.cos(angle), s = (float) Math.sin(angle);
+        float px = centerX + (c * radiusX), py = centerY + (s * radiusX);
+        for (int i = 1; i <= N; i++) {
+            final double a = ((double) i / N) * 2 * Math.PI;
+            final float ex = (float) (radiusX * Math.cos(a)), ey = (float) (radiusY * Math.sin(a));
+            final float qx = centerX + ((c * ex) - (s * ey)), qy = centerY + ((s * ex) + (c * ey));
+            drawLine(px, py, qx, qy);
+            px = qx;
+            py = qy;
+        }
+    }
+
+    public void drawCircle(float centerX, float centerY, float radius, int N) {
+        drawEllipse(centerX, centerY, radius, radius, 0, N);
+    }
+}
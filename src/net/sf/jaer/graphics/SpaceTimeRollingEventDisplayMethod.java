@@ -19,7 +19,6 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
-import java.util.ArrayList;
 import java.util.Scanner;
 import java.util.prefs.Preferences;
 
@@ -41,8 +40,8 @@ import eu.seebetter.ini.chips.davis.DavisDisplayConfigInterface;
 import net.sf.jaer.Description;
 import net.sf.jaer.DevelopmentStatus;
 import net.sf.jaer.chip.AEChip;
-import net.sf.jaer.event.BasicEvent;
 import net.sf.jaer.event.EventPacket;
+import net.sf.jaer.event.SpaceTimeEventRing;
 import net.sf.jaer.graphics.ChipCanvas.ClipArea;
 import net.sf.jaer.util.EngineeringFormat;
 
@@ -52,6 +51,12 @@ import net.sf.jaer.util.EngineeringFormat;
  * SpaceTimeEventDisplayMethod, this method smoothly rolls the events through
  * the display. It uses a vertex and fragment shader program to accelerate the
  * rendering.
+ * <p>
+ * The events of the time window are held in a SpaceTimeEventRing, which is
+ * mirrored by a vertex buffer of the same capacity on the GPU. Each frame only
+ * the newly added events are uploaded, with times relative to a base time, and
+ * the shader computes their depth from the current time, so the cost of a
+ * frame does not grow with the length of the time window.
  *
  * @author tobi, nicolai waniek capocaccia 2015. See also
  * https://github.com/rochus/ebglvis
@@ -78,15 +83,20 @@ public class SpaceTimeRollingEventDisplayMethod extends DisplayMethod implements
     private int vbo;
     final int v_vert = 0;
     private final int BUF_INITIAL_SIZE_EVENTS = 100000;
+    private final int MAX_CAPACITY_EVENTS = 1 << 22; // limit for the ring and vertex buffer
     private int sx, sy, smax;
     private float tfac;
 //    private int timeSlice = 0;
     private final FloatBuffer mv = FloatBuffer.allocate(16);
     private final FloatBuffer proj = FloatBuffer.allocate(16);
-    private int idMv, idProj, idt0, idt1, idPointSize;
-    private ArrayList<BasicEvent> eventList = null, eventListTmp = null;
-    private ByteBuffer eventVertexBuffer;
-    private int timeWindowUs = 100000, t0;
+    private int idMv, idProj, idt0, idt1, idPointSize, idTNow, idTScale;
+    private final SpaceTimeEventRing eventRing = new SpaceTimeEventRing();
+    private ByteBuffer eventVertexBuffer; // staging buffer for uploading events to the vertex buffer
+    private int vboCapacityEvents = 0; // capacity of the vertex buffer, which holds event i at i & (capacity-1) like the ring
+    private int uploadedEnd = 0; // one past the absolute index in eventRing of the newest event uploaded
+    private boolean uploadAll = true;
+    private int timeBase = 0; // timestamp subtracted from event times in the vertex buffer to keep float precision
+    private int timeWindowUs = 100000, t0, t1;
     private static final int EVENT_SIZE_BYTES = (Float.SIZE / 8) * 3;// size of event in shader ByteBuffer
     private int axesDisplayListId = -1;
     private boolean regenerateAxesDisplayList = true;
@@ -178,8 +188,10 @@ public class SpaceTimeRollingEventDisplayMethod extends DisplayMethod implements
         idt0 = gl.glGetUniformLocation(shaderprogram, "t0");
         idt1 = gl.glGetUniformLocation(shaderprogram, "t1");
         idPointSize = gl.glGetUniformLocation(shaderprogram, "pointSize");
-        if ((idMv < 0) || (idProj < 0) || (idt0 < 0) || (idt1 < 0) || (idPointSize < 0)) {
-            throw new RuntimeException("cannot locate uniform variable idMv, idProj, idt0, idt1, or idPointSize in shader program");
+        idTNow = gl.glGetUniformLocation(shaderprogram, "tNow");
+        idTScale = gl.glGetUniformLocation(shaderprogram, "tScale");
+        if ((idMv < 0) || (idProj < 0) || (idt0 < 0) || (idt1 < 0) || (idPointSize < 0) || (idTNow < 0) || (idTScale < 0)) {
+            throw new RuntimeException("cannot locate uniform variable idMv, idProj, idt0, idt1, idPointSize, idTNow or idTScale in shader program");
         }
         checkGLError(gl, "getting IDs for uniform modelview and projection matrices in shaders");
     }
@@ -191,10 +203,16 @@ public class SpaceTimeRollingEventDisplayMethod extends DisplayMethod implements
         }
     }
 
-    private void checkEventListAllocation(int sizeEvents) {
-        if (eventList == null) {
-            eventList = new ArrayList(sizeEvents);
-        }
+    /**
+     * Returns the events of the displayed time window, e.g. for rendering or
+     * analyzing them without OpenGL. The ring is updated on the rendering
+     * thread while holding its lock; synchronize on it to read it from other
+     * threads.
+     *
+     * @return the ring of events
+     */
+    public SpaceTimeEventRing getEventRing() {
+        return eventRing;
     }
 
     private EventPacket lastPacketDisplayed = null;
@@ -242,7 +260,7 @@ public class SpaceTimeRollingEventDisplayMethod extends DisplayMethod implements
                 return;
             }
 //            final int t0ThisPacket = packet.getFirstTimestamp();
-            final int t1 = packet.getLastTimestamp();
+            t1 = packet.getLastTimestamp();
 //        final int dtThisPacket = t1 - t0ThisPacket + 1;
             // the time that is displayed in rolling window is some multiple of either current frame duration (for live playback) or timeslice (for recorded playback)
             int colorScale = getRenderer().getColorScale(); // use color scale to determine multiple, up and down arrows set it then
@@ -260,10 +278,6 @@ public class SpaceTimeRollingEventDisplayMethod extends DisplayMethod implements
             }
             if (newTimeWindowUs != timeWindowUs) {
                 regenerateAxesDisplayList = true;
-                eventVertexBuffer.clear();
-                if (eventList != null) {
-                    eventList.clear();
-                }
             }
             timeWindowUs = newTimeWindowUs;
             t0 = t1 - timeWindowUs;
@@ -273,59 +287,62 @@ public class SpaceTimeRollingEventDisplayMethod extends DisplayMethod implements
             smax = chip.getMaxSize();
             tfac = (float) (smax * aspectRatio) / timeWindowUs;
 
-            pruneOldEvents(t0, t1);
-            checkEventListAllocation((eventList != null ? eventList.size() : 0) + packet.getSize());
-            addEventsToEventList(packet);
-            checkEventVertexBufferAllocation(eventList.size());
-            eventVertexBuffer.clear(); // sets pos=0 and limit=capacity // TODO should not really clear, rather should erase old events
-            for (BasicEvent ev : eventList) {
-                if ((ev.timestamp < t0) || (ev.timestamp > t1)) {
-                    continue; // don't render events outside of box, no matter how they get there
+            synchronized (eventRing) { // readers on other threads lock the ring, see getEventRing
+                if (!eventRing.isEmpty() && (t1 - eventRing.getNewestTimestamp() < 0)) {
+                    eventRing.clear(); // rewind or backwards playback
                 }
-                eventVertexBuffer.putFloat(ev.x);
-                eventVertexBuffer.putFloat(ev.y);
-                eventVertexBuffer.putFloat(tfac * (ev.timestamp - t1)); // negative z
+                eventRing.ensureCapacity(Math.min(MAX_CAPACITY_EVENTS, eventRing.size() + packet.getSize()));
+                eventRing.addAll(packet);
+                eventRing.expire(t0);
             }
-            eventVertexBuffer.flip(); // get ready for reading by setting limit=pos and then pos=0
-            checkGLError(gl, "set uniform t0 and t1");
         }
-        renderEvents(gl, drawable, eventVertexBuffer, eventVertexBuffer.limit(), 1e-6f * timeWindowUs, smax * aspectRatio);
+        renderEvents(gl, drawable, 1e-6f * timeWindowUs, smax * aspectRatio);
     }
 
-    private void addEventsToEventList(final EventPacket<BasicEvent> packet) {
-        for (BasicEvent e : packet) {
-//            BasicEvent e = (BasicEvent) o;
-            if (e.isSpecial() || e.isFilteredOut()) {
-                continue;
-            }
-            BasicEvent ne = new BasicEvent();
-            ne.copyFrom(e);
-            eventList.add(ne); // must do this unfortunately because otherwise the original event object in this list will be reused for a later packet
+    /**
+     * Copies the events added to the ring since the last call to the vertex
+     * buffer, or all events if the buffer was reallocated or the time base
+     * changed. The vertex buffer must be bound.
+     */
+    private void uploadEvents(GL2 gl) {
+        final int capacity = eventRing.getCapacity();
+        if (vboCapacityEvents != capacity) {
+            gl.glBufferData(GL.GL_ARRAY_BUFFER, (long) capacity * EVENT_SIZE_BYTES, null, GL2ES2.GL_DYNAMIC_DRAW);
+            vboCapacityEvents = capacity;
+            uploadAll = true;
         }
-    }
-
-    private void pruneOldEvents(final int startTimeUs, final int endTimeUs) {
-        if (eventList == null) {
+        if (eventRing.isEmpty()) {
+            uploadedEnd = eventRing.getEnd();
             return;
         }
-        if (eventListTmp == null) {
-            eventListTmp = new ArrayList(eventList.size());
-        } else {
-            eventListTmp.clear();
+        // float times lose us precision beyond 2^24 us, so rebase them before
+        final int span = eventRing.getNewestTimestamp() - timeBase;
+        if ((span < 0) || (span > Math.max(1 << 23, 2 * timeWindowUs))) {
+            timeBase = eventRing.getOldestTimestamp();
+            uploadAll = true;
         }
-
-        for (BasicEvent ev : eventList) {
-            if ((ev.timestamp >= startTimeUs) || (ev.timestamp < endTimeUs)) {
-                eventListTmp.add(ev);
+        final int first = eventRing.getFirst(), end = eventRing.getEnd();
+        int from = (uploadAll || (uploadedEnd - first < 0)) ? first : uploadedEnd;
+        uploadAll = false;
+        uploadedEnd = end;
+        while (from != end) {
+            // contiguous run of vertex buffer slots, up to the end of the buffer
+            final int slot = from & (capacity - 1);
+            final int n = Math.min(end - from, capacity - slot);
+            checkEventVertexBufferAllocation(n);
+            eventVertexBuffer.clear();
+            for (int i = from; i != from + n; i++) {
+                eventVertexBuffer.putFloat(eventRing.getX(i));
+                eventVertexBuffer.putFloat(eventRing.getY(i));
+                eventVertexBuffer.putFloat(eventRing.getTimestamp(i) - timeBase);
             }
+            eventVertexBuffer.flip();
+            gl.glBufferSubData(GL.GL_ARRAY_BUFFER, (long) slot * EVENT_SIZE_BYTES, eventVertexBuffer.limit(), eventVertexBuffer);
+            from += n;
         }
-        eventList.clear();
-        ArrayList<BasicEvent> tmp = eventList;
-        eventList = eventListTmp;
-        eventListTmp = tmp;
     }
 
-    void renderEvents(GL2 gl, GLAutoDrawable drawable, ByteBuffer buffer, int nEvents, float dtS, float zmax) {
+    void renderEvents(GL2 gl, GLAutoDrawable drawable, float dtS, float zmax) {
         gl.glDepthMask(true);
         gl.glDepthFunc(GL.GL_GEQUAL);
         gl.glEnable(GL.GL_DEPTH_TEST);
@@ -498,17 +515,26 @@ public class SpaceTimeRollingEventDisplayMethod extends DisplayMethod implements
             pointSize = 4;
         }
         gl.glUniform1f(idPointSize, pointSize);
+        gl.glUniform1f(idTNow, t1 - timeBase);
+        gl.glUniform1f(idTScale, tfac);
         checkGLError(gl, "setting dimensionless time limits t0 or t1 for event buffer rendering");
 
         gl.glBindVertexArray(vao);
 //        gl.glEnableVertexAttribArray(polarity_vert);
         gl.glEnableVertexAttribArray(v_vert);
         gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vbo);
-        gl.glBufferData(GL.GL_ARRAY_BUFFER, buffer.limit(), buffer, GL2ES2.GL_STREAM_DRAW);
-        checkGLError(gl, "binding vertex buffers");
-
-        // draw
-        gl.glDrawArrays(GL.GL_POINTS, 0, nEvents);
+        uploadEvents(gl);
+        checkGLError(gl, "binding and updating vertex buffers");
+
+        // draw the live events, in two parts if they wrap around the end of the buffer
+        final int slot = eventRing.getFirst() & (vboCapacityEvents - 1), n = eventRing.size();
+        final int n0 = Math.min(n, vboCapacityEvents - slot);
+        if (n0 > 0) {
+            gl.glDrawArrays(GL.GL_POINTS, slot, n0);
+        }
+        if (n > n0) {
+            gl.glDrawArrays(GL.GL_POINTS, 0, n - n0);
+        }
         checkGLError(gl, "drawArrays");
         gl.glBindVertexArray(0); // to use TextRenderers elsewhere; see http://forum.jogamp.org/TextRenderer-my-text-won-t-show-td4029291.html
         gl.glUseProgram(0);
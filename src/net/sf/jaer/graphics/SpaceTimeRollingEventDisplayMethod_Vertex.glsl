@@ -1,6 +1,6 @@
 #version 130
 // changes here must be saved to jar file by project build to be able to load this shader as resource
-in vec3 v; // the event x,y,t, where t is expressed in negative up to aspectRatio*(max array size)
+in vec3 v; // the event x,y,t, where t is the time in us relative to a base time
 out float f, f1;
 
 uniform mat4 mv; // modelview
@@ -8,13 +8,15 @@ uniform mat4 proj; // projection
 uniform float t0; // start of time window
 uniform float t1; // end of time window
 uniform float pointSize; // base point size
+uniform float tNow; // time of the most recent event in us relative to the same base time
+uniform float tScale; // depth per us, so that the time window has depth aspectRatio*(max array size)
 
 void main() {
-    float z=-v.z; // 0 at most recent time, dt at most distant past
+    float z=tScale*(tNow-v.z); // 0 at most recent time, dt at most distant past
     float dt=(t1-t0);
     f=z/dt; // fraction of total time in window, 0 at now, 1 at most distant past
     f1=1-f; 
-    vec4 vh = vec4(v, 1);// transform vertex to homogeneous coordinate
+    vec4 vh = vec4(v.xy, -z, 1);// transform vertex to homogeneous coordinate
     gl_PointSize = pointSize*f1+1;
     gl_Position = proj * mv * vh; // must be this order
 }
@@ -11,6 +11,7 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import com.jogamp.opengl.GL2;
 import com.jogamp.opengl.GLAutoDrawable;
@@ -25,6 +26,7 @@ import net.sf.jaer.event.PolarityEvent;
 import net.sf.jaer.eventprocessing.EventFilter2D;
 import net.sf.jaer.eventprocessing.label.SimpleOrientationFilter;
 import net.sf.jaer.graphics.FrameAnnotater;
+import net.sf.jaer.util.ParallelRunner;
 
 import com.jogamp.opengl.util.gl2.GLUT;
 /**
@@ -41,6 +43,11 @@ import com.jogamp.opengl.util.gl2.GLUT;
  * points will be evaluated. These points are stored in the file 'neighbors.dat'. New sets of points can be generated easyly
  * by using the matlab 'function neighborhoodCreator.m'.
  *
+ * With numThreads different from 1, the rows are divided into one band per thread, and the events of each band are matched by
+ * its own thread. An event only reads rows of the neighborhood and only writes its own row, so only events near the border of
+ * a band depend on the adjacent band; such an event waits until the adjacent band has matched all events that came before it
+ * in the packet. The result is therefore the same as when matching one event after the other.
+ *
  * @author Peter Hess
  */
 public class DisparityFilter extends EventFilter2D implements FrameAnnotater,Observer{
@@ -53,18 +60,27 @@ public class DisparityFilter extends EventFilter2D implements FrameAnnotater,Obs
     private int[][] prototypeNeighbors;
     /** Enclosed orientation filter */
     private SimpleOrientationFilter oriFilter;
-    // array dimensions are ordered this way because you have to iterate mainly over x coorinates
-    /** Stores the timestamp of previous events at lastEvent[eye][y][x]. */
-    private int[][][] lastTime;
-    /** Stores the polarity of previous events at lastIsOn[eye][y][x]. */
-    private boolean[][][] lastIsOn;
-    /** Stores the orientation of previous events at lastOrientation[eye][y][x]. */
-    private byte[][][] lastOrientation;
-    /** Stores the previously calculated disparities of events at lastDisp[eye][y][x]. */
-    private short[][][] lastDisp;
+    /** Stores timestamp, polarity, orientation and the previously calculated disparity of the last event of each pixel and eye. */
+    private StereoEventMap map;
     private float distFactor = getPrefs().getFloat("DisparityFilter.distFactor",0.01f);
     private float rangeFactor = getPrefs().getFloat("DisparityFilter.rangeFactor",0.01f);
     private float smoothFactor = getPrefs().getFloat("DisparityFilter.smoothFactor",0.5f);
+    private int numThreads = getPrefs().getInt("DisparityFilter.numThreads",1);
+
+    /** The events of a packet that have an orientation, and their output disparities. */
+    private BinocularOrientationEvent[] events = new BinocularOrientationEvent[ 0 ];
+    private int[] eventKeys = new int[ 0 ];
+    private int[] disparities = new int[ 0 ];
+    /** Indices of the events sorted by band, and the start of each band in it. */
+    private int[] bandOrder = new int[ 0 ];
+    private int[] bandStart = new int[ 0 ];
+    /** Offsets of the prototype neighbors in the map, and how far they reach to the left, right, bottom and top. */
+    private int[] neighborOffsets = new int[ 0 ];
+    private final int[] neighborRange = new int[ 4 ];
+    /** Runs the bands, all at the same time since adjacent bands wait for each other. */
+    private final ParallelRunner runner = new ParallelRunner("DisparityFilter");
+    /** Minimal number of events per band; smaller packets are matched by one thread. */
+    private static final int MIN_BAND_EVENTS = 256;
 
     /** Creates a new instance of GlobalXDisparityFilter3 */
     public DisparityFilter (AEChip chip){
@@ -75,6 +91,7 @@ public class DisparityFilter extends EventFilter2D implements FrameAnnotater,Obs
         chip.addObserver(this);
         initFilter();
         setPropertyTooltip("distFactor","The larger this value, the more a time distance reduces matching");
+        setPropertyTooltip("numThreads","Number of threads that match bands of rows in parallel, 0 to use all processors");
         try{
             //load prototype neighbors from text file
             String p=getClass().getPackage().getName().replace(".","/");
@@ -100,111 +117,209 @@ public class DisparityFilter extends EventFilter2D implements FrameAnnotater,Obs
         checkOutputPacketEventType(BinocularDisparityEvent.class);
         OutputEventIterator outIt = out.outputIterator();
 
-        int sumRange = 0;
-        int normRange = 0;
-
-        // main loop
+        // collect the events with orientation; the others are not passed on
+        int n = 0;
         for ( Object obj:in ){
             BinocularOrientationEvent e = (BinocularOrientationEvent)obj;
-
             if ( !e.hasOrientation ){
                 continue;
             }
-            // determine event type
-            int x = e.x;
-            int y = e.y;
-            int time = e.timestamp;
-            int eye = e.eye == BinocularEvent.Eye.LEFT ? 0 : 1;
-            boolean isOn = e.polarity == PolarityEvent.Polarity.On;
-            byte ori = e.orientation;
-
-            // look at neighbourhood
-            float sumDisp = 0f;
-            float normDisp = 0f;
-            int sumTime = 0;
-            int normTime = 0;
+            if ( n == events.length ){
+                growEventBuffers();
+            }
+            events[n] = e;
+            eventKeys[n] = StereoEventMap.key(e.polarity == PolarityEvent.Polarity.On,e.orientation);
+            n++;
+        }
+
+        int sumRange = matchBands(n);
+        int normRange = n;
+
+        // create output events
+        for ( int i = 0 ; i < n ; i++ ){
+            BinocularDisparityEvent outE = (BinocularDisparityEvent)outIt.nextOutput();
+            outE.copyFrom(events[i]);
+            outE.disparity = (byte)disparities[i];
+            events[i] = null;
+        }
+        if ( normRange > 0 ){
+            meanSearchRange = sumRange / normRange;
+        }
+        return out;
+    }
+
+    private void growEventBuffers (){
+        int size = Math.max(1024,2 * events.length);
+        events = Arrays.copyOf(events,size);
+        eventKeys = Arrays.copyOf(eventKeys,size);
+        disparities = new int[ size ];
+        bandOrder = new int[ size ];
+    }
+
+    /** Matches event i of the packet and stores it in the map.
+     * @param sumRange the search range of the event is added to sumRange[0]
+     * @return the disparity of the output event
+     */
+    private int match (int i,int[] sumRange){
+        BinocularOrientationEvent e = events[i];
+        // determine event type
+        int x = e.x;
+        int y = e.y;
+        int time = e.timestamp;
+        int eye = e.eye == BinocularEvent.Eye.LEFT ? 0 : 1;
+        int key = eventKeys[i];
+
+        // look at neighbourhood
+        final int[] state = map.state[eye];
+        float sumDisp = 0f;
+        float normDisp = 0f;
+        int sumTime = 0;
+        int normTime = 0;
+        if ( (x >= neighborRange[0]) && (x < map.sizeX - neighborRange[1]) && (y >= neighborRange[2]) && (y < map.sizeY - neighborRange[3]) ){
+            // all neighbors lie inside the map
+            int center = map.index(x,y);
+            for (int offset : neighborOffsets) {
+                int k = center + offset;
+                float w = distance(state[k],time);
+                sumDisp += w * ( state[k + 1] >> 16 );
+                normDisp += w;
+                sumTime += state[k];
+            }
+            normTime = neighborOffsets.length;
+        } else{
             for (int[] prototypeNeighbor : prototypeNeighbors) {
                 int nx = x + prototypeNeighbor[0];
                 int ny = y + prototypeNeighbor[1];
-                if ( (nx < 0) || (ny < 0) || (ny >= lastDisp[eye].length) || (nx >= lastDisp[eye][ny].length) ){
+                if ( (nx < 0) || (ny < 0) || (ny >= map.sizeY) || (nx >= map.sizeX) ){
                     continue;
                 }
-                float w = distance(lastTime[eye][ny][nx],time);
-                sumDisp += w * lastDisp[eye][ny][nx];
+                int k = map.index(nx,ny);
+                float w = distance(state[k],time);
+                sumDisp += w * ( state[k + 1] >> 16 );
                 normDisp += w;
-                sumTime += lastTime[eye][ny][nx];
+                sumTime += state[k];
                 normTime++;
             }
+        }
 
-            int oldMeanDisp = (int)( sumDisp / normDisp );
-            // this shouldn't happen, but it may be caused due to nummerical errors if the distance between lastTime[][][] and
-            // time is too large
-            if ( (oldMeanDisp < 0) || (oldMeanDisp > maxDisp) ){
-                oldMeanDisp = 0;
-            }
-            int meanTime = sumTime / normTime;
+        int oldMeanDisp = (int)( sumDisp / normDisp );
+        // this shouldn't happen, but it may be caused due to nummerical errors if the distance between the previous time and
+        // time is too large
+        if ( (oldMeanDisp < 0) || (oldMeanDisp > maxDisp) ){
+            oldMeanDisp = 0;
+        }
+        int meanTime = sumTime / normTime;
+
+        // find best match in a range around previous results, only matching events of same polarity and orientation
+        int r = range(meanTime,time);
+        sumRange[0] += r;
+        int bestDisp = map.bestMatch(eye,x,y,time,key,Math.max(0,oldMeanDisp - r),Math.min(maxDisp,oldMeanDisp + r),oldMeanDisp);
+
+        // store event data
+        map.set(eye,x,y,time,key,bestDisp);
+        // try to symmetrize events from left and right eye, by storing the event at the other eye with the assumed disparity
+        int nx = eye == 0 ? x + bestDisp : x - bestDisp;
+        if ( (nx >= 0) && (nx < map.sizeX) ){
+            map.set(1 - eye,nx,y,time,key,bestDisp);
+        }
 
+        // linear interpolation between old and new disparity values
+        return (int)( (( 1f - smoothFactor ) * bestDisp) + (smoothFactor * oldMeanDisp) );
+    }
 
-            // find best match in a range around previous results
-            int bestDt = Integer.MAX_VALUE;
-            int bestDisp = oldMeanDisp;
-            int r = range(meanTime,time);
-            sumRange += r;
-            normRange++;
+    /** Matches the n events of the packet, in parallel bands of rows if there is more than one thread.
+     * @return the sum of the search ranges
+     */
+    private int matchBands (int n){
+        // offsets of the neighbors in the map, and how far they reach to the left, right, bottom and top
+        if ( neighborOffsets.length != prototypeNeighbors.length ){
+            neighborOffsets = new int[ prototypeNeighbors.length ];
+        }
+        Arrays.fill(neighborRange,0);
+        for ( int k = 0 ; k < prototypeNeighbors.length ; k++ ){
+            int dx = prototypeNeighbors[k][0], dy = prototypeNeighbors[k][1];
+            neighborOffsets[k] = map.index(dx,dy);
+            neighborRange[0] = Math.max(neighborRange[0],-dx);
+            neighborRange[1] = Math.max(neighborRange[1],dx);
+            neighborRange[2] = Math.max(neighborRange[2],-dy);
+            neighborRange[3] = Math.max(neighborRange[3],dy);
+        }
+        int radius = Math.max(1,Math.max(neighborRange[2],neighborRange[3]));
+        // a band must be at least as high as the neighborhood, so that only adjacent bands depend on each other
+        int threads = ParallelRunner.getNumThreadsUsed(numThreads);
+        final int nBands = Math.min(Math.min(threads,map.sizeY / radius),n / MIN_BAND_EVENTS);
+        if ( nBands <= 1 ){
+            int[] sumRange = new int[ 1 ];
+            for ( int i = 0 ; i < n ; i++ ){
+                disparities[i] = match(i,sumRange);
+            }
+            return sumRange[0];
+        }
+        final int[] firstRow = new int[ nBands + 1 ];
+        for ( int b = 0 ; b <= nBands ; b++ ){
+            firstRow[b] = ( ( b * map.sizeY ) + nBands - 1 ) / nBands;
+        }
 
-            for ( int j = oldMeanDisp - r ; j <= (oldMeanDisp + r) ; j++ ){
-                // check disparity range
-                if ( (j < 0) || (j > maxDisp) ){
-                    continue;
-                }
-                int nx = eye == 0 ? x + j : x - j;
-                // check array bounds
-                if ( (nx < 0) || (nx >= lastTime[eye][y].length) ){
-                    continue;
-                }
-                // only match events of same polarity and orientation
-                if ( lastIsOn[1 - eye][y][nx] != isOn ){
-                    continue;
-                }
-                if ( lastOrientation[1 - eye][y][nx] != ori ){
-                    continue;
-                }
+        // sort the events by band, keeping their order within a band
+        if ( bandStart.length < nBands + 1 ){
+            bandStart = new int[ nBands + 1 ];
+        }
+        Arrays.fill(bandStart,0);
+        for ( int i = 0 ; i < n ; i++ ){
+            bandStart[( ( events[i].y * nBands ) / map.sizeY ) + 1]++;
+        }
+        for ( int b = 0 ; b < nBands ; b++ ){
+            bandStart[b + 1] += bandStart[b];
+        }
+        int[] next = Arrays.copyOf(bandStart,nBands);
+        for ( int i = 0 ; i < n ; i++ ){
+            bandOrder[next[( events[i].y * nBands ) / map.sizeY]++] = i;
+        }
 
-                int dt = time - lastTime[1 - eye][y][nx];
-                if ( dt < bestDt ){
-                    bestDt = dt;
-                    bestDisp = j;
+        // index of the next event each band will match
+        final AtomicIntegerArray progress = new AtomicIntegerArray(nBands);
+        for ( int b = 0 ; b < nBands ; b++ ){
+            progress.set(b,bandStart[b] < bandStart[b + 1] ? bandOrder[bandStart[b]] : Integer.MAX_VALUE);
+        }
+        final int border = radius;
+        final int[] bandSumRange = new int[ nBands ];
+        runner.run(nBands,new ParallelRunner.Task() {
+            @Override
+            public void run (int band){
+                int[] sumRange = new int[ 1 ];
+                try{
+                    int end = bandStart[band + 1];
+                    for ( int j = bandStart[band] ; j < end ; j++ ){
+                        int i = bandOrder[j];
+                        int y = events[i].y;
+                        if ( (band > 0) && (y < firstRow[band] + border) ){
+                            awaitProgress(progress,band - 1,i);
+                        }
+                        if ( (band < nBands - 1) && (y >= firstRow[band + 1] - border) ){
+                            awaitProgress(progress,band + 1,i);
+                        }
+                        disparities[i] = match(i,sumRange);
+                        progress.set(band,j + 1 < end ? bandOrder[j + 1] : Integer.MAX_VALUE);
+                    }
+                } finally{
+                    // never keep the adjacent bands waiting
+                    progress.set(band,Integer.MAX_VALUE);
                 }
+                bandSumRange[band] = sumRange[0];
             }
-
-            // store event data
-            lastTime[eye][y][x] = time;
-            lastIsOn[eye][y][x] = isOn;
-            lastOrientation[eye][y][x] = ori;
-            lastDisp[eye][y][x] = (short)bestDisp;
-            // try to symmetrize events from left and right eye, by storing the event at the other eye with the assumed disparity
-            int nx = eye == 0 ? x + bestDisp : x - bestDisp;
-            if ( (nx >= 0) && (nx < lastTime[eye][y].length) ){
-                lastTime[1 - eye][y][nx] = time;
-                lastIsOn[1 - eye][y][nx] = isOn;
-                lastOrientation[1 - eye][y][nx] = ori;
-                lastDisp[1 - eye][y][nx] = (short)bestDisp;
-            }
-
-            // linear interpolation between old and new disparity values
-            bestDisp = (int)( (( 1f - smoothFactor ) * bestDisp) + (smoothFactor * oldMeanDisp) );
-
-            // create output events
-            BinocularDisparityEvent outE = (BinocularDisparityEvent)outIt.nextOutput();
-            outE.copyFrom(e);
-            outE.disparity = (byte)bestDisp;
-
-
+        });
+        int sumRange = 0;
+        for ( int b = 0 ; b < nBands ; b++ ){
+            sumRange += bandSumRange[b];
         }
-        if ( normRange > 0 ){
-            meanSearchRange = sumRange / normRange;
+        return sumRange;
+    }
+
+    /** Waits until band has matched all its events before event i of the packet. */
+    private static void awaitProgress (AtomicIntegerArray progress,int band,int i){
+        while ( progress.get(band) < i ){
+            Thread.yield();
         }
-        return out;
     }
 
     @Override
@@ -254,34 +369,21 @@ public class DisparityFilter extends EventFilter2D implements FrameAnnotater,Obs
 
     @Override
 	synchronized public void initFilter (){
-        lastTime = new int[ 2 ][ chip.getSizeY() ][ chip.getSizeX() ];
-        lastIsOn = new boolean[ 2 ][ chip.getSizeY() ][ chip.getSizeX() ];
-        lastOrientation = new byte[ 2 ][ chip.getSizeY() ][ chip.getSizeX() ];
-        lastDisp = new short[ 2 ][ chip.getSizeY() ][ chip.getSizeX() ];
+        map = new StereoEventMap(chip.getSizeX(),chip.getSizeY());
         resetFilter();
     }
 
     @Override
 	synchronized public void resetFilter (){
-        for (int[][] element : lastTime) {
-            for (int[] element2 : element) {
-                Arrays.fill(element2,0);
-            }
-        }
-        for (boolean[][] element : lastIsOn) {
-            for (boolean[] element2 : element) {
-                Arrays.fill(element2,true);
-            }
-        }
-        for (byte[][] element : lastOrientation) {
-            for (byte[] element2 : element) {
-                Arrays.fill(element2,(byte)0);
-            }
-        }
-        for (short[][] element : lastDisp) {
-            for (short[] element2 : element) {
-                Arrays.fill(element2,(short)0);
-            }
+        map.reset();
+        runner.close(); // the band threads are started again by the next packet
+    }
+
+    @Override
+	synchronized public void setFilterEnabled (boolean yes){
+        super.setFilterEnabled(yes);
+        if ( !yes ){
+            runner.close();
         }
     }
 
@@ -355,6 +457,20 @@ public class DisparityFilter extends EventFilter2D implements FrameAnnotater,Obs
         return maxDisp;
     }
 
+    public int getNumThreads (){
+        return numThreads;
+    }
+
+    /** Number of threads that match bands of rows in parallel, 0 to use all processors. */
+    public synchronized void setNumThreads (int numThreads){
+        if ( numThreads < 0 ){
+            numThreads = 0;
+        }
+        getPrefs().putInt("DisparityFilter.numThreads",numThreads);
+        getSupport().firePropertyChange("numThreads",this.numThreads,numThreads);
+        this.numThreads = numThreads;
+    }
+
     public int getDisparity (){
         return 0;
     }
@@ -42,12 +42,8 @@ public class GlobalDisparityFilter extends EventFilter2D implements Observer {
     /* Used for lowpassfiltering the resulting disparity from filter(). */
     private LowpassFilter lpFilter = new LowpassFilter();
     
-    /* Stores the timestamp of previous events at lastEvent[eye][y][x]. */
-    private int lastTime[][][];
-    /* Stores the polarity of previous events at lastIsOn[eye][y][x]. */
-    private boolean lastIsOn[][][];
-    /* Stores the orientation of previous events at lastOrientation[eye][y][x]. */
-    private byte lastOrientation[][][];
+    /* Stores timestamp, polarity and orientation of previous events of each eye at x, y/yRes. */
+    private StereoEventMap map;
     
     private float distFactor = getPrefs().getFloat("GlobalDisparityFilter.distFactor", 0.01f);
     
@@ -93,9 +89,7 @@ public class GlobalDisparityFilter extends EventFilter2D implements Observer {
     }
     
     public void initFilter() {
-        lastTime = new int[chip.getSizeX()][chip.getSizeY()/yRes+1][2];
-        lastIsOn = new boolean[chip.getSizeX()][chip.getSizeY()/yRes+1][2];
-        lastOrientation = new byte[chip.getSizeX()][chip.getSizeY()/yRes+1][2];
+        map = new StereoEventMap(chip.getSizeX(), chip.getSizeY()/yRes+1);
         M2D = new float[chip.getSizeX()][chip.getSizeX()];
         dispWeights = new float[2*maxDisp + 1];
         
@@ -103,22 +97,7 @@ public class GlobalDisparityFilter extends EventFilter2D implements Observer {
     }
     
     synchronized public void resetFilter() {
-        for (int i = 0; i < lastTime.length; i++) {
-            for (int j = 0; j < lastTime[i].length; j++) {
-                lastTime[i][j][0] = 0;
-                lastTime[i][j][1] = 0;
-            }
-        }
-        for (int i = 0; i < lastIsOn.length; i++) {
-            for (int j = 0; j < lastIsOn[i].length; j++) {
-                Arrays.fill(lastIsOn[i][j], true);
-            }
-        }
-        for (int i = 0; i < lastOrientation.length; i++) {
-            for (int j = 0; j < lastOrientation[i].length; j++) {
-                Arrays.fill(lastOrientation[i][j], (byte)0);
-            }
-        }
+        map.reset();
     }
     
     public Object getFilterState() {
@@ -155,9 +134,7 @@ public class GlobalDisparityFilter extends EventFilter2D implements Observer {
         getSupport().firePropertyChange("yRes", this.yRes, yRes);
         this.yRes = yRes;
         
-        lastTime = new int[chip.getSizeX()][chip.getSizeY()/yRes+1][2];
-        lastIsOn = new boolean[chip.getSizeX()][chip.getSizeY()/yRes+1][2];
-        lastOrientation = new byte[chip.getSizeX()][chip.getSizeY()/yRes+1][2];
+        map = new StereoEventMap(chip.getSizeX(), chip.getSizeY()/yRes+1);
     }
     
     public int getYRes() {
@@ -220,25 +197,21 @@ public class GlobalDisparityFilter extends EventFilter2D implements Observer {
             int y = e.y/yRes;            
             int time = e.timestamp;
             int eye = e.eye == BinocularEvent.Eye.LEFT ? 0 : 1;
-            boolean isOn = e.polarity == PolarityEvent.Polarity.On;
-            byte ori = e.orientation;
+            int key = StereoEventMap.key(e.polarity == PolarityEvent.Polarity.On, e.orientation);
             
             // store event timestamp
-            lastTime[x][y][eye] = time;
-            lastIsOn[x][y][eye] = isOn;
-            lastOrientation[x][y][eye] = ori;
+            map.set(eye, x, y, time, key, 0);
 
-            // try to match event
-            for (int j = -maxDisp; j <= maxDisp; j++) {
-                int nx = e.x + j;
-                // check array bounds
-                if (nx < 0 || nx >= lastTime.length) continue;
-                // only match events of same polarity
-                if (lastIsOn[nx][y][1 - eye] != isOn) continue;
-                // only match events of same orientation
-                if (lastOrientation[nx][y][1 - eye] != ori) continue;
+            // try to match event with the other eye along the row, within the array bounds
+            final int[] other = map.state[1 - eye];
+            int from = Math.max(-maxDisp, -x);
+            int to = Math.min(maxDisp, map.sizeX - 1 - x);
+            for (int j = from, i = map.index(x + from, y); j <= to; j++, i += 2) {
+                // only match events of same polarity and orientation
+                if ((other[i + 1] & 0xffff) != key) continue;
                 
-                float w = distance(lastTime[nx][y][1 - eye], time);
+                int nx = x + j;
+                float w = distance(other[i], time);
                 if (eye == 0) {
                     M2D[nx][x] += w;
                     dispWeights[maxDisp + j] += w;
@@ -0,0 +1,109 @@
+/*
+ * StereoEventMap.java
+ */
+
+package net.sf.jaer.stereopsis;
+
+/**
+ * Stores the last event of every pixel of both eyes of a stereo pair, as used for stereo matching by DisparityFilter and
+ * GlobalDisparityFilter.
+ * The state of a pixel (timestamp, polarity, orientation and disparity) is packed into two ints that follow each other in one flat
+ * array per eye, in row order. A pixel is read with one cache line, and the candidates of a match along the epipolar row of the
+ * other eye lie at a constant stride. Polarity and orientation form a key, so candidates are compared with a single int compare.
+ * @author Peter Hess
+ */
+public class StereoEventMap {
+
+    final int sizeX;
+    final int sizeY;
+
+    /** Two ints per pixel and eye: state[eye][2*(y*sizeX + x)] is the timestamp, the next int holds
+     * disparity << 16 | key(polarity, orientation).
+     */
+    final int[][] state;
+
+    /** Creates a map for both eyes with sizeX*sizeY pixels each. */
+    public StereoEventMap(int sizeX, int sizeY) {
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        state = new int[2][2 * sizeX * sizeY];
+        reset();
+    }
+
+    /** Sets all timestamps and disparities to 0, all polarities to On and all orientations to 0. */
+    public void reset() {
+        int empty = key(true, (byte)0);
+        for (int[] s : state) {
+            for (int i = 0; i < s.length; i += 2) {
+                s[i] = 0;
+                s[i + 1] = empty;
+            }
+        }
+    }
+
+    /** Combines polarity and orientation of an event into the key that candidates must share to be matched. */
+    public static int key(boolean isOn, byte orientation) {
+        return ((orientation & 0xff) << 8) | (isOn ? 1 : 0);
+    }
+
+    /** @return the position of the timestamp of pixel x,y in state[eye] */
+    final int index(int x, int y) {
+        return 2 * ((y * sizeX) + x);
+    }
+
+    public int getSizeX() {
+        return sizeX;
+    }
+
+    public int getSizeY() {
+        return sizeY;
+    }
+
+    /** Stores an event at pixel x,y of the given eye. */
+    public void set(int eye, int x, int y, int time, int key, int disparity) {
+        int i = index(x, y);
+        state[eye][i] = time;
+        state[eye][i + 1] = (disparity << 16) | key;
+    }
+
+    public int getTime(int eye, int x, int y) {
+        return state[eye][index(x, y)];
+    }
+
+    public int getKey(int eye, int x, int y) {
+        return state[eye][index(x, y) + 1] & 0xffff;
+    }
+
+    public int getDisparity(int eye, int x, int y) {
+        return state[eye][index(x, y) + 1] >> 16;
+    }
+
+    /** Finds the most recent event of the other eye with the same key along row y, for disparities from..to. The
+     * left eye (0) is matched with pixels x + disparity of the right eye, the right eye with pixels x - disparity.
+     * Of candidates with the same timestamp the smallest disparity is taken.
+     * @param from smallest disparity, at least 0
+     * @param to largest disparity, may extend beyond the row
+     * @return the best disparity, or noMatch if no candidate has the key
+     */
+    public int bestMatch(int eye, int x, int y, int time, int key, int from, int to, int noMatch) {
+        // clip the disparities to the row once, so the loop has no bounds checks of its own
+        if (eye == 0) {
+            to = Math.min(to, sizeX - 1 - x);
+        } else {
+            to = Math.min(to, x);
+        }
+        final int[] other = state[1 - eye];
+        final int step = eye == 0 ? 2 : -2;
+        int i = index(x, y) + (from * step);
+        int bestDt = Integer.MAX_VALUE;
+        int bestDisp = noMatch;
+        for (int j = from; j <= to; j++, i += step) {
+            int dt = time - other[i];
+            if (((other[i + 1] & 0xffff) == key) && (dt < bestDt)) {
+                bestDt = dt;
+                bestDisp = j;
+            }
+        }
+        return bestDisp;
+    }
+}
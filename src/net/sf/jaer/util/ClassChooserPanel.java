@@ -86,6 +86,12 @@ public class ClassChooserPanel extends javax.swing.JPanel {
             if (containsKey(name)) {
                 return;
             }
+            ClassIndex index = ClassIndex.getInstanceIfAvailable();
+            ClassIndex.Entry entry = index == null ? null : index.getEntry(name);
+            if (entry != null) { // avoid loading the class just for its annotations
+                put(name, new ClassDescription(entry.getDescription(), entry.getDevelopmentStatus()));
+                return;
+            }
             try {
                 Class c = Class.forName(name);
                 if (c == null) {
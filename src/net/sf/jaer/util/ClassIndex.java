@@ -0,0 +1,656 @@
+/* ClassIndex.java
+ * Copyright Tobi Delbruck, Inst. of Neuroinformatics, UNI-ETH Zurich */
+package net.sf.jaer.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import net.sf.jaer.Description;
+import net.sf.jaer.DevelopmentStatus;
+
+/**
+ * Persistent index of the classes on java.class.path, holding for each class
+ * its superclass, interfaces, modifiers, @Description and @DevelopmentStatus.
+ * SubclassFinder uses it to find e.g. all EventFilter2D or AEChip subclasses
+ * without loading every class on the classpath.
+ * <p>
+ * The index is built by reading only the headers and annotations of the class
+ * files, so no class is loaded or initialized. It is saved to
+ * ~/.jaer/class-index.ser together with a checksum of the names, sizes and
+ * modification times of the classpath jars and class directories, and reused
+ * on the next start as long as the checksum matches. Run main() to build the
+ * index ahead of time, e.g. after installing a new build.
+ *
+ * @author tobi
+ */
+public class ClassIndex implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private final static Logger log = Logger.getLogger("ClassIndex");
+    /**
+     * File in which the index is cached between runs
+     */
+    public static final File CACHE_FILE = new File(System.getProperty("user.home"), ".jaer" + File.separator + "class-index.ser");
+    private static ClassIndex instance = null;
+
+    private final long checksum;
+    private final HashMap<String, Entry> entries;
+    private transient EnumMap<DevelopmentStatus.Status, DevelopmentStatus> statusAnnotations;
+
+    private static final int ACC_PUBLIC = 0x0001, ACC_INTERFACE = 0x0200, ACC_ABSTRACT = 0x0400;
+
+    /**
+     * What the index knows about one class
+     */
+    public static class Entry implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        final String name;
+        final String superName; // null for java.lang.Object
+        final String[] interfaces;
+        final int access;
+        final String description;
+        final DevelopmentStatus.Status developmentStatus;
+
+        Entry(String name, String superName, String[] interfaces, int access, String description, DevelopmentStatus.Status developmentStatus) {
+            this.name = name;
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.access = access;
+            this.description = description;
+            this.developmentStatus = developmentStatus;
+        }
+
+        /**
+         * @return the fully qualified class name, e.g.
+         * net.sf.jaer.chip.AEChip
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the fully qualified name of the direct superclass
+         */
+        public String getSuperName() {
+            return superName;
+        }
+
+        /**
+         * @return true if the class is abstract or an interface
+         */
+        public boolean isAbstract() {
+            return (access & (ACC_ABSTRACT | ACC_INTERFACE)) != 0;
+        }
+
+        /**
+         * @return true if the class is nested in another class
+         */
+        public boolean isInnerClass() {
+            return name.indexOf('$') != -1;
+        }
+
+        /**
+         * @return the value of the @Description annotation, or null
+         */
+        public String getDescription() {
+            return description;
+        }
+
+        /**
+         * @return the value of the @DevelopmentStatus annotation, or null
+         */
+        public DevelopmentStatus.Status getDevelopmentStatus() {
+            return developmentStatus;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private ClassIndex(long checksum, HashMap<String, Entry> entries) {
+        this.checksum = checksum;
+        this.entries = entries;
+    }
+
+    /**
+     * Returns the index, loading it from CACHE_FILE if it matches the
+     * classpath and otherwise building and saving it. This can take some
+     * seconds the first time, so call it from a worker thread.
+     *
+     * @return the index
+     */
+    public static synchronized ClassIndex getInstance() {
+        if (instance != null) {
+            return instance;
+        }
+        List<File> classpath = getClasspath();
+        long checksum = computeChecksum(classpath);
+        instance = load(checksum);
+        if (instance == null) {
+            long start = System.currentTimeMillis();
+            instance = build(classpath, checksum);
+            log.info(String.format("built index of %d classes in %d ms", instance.entries.size(), System.currentTimeMillis() - start));
+            instance.save();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the index if getInstance() has already completed, without
+     * blocking.
+     *
+     * @return the index or null
+     */
+    public static ClassIndex getInstanceIfAvailable() {
+        return instance;
+    }
+
+    /**
+     * Discards the index in memory and on disk, so that the next
+     * getInstance() rebuilds it.
+     */
+    public static synchronized void invalidate() {
+        instance = null;
+        if (CACHE_FILE.exists() && !CACHE_FILE.delete()) {
+            log.warning("could not delete " + CACHE_FILE);
+        }
+    }
+
+    /**
+     * @param className the fully qualified class name
+     * @return the entry or null if the class is not in the index
+     */
+    public Entry getEntry(String className) {
+        return entries.get(className);
+    }
+
+    /**
+     * @return the number of classes in the index
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the chain of superclasses of a class, starting with its direct
+     * superclass. The chain ends with the first class that is not in the
+     * index, usually java.lang.Object or a library class.
+     *
+     * @param className the fully qualified class name
+     * @return the superclass names, empty if the class is not in the index
+     */
+    public List<String> getSuperclassChain(String className) {
+        ArrayList<String> chain = new ArrayList<String>();
+        Entry e = entries.get(className);
+        while (e != null && e.superName != null) {
+            chain.add(e.superName);
+            e = entries.get(e.superName);
+        }
+        return chain;
+    }
+
+    /**
+     * Returns true if the class extends or implements superName, directly or
+     * through its superclasses and interfaces.
+     *
+     * @param className the class
+     * @param superName the fully qualified name of the superclass or
+     * interface
+     * @return true if a className can be cast to superName
+     */
+    public boolean isSubclassOf(String className, String superName) {
+        Entry e = entries.get(className);
+        while (e != null) {
+            if (superName.equals(e.superName)) {
+                return true;
+            }
+            if (e.interfaces != null) {
+                for (String i : e.interfaces) {
+                    if (superName.equals(i) || isSubclassOf(i, superName)) {
+                        return true;
+                    }
+                }
+            }
+            e = e.superName == null ? null : entries.get(e.superName);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the concrete, top-level classes that extend or implement
+     * superName.
+     *
+     * @param superName the fully qualified name of the superclass or
+     * interface
+     * @return the entries
+     */
+    public List<Entry> findSubclassesOf(String superName) {
+        ArrayList<Entry> list = new ArrayList<Entry>();
+        for (Entry e : entries.values()) {
+            if (e.isAbstract() || e.isInnerClass() || e.name.equals(superName)) {
+                continue;
+            }
+            if (isSubclassOf(e.name, superName)) {
+                list.add(e);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Makes the list item used by the class chooser from an entry without
+     * loading the class.
+     *
+     * @param e the entry
+     * @return the item
+     */
+    public ClassNameWithDescriptionAndDevelopmentStatus toClassNameWithDescription(Entry e) {
+        return new ClassNameWithDescriptionAndDevelopmentStatus(e.name, e.description, getStatusAnnotation(e.developmentStatus));
+    }
+
+    private synchronized DevelopmentStatus getStatusAnnotation(final DevelopmentStatus.Status status) {
+        if (status == null) {
+            return null;
+        }
+        if (statusAnnotations == null) {
+            statusAnnotations = new EnumMap(DevelopmentStatus.Status.class);
+        }
+        DevelopmentStatus a = statusAnnotations.get(status);
+        if (a == null) {
+            a = new DevelopmentStatus() {
+                @Override
+                public DevelopmentStatus.Status value() {
+                    return status;
+                }
+
+                @Override
+                public Class<? extends Annotation> annotationType() {
+                    return DevelopmentStatus.class;
+                }
+            };
+            statusAnnotations.put(status, a);
+        }
+        return a;
+    }
+
+    private static List<File> getClasspath() {
+        ArrayList<File> files = new ArrayList<File>();
+        StringTokenizer st = new StringTokenizer(System.getProperty("java.class.path", ""), File.pathSeparator);
+        while (st.hasMoreTokens()) {
+            files.add(new File(st.nextToken()));
+        }
+        return files;
+    }
+
+    /**
+     * Checksum of the classpath: the path, size and modification time of every
+     * jar, and of every class file in class directories.
+     */
+    private static long computeChecksum(List<File> classpath) {
+        CRC32 crc = new CRC32();
+        for (File f : classpath) {
+            if (f.isDirectory()) {
+                addDirToChecksum(crc, f);
+            } else {
+                addToChecksum(crc, f);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static void addDirToChecksum(CRC32 crc, File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (f.isDirectory()) {
+                addDirToChecksum(crc, f);
+            } else if (f.getName().endsWith(".class")) {
+                addToChecksum(crc, f);
+            }
+        }
+    }
+
+    private static void addToChecksum(CRC32 crc, File f) {
+        crc.update(f.getPath().getBytes());
+        long[] v = {f.length(), f.lastModified()};
+        for (long l : v) {
+            for (int i = 0; i < 8; i++) {
+                crc.update((int) (l >>> (8 * i)));
+            }
+        }
+    }
+
+    private static ClassIndex load(long checksum) {
+        if (!CACHE_FILE.exists()) {
+            return null;
+        }
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(CACHE_FILE)));
+            ClassIndex index = (ClassIndex) in.readObject();
+            if (index.checksum != checksum) {
+                log.info("classpath has changed since " + CACHE_FILE + " was written; rebuilding class index");
+                return null;
+            }
+            log.info("loaded index of " + index.entries.size() + " classes from " + CACHE_FILE);
+            return index;
+        } catch (Exception e) {
+            log.warning("could not load class index from " + CACHE_FILE + ": " + e.toString());
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void save() {
+        File dir = CACHE_FILE.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            log.warning("could not create " + dir + " to save class index");
+            return;
+        }
+        ObjectOutputStream out = null;
+        try {
+            out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(CACHE_FILE)));
+            out.writeObject(this);
+            log.info("saved index of " + entries.size() + " classes to " + CACHE_FILE);
+        } catch (IOException e) {
+            log.warning("could not save class index to " + CACHE_FILE + ": " + e.toString());
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static ClassIndex build(List<File> classpath, long checksum) {
+        HashMap<String, Entry> entries = new HashMap<String, Entry>(8000);
+        for (File f : classpath) {
+            if (f.isDirectory()) {
+                indexDir(entries, f, f);
+            } else if (f.getName().endsWith(".jar")) {
+                indexJar(entries, f);
+            }
+        }
+        return new ClassIndex(checksum, entries);
+    }
+
+    private static void indexDir(HashMap<String, Entry> entries, File root, File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (f.isDirectory()) {
+                indexDir(entries, root, f);
+            } else if (f.getName().endsWith(".class")) {
+                String path = f.getAbsolutePath().substring(root.getAbsolutePath().length() + 1).replace(File.separatorChar, '/');
+                if (isIgnored(path) || isSkipped(path)) {
+                    continue;
+                }
+                InputStream is = null;
+                try {
+                    is = new FileInputStream(f);
+                    addEntry(entries, is);
+                } catch (IOException e) {
+                    log.warning("could not index " + f + ": " + e.toString());
+                } finally {
+                    if (is != null) {
+                        try {
+                            is.close();
+                        } catch (IOException e) {
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void indexJar(HashMap<String, Entry> entries, File jar) {
+        JarFile jarFile = null;
+        try {
+            jarFile = new JarFile(jar);
+            Enumeration<JarEntry> en = jarFile.entries();
+            while (en.hasMoreElements()) {
+                JarEntry je = en.nextElement();
+                if (isIgnored(je.getName())) {
+                    break; // library jar, as in ListClasses
+                }
+                if (!je.getName().endsWith(".class") || isSkipped(je.getName())) {
+                    continue;
+                }
+                InputStream is = jarFile.getInputStream(je);
+                try {
+                    addEntry(entries, is);
+                } catch (IOException e) {
+                    log.warning("could not index " + je.getName() + " in " + jar + ": " + e.toString());
+                } finally {
+                    is.close();
+                }
+            }
+        } catch (IOException e) {
+            log.warning("could not index " + jar + ": " + e.toString());
+        } finally {
+            if (jarFile != null) {
+                try {
+                    jarFile.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static boolean isIgnored(String path) {
+        for (String s : ListClasses.IGNORED_CLASSPATH) {
+            if (path.startsWith(s)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSkipped(String path) {
+        return path.endsWith("module-info.class") || path.endsWith("package-info.class");
+    }
+
+    private static final String DESCRIPTION_DESCRIPTOR = "L" + Description.class.getName().replace('.', '/') + ";";
+    private static final String DEVELOPMENT_STATUS_DESCRIPTOR = "L" + DevelopmentStatus.class.getName().replace('.', '/') + ";";
+
+    /**
+     * Reads the class file header, skipping fields and methods, to get the
+     * class name, superclass, interfaces, access flags and the two
+     * annotations.
+     */
+    private static void addEntry(HashMap<String, Entry> entries, InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        if (in.readInt() != 0xCAFEBABE) {
+            throw new IOException("not a class file");
+        }
+        in.readUnsignedShort(); // minor version
+        in.readUnsignedShort(); // major version
+        int n = in.readUnsignedShort();
+        String[] utf8 = new String[n];
+        int[] classNameIndex = new int[n];
+        for (int i = 1; i < n; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1: // Utf8
+                    utf8[i] = in.readUTF();
+                    break;
+                case 7: // Class
+                    classNameIndex[i] = in.readUnsignedShort();
+                    break;
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    in.skipBytes(2);
+                    break;
+                case 15: // MethodHandle
+                    in.skipBytes(3);
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    in.skipBytes(4);
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    in.skipBytes(8);
+                    i++; // takes two entries
+                    break;
+                default:
+                    throw new IOException("unknown constant pool tag " + tag);
+            }
+        }
+        int access = in.readUnsignedShort();
+        String name = className(utf8, classNameIndex, in.readUnsignedShort());
+        int superIndex = in.readUnsignedShort();
+        String superName = superIndex == 0 ? null : className(utf8, classNameIndex, superIndex);
+        int ni = in.readUnsignedShort();
+        String[] interfaces = ni == 0 ? null : new String[ni];
+        for (int i = 0; i < ni; i++) {
+            interfaces[i] = className(utf8, classNameIndex, in.readUnsignedShort());
+        }
+        skipMembers(in); // fields
+        skipMembers(in); // methods
+        String description = null;
+        DevelopmentStatus.Status status = null;
+        int na = in.readUnsignedShort();
+        for (int a = 0; a < na; a++) {
+            String attrName = utf8[in.readUnsignedShort()];
+            int len = in.readInt();
+            if (!"RuntimeVisibleAnnotations".equals(attrName)) {
+                skipFully(in, len);
+                continue;
+            }
+            int nann = in.readUnsignedShort();
+            for (int k = 0; k < nann; k++) {
+                String type = utf8[in.readUnsignedShort()];
+                int npairs = in.readUnsignedShort();
+                for (int p = 0; p < npairs; p++) {
+                    String elementName = utf8[in.readUnsignedShort()];
+                    int tag = in.readUnsignedByte();
+                    if ("value".equals(elementName) && DESCRIPTION_DESCRIPTOR.equals(type) && tag == 's') {
+                        description = utf8[in.readUnsignedShort()];
+                    } else if ("value".equals(elementName) && DEVELOPMENT_STATUS_DESCRIPTOR.equals(type) && tag == 'e') {
+                        in.readUnsignedShort(); // enum type
+                        try {
+                            status = DevelopmentStatus.Status.valueOf(utf8[in.readUnsignedShort()]);
+                        } catch (IllegalArgumentException e) {
+                            // status from another version of jAER
+                        }
+                    } else {
+                        skipElementValue(in, tag);
+                    }
+                }
+            }
+        }
+        if (name != null) {
+            entries.put(name, new Entry(name, superName, interfaces, access, description, status));
+        }
+    }
+
+    private static String className(String[] utf8, int[] classNameIndex, int i) {
+        String s = utf8[classNameIndex[i]];
+        return s == null ? null : s.replace('/', '.');
+    }
+
+    private static void skipMembers(DataInputStream in) throws IOException {
+        int n = in.readUnsignedShort();
+        for (int i = 0; i < n; i++) {
+            in.skipBytes(6); // access, name, descriptor
+            int na = in.readUnsignedShort();
+            for (int a = 0; a < na; a++) {
+                in.skipBytes(2);
+                skipFully(in, in.readInt());
+            }
+        }
+    }
+
+    private static void skipElementValue(DataInputStream in, int tag) throws IOException {
+        switch (tag) {
+            case 'e':
+                in.skipBytes(4);
+                break;
+            case '@':
+                in.skipBytes(2); // type
+                int npairs = in.readUnsignedShort();
+                for (int p = 0; p < npairs; p++) {
+                    in.skipBytes(2);
+                    skipElementValue(in, in.readUnsignedByte());
+                }
+                break;
+            case '[':
+                int n = in.readUnsignedShort();
+                for (int i = 0; i < n; i++) {
+                    skipElementValue(in, in.readUnsignedByte());
+                }
+                break;
+            default: // constants and class
+                in.skipBytes(2);
+        }
+    }
+
+    private static void skipFully(DataInputStream in, int len) throws IOException {
+        while (len > 0) {
+            int s = in.skipBytes(len);
+            if (s <= 0) {
+                throw new EOFException();
+            }
+            len -= s;
+        }
+    }
+
+    /**
+     * Builds the index and saves it to CACHE_FILE, then prints the
+     * EventFilter2D and AEChip subclasses found.
+     *
+     * @param args ignored
+     */
+    public static void main(String[] args) {
+        invalidate();
+        ClassIndex index = getInstance();
+        System.out.println(index.size() + " classes indexed in " + CACHE_FILE);
+        System.out.println(index.findSubclassesOf("net.sf.jaer.eventprocessing.EventFilter2D").size() + " EventFilter2D subclasses");
+        System.out.println(index.findSubclassesOf("net.sf.jaer.chip.AEChip").size() + " AEChip subclasses");
+    }
+}
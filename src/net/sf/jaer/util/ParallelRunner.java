@@ -0,0 +1,154 @@
+/*
+ * ParallelRunner.java
+ */
+package net.sf.jaer.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs a number of tasks in parallel and waits for all of them, e.g. to split
+ * the events of a packet or the rows of a map over several processors.
+ * <p>
+ * Task 0 runs in the calling thread and the other tasks in a pool of daemon
+ * threads that is kept between calls and grows when more tasks are run. All
+ * tasks of a call run at the same time, so tasks may wait for each other. The
+ * caller chooses the number of tasks, usually from a numThreads property with
+ * {@link #getNumThreadsUsed(int)}.
+ * <p>
+ * An owner that is disabled or reset should call {@link #close()}, which stops
+ * the pool threads; they are started again by the next call of run.
+ *
+ * @author tobi
+ */
+public class ParallelRunner {
+
+    /**
+     * A piece of work that is run for each task index.
+     */
+    public interface Task {
+
+        /**
+         * @param index the index of the task, from 0 to nTasks-1
+         */
+        void run(int index);
+    }
+
+    private final String name;
+    private ExecutorService pool = null;
+    private int poolSize = 0;
+
+    /**
+     * @param name the name of the pool threads, which are numbered name-0,
+     * name-1, ...
+     */
+    public ParallelRunner(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param numThreads a number of threads, or 0 (or less) to use all
+     * processors
+     * @return the number of threads to use
+     */
+    public static int getNumThreadsUsed(int numThreads) {
+        return numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Makes a factory for daemon threads named name-0, name-1, ...
+     *
+     * @param name the name of the threads
+     * @param priority the priority of the threads
+     * @return the factory
+     */
+    public static ThreadFactory daemonThreadFactory(final String name, final int priority) {
+        return new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + (count++));
+                t.setDaemon(true);
+                t.setPriority(priority);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Runs task.run(0) ... task.run(nTasks-1) at the same time and returns when
+     * all of them have finished. If a task throws a RuntimeException, it is
+     * thrown from here after all tasks have finished.
+     *
+     * @param nTasks the number of tasks; with 1 (or less) no thread is started
+     * @param task the work of each task
+     */
+    public void run(int nTasks, final Task task) {
+        if (nTasks <= 1) {
+            if (nTasks == 1) {
+                task.run(0);
+            }
+            return;
+        }
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>(nTasks - 1);
+        synchronized (this) {
+            if ((pool == null) || (poolSize < (nTasks - 1))) {
+                if (pool != null) {
+                    pool.shutdown();
+                }
+                poolSize = nTasks - 1;
+                pool = Executors.newFixedThreadPool(poolSize, daemonThreadFactory(name, Thread.NORM_PRIORITY));
+            }
+            for (int i = 1; i < nTasks; i++) {
+                final int index = i;
+                futures.add(pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        task.run(index);
+                    }
+                }));
+            }
+        }
+        RuntimeException failure = null;
+        try {
+            task.run(0);
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (InterruptedException e) {
+                for (Future<?> f : futures) {
+                    f.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("interrupted while waiting for " + name + " tasks", e);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Stops the pool threads once their tasks are done. The runner can still
+     * be used; threads are started again when needed.
+     */
+    synchronized public void close() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+            poolSize = 0;
+        }
+    }
+}
@@ -14,15 +14,16 @@ import net.sf.jaer.DevelopmentStatus;
 
 /**
  * Finds subclasses of a given class name in classes on the loaded classpath.
- * Classes are cached in a HashMap to reduce cost of subsequent lookups.
+ * Subclasses are looked up in the persistent ClassIndex, which reads the class
+ * files without loading them; only if the superclass is not in the index are
+ * all classes loaded and tested. Loaded classes are cached in a HashMap to
+ * reduce cost of subsequent lookups.
  * <p>
  * See http://www.javaworld.com/javaworld/javatips/jw-javatip113.html?page=2
  *
  * @author tobi
  */
 public class SubclassFinder {
-    // TODO needs a way of caching in preferences the list of classes and the number or checksum of classes,
-    // to reduce startup time, since this lookup of subclasses takes 10s of seconds on some machines
 
     /** List of regexp package names to exclude from search */
     public static final ArrayList<String> exclusionList = new ArrayList();
@@ -112,6 +113,17 @@ public class SubclassFinder {
                 log.warning("tried to find subclasses of null class name, returning empty list");
                 return classes;
             }
+            publish("Reading class index");
+            ClassIndex index = ClassIndex.getInstance();
+            if (index.getEntry(superClassName) != null) {
+                for (ClassIndex.Entry e : index.findSubclassesOf(superClassName)) {
+                    if (!isExcluded(e.getName())) {
+                        classes.add(index.toClassNameWithDescription(e));
+                    }
+                }
+                setProgress(100);
+                return classes;
+            }
             publish("Building class list");
             Class superClass = FastClassFinder.forName(superClassName);
             List<String> allClasses = ListClasses.listClasses();  // expensive, must search all classpath and make big string array list
@@ -203,6 +215,15 @@ public class SubclassFinder {
             log.warning("tried to find subclasses of null class name, returning empty list");
             return classes;
         }
+        ClassIndex index = ClassIndex.getInstance();
+        if (index.getEntry(superClassName) != null) {
+            for (ClassIndex.Entry e : index.findSubclassesOf(superClassName)) {
+                if (!isExcluded(e.getName())) {
+                    classes.add(e.getName());
+                }
+            }
+            return classes;
+        }
         if (progressMonitor != null) {
             progressMonitor.setNote("Building class list");
         }
@@ -262,6 +283,15 @@ public class SubclassFinder {
         return classes;
     }
 
+    private static boolean isExcluded(String className) {
+        for (String excl : exclusionList) {
+            if (className.matches(excl)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static void main(String[] args) {
         final String superclass = "net.sf.jaer.eventprocessing.EventFilter2D";
         System.out.println("Subclasses of " + superclass + " are:");
@@ -0,0 +1,287 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package net.sf.jaer.util.avioutput;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import net.sf.jaer.util.ParallelRunner;
+
+/**
+ * Writes frames to an AVIOutputStream without blocking the caller. Frames are
+ * queued, encoded in parallel by a pool of encoder threads and written in the
+ * order they were queued by a single writer thread.
+ * <p>
+ * At most maxQueuedFrames frames are held in memory; when the queue is full,
+ * writeFrame drops the frame and counts it instead of waiting, so rendering or
+ * event processing never slows down because of recording, unless
+ * blockWhenFull is set, e.g. for writing offline as fast as the encoders
+ * allow. Formats that depend
+ * on the previous frame (RLE and palette RAW) are not encoded in parallel but
+ * are still written on the writer thread.
+ * <p>
+ * The caller must not modify a BufferedImage after passing it to writeFrame.
+ *
+ * @author tobi
+ */
+public class AVIEncoderPipeline {
+
+    private static final Logger log = Logger.getLogger("AVIEncoderPipeline");
+
+    private final AVIOutputStream aviOutputStream;
+    private final boolean parallelEncoding;
+    private final ExecutorService encoders;
+    private final Thread writerThread;
+    private final LinkedBlockingQueue<Future<EncodedFrame>> queue = new LinkedBlockingQueue<Future<EncodedFrame>>();
+    private final Semaphore freeSlots;
+    private final Future<EncodedFrame> endOfStream;
+    private final AtomicInteger framesQueued = new AtomicInteger(0), framesWritten = new AtomicInteger(0), framesDropped = new AtomicInteger(0);
+    private volatile IOException writeException = null;
+    private boolean closed = false;
+    private volatile boolean blockWhenFull = false;
+
+    /**
+     * Frame that is either encoded or, for formats that cannot be encoded
+     * independently, still an image.
+     */
+    private static class EncodedFrame {
+
+        final byte[] data;
+        final BufferedImage image;
+        final int width, height;
+
+        EncodedFrame(byte[] data, BufferedImage image, int width, int height) {
+            this.data = data;
+            this.image = image;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * Makes a new pipeline and starts its threads.
+     *
+     * @param aviOutputStream the stream to write; it is closed by close()
+     * @param numEncoderThreads number of encoder threads, or 0 to use one less
+     * than the number of processors
+     * @param maxQueuedFrames maximum number of frames waiting to be encoded or
+     * written
+     */
+    public AVIEncoderPipeline(AVIOutputStream aviOutputStream, int numEncoderThreads, int maxQueuedFrames) {
+        this.aviOutputStream = aviOutputStream;
+        parallelEncoding = aviOutputStream.isIndependentFrameEncoding();
+        if (numEncoderThreads <= 0) {
+            numEncoderThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        }
+        if (!parallelEncoding) {
+            numEncoderThreads = 1;
+        }
+        freeSlots = new Semaphore(Math.max(1, maxQueuedFrames));
+        encoders = Executors.newFixedThreadPool(numEncoderThreads, ParallelRunner.daemonThreadFactory("AVIEncoder", Thread.NORM_PRIORITY - 1));
+        FutureTask<EncodedFrame> end = new FutureTask<EncodedFrame>(new Callable<EncodedFrame>() {
+            @Override
+            public EncodedFrame call() {
+                return null;
+            }
+        });
+        end.run();
+        endOfStream = end;
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "AVIWriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Queues a frame for encoding and writing and returns immediately.
+     *
+     * @param image the frame image, which must not be modified afterwards
+     * @return true if the frame was queued, false if it was dropped because
+     * the queue was full and blockWhenFull is not set, or because the pipeline
+     * is closed or being closed
+     * @throws IOException if a previous frame could not be written
+     */
+    synchronized public boolean writeFrame(final BufferedImage image) throws IOException {
+        if (closed) {
+            return false;
+        }
+        if (writeException != null) {
+            throw writeException;
+        }
+        if (blockWhenFull) {
+            freeSlots.acquireUninterruptibly();
+        } else if (!freeSlots.tryAcquire()) {
+            int n = framesDropped.incrementAndGet();
+            if (n == 1 || n % 100 == 0) {
+                log.warning("AVI encoder queue is full; dropped " + n + " frames so far");
+            }
+            return false;
+        }
+        queue.add(encoders.submit(new Callable<EncodedFrame>() {
+            @Override
+            public EncodedFrame call() throws IOException {
+                if (parallelEncoding) {
+                    return new EncodedFrame(aviOutputStream.encodeFrame(image), null, image.getWidth(), image.getHeight());
+                } else {
+                    return new EncodedFrame(null, image, image.getWidth(), image.getHeight());
+                }
+            }
+        }));
+        framesQueued.incrementAndGet();
+        return true;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Future<EncodedFrame> f;
+            try {
+                f = queue.take();
+            } catch (InterruptedException ex) {
+                continue;
+            }
+            if (f == endOfStream) {
+                return;
+            }
+            try {
+                EncodedFrame frame = getUninterruptibly(f);
+                if (writeException == null) { // after an error, only drain the queue
+                    if (frame.data != null) {
+                        aviOutputStream.writeEncodedFrame(frame.data, frame.width, frame.height);
+                    } else {
+                        aviOutputStream.writeFrame(frame.image);
+                    }
+                    framesWritten.incrementAndGet();
+                }
+            } catch (IOException ex) {
+                log.warning("could not write AVI frame: " + ex.toString());
+                writeException = ex;
+            } catch (RuntimeException ex) {
+                log.warning("could not write AVI frame: " + ex.toString());
+                writeException = new IOException(ex);
+            } finally {
+                freeSlots.release();
+            }
+        }
+    }
+
+    private EncodedFrame getUninterruptibly(Future<EncodedFrame> f) throws IOException {
+        while (true) {
+            try {
+                return f.get();
+            } catch (InterruptedException ex) {
+                // keep waiting, the frame must be written in order
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw new IOException(ex.getCause());
+            }
+        }
+    }
+
+    /**
+     * Waits until all queued frames are written, stops the threads and closes
+     * the AVIOutputStream.
+     *
+     * @throws IOException if a frame could not be written or the stream could
+     * not be closed
+     */
+    synchronized public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.add(endOfStream);
+        boolean interrupted = false;
+        while (writerThread.isAlive()) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        encoders.shutdown();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        aviOutputStream.close();
+        if (writeException != null) {
+            throw writeException;
+        }
+    }
+
+    /**
+     * @return true if writeFrame waits for room in the queue instead of
+     * dropping frames
+     */
+    public boolean isBlockWhenFull() {
+        return blockWhenFull;
+    }
+
+    /**
+     * @param blockWhenFull true to make writeFrame wait for room in the queue
+     * instead of dropping the frame
+     */
+    public void setBlockWhenFull(boolean blockWhenFull) {
+        this.blockWhenFull = blockWhenFull;
+    }
+
+    /**
+     * @return the AVIOutputStream written by this pipeline
+     */
+    public AVIOutputStream getAviOutputStream() {
+        return aviOutputStream;
+    }
+
+    /**
+     * @return true if frames are encoded in parallel
+     */
+    public boolean isParallelEncoding() {
+        return parallelEncoding;
+    }
+
+    /**
+     * @return the number of frames accepted by writeFrame
+     */
+    public int getFramesQueued() {
+        return framesQueued.get();
+    }
+
+    /**
+     * @return the number of frames written to the AVIOutputStream
+     */
+    public int getFramesWritten() {
+        return framesWritten.get();
+    }
+
+    /**
+     * @return the number of frames dropped because the queue was full
+     */
+    public int getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    /**
+     * @return the number of frames waiting to be encoded or written
+     */
+    public int getFramesPending() {
+        return framesQueued.get() - framesWritten.get();
+    }
+}
@@ -15,6 +15,7 @@ import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.awt.image.IndexColorModel;
 import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -739,22 +740,7 @@ public class AVIOutputStream {
 	public void writeFrame(BufferedImage image) throws IOException {
 		ensureOpen();
 		ensureStarted();
-
-		// Get the dimensions of the first image
-		if (imgWidth == -1) {
-			imgWidth = image.getWidth();
-			imgHeight = image.getHeight();
-		} else {
-			// The dimension of the image must match the dimension of the video
-			// track
-			if (imgWidth != image.getWidth() || imgHeight != image.getHeight()) {
-				throw new IllegalArgumentException("Dimensions of image["
-						+ videoFrames.size() + "] (width=" + image.getWidth()
-						+ ", height=" + image.getHeight()
-						+ ") differs from image[0] (width=" + imgWidth
-						+ ", height=" + imgHeight);
-			}
-		}
+		checkDimension(image.getWidth(), image.getHeight());
 
 		DataChunk videoFrameChunk;
 		long offset = getRelativeStreamPosition();
@@ -887,23 +873,7 @@ public class AVIOutputStream {
 			}
 			default: {
 				videoFrameChunk = new DataChunk("00db");
-				WritableRaster raster = image.getRaster();
-				int[] raw = new int[imgWidth * 3]; // holds a scanline of raw
-													// image data with 3
-													// channels of 32 bit data
-				byte[] bytes = new byte[imgWidth * 3]; // holds a scanline of
-														// raw image data with 3
-														// channels of 8 bit
-														// data
-				for (int y = imgHeight - 1; y >= 0; --y) { // Upside down
-					raster.getPixels(0, y, imgWidth, 1, raw);
-					for (int x = 0, n = imgWidth * 3; x < n; x += 3) {
-						bytes[x + 2] = (byte) raw[x]; // Blue
-						bytes[x + 1] = (byte) raw[x + 1]; // Green
-						bytes[x] = (byte) raw[x + 2]; // Red
-					}
-					videoFrameChunk.getOutputStream().write(bytes);
-				}
+				encodeFrame(image, videoFrameChunk.getOutputStream());
 				break;
 			}
 			}
@@ -997,42 +967,182 @@ public class AVIOutputStream {
 			}
 			break;
 		}
-		case JPG: {
+		case JPG:
+		case PNG:
+		default: {
 			videoFrameChunk = new DataChunk("00dc");
+			encodeFrame(image, videoFrameChunk.getOutputStream());
+			break;
+		}
+		}
+		long length = getRelativeStreamPosition() - offset;
+		moviChunk.add(videoFrameChunk);
+		videoFrameChunk.finish();
+
+		videoFrames.add(new Sample(videoFrameChunk.chunkType, frameRate,
+				offset, length - 8, isSync));
+		if (getRelativeStreamPosition() > 1L << 32) {
+			throw new IOException("AVI file is larger than 4 GB");
+		}
+	}
+
+	/**
+	 * Checks the dimension of a frame against the dimension of the video
+	 * track, which is taken from the first frame.
+	 */
+	private void checkDimension(int width, int height) {
+		// Get the dimensions of the first image
+		if (imgWidth == -1) {
+			imgWidth = width;
+			imgHeight = height;
+		} else {
+			// The dimension of the image must match the dimension of the video
+			// track
+			if (imgWidth != width || imgHeight != height) {
+				throw new IllegalArgumentException("Dimensions of image["
+						+ videoFrames.size() + "] (width=" + width
+						+ ", height=" + height
+						+ ") differs from image[0] (width=" + imgWidth
+						+ ", height=" + imgHeight);
+			}
+		}
+	}
+
+	/**
+	 * Returns true if frames can be encoded with encodeFrame(BufferedImage)
+	 * independently of each other, which is the case for JPG, PNG and 24 bit
+	 * RAW video. RLE and 4 or 8 bit RAW video depend on the previous frame or
+	 * palette and must be written with writeFrame(BufferedImage).
+	 * 
+	 * @return true if encodeFrame can be used
+	 */
+	public boolean isIndependentFrameEncoding() {
+		switch (videoFormat) {
+		case JPG:
+		case PNG:
+			return true;
+		case RAW:
+			return imgDepth != 4 && imgDepth != 8;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Encodes a frame into the chunk data of this stream's video format
+	 * without writing it. This method does not change the state of the
+	 * stream, so frames can be encoded concurrently on several threads and
+	 * then written in order with writeEncodedFrame.
+	 * 
+	 * @param image
+	 *            The frame image.
+	 * @return the encoded frame data
+	 * @throws UnsupportedOperationException
+	 *             if isIndependentFrameEncoding() is false
+	 * @throws IOException
+	 *             if encoding the image failed.
+	 * @see #writeEncodedFrame(byte[], int, int)
+	 */
+	public byte[] encodeFrame(BufferedImage image) throws IOException {
+		if (!isIndependentFrameEncoding()) {
+			throw new UnsupportedOperationException(videoFormat + " video with "
+					+ imgDepth + " bits per pixel cannot be encoded frame by frame");
+		}
+		int raw = videoFormat == VideoFormat.RAW ? image.getWidth()
+				* image.getHeight() * 3 : 0;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(raw,
+				8192));
+		encodeFrame(image, bytes);
+		return bytes.toByteArray();
+	}
+
+	private void encodeFrame(BufferedImage image, OutputStream os)
+			throws IOException {
+		switch (videoFormat) {
+		case RAW: {
+			int width = image.getWidth(), height = image.getHeight();
+			WritableRaster raster = image.getRaster();
+			int[] raw = new int[width * 3]; // holds a scanline of raw image
+											// data with 3 channels of 32 bit
+											// data
+			byte[] bytes = new byte[width * 3]; // holds a scanline of raw
+												// image data with 3 channels
+												// of 8 bit data
+			for (int y = height - 1; y >= 0; --y) { // Upside down
+				raster.getPixels(0, y, width, 1, raw);
+				for (int x = 0, n = width * 3; x < n; x += 3) {
+					bytes[x + 2] = (byte) raw[x]; // Blue
+					bytes[x + 1] = (byte) raw[x + 1]; // Green
+					bytes[x] = (byte) raw[x + 2]; // Red
+				}
+				os.write(bytes);
+			}
+			break;
+		}
+		case JPG: {
 			ImageWriter iw = ImageIO.getImageWritersByMIMEType("image/jpeg")
 					.next();
 			ImageWriteParam iwParam = iw.getDefaultWriteParam();
 			iwParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
 			iwParam.setCompressionQuality(quality);
 			MemoryCacheImageOutputStream imgOut = new MemoryCacheImageOutputStream(
-					videoFrameChunk.getOutputStream());
+					os);
 			iw.setOutput(imgOut);
 			IIOImage img = new IIOImage(image, null, null);
 			iw.write(null, img, iwParam);
 			iw.dispose();
+			imgOut.close(); // flushes to os
 			break;
 		}
 		case PNG:
 		default: {
-			videoFrameChunk = new DataChunk("00dc");
 			ImageWriter iw = ImageIO.getImageWritersByMIMEType("image/png")
 					.next();
 			ImageWriteParam iwParam = iw.getDefaultWriteParam();
 			MemoryCacheImageOutputStream imgOut = new MemoryCacheImageOutputStream(
-					videoFrameChunk.getOutputStream());
+					os);
 			iw.setOutput(imgOut);
 			IIOImage img = new IIOImage(image, null, null);
 			iw.write(null, img, iwParam);
 			iw.dispose();
+			imgOut.close(); // flushes to os
 			break;
 		}
 		}
+	}
+
+	/**
+	 * Writes a frame that was encoded with encodeFrame(BufferedImage) to the
+	 * video track.
+	 * 
+	 * @param data
+	 *            the encoded frame data
+	 * @param width
+	 *            the width of the encoded image
+	 * @param height
+	 *            the height of the encoded image
+	 * @throws IllegalArgumentException
+	 *             if the dimension of the frame does not match the dimension
+	 *             of the video track.
+	 * @throws IOException
+	 *             if writing the frame failed.
+	 * @see #encodeFrame(BufferedImage)
+	 */
+	public void writeEncodedFrame(byte[] data, int width, int height)
+			throws IOException {
+		ensureOpen();
+		ensureStarted();
+		checkDimension(width, height);
+
+		long offset = getRelativeStreamPosition();
+		DataChunk videoFrameChunk = new DataChunk(
+				videoFormat == VideoFormat.RAW ? "00db" : "00dc");
+		videoFrameChunk.getOutputStream().write(data);
 		long length = getRelativeStreamPosition() - offset;
 		moviChunk.add(videoFrameChunk);
 		videoFrameChunk.finish();
-
 		videoFrames.add(new Sample(videoFrameChunk.chunkType, frameRate,
-				offset, length - 8, isSync));
+				offset, length - 8, true));
 		if (getRelativeStreamPosition() > 1L << 32) {
 			throw new IOException("AVI file is larger than 4 GB");
 		}
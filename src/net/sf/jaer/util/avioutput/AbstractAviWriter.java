@@ -46,6 +46,8 @@ public class AbstractAviWriter extends EventFilter2DMouseAdaptor implements Fram
 
     protected final int LOG_EVERY_THIS_MANY_FRAMES = 100; // for logging concole messages
     protected AVIOutputStream aviOutputStream = null;
+    protected AVIEncoderPipeline aviEncoderPipeline = null; // non-null if frames are encoded asynchronously
+    private volatile boolean closing = false; // set while doCloseFile drains and closes the file; writeFrame then rejects frames
     protected static String DEFAULT_FILENAME = "jAER.avi";
     protected String lastFileName = getString("lastFileName", DEFAULT_FILENAME);
     protected int framesWritten = 0;
@@ -63,6 +65,10 @@ public class AbstractAviWriter extends EventFilter2DMouseAdaptor implements Fram
     private boolean saveFramesAsIndividualImageFiles=getBoolean("saveFramesAsIndividualImageFiles",false);
     private boolean writeOnlyWhenMousePressed=getBoolean("writeOnlyWhenMousePressed",false);
     protected volatile boolean writeEnabled=true;
+    private boolean asyncEncoding=getBoolean("asyncEncoding",true);
+    private int numEncoderThreads=getInt("numEncoderThreads",0);
+    private int maxQueuedFrames=getInt("maxQueuedFrames",30);
+    private boolean blockWhenFull=false; // not a preference; set for offline writing, where frames must not be dropped
 
     public AbstractAviWriter(AEChip chip) {
         super(chip);
@@ -81,6 +87,10 @@ public class AbstractAviWriter extends EventFilter2DMouseAdaptor implements Fram
         setPropertyTooltip("saveFramesAsIndividualImageFiles", "If selected, then the frames are saved as individual image files in the selected folder");
         setPropertyTooltip("writeOnlyWhenMousePressed", "If selected, then the frames are are saved only when the mouse is pressed in the AEViewer window");
         setPropertyTooltip("writeEnabled", "Selects if writing frames is enabled. Use this to temporarily disable output, or in conjunction with writeOnlyWhenMousePressed");
+        setPropertyTooltip("asyncEncoding", "<html>Encode and write frames on background threads so that recording does not slow down rendering or processing.<br>Frames are dropped (and counted) if the encoder queue is full. Takes effect when the next file is opened.");
+        setPropertyTooltip("numEncoderThreads", "Number of threads that encode frames in parallel when asyncEncoding is selected; 0 uses one less than the number of processors");
+        setPropertyTooltip("maxQueuedFrames", "Maximum number of frames waiting to be encoded and written when asyncEncoding is selected; further frames are dropped");
+        setPropertyTooltip("blockWhenFull", "When asyncEncoding is selected, wait for the encoders instead of dropping frames when the encoder queue is full; slows down rendering or processing while recording. Takes effect when the next file is opened.");
         chip.getSupport().addPropertyChangeListener(this);
 
     }
@@ -193,8 +203,19 @@ public class AbstractAviWriter extends EventFilter2DMouseAdaptor implements Fram
 
     synchronized public void doCloseFile() {
         if (aviOutputStream != null) {
+            closing = true;
             try {
-                aviOutputStream.close();
+                if (aviEncoderPipeline != null) {
+                    // keep the pipeline while it drains, so writeFrame never falls back to writing aviOutputStream directly
+                    AVIEncoderPipeline p = aviEncoderPipeline;
+                    p.close(); // writes remaining frames and closes aviOutputStream
+                    aviEncoderPipeline = null;
+                    if (p.getFramesDropped() > 0) {
+                        log.warning("dropped " + p.getFramesDropped() + " frames because the encoder could not keep up; consider more numEncoderThreads or a larger maxQueuedFrames");
+                    }
+                } else {
+                    aviOutputStream.close();
+                }
                 aviOutputStream = null;
                 if (timecodeWriter != null) {
                     timecodeWriter.close();
@@ -207,6 +228,9 @@ public class AbstractAviWriter extends EventFilter2DMouseAdaptor implements Fram
                 log.warning(ex.toString());
                 ex.printStackTrace();
                 aviOutputStream = null;
+                aviEncoderPipeline = null;
+            } finally {
+                closing = false;
             }
         }
 
@@ -222,11 +246,16 @@ public class AbstractAviWriter extends EventFilter2DMouseAdaptor implements Fram
      */
     public void openAVIOutputStream(File f, String[] additionalComments) {
         try {
-            aviOutputStream = new AVIOutputStream(f, format);
-//            aviOutputStream.setFrameRate(chip.getAeViewer().getFrameRate());
-            aviOutputStream.setFrameRate(frameRate);
-            aviOutputStream.setVideoCompressionQuality(compressionQuality);
-//            aviOutputStream.setVideoDimension(chip.getSizeX(), chip.getSizeY());
+            AVIOutputStream stream = new AVIOutputStream(f, format);
+//            stream.setFrameRate(chip.getAeViewer().getFrameRate());
+            stream.setFrameRate(frameRate);
+            stream.setVideoCompressionQuality(compressionQuality);
+//            stream.setVideoDimension(chip.getSizeX(), chip.getSizeY());
+            if (asyncEncoding) {
+                aviEncoderPipeline = new AVIEncoderPipeline(stream, numEncoderThreads, maxQueuedFrames);
+                aviEncoderPipeline.setBlockWhenFull(blockWhenFull);
+            }
+            aviOutputStream = stream; // published after the pipeline, so writeFrame never writes it directly in asyncEncoding
             lastFileName = f.toString();
             putString("lastFileName", lastFileName);
             if (writeTimecodeFile) {
@@ -249,7 +278,7 @@ public class AbstractAviWriter extends EventFilter2DMouseAdaptor implements Fram
                 timecodeWriter.write(String.format("# frameNumber timestamp\n"));
                 log.info("Opened timecode file " + timecodeFile.toString());
             }
-            log.info("Opened AVI output file " + f.toString() + " with format " + format);
+            log.info("Opened AVI output file " + f.toString() + " with format " + format + (aviEncoderPipeline == null ? "" : (aviEncoderPipeline.isParallelEncoding() ? " using parallel encoding" : " using background writing")));
             setFramesWritten(0);
             getSupport().firePropertyChange("framesWritten", null, framesWritten);
         } catch (IOException ex) {
@@ -325,6 +354,42 @@ public class AbstractAviWriter extends EventFilter2DMouseAdaptor implements Fram
         return bi;
     }
 
+    /**
+     * Writes a frame to the AVI file, or queues it if asyncEncoding is
+     * selected, and then writes its timecode and counts it.
+     *
+     * @param image the frame; it must not be modified afterwards
+     * @param timestamp the timestamp for the timecode file
+     * @return true if the frame was written or queued, false if there is no
+     * open file or the frame was dropped because the encoder queue was full
+     * @throws IOException if the frame could not be written
+     */
+    protected boolean writeFrame(BufferedImage image, int timestamp) throws IOException {
+        final AVIOutputStream stream = aviOutputStream;
+        if (closing || stream == null) {
+            return false;
+        }
+        final AVIEncoderPipeline pipeline = aviEncoderPipeline;
+        if (pipeline != null) {
+            if (!pipeline.writeFrame(image)) { // also false if the pipeline was closed meanwhile
+                return false;
+            }
+        } else {
+            stream.writeFrame(image);
+        }
+        writeTimecode(timestamp);
+        incrementFramecountAndMaybeCloseOutput();
+        return true;
+    }
+
+    /**
+     * @return the number of frames dropped in the current file because the
+     * encoder queue was full
+     */
+    public int getFramesDropped() {
+        return aviEncoderPipeline == null ? 0 : aviEncoderPipeline.getFramesDropped();
+    }
+
     protected void writeTimecode(int timestamp) throws IOException {
         if (timecodeWriter != null) {
             timecodeWriter.write(String.format("%d %d\n", framesWritten, timestamp));
@@ -488,6 +553,78 @@ public class AbstractAviWriter extends EventFilter2DMouseAdaptor implements Fram
         if(writeOnlyWhenMousePressed) setWriteEnabled(true);
     }
     
+    /**
+     * @return the asyncEncoding
+     */
+    public boolean isAsyncEncoding() {
+        return asyncEncoding;
+    }
+
+    /**
+     * @param asyncEncoding true to encode and write frames on background
+     * threads; takes effect when the next file is opened
+     */
+    public void setAsyncEncoding(boolean asyncEncoding) {
+        this.asyncEncoding = asyncEncoding;
+        putBoolean("asyncEncoding", asyncEncoding);
+    }
+
+    /**
+     * @return true if writeFrame waits for the encoders instead of dropping
+     * frames when asyncEncoding is selected and the encoder queue is full
+     */
+    public boolean isBlockWhenFull() {
+        return blockWhenFull;
+    }
+
+    /**
+     * Selects whether writeFrame waits for the encoders when the encoder queue
+     * is full. Live recording drops frames so that rendering is not slowed
+     * down, but offline conversion, which replays as fast as it can, must set
+     * this to write every frame. Takes effect when the next file is opened.
+     *
+     * @param blockWhenFull true to wait instead of dropping frames
+     */
+    public void setBlockWhenFull(boolean blockWhenFull) {
+        this.blockWhenFull = blockWhenFull;
+    }
+
+    /**
+     * @return the numEncoderThreads
+     */
+    public int getNumEncoderThreads() {
+        return numEncoderThreads;
+    }
+
+    /**
+     * @param numEncoderThreads the numEncoderThreads to set, 0 for automatic
+     */
+    public void setNumEncoderThreads(int numEncoderThreads) {
+        if (numEncoderThreads < 0) {
+            numEncoderThreads = 0;
+        }
+        this.numEncoderThreads = numEncoderThreads;
+        putInt("numEncoderThreads", numEncoderThreads);
+    }
+
+    /**
+     * @return the maxQueuedFrames
+     */
+    public int getMaxQueuedFrames() {
+        return maxQueuedFrames;
+    }
+
+    /**
+     * @param maxQueuedFrames the maxQueuedFrames to set
+     */
+    public void setMaxQueuedFrames(int maxQueuedFrames) {
+        if (maxQueuedFrames < 1) {
+            maxQueuedFrames = 1;
+        }
+        this.maxQueuedFrames = maxQueuedFrames;
+        putInt("maxQueuedFrames", maxQueuedFrames);
+    }
+
     public boolean isWriteEnabled(){
         return writeEnabled;
     }
@@ -1,5 +1,6 @@
 package net.sf.jaer.util.avioutput;
 
+import eu.visualize.ini.convnet.DvsMultiSliceSubsampler;
 import eu.visualize.ini.convnet.DvsSubsamplerToFrame;
 import java.awt.Dimension;
 import java.awt.event.WindowAdapter;
@@ -56,6 +57,9 @@ public class DvsSliceAviWriter extends AbstractAviWriter implements FrameAnnotat
     private DvsSubsamplerToFrame dvsSubsampler = null;
     private int dimx, dimy, grayScale;
     private int dvsMinEvents = getInt("dvsMinEvents", 10000);
+    private int dvsSliceHop = getInt("dvsSliceHop", 0);
+    private DvsMultiSliceSubsampler slicer = null; // makes sliding slices if 0<dvsSliceHop<dvsMinEvents, otherwise null
+    private DvsMultiSliceSubsampler.Slice slidingSlice = null;
     private float frameRateEstimatorTimeConstantMs = getFloat("frameRateEstimatorTimeConstantMs", 10f);
     private boolean normalizeFrame = getBoolean("normalizeFrame", true);
     private boolean fullRectifyOutput = getBoolean("fullRectifyOutput", false);
@@ -83,6 +87,7 @@ public class DvsSliceAviWriter extends AbstractAviWriter implements FrameAnnotat
         setPropertyTooltip("dimy", "height of AVI frame");
         setPropertyTooltip("showOutput", "shows output in JFrame/ImageDisplay");
         setPropertyTooltip("dvsMinEvents", "minimum number of events to run net on DVS timeslice (only if writeDvsSliceImageOnApsFrame is false)");
+        setPropertyTooltip("dvsSliceHop", "<html>number of events between frames of sliding slices of the last dvsMinEvents events (only if writeDvsSliceImageOnApsFrame is false).<br>0 or dvsMinEvents and more write non-overlapping slices. Sliding slices are always normalized.");
         setPropertyTooltip("frameRateEstimatorTimeConstantMs", "time constant of lowpass filter that shows average DVS slice frame rate");
         setPropertyTooltip("writeDvsSliceImageOnApsFrame", "<html>write DVS slice image for each APS frame end event (dvsMinEvents ignored).<br>The frame is written at the end of frame APS event.<br><b>Warning: to capture all frames, ensure that playback time slices are slow enough that all frames are rendered</b>");
         setPropertyTooltip("normalizeFrame", "<html>Normalize the frame so that the 3-sigma range of original values fills the full output range of 0-1 values (0-255 in PNG file)<br>This normalization is the same as that used in DeepLearnCnnNetwork.");
@@ -108,6 +113,10 @@ public class DvsSliceAviWriter extends AbstractAviWriter implements FrameAnnotat
             }
             PolarityEvent p = (PolarityEvent) e;
             lastTimestamp = e.timestamp;
+            if (slicer != null) {
+                slicer.addEvent(p, sizeX, sizeY); // completed slices are written by the slicer listener
+                continue;
+            }
             dvsSubsampler.addEvent(p, sizeX, sizeY);
             if ((writeDvsSliceImageOnApsFrame && newFrameAvailable && e.timestamp >= endOfFrameTimestamp)
                     || (!writeDvsSliceImageOnApsFrame && dvsSubsampler.getAccumulatedEventCount() > dvsMinEvents)
@@ -118,25 +127,8 @@ public class DvsSliceAviWriter extends AbstractAviWriter implements FrameAnnotat
                 if (normalizeFrame) {
                     dvsSubsampler.normalizeFrame();
                 }
-                maybeShowOutput(dvsSubsampler);
-                if (aviOutputStream != null && isWriteEnabled()) {
-                    BufferedImage bi = toImage(dvsSubsampler);
-                    try {
-                        writeTimecode(e.timestamp);
-                        aviOutputStream.writeFrame(bi);
-                        incrementFramecountAndMaybeCloseOutput();
-                    } catch (IOException ex) {
-                        log.warning(ex.toString());
-                        ex.printStackTrace();
-                        setFilterEnabled(false);
-                    }
-                }
+                writeSlice(e.timestamp);
                 dvsSubsampler.clear();
-                if (lastDvsFrameTimestamp != 0) {
-                    int lastFrameInterval = lastTimestamp - lastDvsFrameTimestamp;
-                    avgDvsFrameIntervalMs = 1e-3f * lowpassFilter.filter(lastFrameInterval, lastTimestamp);
-                }
-                lastDvsFrameTimestamp = lastTimestamp;
             }
         }
         if (writeDvsSliceImageOnApsFrame && lastTimestamp - endOfFrameTimestamp > 1000000) {
@@ -145,6 +137,26 @@ public class DvsSliceAviWriter extends AbstractAviWriter implements FrameAnnotat
         return in;
     }
 
+    // shows and writes the frame of dvsSubsampler
+    private void writeSlice(int timestamp) {
+        maybeShowOutput(dvsSubsampler);
+        if (aviOutputStream != null && isWriteEnabled()) {
+            BufferedImage bi = toImage(dvsSubsampler);
+            try {
+                writeFrame(bi, timestamp);
+            } catch (IOException ex) {
+                log.warning(ex.toString());
+                ex.printStackTrace();
+                setFilterEnabled(false);
+            }
+        }
+        if (lastDvsFrameTimestamp != 0) {
+            int lastFrameInterval = lastTimestamp - lastDvsFrameTimestamp;
+            avgDvsFrameIntervalMs = 1e-3f * lowpassFilter.filter(lastFrameInterval, lastTimestamp);
+        }
+        lastDvsFrameTimestamp = lastTimestamp;
+    }
+
     @Override
     public void annotate(GLAutoDrawable drawable) {
         if (dvsSubsampler == null) {
@@ -164,7 +176,7 @@ public class DvsSliceAviWriter extends AbstractAviWriter implements FrameAnnotat
 
     @Override
     public synchronized void doStartRecordingAndSaveAVIAs() {
-        String[] s = {"dimx=" + dimx, "dimy=" + dimy, "grayScale=" + grayScale, "dvsMinEvents=" + dvsMinEvents, "format=" + format.toString(), "compressionQuality=" + compressionQuality};
+        String[] s = {"dimx=" + dimx, "dimy=" + dimy, "grayScale=" + grayScale, "dvsMinEvents=" + dvsMinEvents, "dvsSliceHop=" + dvsSliceHop, "format=" + format.toString(), "compressionQuality=" + compressionQuality};
         setAdditionalComments(s);
         super.doStartRecordingAndSaveAVIAs(); //To change body of generated methods, choose Tools | Templates.
     }
@@ -177,6 +189,31 @@ public class DvsSliceAviWriter extends AbstractAviWriter implements FrameAnnotat
             }
             dvsSubsampler = new DvsSubsamplerToFrame(dimx, dimy, grayScale);
             dvsSubsampler.setRectifyPolarties(fullRectifyOutput);
+            slicer = null;
+            slidingSlice = null;
+        }
+        boolean sliding = !writeDvsSliceImageOnApsFrame && dvsSliceHop > 0 && dvsSliceHop < dvsMinEvents;
+        if (!sliding) {
+            if (slicer != null) {
+                slicer = null;
+                slidingSlice = null;
+                dvsSubsampler = new DvsSubsamplerToFrame(dimx, dimy, grayScale);
+                dvsSubsampler.setRectifyPolarties(fullRectifyOutput);
+            }
+        } else if (slicer == null || slidingSlice.getWindow() != dvsMinEvents || slidingSlice.getHop() != dvsSliceHop) {
+            // the slice frame replaces dvsSubsampler, so that display, annotation and the properties use it
+            slicer = new DvsMultiSliceSubsampler();
+            slidingSlice = slicer.addSlice(dimx, dimy, grayScale, DvsMultiSliceSubsampler.SliceMethod.EventCount, dvsMinEvents, dvsSliceHop);
+            dvsSubsampler = slidingSlice.getFrame();
+            dvsSubsampler.setRectifyPolarties(fullRectifyOutput);
+            slicer.getSupport().addPropertyChangeListener(DvsMultiSliceSubsampler.EVENT_NEW_SLICE, new PropertyChangeListener() {
+                @Override
+                public void propertyChange(PropertyChangeEvent evt) {
+                    if (chip.getAeViewer() == null || !chip.getAeViewer().isPaused()) {
+                        writeSlice(((DvsMultiSliceSubsampler.Slice) evt.getNewValue()).getFrameTimestamp());
+                    }
+                }
+            });
         }
     }
 
@@ -255,6 +292,27 @@ public class DvsSliceAviWriter extends AbstractAviWriter implements FrameAnnotat
         putInt("dvsMinEvents", dvsMinEvents);
     }
 
+    /**
+     * @return the number of events between sliding slices, 0 for
+     * non-overlapping slices
+     */
+    public int getDvsSliceHop() {
+        return dvsSliceHop;
+    }
+
+    /**
+     * @param dvsSliceHop the number of events between frames of sliding
+     * slices of the last dvsMinEvents events; 0 or at least dvsMinEvents for
+     * non-overlapping slices
+     */
+    public void setDvsSliceHop(int dvsSliceHop) {
+        if (dvsSliceHop < 0) {
+            dvsSliceHop = 0;
+        }
+        this.dvsSliceHop = dvsSliceHop;
+        putInt("dvsSliceHop", dvsSliceHop);
+    }
+
     /**
      * @return the dimx
      */
@@ -404,7 +462,7 @@ public class DvsSliceAviWriter extends AbstractAviWriter implements FrameAnnotat
     public static final String USAGE = "java DvsSliceAviWriter [-aechip=aechipclassname (fully qualified class name, e.g. eu.seebetter.ini.chips.davis.DAVIS240C)] "
             + "[-dimx=36] [-dimy=36] [-quality=.9] [-format=PNG|JPG|RLE|RAW] [-framerate=30] [-grayscale=200] "
             + "[-writedvssliceonapsframe=false] [-writetimecodefile=true] "
-            + "[-numevents=2000] [-rectify=false] [-normalize=true] [-showoutput=true]  [-maxframes=0] "
+            + "[-numevents=2000] [-hop=0] [-rectify=false] [-normalize=true] [-showoutput=true]  [-maxframes=0] "
             + "inputFile.aedat [outputfile.avi]"
             + "\n"
             + "Note arguments values are assigned with =, not space"
@@ -426,6 +484,7 @@ public class DvsSliceAviWriter extends AbstractAviWriter implements FrameAnnotat
         opt.getSet().addOption("writedvssliceonapsframe", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
         opt.getSet().addOption("writetimecodefile", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
         opt.getSet().addOption("numevents", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
+        opt.getSet().addOption("hop", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
         opt.getSet().addOption("rectify", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
         opt.getSet().addOption("normalize", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
         opt.getSet().addOption("showoutput", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
@@ -481,6 +540,7 @@ public class DvsSliceAviWriter extends AbstractAviWriter implements FrameAnnotat
 
         boolean oldCloseOnRewind = writer.isCloseOnRewind();
         writer.setCloseOnRewind(false);
+        writer.setBlockWhenFull(true); // offline, so wait for the encoders rather than dropping frames
         writer.getSupport().addPropertyChangeListener(writer);
         // handle options
         if (opt.getSet().isSet("dimx")) {
@@ -563,6 +623,16 @@ public class DvsSliceAviWriter extends AbstractAviWriter implements FrameAnnotat
             }
         }
 
+        if (opt.getSet().isSet("hop")) {
+            try {
+                int n = Integer.parseInt(opt.getSet().getOption("hop").getResultValue(0));
+                writer.setDvsSliceHop(n);
+            } catch (NumberFormatException e) {
+                System.err.println("Bad hop argument: " + e.toString());
+                System.exit(1);
+            }
+        }
+
         if (opt.getSet().isSet("rectify")) {
             boolean b = Boolean.parseBoolean(opt.getSet().getOption("rectify").getResultValue(0));
             writer.setFullRectifyOutput(b);
@@ -0,0 +1,289 @@
+package net.sf.jaer.util.avioutput;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import ml.options.Options;
+import ml.options.Options.Multiplicity;
+import ml.options.Options.Separator;
+import net.sf.jaer.aemonitor.AEPacketRaw;
+import net.sf.jaer.chip.AEChip;
+import net.sf.jaer.chip.EventExtractor2D;
+import net.sf.jaer.event.EventPacket;
+import net.sf.jaer.eventio.AEFileInputStream;
+import net.sf.jaer.eventio.AEInputStream;
+import net.sf.jaer.eventprocessing.EventFilter2D;
+import net.sf.jaer.graphics.AEChipRenderer.ColorMode;
+import static net.sf.jaer.graphics.AEViewer.DEFAULT_CHIP_CLASS;
+import static net.sf.jaer.graphics.AEViewer.prefs;
+import net.sf.jaer.graphics.SoftwareChipRenderer;
+import net.sf.jaer.graphics.SoftwareFrameAnnotater;
+import net.sf.jaer.graphics.SoftwareRasterizer;
+import net.sf.jaer.util.avioutput.AVIOutputStream.VideoFormat;
+
+/**
+ * Command line tool that renders a recording into an AVI movie and PNG
+ * snapshots without OpenGL, so that annotated review videos can be made in
+ * batch on servers without display or GPU, faster than real time.
+ * <p>
+ * Each frame shows the events of a constant time slice, on the last APS frame
+ * if the chip has one, rendered by SoftwareChipRenderer. The packets are
+ * processed by an optional chain of filters, e.g. a cluster tracker or a
+ * motion flow filter, and the filters that implement SoftwareFrameAnnotater
+ * draw their annotations, e.g. clusters and flow vectors, over each frame.
+ * Frames are encoded in parallel by an AVIEncoderPipeline.
+ *
+ * @author tobi
+ * @see SoftwareRasterizer
+ */
+public class HeadlessAviWriter {
+
+    public static final String USAGE = "java HeadlessAviWriter [-aechip=aechipclassname (fully qualified class name, e.g. eu.seebetter.ini.chips.davis.DAVIS240C)] "
+            + "[-filters=filterclassname,filterclassname,...] "
+            + "[-frameintervalms=33] [-framerate=30] [-scale=2] [-format=PNG|JPG|RAW] [-quality=.9] "
+            + "[-colorscale=2] [-colormode=GrayLevel|RedGreen] [-accumulate=false] [-displayframes=true] "
+            + "[-threads=0] [-snapshotevery=0] [-maxframes=0] "
+            + "inputFile.aedat [outputfile.avi]"
+            + "\n"
+            + "Note arguments values are assigned with =, not space"
+            + "\n"
+            + "If outputfile is not provided its name is generated from the input file with appended .avi"
+            + "\n"
+            + "With snapshotevery=N, every Nth frame is also written to outputfile-NNNNNN.png";
+
+    public static void main(String[] args) {
+        Options opt = new Options(args, 1, 2);
+        opt.getSet().addOption("aechip", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
+        opt.getSet().addOption("filters", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
+        opt.getSet().addOption("frameintervalms", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
+        opt.getSet().addOption("framerate", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
+        opt.getSet().addOption("scale", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
+        opt.getSet().addOption("format", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
+        opt.getSet().addOption("quality", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
+        opt.getSet().addOption("colorscale", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
+        opt.getSet().addOption("colormode", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
+        opt.getSet().addOption("accumulate", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
+        opt.getSet().addOption("displayframes", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
+        opt.getSet().addOption("threads", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
+        opt.getSet().addOption("snapshotevery", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
+        opt.getSet().addOption("maxframes", Separator.EQUALS, Multiplicity.ZERO_OR_ONE);
+        if (!opt.check()) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+
+        String inpfilename = opt.getSet().getData().get(0);
+        if (!(inpfilename.toLowerCase().endsWith("aedat"))) {
+            System.err.println("Warning: Input filename does not end with aedat: " + inpfilename);
+        }
+        String outfilename = null;
+        if (opt.getSet().getData().size() == 2) {
+            outfilename = opt.getSet().getData().get(1);
+        } else {
+            outfilename = inpfilename.substring(0, inpfilename.lastIndexOf(".")) + ".avi";
+            System.out.println("Writing to output file " + outfilename);
+        }
+
+        int frameIntervalMs = intOption(opt, "frameintervalms", 33);
+        int frameRate = intOption(opt, "framerate", 30);
+        int scale = intOption(opt, "scale", 2);
+        float quality = floatOption(opt, "quality", .9f);
+        int colorScale = intOption(opt, "colorscale", 2);
+        int numThreads = intOption(opt, "threads", 0);
+        int snapshotEvery = intOption(opt, "snapshotevery", 0);
+        int maxFrames = intOption(opt, "maxframes", 0);
+        VideoFormat format = VideoFormat.PNG;
+        if (opt.getSet().isSet("format")) {
+            try {
+                format = VideoFormat.valueOf(opt.getSet().getOption("format").getResultValue(0).toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Bad format argument: " + e.toString() + "; use PNG, JPG, or RAW");
+                System.exit(1);
+            }
+            if (format == VideoFormat.RLE) {
+                System.err.println("RLE format needs 8 bit images; use PNG, JPG, or RAW");
+                System.exit(1);
+            }
+        }
+        ColorMode colorMode = ColorMode.GrayLevel;
+        if (opt.getSet().isSet("colormode")) {
+            try {
+                colorMode = ColorMode.valueOf(opt.getSet().getOption("colormode").getResultValue(0));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Bad colormode argument: " + e.toString() + "; use GrayLevel or RedGreen");
+                System.exit(1);
+            }
+        }
+
+        AEChip chip = null;
+        String chipname = null;
+        if (opt.getSet().isSet("aechip")) {
+            chipname = opt.getSet().getOption("aechip").getResultValue(0);
+        } else {
+            chipname = prefs.get("AEViewer.aeChipClassName", DEFAULT_CHIP_CLASS);
+        }
+        try {
+            System.out.println("constructing AEChip " + chipname);
+            Class chipClass = Class.forName(chipname);
+            Constructor<AEChip> constructor = chipClass.getConstructor();
+            chip = constructor.newInstance((java.lang.Object[]) null);
+        } catch (Exception ex) {
+            System.err.println("Could not construct instance of aechip=" + chipname + ": " + ex.toString());
+            System.exit(1);
+        }
+
+        ArrayList<EventFilter2D> filters = new ArrayList();
+        if (opt.getSet().isSet("filters")) {
+            for (String filtername : opt.getSet().getOption("filters").getResultValue(0).split(",")) {
+                filtername = filtername.trim();
+                if (filtername.isEmpty()) {
+                    continue;
+                }
+                try {
+                    System.out.println("constructing filter " + filtername);
+                    Class filterClass = Class.forName(filtername);
+                    Constructor<EventFilter2D> constructor = filterClass.getConstructor(AEChip.class);
+                    EventFilter2D filter = constructor.newInstance(chip);
+                    filter.setFilterEnabled(true);
+                    filters.add(filter);
+                    if (!(filter instanceof SoftwareFrameAnnotater)) {
+                        System.out.println("Note: " + filtername + " processes events but cannot annotate frames without OpenGL");
+                    }
+                } catch (Exception ex) {
+                    System.err.println("Could not construct instance of filter " + filtername + ": " + ex.toString());
+                    System.exit(1);
+                }
+            }
+        }
+
+        SoftwareRasterizer raster = new SoftwareRasterizer(chip.getSizeX(), chip.getSizeY(), scale);
+        SoftwareChipRenderer renderer = new SoftwareChipRenderer(chip.getSizeX(), chip.getSizeY());
+        renderer.setColorScale(colorScale);
+        renderer.setColorMode(colorMode);
+        renderer.setNumThreads(numThreads);
+        if (opt.getSet().isSet("accumulate")) {
+            renderer.setAccumulateEnabled(Boolean.parseBoolean(opt.getSet().getOption("accumulate").getResultValue(0)));
+        }
+        if (opt.getSet().isSet("displayframes")) {
+            renderer.setDisplayFrames(Boolean.parseBoolean(opt.getSet().getOption("displayframes").getResultValue(0)));
+        }
+
+        File inpfile = new File(inpfilename);
+        File outfile = new File(outfilename);
+        String snapshotBase = outfilename.lastIndexOf(".") > 0 ? outfilename.substring(0, outfilename.lastIndexOf(".")) : outfilename;
+        AEFileInputStream ais = null;
+        AVIEncoderPipeline pipeline = null;
+        try {
+            ais = new AEFileInputStream(inpfile, chip);
+        } catch (IOException ex) {
+            System.err.println("Couldn't open file " + inpfile + " from working directory " + System.getProperty("user.dir") + " : " + ex.toString());
+            System.exit(1);
+        }
+        try {
+            AVIOutputStream aviOutputStream = new AVIOutputStream(outfile, format);
+            aviOutputStream.setFrameRate(frameRate);
+            aviOutputStream.setVideoCompressionQuality(quality);
+            pipeline = new AVIEncoderPipeline(aviOutputStream, numThreads, 32);
+            pipeline.setBlockWhenFull(true); // offline, so wait for the encoders rather than dropping frames
+        } catch (IOException ex) {
+            System.err.println("Couldn't open output file " + outfile + ": " + ex.toString());
+            System.exit(1);
+        }
+
+        // the AEFileInputStream rewinds at the end of the file instead of throwing EOFException
+        final boolean[] endOfFile = {false};
+        ais.getSupport().addPropertyChangeListener(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent pce) {
+                if (pce.getPropertyName() == AEInputStream.EVENT_EOF) {
+                    endOfFile[0] = true;
+                }
+            }
+        });
+        ais.setNonMonotonicTimeExceptionsChecked(false);
+
+        EventExtractor2D extractor = chip.getEventExtractor();
+        int framesWritten = 0, snapshotsWritten = 0;
+        long startTime = System.nanoTime();
+        long recordingDurationUs = 0;
+        System.out.println(String.format("Frames written: "));
+        try {
+            while (!endOfFile[0] && (maxFrames <= 0 || framesWritten < maxFrames)) {
+                AEPacketRaw aeRaw = ais.readPacketByTime(frameIntervalMs * 1000);
+                EventPacket packet = extractor.extractPacket(aeRaw);
+                for (EventFilter2D filter : filters) {
+                    packet = filter.filterPacket(packet);
+                }
+                renderer.accumulate(packet);
+                renderer.render(raster);
+                for (EventFilter2D filter : filters) {
+                    if (filter instanceof SoftwareFrameAnnotater) {
+                        ((SoftwareFrameAnnotater) filter).annotate(raster);
+                    }
+                }
+                pipeline.writeFrame(raster.copyImage());
+                if (snapshotEvery > 0 && framesWritten % snapshotEvery == 0) {
+                    raster.writePng(new File(String.format("%s-%06d.png", snapshotBase, framesWritten)));
+                    snapshotsWritten++;
+                }
+                framesWritten++;
+                recordingDurationUs += frameIntervalMs * 1000;
+                if (framesWritten % 500 == 0) {
+                    System.out.println(String.format("%d frames", framesWritten));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("IOException: " + e.toString());
+        } finally {
+            renderer.close();
+            try {
+                ais.close();
+            } catch (IOException ex) {
+                System.err.println("exception closing file: " + ex.toString());
+            }
+            try {
+                pipeline.close();
+            } catch (IOException ex) {
+                System.err.println("exception closing output file: " + ex.toString());
+                System.exit(1);
+            }
+        }
+        double seconds = (System.nanoTime() - startTime) * 1e-9;
+        System.out.println(String.format("Settings: aechip=%s filters=%s\nframeintervalms=%d framerate=%d scale=%d format=%s quality=%f\n"
+                + "colorscale=%d colormode=%s accumulate=%s displayframes=%s threads=%d snapshotevery=%d maxframes=%d",
+                chipname, filters.toString(), frameIntervalMs, frameRate, scale, format.toString(), quality,
+                colorScale, colorMode.toString(), renderer.isAccumulateEnabled(), renderer.isDisplayFrames(), numThreads, snapshotEvery, maxFrames));
+        System.out.println(String.format("Successfully wrote file %s with %d frames and %d snapshots; %.1fs of recording in %.1fs (%.1fx real time)",
+                outfile, framesWritten, snapshotsWritten, recordingDurationUs * 1e-6, seconds, recordingDurationUs * 1e-6 / seconds));
+        System.exit(0);
+    }
+
+    private static int intOption(Options opt, String name, int defaultValue) {
+        if (!opt.getSet().isSet(name)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(opt.getSet().getOption(name).getResultValue(0));
+        } catch (NumberFormatException e) {
+            System.err.println("Bad " + name + " argument: " + e.toString());
+            System.exit(1);
+            return defaultValue;
+        }
+    }
+
+    private static float floatOption(Options opt, String name, float defaultValue) {
+        if (!opt.getSet().isSet(name)) {
+            return defaultValue;
+        }
+        try {
+            return Float.parseFloat(opt.getSet().getOption(name).getResultValue(0));
+        } catch (NumberFormatException e) {
+            System.err.println("Bad " + name + " argument: " + e.toString());
+            System.exit(1);
+            return defaultValue;
+        }
+    }
+}
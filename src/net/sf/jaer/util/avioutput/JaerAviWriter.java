@@ -44,12 +44,7 @@ public class JaerAviWriter extends AbstractAviWriter {
         BufferedImage bi = toImage(gl, drawable.getNativeSurface().getSurfaceWidth(), drawable.getNativeSurface().getSurfaceHeight());
 
         try {
-            aviOutputStream.writeFrame(bi);
-            if (isWriteTimecodeFile()) {
-                writeTimecode(chip.getAeViewer().getAePlayer().getTime());
-            }
-            incrementFramecountAndMaybeCloseOutput();
-
+            writeFrame(bi, isWriteTimecodeFile() ? chip.getAeViewer().getAePlayer().getTime() : 0);
         } catch (Exception e) {
             log.warning("While writing AVI frame, caught exception, closing file: " + e.toString());
             doCloseFile();
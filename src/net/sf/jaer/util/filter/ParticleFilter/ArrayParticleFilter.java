@@ -0,0 +1,360 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package net.sf.jaer.util.filter.ParticleFilter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.jaer.util.ParallelRunner;
+
+/**
+ * Particle filter for 2d particles that holds the particles as a structure of
+ * primitive arrays instead of Particle objects, for tracking with tens of
+ * thousands of particles per target.
+ * <p>
+ * It does the steps of ParticleFilter: evaluateStrength moves the particles
+ * by the ParticleArrayModel and evaluates their likelihood, normalize,
+ * calculateNeff, then either resample or updateWeight. The particles are
+ * processed in chunks of fixed size by a pool of threads; each chunk gets its
+ * own SplitRandom split in chunk order from the filter's generator, so that
+ * for a given seed the result does not depend on the number of threads.
+ * <p>
+ * Resampling is systematic, i.e. with a single random offset, which takes
+ * O(n) instead of the O(n log n) of the sorted binary search in
+ * ParticleFilter, and copies into a second set of arrays that is swapped
+ * with the first, so no memory is allocated in the steps.
+ *
+ * @author minliu and hongjie
+ * @see ParticleFilter
+ */
+public class ArrayParticleFilter {
+
+    /**
+     * Number of particles processed as one task
+     */
+    public static final int CHUNK_SIZE = 4096;
+
+    private ParticleArrayModel model;
+    private int count = 0;
+    private double[] x = new double[0], y = new double[0], weight = new double[0], lastWeight = new double[0];
+    private double[] nextX = x, nextY = y, nextLastWeight = lastWeight; // resampling targets, swapped with x, y, lastWeight
+    private double[] cumulativeWeight = new double[0];
+    private final SplitRandom random;
+    private SplitRandom[] chunkRandom = new SplitRandom[0];
+
+    private int numThreads = 0;
+    private final ParallelRunner runner = new ParallelRunner("ArrayParticleFilter");
+
+    /**
+     * A step on particles from to to-1 of chunk
+     */
+    private interface ChunkStep {
+
+        void run(int chunk, int from, int to);
+    }
+
+    /**
+     * Makes a new filter seeded from the time.
+     *
+     * @param model the motion and measurement model
+     * @param count the number of particles, all at 0,0
+     */
+    public ArrayParticleFilter(ParticleArrayModel model, int count) {
+        this(model, count, new SplitRandom());
+    }
+
+    /**
+     * Makes a new filter.
+     *
+     * @param model the motion and measurement model
+     * @param count the number of particles, all at 0,0
+     * @param seed the seed of the random numbers
+     */
+    public ArrayParticleFilter(ParticleArrayModel model, int count, long seed) {
+        this(model, count, new SplitRandom(seed));
+    }
+
+    private ArrayParticleFilter(ParticleArrayModel model, int count, SplitRandom random) {
+        this.model = model;
+        this.random = random;
+        setParticleCount(count);
+    }
+
+    /**
+     * Sets the number of particles. Particles that are kept keep their state,
+     * new particles are at 0,0 with weight 1.
+     *
+     * @param count the number of particles
+     */
+    synchronized public void setParticleCount(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("particle count " + count + " is negative");
+        }
+        if (count > x.length) {
+            x = grow(x, count, 0);
+            y = grow(y, count, 0);
+            weight = grow(weight, count, 1);
+            lastWeight = grow(lastWeight, count, 1);
+            nextX = new double[count];
+            nextY = new double[count];
+            nextLastWeight = new double[count];
+            cumulativeWeight = new double[count];
+        }
+        for (int i = this.count; i < count; i++) {
+            x[i] = 0;
+            y[i] = 0;
+            weight[i] = 1;
+            lastWeight[i] = 1;
+        }
+        this.count = count;
+        final int chunks = (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if (chunkRandom.length < chunks) {
+            chunkRandom = new SplitRandom[chunks];
+            for (int i = 0; i < chunks; i++) {
+                chunkRandom[i] = new SplitRandom(0);
+            }
+        }
+    }
+
+    private static double[] grow(double[] a, int n, double fill) {
+        final double[] b = new double[n];
+        System.arraycopy(a, 0, b, 0, a.length);
+        for (int i = a.length; i < n; i++) {
+            b[i] = fill;
+        }
+        return b;
+    }
+
+    /**
+     * @return the number of particles
+     */
+    public int getParticleCount() {
+        return count;
+    }
+
+    public double getX(int i) {
+        return x[i];
+    }
+
+    public double getY(int i) {
+        return y[i];
+    }
+
+    public void setX(int i, double value) {
+        x[i] = value;
+    }
+
+    public void setY(int i, double value) {
+        y[i] = value;
+    }
+
+    /**
+     * @param i the particle
+     * @return the weight, normalized after normalize
+     */
+    public double getWeight(int i) {
+        return weight[i];
+    }
+
+    public ParticleArrayModel getModel() {
+        return model;
+    }
+
+    public void setModel(ParticleArrayModel model) {
+        this.model = model;
+    }
+
+    /**
+     * Moves all particles by the motion model and sets their weights to the
+     * likelihood of the measurement model, in parallel.
+     */
+    synchronized public void evaluateStrength() {
+        splitChunkRandoms();
+        final ParticleArrayModel m = model;
+        runChunks(new ChunkStep() {
+            @Override
+            public void run(int chunk, int from, int to) {
+                m.propagate(x, y, from, to, chunkRandom[chunk]);
+                m.evaluate(x, y, weight, from, to, chunkRandom[chunk]);
+            }
+        });
+    }
+
+    private void splitChunkRandoms() {
+        final int chunks = (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        for (int c = 0; c < chunks; c++) {
+            random.split(chunkRandom[c]);
+        }
+    }
+
+    /**
+     * Divides the weights by their sum.
+     *
+     * @return the sum of the weights before normalizing
+     */
+    synchronized public double normalize() {
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += weight[i];
+        }
+        final double f = 1 / sum;
+        for (int i = 0; i < count; i++) {
+            weight[i] *= f;
+        }
+        return sum;
+    }
+
+    /**
+     * @return the effective number of particles 1/sum(weight^2) of the
+     * normalized weights
+     */
+    synchronized public double calculateNeff() {
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += weight[i] * weight[i];
+        }
+        return 1 / sum;
+    }
+
+    /**
+     * Multiplies the weights by the last weights, instead of resampling.
+     */
+    synchronized public void updateWeight() {
+        for (int i = 0; i < count; i++) {
+            weight[i] *= lastWeight[i];
+            lastWeight[i] = weight[i];
+        }
+    }
+
+    /**
+     * Draws a new set of particles from the current ones in proportion to
+     * their weights, by systematic resampling. The new particles get weight
+     * 1 and the weight of the particle they copy as last weight, as in
+     * ParticleFilter. Does nothing if the weights do not sum to a positive
+     * number.
+     */
+    synchronized public void resample() {
+        final int n = count;
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += weight[i];
+            cumulativeWeight[i] = sum;
+        }
+        if (!(sum > 0) || Double.isInfinite(sum)) {
+            return;
+        }
+        final double step = sum / n, offset = random.nextDouble() * step;
+        runChunks(new ChunkStep() {
+            @Override
+            public void run(int chunk, int from, int to) {
+                // the i'th new particle copies the first particle whose cumulative weight exceeds offset+i*step
+                int j = firstAbove(offset + (from * step), n);
+                for (int i = from; i < to; i++) {
+                    final double target = offset + (i * step);
+                    while ((j < (n - 1)) && (cumulativeWeight[j] <= target)) {
+                        j++;
+                    }
+                    nextX[i] = x[j];
+                    nextY[i] = y[j];
+                    nextLastWeight[i] = weight[j];
+                }
+            }
+        });
+        double[] t = x;
+        x = nextX;
+        nextX = t;
+        t = y;
+        y = nextY;
+        nextY = t;
+        t = lastWeight;
+        lastWeight = nextLastWeight;
+        nextLastWeight = t;
+        for (int i = 0; i < n; i++) {
+            weight[i] = 1;
+        }
+    }
+
+    // returns the first index whose cumulative weight is larger than target, or n-1
+    private int firstAbove(double target, int n) {
+        int lo = 0, hi = n - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (cumulativeWeight[mid] <= target) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return the mean x of the particles
+     */
+    synchronized public double getAverageX() {
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += x[i];
+        }
+        return sum / count;
+    }
+
+    /**
+     * @return the mean y of the particles
+     */
+    synchronized public double getAverageY() {
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += y[i];
+        }
+        return sum / count;
+    }
+
+    private void runChunks(final ChunkStep step) {
+        final int chunks = (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        final int n = Math.min(getNumThreadsUsed(), chunks);
+        if (n <= 1) {
+            for (int c = 0; c < chunks; c++) {
+                step.run(c, c * CHUNK_SIZE, Math.min(count, (c + 1) * CHUNK_SIZE));
+            }
+            return;
+        }
+        final AtomicInteger nextChunk = new AtomicInteger(0);
+        runner.run(n, new ParallelRunner.Task() {
+            @Override
+            public void run(int t) {
+                int c;
+                while ((c = nextChunk.getAndIncrement()) < chunks) {
+                    step.run(c, c * CHUNK_SIZE, Math.min(count, (c + 1) * CHUNK_SIZE));
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the number of threads, 0 to use all processors
+     */
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * @param numThreads the number of threads, 0 to use all processors
+     */
+    synchronized public void setNumThreads(int numThreads) {
+        this.numThreads = Math.max(0, numThreads);
+    }
+
+    private int getNumThreadsUsed() {
+        return ParallelRunner.getNumThreadsUsed(numThreads);
+    }
+
+    /**
+     * Stops the threads; they are started again when needed.
+     */
+    public void close() {
+        runner.close();
+    }
+}
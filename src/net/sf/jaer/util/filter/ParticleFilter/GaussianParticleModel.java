@@ -0,0 +1,133 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package net.sf.jaer.util.filter.ParticleFilter;
+
+import java.util.List;
+
+/**
+ * The model of DynamicEvaluator and MeasurmentEvaluator for an
+ * ArrayParticleFilter: particles do a gaussian random walk, and their
+ * likelihood is the mean over the measurements of a gaussian of their
+ * weighted squared distance to the measurement.
+ *
+ * @author minliu and hongjie
+ */
+public class GaussianParticleModel implements ParticleArrayModel {
+
+    private double noise = 5;
+    private double sigma = Math.sqrt(20);
+    private double measurementNoise = 0;
+    private double[] muX = new double[0], muY = new double[0], measurementWeight = new double[0];
+
+    /**
+     * Makes a new model.
+     *
+     * @param noise the standard deviation in pixels of the random walk per
+     * step
+     */
+    public GaussianParticleModel(double noise) {
+        this.noise = noise;
+    }
+
+    /**
+     * Sets the measurements. Must not be called while the particle filter
+     * evaluates.
+     *
+     * @param x the measurement x positions
+     * @param y the measurement y positions
+     * @param weight the weights of the squared distances to the measurements,
+     * must have the size of x
+     */
+    public void setMeasurements(List<Float> x, List<Float> y, List<Double> weight) {
+        final int n = x.size();
+        if (muX.length != n) {
+            muX = new double[n];
+            muY = new double[n];
+            measurementWeight = new double[n];
+        }
+        for (int i = 0; i < n; i++) {
+            muX[i] = x.get(i);
+            muY[i] = y.get(i);
+            measurementWeight[i] = weight.get(i);
+        }
+    }
+
+    @Override
+    public void propagate(double[] x, double[] y, int from, int to, SplitRandom random) {
+        final double s = noise;
+        for (int i = from; i < to; i++) {
+            x[i] += random.nextGaussian() * s;
+            y[i] += random.nextGaussian() * s;
+        }
+    }
+
+    @Override
+    public void evaluate(double[] x, double[] y, double[] weight, int from, int to, SplitRandom random) {
+        final double[] mx = muX, my = muY, mw = measurementWeight;
+        final int n = mx.length;
+        final double k = -1 / (2 * sigma * sigma);
+        for (int i = from; i < to; i++) {
+            double result = 0;
+            if (n > 0) {
+                final double px = x[i], py = y[i];
+                for (int j = 0; j < n; j++) {
+                    final double dx = px - mx[j], dy = py - my[j];
+                    result += Math.exp(((dx * dx) + (dy * dy)) * mw[j] * k);
+                }
+                result /= n;
+            }
+            if (measurementNoise != 0) {
+                result += random.nextDouble() * measurementNoise;
+            }
+            weight[i] = result;
+        }
+    }
+
+    /**
+     * @return the standard deviation in pixels of the random walk per step
+     */
+    public double getNoise() {
+        return noise;
+    }
+
+    /**
+     * @param noise the standard deviation in pixels of the random walk per
+     * step
+     */
+    public void setNoise(double noise) {
+        this.noise = noise;
+    }
+
+    /**
+     * @return the standard deviation in pixels of the measurement gaussian
+     */
+    public double getSigma() {
+        return sigma;
+    }
+
+    /**
+     * @param sigma the standard deviation in pixels of the measurement
+     * gaussian
+     */
+    public void setSigma(double sigma) {
+        this.sigma = sigma;
+    }
+
+    /**
+     * @return the amplitude of the uniform noise added to the likelihood
+     */
+    public double getMeasurementNoise() {
+        return measurementNoise;
+    }
+
+    /**
+     * @param measurementNoise the amplitude of the uniform noise added to the
+     * likelihood
+     */
+    public void setMeasurementNoise(double measurementNoise) {
+        this.measurementNoise = measurementNoise;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package net.sf.jaer.util.filter.ParticleFilter;
+
+/**
+ * Motion and measurement model of an ArrayParticleFilter, which works on
+ * ranges of particles held in primitive arrays instead of on Particle
+ * objects. The methods are called concurrently for disjoint ranges of
+ * particles from several threads, so they must only write the particles of
+ * their range and must only use the random generator passed to them.
+ *
+ * @author minliu and hongjie
+ * @see ArrayParticleFilter
+ * @see GaussianParticleModel
+ */
+public interface ParticleArrayModel {
+
+    /**
+     * Moves particles by the motion model, like the dynamic ParticleEvaluator
+     * of ParticleFilter.
+     *
+     * @param x the particle x positions
+     * @param y the particle y positions
+     * @param from the first particle
+     * @param to one past the last particle
+     * @param random the random generator of this range
+     */
+    public void propagate(double[] x, double[] y, int from, int to, SplitRandom random);
+
+    /**
+     * Evaluates the measurement likelihood of particles, like the
+     * measurement ParticleEvaluator of ParticleFilter.
+     *
+     * @param x the particle x positions
+     * @param y the particle y positions
+     * @param weight receives the likelihoods
+     * @param from the first particle
+     * @param to one past the last particle
+     * @param random the random generator of this range
+     */
+    public void evaluate(double[] x, double[] y, double[] weight, int from, int to, SplitRandom random);
+}
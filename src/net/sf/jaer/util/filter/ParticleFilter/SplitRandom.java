@@ -0,0 +1,112 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package net.sf.jaer.util.filter.ParticleFilter;
+
+/**
+ * Small, fast and splittable random number generator (SplitMix64), for
+ * particle filters that draw random numbers from several threads. Each thread
+ * gets its own generator from split(), so the threads do not contend on a
+ * shared java.util.Random, and when the generators are split in a fixed order
+ * the results do not depend on the number of threads.
+ * <p>
+ * Not thread safe; use one instance per thread.
+ *
+ * @author minliu and hongjie
+ */
+public class SplitRandom {
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    private long seed;
+    private double nextGaussian;
+    private boolean haveNextGaussian = false;
+
+    /**
+     * Makes a generator seeded from the time.
+     */
+    public SplitRandom() {
+        this(System.nanoTime() ^ Thread.currentThread().getId());
+    }
+
+    /**
+     * Makes a generator.
+     *
+     * @param seed the seed; generators with the same seed produce the same
+     * numbers
+     */
+    public SplitRandom(long seed) {
+        setSeed(seed);
+    }
+
+    /**
+     * @param seed the new seed
+     */
+    public final void setSeed(long seed) {
+        this.seed = seed;
+        haveNextGaussian = false;
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * @return a uniformly distributed long
+     */
+    public long nextLong() {
+        seed += GOLDEN_GAMMA;
+        return mix64(seed);
+    }
+
+    /**
+     * @return a uniformly distributed double in [0,1)
+     */
+    public double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * @return a normally distributed double with mean 0 and standard
+     * deviation 1, by the polar method as in java.util.Random
+     */
+    public double nextGaussian() {
+        if (haveNextGaussian) {
+            haveNextGaussian = false;
+            return nextGaussian;
+        }
+        double v1, v2, s;
+        do {
+            v1 = (2 * nextDouble()) - 1;
+            v2 = (2 * nextDouble()) - 1;
+            s = (v1 * v1) + (v2 * v2);
+        } while ((s >= 1) || (s == 0));
+        final double multiplier = StrictMath.sqrt((-2 * StrictMath.log(s)) / s);
+        nextGaussian = v2 * multiplier;
+        haveNextGaussian = true;
+        return v1 * multiplier;
+    }
+
+    /**
+     * Makes a new generator whose numbers are independent of this one's,
+     * and advances this one.
+     *
+     * @return the new generator
+     */
+    public SplitRandom split() {
+        return new SplitRandom(nextLong());
+    }
+
+    /**
+     * Reseeds another generator as split() would make it, without
+     * allocating.
+     *
+     * @param other the generator to reseed
+     */
+    public void split(SplitRandom other) {
+        other.setSeed(nextLong());
+    }
+}
@@ -158,6 +158,15 @@ public class Layer<AxonType extends Axon> implements Serializable {
     
     public void fireTo(PSP sp,float[] inputCurrents)
     {
+        LayerThreads threads=net.layerThreads;
+        if (threads!=null && threads.isWorthSplitting(units.length))
+        {   // Same as below, but the units are fired to in parallel
+            int[] status=threads.fireTo(this,sp,null,inputCurrents);
+            for (int i=0; i<units.length; i++)
+                if (status[i]!=0)
+                    propagateFrom(makeSpike(net.time,i,status[i]));
+            return;
+        }
         
         for (int i=0; i<units.length; i++)
         {
@@ -169,6 +178,16 @@ public class Layer<AxonType extends Axon> implements Serializable {
     
     public void fireTo(PSP sp,int[] addresses, float[] inputCurrents)
     {
+        LayerThreads threads=net.layerThreads;
+        if (threads!=null && threads.isWorthSplitting(addresses.length))
+        {   // Same as below, but the units are fired to in parallel
+            int[] status=threads.fireTo(this,sp,addresses,inputCurrents);
+            for (int i=0; i<addresses.length; i++)
+                if (status[i]!=0)
+                    propagateFrom(makeSpike(net.time,addresses[i],status[i]));
+            return;
+        }
+        
         for (int i=0; i<addresses.length; i++)
         {
             if (addresses[i]==-1)
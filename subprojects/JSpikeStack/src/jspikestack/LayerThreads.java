@@ -0,0 +1,211 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package jspikestack;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Worker threads that share the units of a layer when a PSP is fired to many
+ * units at once (Layer.fireTo with an array of currents).
+ *
+ * The units of the layer are split into one contiguous range per thread, and
+ * the network thread works on the first range itself.  Each thread feeds the
+ * PSP to the units of its range, in the order they appear, and notes which
+ * of them fired.  All threads then meet at a barrier, after which the network
+ * thread propagates the spikes in the same order as the sequential loop.
+ * Since a unit only changes its own state when it is fired to, and the spikes
+ * are only queued, not delivered, while the loop runs, the result is the same
+ * bit for bit as the sequential network, whatever the number of threads.
+ *
+ * The threads spin for a while between PSPs, which is what makes the handover
+ * cheap enough to do once per PSP, and sleep when the network is idle.
+ *
+ * @author oconnorp
+ */
+public class LayerThreads {
+
+    /** Fewest units per thread for which a layer is split */
+    public static final int MIN_UNITS_PER_THREAD=128;
+
+    static final int SPINS=20000;
+
+    final int nThreads;
+    final Worker[] workers;
+    final int spinLimit;    // No spinning if there are more threads than processors
+
+    // The current task, written by the network thread before bumping generation
+    Layer layer;
+    PSP psp;
+    int[] addresses;
+    float[] currents;
+    int count;
+    int[] status=new int[0];
+
+    volatile int generation=0;
+    final AtomicInteger pending=new AtomicInteger();
+    volatile boolean closed=false;
+    volatile Throwable failure;
+
+    /** Start nThreads-1 worker threads, the network thread being the last one */
+    public LayerThreads(int nThreads)
+    {
+        if (nThreads<2)
+            throw new IllegalArgumentException("nThreads="+nThreads+" must be at least 2");
+
+        this.nThreads=nThreads;
+        spinLimit=nThreads<=Runtime.getRuntime().availableProcessors()?SPINS:0;
+        workers=new Worker[nThreads-1];
+        for (int i=0; i<workers.length; i++)
+        {   workers[i]=new Worker(i+1);
+            workers[i].setName("JSpikeStack Layer "+(i+1));
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    public int getNumThreads()
+    {   return nThreads;
+    }
+
+    /** True if a layer with this many targets is worth splitting */
+    public boolean isWorthSplitting(int nTargets)
+    {   return nTargets>=nThreads*MIN_UNITS_PER_THREAD;
+    }
+
+    /** Fire a PSP to units of a layer, in parallel.
+     *
+     * @param lay the layer
+     * @param sp the PSP
+     * @param targets the unit of each current, -1 to skip it, or null if
+     * current i goes to unit i
+     * @param inputCurrents the currents
+     * @return the status returned by each unit's fireTo, in the order of the
+     * currents; only valid until the next call.
+     */
+    public int[] fireTo(Layer lay,PSP sp,int[] targets,float[] inputCurrents)
+    {
+        if (closed)
+            throw new IllegalStateException("LayerThreads have been closed");
+
+        final int n=targets==null?lay.units.length:targets.length;
+        if (status.length<n)
+            status=new int[n];
+
+        layer=lay;
+        psp=sp;
+        addresses=targets;
+        currents=inputCurrents;
+        count=n;
+
+        pending.set(workers.length);
+        generation++;
+        for (Worker w:workers)
+            if (w.sleeping)
+                LockSupport.unpark(w);
+
+        try {
+            run(0);
+        } catch (Throwable t) {
+            failure=t;
+        }
+
+        int spins=0;
+        while (pending.get()!=0)
+            if (++spins>spinLimit)
+                Thread.yield();
+
+        layer=null;
+        psp=null;
+        addresses=null;
+        currents=null;
+
+        Throwable t=failure;
+        if (t!=null)
+        {   failure=null;
+            if (t instanceof RuntimeException)
+                throw (RuntimeException)t;
+            throw new RuntimeException(t);
+        }
+        return status;
+    }
+
+    /** Fire to the units of one range */
+    void run(int part)
+    {
+        final Unit[] units=layer.units;
+        final int lo=(int)((long)units.length*part/nThreads);
+        final int hi=(int)((long)units.length*(part+1)/nThreads);
+        final PSP sp=psp;
+        final float[] cur=currents;
+        final int[] st=status;
+
+        if (addresses==null)
+        {   for (int i=lo; i<hi; i++)
+                st[i]=units[i].fireTo(sp,cur[i]);
+        }
+        else
+        {   final int[] addr=addresses;
+            for (int i=0; i<count; i++)
+            {   final int u=addr[i];
+                if (u>=lo && u<hi)
+                    st[i]=units[u].fireTo(sp,cur[i]);
+                else if (part==0 && (u<0 || u>=units.length))
+                {   if (u!=-1)
+                        throw new ArrayIndexOutOfBoundsException(u);
+                    st[i]=0;
+                }
+            }
+        }
+    }
+
+    /** Stop the worker threads */
+    public void close()
+    {
+        closed=true;
+        for (Worker w:workers)
+            LockSupport.unpark(w);
+    }
+
+    class Worker extends Thread
+    {
+        final int part;
+        volatile boolean sleeping=false;
+
+        Worker(int part)
+        {   this.part=part;
+        }
+
+        @Override
+        public void run()
+        {
+            int seen=0;
+            while (true)
+            {
+                int g;
+                int spins=0;
+                while ((g=generation)==seen)
+                {   if (closed)
+                        return;
+                    if (++spins<spinLimit)
+                        continue;
+                    sleeping=true;
+                    if (generation==seen && !closed)
+                        LockSupport.park(this);
+                    sleeping=false;
+                    spins=0;
+                }
+                seen=g;
+
+                try {
+                    LayerThreads.this.run(part);
+                } catch (Throwable t) {
+                    failure=t;
+                }
+                pending.decrementAndGet();
+            }
+        }
+    }
+}
@@ -5,11 +5,19 @@
 package jspikestack;
 
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- *
+ * Passes each element added to the queues of all readers that accept it.
+ * 
+ * Adding does not lock: the readers are kept in a copy-on-write list, which 
+ * only copies when readers come and go, and each reader gets a lock-free 
+ * ConcurrentLinkedQueue.  So the network thread never waits for a plotter or 
+ * recorder that is reading its queue.  The reader queues count their elements,
+ * so that their size() does not walk the whole queue.
+ * 
  * @author Peter
  */
 public class MultiReaderQueue<T> {
@@ -31,7 +39,7 @@ public class MultiReaderQueue<T> {
         }
     }
     
-    final ArrayList<Subscriber> subs=new ArrayList();
+    final CopyOnWriteArrayList<Subscriber> subs=new CopyOnWriteArrayList<Subscriber>();
     
     
 //    Collection<LinkedBlockingQueue<T>> queues=new ArrayList();
@@ -46,8 +54,9 @@ public class MultiReaderQueue<T> {
         {   
             for (Subscriber s: subs)
                 if (s.queue==r)
-                    s.kill=true;
-//                    subs.remove(s);
+                {   s.kill=true;
+                    subs.remove(s);
+                }
         }
     }
             
@@ -56,17 +65,9 @@ public class MultiReaderQueue<T> {
 //    {
 //        synchronized(subs){
         
-            int i=0;
-            while (i<subs.size())
-            {   Subscriber s=subs.get(i);
-                if (s.kill)
-                {   subs.remove(i);
-                    continue;
-                }
-                else if (s.comp.compareTo(el)>0)
+            for (Subscriber s:subs)
+            {   if (!s.kill && s.comp.compareTo(el)>0)
                     s.queue.add(el);
-                
-                i++;
             }
                 //else
     //                System.out.println("aa");
@@ -110,7 +111,7 @@ public class MultiReaderQueue<T> {
     {
         synchronized(subs)
         {
-            LinkedBlockingQueue q=new LinkedBlockingQueue();
+            CountingQueue<T> q=new CountingQueue<T>();
             subs.add(new Subscriber(q,c));
             return q;
         }
@@ -148,6 +149,62 @@ public class MultiReaderQueue<T> {
         };
     }
     
+    /** Lock-free reader queue that keeps a count of its elements. */
+    static class CountingQueue<E> extends AbstractQueue<E>
+    {
+        final ConcurrentLinkedQueue<E> queue=new ConcurrentLinkedQueue<E>();
+        final AtomicInteger count=new AtomicInteger();
+        
+        @Override
+        public boolean offer(E e)
+        {   queue.offer(e);
+            count.incrementAndGet();
+            return true;
+        }
+        
+        @Override
+        public E poll()
+        {   E e=queue.poll();
+            if (e!=null)
+                count.decrementAndGet();
+            return e;
+        }
+        
+        @Override
+        public E peek()
+        {   return queue.peek();
+        }
+        
+        /** The number of elements; may lag elements being added or removed 
+         * concurrently. */
+        @Override
+        public int size()
+        {   return Math.max(0,count.get());
+        }
+        
+        @Override
+        public Iterator<E> iterator()
+        {   final Iterator<E> it=queue.iterator();
+            return new Iterator<E>(){
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public E next() {
+                    return it.next();
+                }
+
+                @Override
+                public void remove() {
+                    it.remove();
+                    count.decrementAndGet();
+                }
+            };
+        }
+    }
+    
     
     
     
@@ -174,8 +231,8 @@ public class MultiReaderQueue<T> {
 // */
 //package jspikestack;
 //
-
-
+
+
 //
 ///**
 // *
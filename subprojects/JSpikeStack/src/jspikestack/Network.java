@@ -42,8 +42,13 @@ public class Network<AxonType extends Axon> implements Serializable {
     
     // These are now set in "implementQueues"    
     transient LinkedBlockingQueue<PSP> inputBuffer;// = new LinkedBlockingQueue();
-    transient PriorityQueue<PSP> internalBuffer;//= new PriorityQueue();
+    transient Queue<PSP> internalBuffer;// TimeWheelQueue, or PriorityQueue if timeWheel is false
     transient MultiReaderQueue<Spike> outputQueue;//=new MultiReaderQueue();
+    transient volatile SpikeRing spikeRing;  // Primitive output spikes for fast readers, made on demand
+    
+    boolean timeWheel=false; // Schedule internal PSPs with a TimeWheelQueue rather than a PriorityQueue
+    
+    transient LayerThreads layerThreads;   // Threads sharing the units of large layers, null if sequential
         
 //    public int delay;
     
@@ -93,11 +98,67 @@ public class Network<AxonType extends Axon> implements Serializable {
     final void implementQueues()
     {
         inputBuffer = new LinkedBlockingQueue();
-        internalBuffer= new PriorityQueue();
+        internalBuffer= timeWheel?new TimeWheelQueue():new PriorityQueue();
         outputQueue=new MultiReaderQueue();
         
     }
     
+    /** Choose whether internal PSPs are scheduled with a TimeWheelQueue 
+     * (constant time per PSP) or a PriorityQueue (the default).  The 
+     * TimeWheelQueue delivers PSPs with the same hitTime in the order they 
+     * were sent, the PriorityQueue in heap order, so the two can give 
+     * slightly different spikes.  Waiting PSPs are moved over.  Must not be 
+     * called while the network is running. */
+    public void setTimeWheel(boolean enable)
+    {
+        if (enable==timeWheel)
+            return;
+        
+        Queue<PSP> old=internalBuffer;
+        timeWheel=enable;
+        internalBuffer= timeWheel?new TimeWheelQueue():new PriorityQueue();
+        while (!old.isEmpty())
+            internalBuffer.add(old.poll());
+    }
+    
+    public boolean isTimeWheel()
+    {   return timeWheel;
+    }
+    
+    /** Set the number of threads among which the units of a layer are split 
+     * when a PSP is fired to many of them: 1 to run sequentially (the 
+     * default), 0 to use all processors.  The results are identical to the 
+     * sequential ones.  Must not be called while the network is running. */
+    public void setNumThreads(int nThreads)
+    {
+        if (nThreads<0)
+            throw new IllegalArgumentException("nThreads="+nThreads+" must not be negative");
+        if (nThreads==0)
+            nThreads=Runtime.getRuntime().availableProcessors();
+        
+        if (layerThreads!=null && layerThreads.getNumThreads()==nThreads)
+            return;
+        
+        if (layerThreads!=null)
+            layerThreads.close();
+        layerThreads=nThreads>1?new LayerThreads(nThreads):null;
+    }
+    
+    /** Get the number of threads running the layers, 1 if sequential */
+    public int getNumThreads()
+    {   return layerThreads==null?1:layerThreads.getNumThreads();
+    }
+    
+    /** Get the ring through which the output spikes are passed to lock-free 
+     * readers, making it the first time.  Spikes are only written to it while
+     * it has readers.  */
+    synchronized public SpikeRing getSpikeRing()
+    {
+        if (spikeRing==null)
+            spikeRing=new SpikeRing(1<<16);
+        return spikeRing;
+    }
+    
     
     
     public ArrayList<Layer> getLayers()
@@ -782,6 +843,10 @@ public class Network<AxonType extends Axon> implements Serializable {
     public void addToOutputQueue(Spike ev)
     {
         outputQueue.add(ev);
+        
+        SpikeRing ring=spikeRing;
+        if (ring!=null && ring.hasReaders())
+            ring.publish(ev);
     }
     
     public void addToInternalQueue(PSP ev)
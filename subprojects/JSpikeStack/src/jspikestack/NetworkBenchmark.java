@@ -0,0 +1,227 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package jspikestack;
+
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.Random;
+
+/**
+ * Measures how many PSPs per second the network simulation gets through.
+ *
+ * A convolutional network like the one in JspikeStack.convDemo (LIF units,
+ * sparse kernel axons with a propagation delay) is fed random input spikes and
+ * run to completion, with the internal PSPs scheduled by a PriorityQueue and
+ * by the TimeWheelQueue, and with the output spikes read by a second thread
+ * either from a MultiReaderQueue reader or from the SpikeRing.
+ *
+ * Then a fully connected network like a spiking RBM is run sequentially and
+ * with its layers split among threads (Network.setNumThreads), checking that
+ * both give the same output spikes.
+ *
+ * Run with optional arguments: number of input spikes, number of repetitions,
+ * number of threads (0 for all processors).
+ *
+ * @author oconnorp
+ */
+public class NetworkBenchmark {
+
+    static final int DIM=64;
+
+    public static void main(String[] args)
+    {
+        int nInputs=args.length>0?Integer.parseInt(args[0]):500000;
+        int nRuns=args.length>1?Integer.parseInt(args[1]):3;
+        int nThreads=args.length>2?Integer.parseInt(args[2]):0;
+
+        ArrayList<PSPInput> inputs=makeInputs(nInputs,new Random(1));
+
+        System.out.println("Network of "+DIM+"x"+DIM+" input, "+DIM+"x"+DIM+" and "+DIM/2+"x"+DIM/2+" LIF layers, "+nInputs+" input spikes");
+        for (int run=0; run<nRuns; run++)
+        {
+            runOnce("PriorityQueue, MultiReaderQueue reader",false,false,inputs);
+            runOnce("TimeWheelQueue, MultiReaderQueue reader",true,false,inputs);
+            runOnce("TimeWheelQueue, SpikeRing reader",true,true,inputs);
+        }
+
+        ArrayList<PSPInput> denseInputs=makeInputs(nInputs/20,new Random(2));
+        System.out.println("Fully connected network of "+DIM*DIM/4+"-"+DENSE+"-"+DENSE+" LIF units, "+denseInputs.size()+" input spikes");
+        for (int run=0; run<nRuns; run++)
+        {
+            long seq=runDense(1,denseInputs);
+            long par=runDense(nThreads,denseInputs);
+            System.out.println("Same output spikes: "+(seq==par));
+        }
+    }
+
+    static final int DENSE=1024;
+
+    static Network buildDenseNet()
+    {
+        Axon.Factory axonFactory=new Axon.Factory();
+        UnitLIF.Factory unitFactory=new UnitLIF.Factory();
+        Network<Axon> net=new Network(axonFactory,unitFactory);
+
+        net.addLayer(0,DIM*DIM/4);
+        net.addLayer(1,DENSE);
+        net.addLayer(2,DENSE);
+        net.addAxon(0,1);
+        net.addAxon(1,2);
+
+        Random rnd=new Random(3);
+        for (Axon ax:(ArrayList<Axon>)net.getAxons())
+            for (int i=0; i<ax.w.length; i++)
+                for (int j=0; j<ax.w[i].length; j++)
+                    ax.w[i][j]=(float)(.15*rnd.nextGaussian());
+
+        axonFactory.glob.delay=2000;
+        axonFactory.glob.useGlobalDelay=true;
+
+        unitFactory.glob.useGlobalThresh=true;
+        unitFactory.glob.thresh=1;
+        unitFactory.glob.tau=20000;
+        unitFactory.glob.tref=1000;
+
+        return net;
+    }
+
+    /** Run the dense network and return a hash of its output spikes */
+    static long runDense(int nThreads,ArrayList<PSPInput> inputs)
+    {
+        Network net=buildDenseNet();
+        net.setNumThreads(nThreads);
+        Queue<Spike> queue=net.outputQueue.addReader();
+
+        ArrayList<PSPInput> in=new ArrayList(inputs.size());
+        for (PSPInput p:inputs)
+            in.add(new PSPInput(p.hitTime,p.targetUnit%net.lay(0).nUnits(),0));
+
+        long start=System.nanoTime();
+        net.feedEventsAndGo(in);
+        long ns=System.nanoTime()-start;
+        int threadsUsed=net.getNumThreads();
+        net.setNumThreads(1);
+
+        long hash=0;
+        int nOut=0;
+        Spike sp;
+        while ((sp=queue.poll())!=null)
+        {   hash=hash*31+((long)sp.time<<32)+(sp.addr<<4)+sp.layer;
+            nOut++;
+        }
+
+        System.out.println(String.format("%-40s %8.0f ms, %10d PSPs, %6.2f k PSPs/s, %8d output spikes",
+                threadsUsed+" thread(s)",ns/1e6,net.spikecount,net.spikecount*1e6/ns,nOut));
+        return hash;
+    }
+
+    /** Random input spikes with increasing times, about 5 per 10us */
+    static ArrayList<PSPInput> makeInputs(int n,Random rnd)
+    {
+        ArrayList<PSPInput> inputs=new ArrayList(n);
+        int time=0;
+        for (int i=0; i<n; i++)
+        {   time+=rnd.nextInt(4);
+            inputs.add(new PSPInput(time,rnd.nextInt(DIM*DIM),0));
+        }
+        return inputs;
+    }
+
+    static Network buildNet()
+    {
+        AxonSparse.Factory axonFactory=new AxonSparse.Factory();
+        UnitLIF.Factory unitFactory=new UnitLIF.Factory();
+        Network<AxonSparse> net=new Network(axonFactory,unitFactory);
+
+        net.addLayer(0,DIM,DIM);
+        net.addLayer(1,DIM,DIM);
+        net.addLayer(2,DIM/2,DIM/2);
+        net.addAxon(0,1);
+        net.addAxon(1,1);
+        net.addAxon(1,2);
+
+        net.ax(0,1).defineKernel(kernel(7,.4f));
+        net.ax(1,1).defineKernel(kernel(5,-.1f));
+        net.ax(1,2).defineKernel(kernel(3,.5f));
+
+        axonFactory.glob.delay=2000;
+        axonFactory.glob.useGlobalDelay=true;
+
+        unitFactory.glob.useGlobalThresh=true;
+        unitFactory.glob.thresh=1;
+        unitFactory.glob.tau=20000;
+        unitFactory.glob.tref=1000;
+
+        return net;
+    }
+
+    static float[][] kernel(int size,float mag)
+    {
+        float[][] k=new float[size][size];
+        for (int i=0; i<size; i++)
+            for (int j=0; j<size; j++)
+                k[i][j]=mag;
+        return k;
+    }
+
+    static void runOnce(String name,boolean timeWheel,final boolean ring,ArrayList<PSPInput> inputs)
+    {
+        final Network net=buildNet();
+        net.setTimeWheel(timeWheel);
+
+        final Queue<Spike> queue=ring?null:net.outputQueue.addReader();
+        final SpikeRing.Reader reader=ring?net.getSpikeRing().addReader():null;
+        final long[] nRead=new long[1];
+        final boolean[] done=new boolean[1];
+
+        Thread readerThread=new Thread("NetworkBenchmark reader")
+        {   @Override
+            public void run()
+            {
+                int[] times=new int[4096],addrs=new int[4096];
+                long count=0;
+                while (true)
+                {   boolean finished;
+                    synchronized(done)
+                    {   finished=done[0];
+                    }
+
+                    int n=0;
+                    if (ring)
+                        n=reader.drainTo(times,addrs,null,null);
+                    else
+                        while (n<times.length && queue.poll()!=null)
+                            n++;
+                    count+=n;
+
+                    if (n==0)
+                    {   if (finished)
+                            break;
+                        Thread.yield();
+                    }
+                }
+                nRead[0]=count;
+            }
+        };
+        readerThread.start();
+
+        long start=System.nanoTime();
+        net.feedEventsAndGo(inputs);
+        long ns=System.nanoTime()-start;
+
+        synchronized(done)
+        {   done[0]=true;
+        }
+        try {
+            readerThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        long dropped=ring?net.getSpikeRing().getDropped():0;
+        System.out.println(String.format("%-40s %8.0f ms, %10d PSPs, %6.2f M PSPs/s, %8d output spikes read, %d dropped",
+                name,ns/1e6,net.spikecount,net.spikecount*1e3/ns,nRead[0],dropped));
+    }
+}
@@ -12,7 +12,6 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Queue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,9 +36,11 @@ public class SpikeRecorder<SpikeType extends Spike> {
         net=network;
     }
 
+    /** The number of spikes recorded; the recording queue keeps count, so 
+     * this does not walk the queue. */
     public int nSpikes()
     {
-        return ((LinkedBlockingQueue) spikes).size();
+        return spikes.size();
     }
 
     public void setRecodingState(boolean state)
@@ -0,0 +1,162 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package jspikestack;
+
+import java.util.Arrays;
+
+/**
+ * Hands the output spikes of the network to any number of reader threads
+ * without locks and without allocating.
+ *
+ * The spikes are held as primitive records (time, address, layer, activation)
+ * in a ring of fixed capacity, written by the network thread only.  Each
+ * reader has its own cursor into the ring, so readers do not disturb each
+ * other or the network.  A spike is only written over once every reader has
+ * read it; if the slowest reader is a whole ring behind, new spikes are
+ * dropped (and counted) rather than making the network wait, like
+ * ArrayBlockingQueue.offer.
+ *
+ * For readers that need every spike as a Spike object, use
+ * Network.outputQueue instead.
+ *
+ * @author oconnorp
+ */
+public class SpikeRing {
+
+    final int capacity;
+    final int mask;
+    final int[] time, addr, layer, act;
+
+    volatile long tail=0;        // Number of spikes ever written
+    long minCursor=0;            // Cursor of the slowest reader when last looked at (writer only)
+    volatile long dropped=0;
+
+    volatile Reader[] readers=new Reader[0];
+
+    /** Make a ring holding at least the specified number of spikes */
+    public SpikeRing(int minCapacity)
+    {
+        if (minCapacity<1 || minCapacity>(1<<30))
+            throw new IllegalArgumentException("capacity="+minCapacity+" must be between 1 and 2^30");
+
+        int c=1;
+        while (c<minCapacity)
+            c<<=1;
+        capacity=c;
+        mask=capacity-1;
+        time=new int[capacity];
+        addr=new int[capacity];
+        layer=new int[capacity];
+        act=new int[capacity];
+    }
+
+    public int getCapacity()
+    {   return capacity;
+    }
+
+    /** Number of spikes dropped because a reader was a whole ring behind */
+    public long getDropped()
+    {   return dropped;
+    }
+
+    /** True if there are readers, i.e. if it's worth publishing spikes */
+    public boolean hasReaders()
+    {   return readers.length>0;
+    }
+
+    /** Write a spike, called from the network thread only.
+     * @return false if the spike was dropped because a reader was too slow.
+     */
+    public boolean publish(int spikeTime,int spikeAddr,int spikeLayer,int spikeAct)
+    {
+        final long t=tail;
+
+        if (t-minCursor>=capacity)
+        {   // Ring looks full: check where the readers really are.
+            long min=t;
+            for (Reader r:readers)
+                min=Math.min(min,r.cursor);
+            minCursor=min;
+            if (t-min>=capacity)
+            {   dropped++;
+                return false;
+            }
+        }
+
+        final int k=(int)t&mask;
+        time[k]=spikeTime;
+        addr[k]=spikeAddr;
+        layer[k]=spikeLayer;
+        act[k]=spikeAct;
+        tail=t+1; // Volatile write publishes the spike
+        return true;
+    }
+
+    /** Write a spike, called from the network thread only. */
+    public boolean publish(Spike sp)
+    {   return publish(sp.time,sp.addr,sp.layer,sp.act);
+    }
+
+    /** Add a reader, which will see the spikes published from now on */
+    synchronized public Reader addReader()
+    {
+        Reader r=new Reader();
+        r.cursor=tail;
+        Reader[] rs=Arrays.copyOf(readers,readers.length+1);
+        rs[rs.length-1]=r;
+        readers=rs;
+        return r;
+    }
+
+    /** Remove a reader, so that it no longer holds up the ring */
+    synchronized public void removeReader(Reader r)
+    {
+        Reader[] rs=readers;
+        for (int i=0; i<rs.length; i++)
+            if (rs[i]==r)
+            {   Reader[] nrs=new Reader[rs.length-1];
+                System.arraycopy(rs,0,nrs,0,i);
+                System.arraycopy(rs,i+1,nrs,i,rs.length-i-1);
+                readers=nrs;
+                return;
+            }
+    }
+
+    /** A cursor into the ring.  Each reader must be used by one thread only. */
+    public class Reader
+    {
+        volatile long cursor;
+
+        /** Number of spikes waiting to be read */
+        public int available()
+        {   return (int)(tail-cursor);
+        }
+
+        /** Copy waiting spikes into the arrays, up to their length.  Any of
+         * the arrays but times may be null if the field is not needed.
+         * @return the number of spikes copied
+         */
+        public int drainTo(int[] times,int[] addrs,int[] layers,int[] acts)
+        {
+            final long c=cursor;
+            final int n=(int)Math.min(tail-c,times.length);
+            for (int i=0; i<n; i++)
+            {   final int k=(int)(c+i)&mask;
+                times[i]=time[k];
+                if (addrs!=null) addrs[i]=addr[k];
+                if (layers!=null) layers[i]=layer[k];
+                if (acts!=null) acts[i]=act[k];
+            }
+            cursor=c+n; // Volatile write frees the slots for the writer
+            return n;
+        }
+
+        /** Skip all waiting spikes */
+        public void skip()
+        {   cursor=tail;
+        }
+    }
+
+}
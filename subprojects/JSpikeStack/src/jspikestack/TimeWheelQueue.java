@@ -0,0 +1,235 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package jspikestack;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * A calendar ("time-wheel") queue for the PSPs waiting inside the network.
+ *
+ * The wheel has one slot per time step (us) for a window of 2^wheelBits steps
+ * starting at the time of the last PSP taken out.  Each slot holds a FIFO
+ * chain of PSPs with the same hitTime, so offer and poll take constant time
+ * instead of the log(n) of a PriorityQueue, and PSPs with the same hitTime
+ * come out in the order they went in.  The chains are kept in pooled int
+ * arrays, so no memory is allocated once the pool has grown, and a bitmap of
+ * the occupied slots lets poll skip empty stretches of time 64 slots at a
+ * time.
+ *
+ * Since PSP.compareTo only compares hitTimes, a PriorityQueue delivers PSPs
+ * with the same hitTime in heap order, which depends on the whole history of
+ * the queue.  A network therefore gives slightly different spikes with this
+ * queue than with a PriorityQueue, which is why Network uses it only if
+ * setTimeWheel(true) is called.
+ *
+ * PSPs that fall outside the window (further in the future than the wheel
+ * reaches, or earlier than the last PSP taken out) are kept in a
+ * PriorityQueue, and poll takes whichever comes first.
+ *
+ * Not thread-safe: it is used by the network thread only.
+ *
+ * @author oconnorp
+ */
+public class TimeWheelQueue extends AbstractQueue<PSP> {
+
+    final int mask;
+    final int[] head, tail;  // First and last pool entry of each slot, -1 if empty
+    final long[] occupied;   // Bit per slot, set if the slot has entries
+
+    PSP[] items=new PSP[1024];   // Pool of chain entries
+    int[] next=new int[1024];
+    int free=-1;            // Head of the free-entry list
+    int used=0;             // Entries of the pool ever used
+
+    int base;               // Lower bound on the hitTime of the entries in the wheel
+    int wheelCount=0;
+    int nextTime;           // hitTime of the earliest entry in the wheel, valid if nextValid
+    boolean nextValid=false;
+
+    final PriorityQueue<PSP> overflow=new PriorityQueue<PSP>();
+
+    /** Make a queue with a window of 65536 time steps */
+    public TimeWheelQueue()
+    {   this(16);
+    }
+
+    /** Make a queue with a window of 2^wheelBits time steps */
+    public TimeWheelQueue(int wheelBits)
+    {
+        if (wheelBits<6 || wheelBits>24)
+            throw new IllegalArgumentException("wheelBits="+wheelBits+" must be between 6 and 24");
+
+        int size=1<<wheelBits;
+        mask=size-1;
+        head=new int[size];
+        tail=new int[size];
+        occupied=new long[size>>6];
+        java.util.Arrays.fill(head,-1);
+        java.util.Arrays.fill(tail,-1);
+    }
+
+    /** Number of time steps covered by the wheel */
+    public int getWindow()
+    {   return mask+1;
+    }
+
+    @Override
+    public boolean offer(PSP psp)
+    {
+        final int t=psp.hitTime;
+
+        int d=t-base;
+        if (wheelCount==0 && (d<0 || d>mask))
+        {   base=t; // Wheel is empty, move it to this PSP
+            d=0;
+        }
+
+        if (d<0 || d>mask)
+        {   overflow.add(psp);
+            return true;
+        }
+
+        // Take an entry from the pool
+        int e;
+        if (free!=-1)
+        {   e=free;
+            free=next[e];
+        }
+        else
+        {   if (used==items.length)
+            {   items=java.util.Arrays.copyOf(items,used*2);
+                next=java.util.Arrays.copyOf(next,used*2);
+            }
+            e=used++;
+        }
+        items[e]=psp;
+        next[e]=-1;
+
+        // Append to the chain of the slot
+        final int s=t&mask;
+        if (tail[s]==-1)
+        {   head[s]=e;
+            occupied[s>>6]|=1L<<(s&63);
+        }
+        else
+            next[tail[s]]=e;
+        tail[s]=e;
+
+        wheelCount++;
+        if (nextValid && t-nextTime<0)
+            nextTime=t;
+
+        return true;
+    }
+
+    /** Find the hitTime of the earliest entry in the wheel, which must not be empty */
+    int findNext()
+    {
+        if (nextValid)
+            return nextTime;
+
+        final int start=base&mask;
+        int word=start>>6;
+        long bits=occupied[word]&(-1L<<(start&63));
+        while (bits==0)
+        {   word=(word+1)%occupied.length;
+            bits=occupied[word];
+        }
+        final int s=(word<<6)+Long.numberOfTrailingZeros(bits);
+
+        nextTime=base+((s-start)&mask);
+        nextValid=true;
+        return nextTime;
+    }
+
+    /** True if the next PSP comes from the wheel rather than the overflow */
+    boolean nextFromWheel()
+    {
+        if (wheelCount==0)
+            return false;
+        if (overflow.isEmpty())
+            return true;
+        return findNext()-overflow.peek().hitTime<=0;
+    }
+
+    @Override
+    public PSP poll()
+    {
+        if (!nextFromWheel())
+            return overflow.poll();
+
+        final int t=findNext();
+        final int s=t&mask;
+        final int e=head[s];
+        final PSP psp=items[e];
+
+        items[e]=null;
+        head[s]=next[e];
+        next[e]=free;
+        free=e;
+
+        if (head[s]==-1)
+        {   tail[s]=-1;
+            occupied[s>>6]&=~(1L<<(s&63));
+            nextValid=false;
+        }
+
+        wheelCount--;
+        base=t;
+        return psp;
+    }
+
+    @Override
+    public PSP peek()
+    {
+        if (!nextFromWheel())
+            return overflow.peek();
+
+        return items[head[findNext()&mask]];
+    }
+
+    @Override
+    public int size()
+    {   return wheelCount+overflow.size();
+    }
+
+    @Override
+    public boolean isEmpty()
+    {   return wheelCount==0 && overflow.isEmpty();
+    }
+
+    @Override
+    public void clear()
+    {
+        for (int s=0; s<head.length; s++)
+        {   for (int e=head[s]; e!=-1; e=next[e])
+                items[e]=null;
+            head[s]=-1;
+            tail[s]=-1;
+        }
+        java.util.Arrays.fill(occupied,0);
+        free=-1;
+        used=0;
+        wheelCount=0;
+        nextValid=false;
+        overflow.clear();
+    }
+
+    /** Iterate over a copy of the waiting PSPs, in no particular order. */
+    @Override
+    public Iterator<PSP> iterator()
+    {
+        ArrayList<PSP> all=new ArrayList<PSP>(size());
+        for (int s=0; s<head.length; s++)
+            for (int e=head[s]; e!=-1; e=next[e])
+                all.add(items[e]);
+        all.addAll(overflow);
+        return java.util.Collections.unmodifiableList(all).iterator();
+    }
+
+}